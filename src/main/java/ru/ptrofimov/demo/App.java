@@ -1,24 +1,79 @@
 package ru.ptrofimov.demo;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.logic.AccountHelper;
+import ru.ptrofimov.demo.logic.LedgerEngines;
+import ru.ptrofimov.demo.logic.WarmUp;
+import ru.ptrofimov.demo.metrics.StartupReport;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+import ru.ptrofimov.demo.utils.ConnectionPool;
+import ru.ptrofimov.demo.utils.DBUtils;
 import ru.ptrofimov.demo.utils.JettyUtils;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 /**
  * Money Transfer Demo Main Class.
  * Starts a Jetty instance for user to play freely with {@link ru.ptrofimov.demo.rest.MoneyTransferEntryPoint}.
+ * The optional first argument selects the ledger engine: {@code h2} (default), {@code memory} or {@code sequenced}.
+ * <p>
+ * Nothing is left for the first request to initialize: while Jersey starts, another thread runs the
+ * {@link WarmUp}, creates the schema, opens the pooled connections with their statements and sets up the engine.
+ * The connector opens only when both are done, and the time each phase took is logged.
+ * <p>
+ * The transfer audit log is opened before the engine and closed by a shutdown hook, so it is forced to disk on exit.
  */
 public class App {
     private static final Logger logger = LoggerFactory.getLogger(App.class);
 
     public static void main(String[] args) throws Exception {
         logger.trace("invoked main");
+        StartupReport startup = new StartupReport();
+
+        String engine = args.length > 0 ? args[0] : ConfigUtils.getString("ledger.engine", LedgerEngines.H2);
+        logger.info("using {} ledger engine", engine);
+        FutureTask<Void> preparation = new FutureTask<>(() -> {
+            prepare(engine, startup);
+            return null;
+        });
+        new Thread(preparation, "startup").start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                LedgerEngines.closeAuditLog();
+            } catch (IOException e) {
+                logger.error("failed to close the transfer audit log", e);
+            }
+        }, "audit-shutdown"));
 
         Server jettyServer = JettyUtils.createServer();
+        long jerseyStart = System.nanoTime();
+        // beans start after the handler and before the connectors
+        jettyServer.addBean(new AbstractLifeCycle() {
+            @Override
+            protected void doStart() throws Exception {
+                startup.recordSince("jersey", jerseyStart);
+                try {
+                    preparation.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        });
 
         try {
             jettyServer.start();
+            startup.recordSince("http", jerseyStart);
+            startup.log();
             jettyServer.join();
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
@@ -27,4 +82,36 @@ public class App {
             jettyServer.destroy();
         }
     }
+
+    private static void prepare(String engine, StartupReport startup) throws Exception {
+        long start = System.nanoTime();
+        WarmUp.run(engine, ConfigUtils.getInt("startup.warmup.transfers", 0));
+        startup.recordSince("warm-up", start);
+
+        start = System.nanoTime();
+        ConnectionPool pool = DBUtils.getPool();
+        startup.recordSince("schema", start);
+
+        start = System.nanoTime();
+        pool.prime(AccountHelper.HOT_STATEMENTS);
+        ConnectionPool queryPool = DBUtils.getQueryPool();
+        if (queryPool != pool) {
+            queryPool.prime(AccountHelper.HOT_STATEMENTS);
+        }
+        startup.recordSince("pool", start);
+
+        start = System.nanoTime();
+        LedgerEngines.openAuditLog();
+        LedgerEngines.select(engine);
+        startup.recordSince("engine", start);
+
+        // Jersey's JSON provider would load Jackson on the first request otherwise
+        start = System.nanoTime();
+        ObjectMapper mapper = new ObjectMapper();
+        byte[] account = mapper.writeValueAsBytes(
+                new AccountDetails(Currency.AMERICAN_DOLLAR, BigDecimal.ONE, "warm-up"));
+        mapper.readValue(account, AccountDetails.class);
+        mapper.writeValueAsBytes(MoneyTransferStatus.values());
+        startup.recordSince("json", start);
+    }
 }
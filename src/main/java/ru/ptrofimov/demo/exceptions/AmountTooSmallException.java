@@ -0,0 +1,12 @@
+package ru.ptrofimov.demo.exceptions;
+
+/**
+ * Thrown when the amount credited to the recipient, converted to its currency, rounds to nothing.
+ * Like {@link InsufficientFundsException} it is an expected outcome of a transfer, so it carries no stack trace.
+ */
+public class AmountTooSmallException extends RuntimeException {
+
+    public AmountTooSmallException() {
+        super(null, null, false, false);
+    }
+}
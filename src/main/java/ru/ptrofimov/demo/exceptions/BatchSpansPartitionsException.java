@@ -0,0 +1,11 @@
+package ru.ptrofimov.demo.exceptions;
+
+/**
+ * An all-or-nothing batch moves money between partitions, which would need it to be one distributed transaction.
+ */
+public class BatchSpansPartitionsException extends IllegalArgumentException {
+
+    public BatchSpansPartitionsException() {
+        super("atomic batches must not span partitions");
+    }
+}
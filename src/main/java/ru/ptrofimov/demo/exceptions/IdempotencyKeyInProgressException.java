@@ -0,0 +1,12 @@
+package ru.ptrofimov.demo.exceptions;
+
+/**
+ * The idempotency key belongs to a cross-partition transfer that is not decided yet, so whether a retry has to
+ * be replayed or executed is not known; the client should retry later.
+ */
+public class IdempotencyKeyInProgressException extends IdempotencyKeyReusedException {
+
+    public IdempotencyKeyInProgressException(String key) {
+        super(key);
+    }
+}
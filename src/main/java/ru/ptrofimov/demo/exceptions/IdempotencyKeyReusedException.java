@@ -0,0 +1,13 @@
+package ru.ptrofimov.demo.exceptions;
+
+public class IdempotencyKeyReusedException extends Exception {
+    private String key;
+
+    public IdempotencyKeyReusedException(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
@@ -1,4 +1,11 @@
 package ru.ptrofimov.demo.exceptions;
 
+/**
+ * Thrown for every rejected transfer, so it carries no stack trace.
+ */
 public class InsufficientFundsException extends RuntimeException {
+
+    public InsufficientFundsException() {
+        super(null, null, false, false);
+    }
 }
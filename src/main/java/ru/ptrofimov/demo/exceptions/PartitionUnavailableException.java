@@ -0,0 +1,19 @@
+package ru.ptrofimov.demo.exceptions;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Another partition of the ledger could not be reached; the operation may succeed when retried.
+ */
+public class PartitionUnavailableException extends SQLTransientConnectionException {
+    private int partition;
+
+    public PartitionUnavailableException(int partition, Throwable cause) {
+        super("partition " + partition + " is unavailable", cause);
+        this.partition = partition;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+}
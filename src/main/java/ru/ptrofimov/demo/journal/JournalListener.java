@@ -0,0 +1,42 @@
+package ru.ptrofimov.demo.journal;
+
+import ru.ptrofimov.demo.model.Currency;
+
+/**
+ * Receives journal records during replay. Amounts are in minor units (cents).
+ */
+public interface JournalListener {
+
+    void onCreate(long accountId, Currency currency, long balance, String owner);
+
+    /**
+     * @param debited  amount taken from the sender, in its currency
+     * @param credited amount given to the recipient, in its currency; differs from {@code debited} only when
+     *                 the transfer was converted between currencies
+     */
+    void onTransfer(long senderId, long recipientId, long debited, long credited);
+
+    /**
+     * Follows the {@link #onTransfer} of a transfer made under an idempotency key; snapshots replay the keys that
+     * had not expired yet on their own.
+     *
+     * @param createdAt when the key was recorded, in epoch millis
+     */
+    default void onKey(String key, String fingerprint, long createdAt) {
+    }
+
+    /**
+     * A half of a cross-partition transfer was reserved.
+     *
+     * @param applied whether the balances already reflect the reservation, as they do in a snapshot
+     */
+    default void onPending(LedgerState.Pending pending, boolean applied) {
+    }
+
+    /**
+     * The pending half {@code txId} was committed or aborted; replayed from a snapshot for a credit resolved
+     * recently, with nothing pending under it.
+     */
+    default void onResolved(String txId, boolean commit, long resolvedAt) {
+    }
+}
@@ -0,0 +1,361 @@
+package ru.ptrofimov.demo.journal;
+
+import ru.ptrofimov.demo.model.Currency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Folds journal records into the latest state of every account.
+ * Used to build snapshots and to restore a ledger that cannot replay records one by one.
+ * <p>
+ * A pending debit of a cross-partition transfer is taken from the sender when it is reserved and given back if
+ * the transfer is aborted; a pending credit is given to the recipient only when it is committed. Resolved
+ * credits are remembered so that a participant can tell a repeated commit from one it never prepared.
+ * <p>
+ * Optionally the executed transfers are kept too. A snapshot holds only balances, so these are the transfers
+ * journaled since the last one.
+ */
+public class LedgerState implements JournalListener {
+
+    private final Map<Long, Account> accounts = new TreeMap<>();
+    private final Map<String, Key> keys = new LinkedHashMap<>();
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private final Map<String, Resolved> resolved = new LinkedHashMap<>();
+    /** {@code null} unless transfers are kept */
+    private final List<Transfer> transfers;
+    /** transfer whose idempotency key may follow */
+    private Transfer lastTransfer;
+
+    public LedgerState() {
+        this(false);
+    }
+
+    /**
+     * @param keepTransfers whether to keep the replayed transfers for {@link #getTransfers()}
+     */
+    public LedgerState(boolean keepTransfers) {
+        this.transfers = keepTransfers ? new ArrayList<>() : null;
+    }
+
+    @Override
+    public void onCreate(long accountId, Currency currency, long balance, String owner) {
+        lastTransfer = null;
+        accounts.put(accountId, new Account(accountId, currency, balance, owner));
+    }
+
+    @Override
+    public void onTransfer(long senderId, long recipientId, long debited, long credited) {
+        Account sender = get(senderId);
+        Account recipient = get(recipientId);
+        sender.balance -= debited;
+        recipient.balance += credited;
+        if (transfers != null) {
+            lastTransfer = new Transfer(senderId, recipientId, debited, sender.currency, credited, recipient.currency,
+                    0);
+            transfers.add(lastTransfer);
+        }
+    }
+
+    @Override
+    public void onKey(String key, String fingerprint, long createdAt) {
+        if (lastTransfer != null) {
+            lastTransfer.createdAt = createdAt;
+            lastTransfer = null;
+        }
+        keys.remove(key);
+        keys.put(key, new Key(key, fingerprint, createdAt));
+    }
+
+    @Override
+    public void onPending(Pending transfer, boolean applied) {
+        lastTransfer = null;
+        if (!transfer.credit && !applied) {
+            get(transfer.accountId).balance -= transfer.amount;
+        }
+        pending.put(transfer.txId, transfer);
+    }
+
+    @Override
+    public void onResolved(String txId, boolean commit, long resolvedAt) {
+        lastTransfer = null;
+        Pending transfer = pending.remove(txId);
+        if (commit && transfer != null && transfers != null) {
+            transfers.add(new Transfer(transfer.credit ? transfer.counterpartyId : transfer.accountId,
+                    transfer.credit ? transfer.accountId : transfer.counterpartyId, transfer.amount,
+                    transfer.currency, transfer.amount, transfer.currency, resolvedAt));
+        }
+        if (transfer == null || transfer.credit) {
+            resolved.put(txId, new Resolved(txId, commit, resolvedAt));
+        }
+        if (transfer == null) {
+            return;
+        }
+        if (transfer.credit == commit) {
+            get(transfer.accountId).balance += transfer.amount;
+        }
+        if (commit && transfer.idempotencyKey != null) {
+            onKey(transfer.idempotencyKey, transfer.fingerprint, resolvedAt);
+        }
+    }
+
+    private Account get(long accountId) {
+        Account account = accounts.get(accountId);
+        if (account == null) {
+            throw new IllegalStateException("journal references unknown account " + accountId);
+        }
+        return account;
+    }
+
+    /**
+     * @return accounts ordered by id
+     */
+    public Collection<Account> getAccounts() {
+        return Collections.unmodifiableCollection(accounts.values());
+    }
+
+    /**
+     * @return idempotency keys in the order they were last recorded
+     */
+    public Collection<Key> getKeys() {
+        return Collections.unmodifiableCollection(keys.values());
+    }
+
+    /**
+     * @return halves of cross-partition transfers not resolved yet
+     */
+    public Collection<Pending> getPending() {
+        return Collections.unmodifiableCollection(pending.values());
+    }
+
+    /**
+     * @return resolved credits of cross-partition transfers, oldest first
+     */
+    public Collection<Resolved> getResolved() {
+        return Collections.unmodifiableCollection(resolved.values());
+    }
+
+    /**
+     * @return executed transfers in journal order, empty unless they are kept
+     */
+    public List<Transfer> getTransfers() {
+        return transfers == null ? Collections.emptyList() : Collections.unmodifiableList(transfers);
+    }
+
+    public long getMaxAccountId() {
+        return accounts.isEmpty() ? 0 : ((TreeMap<Long, Account>) accounts).lastKey();
+    }
+
+    public static final class Account {
+        private final long id;
+        private final Currency currency;
+        private final String owner;
+        private long balance;
+
+        private Account(long id, Currency currency, long balance, String owner) {
+            this.id = id;
+            this.currency = currency;
+            this.balance = balance;
+            this.owner = owner;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Currency getCurrency() {
+            return currency;
+        }
+
+        /**
+         * @return balance in minor units
+         */
+        public long getBalance() {
+            return balance;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+    }
+
+    public static final class Transfer {
+        private final long senderId;
+        private final long recipientId;
+        private final long amount;
+        private final Currency currency;
+        private final long credited;
+        private final Currency recipientCurrency;
+        private long createdAt;
+
+        private Transfer(long senderId, long recipientId, long amount, Currency currency, long credited,
+                         Currency recipientCurrency, long createdAt) {
+            this.senderId = senderId;
+            this.recipientId = recipientId;
+            this.amount = amount;
+            this.currency = currency;
+            this.credited = credited;
+            this.recipientCurrency = recipientCurrency;
+            this.createdAt = createdAt;
+        }
+
+        public long getSenderId() {
+            return senderId;
+        }
+
+        public long getRecipientId() {
+            return recipientId;
+        }
+
+        /**
+         * @return amount debited from the sender, in minor units
+         */
+        public long getAmount() {
+            return amount;
+        }
+
+        public Currency getCurrency() {
+            return currency;
+        }
+
+        /**
+         * @return amount credited to the recipient, in minor units of {@link #getRecipientCurrency()}
+         */
+        public long getCredited() {
+            return credited;
+        }
+
+        public Currency getRecipientCurrency() {
+            return recipientCurrency;
+        }
+
+        /**
+         * @return when the transfer was made, {@code 0} if it was journaled without its time
+         */
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+
+    public static final class Pending {
+        private final String txId;
+        private final long accountId;
+        private final long counterpartyId;
+        private final long amount;
+        private final Currency currency;
+        private final boolean credit;
+        private final String idempotencyKey;
+        private final String fingerprint;
+        private final long createdAt;
+
+        /**
+         * @param amount         in minor units
+         * @param idempotencyKey key of a pending debit, {@code null} without one
+         * @param fingerprint    fingerprint of the transfer made under the key
+         */
+        public Pending(String txId, long accountId, long counterpartyId, long amount, Currency currency,
+                       boolean credit, String idempotencyKey, String fingerprint, long createdAt) {
+            this.txId = txId;
+            this.accountId = accountId;
+            this.counterpartyId = counterpartyId;
+            this.amount = amount;
+            this.currency = currency;
+            this.credit = credit;
+            this.idempotencyKey = idempotencyKey;
+            this.fingerprint = fingerprint;
+            this.createdAt = createdAt;
+        }
+
+        public String getTxId() {
+            return txId;
+        }
+
+        public long getAccountId() {
+            return accountId;
+        }
+
+        public long getCounterpartyId() {
+            return counterpartyId;
+        }
+
+        /**
+         * @return amount in minor units
+         */
+        public long getAmount() {
+            return amount;
+        }
+
+        public Currency getCurrency() {
+            return currency;
+        }
+
+        public boolean isCredit() {
+            return credit;
+        }
+
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+
+    public static final class Resolved {
+        private final String txId;
+        private final boolean commit;
+        private final long resolvedAt;
+
+        private Resolved(String txId, boolean commit, long resolvedAt) {
+            this.txId = txId;
+            this.commit = commit;
+            this.resolvedAt = resolvedAt;
+        }
+
+        public String getTxId() {
+            return txId;
+        }
+
+        public boolean isCommit() {
+            return commit;
+        }
+
+        public long getResolvedAt() {
+            return resolvedAt;
+        }
+    }
+
+    public static final class Key {
+        private final String key;
+        private final String fingerprint;
+        private final long createdAt;
+
+        private Key(String key, String fingerprint, long createdAt) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.createdAt = createdAt;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+}
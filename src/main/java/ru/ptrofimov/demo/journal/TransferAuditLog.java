@@ -0,0 +1,387 @@
+package ru.ptrofimov.demo.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.utils.RingBuffer;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary log of the outcome of every transfer request, batch items included, kept apart from the journal and the
+ * application log.
+ * <p>
+ * Request threads only fill a preallocated slot of a {@link RingBuffer}; a single writer thread encodes whatever
+ * was published into a direct buffer and appends it to the file with one {@code write} per run. A full ring
+ * either blocks the request thread until the writer catches up or drops the record and counts it.
+ * <p>
+ * The file starts with an 8-byte magic followed by records of {@value #RECORD_SIZE} bytes:
+ * {@code [long timeMillis][long senderId][long recipientId][long amount in cents][byte outcome][byte flags]}.
+ * The outcome is the ordinal of a {@link MoneyTransferStatus} or one of the negative codes of requests rejected
+ * without a status, with zero account ids when they are not known. The writer forces the file to disk at most
+ * {@code forceIntervalMillis} after a write and again on close, so a crash of the machine loses at most that much.
+ */
+public class TransferAuditLog implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransferAuditLog.class);
+
+    /**
+     * The recipient of the path does not exist, answered with {@code 404}.
+     */
+    public static final byte RECIPIENT_NOT_FOUND = -1;
+    /**
+     * The idempotency key belongs to another transfer, answered with {@code 422}.
+     */
+    public static final byte KEY_REUSED = -2;
+    /**
+     * Rejected with {@code 503} by an overloaded engine, an unavailable partition or the concurrency limit.
+     */
+    public static final byte UNAVAILABLE = -3;
+    /**
+     * Failed with an unexpected error.
+     */
+    public static final byte FAILED = -4;
+    /**
+     * A request rejected as invalid, answered with {@code 400}; an invalid batch is one record.
+     */
+    public static final byte REJECTED = -5;
+    /**
+     * The idempotency key belongs to a cross-partition transfer that is not decided yet, answered with {@code 409}.
+     */
+    public static final byte IN_PROGRESS = -6;
+
+    public static final byte REPLAYED = 1;
+    public static final byte BATCH_ITEM = 2;
+
+    static final int RECORD_SIZE = 4 * Long.BYTES + 2;
+    private static final long MAGIC = 0x5452414155440001L;
+    private static final int BUFFER_RECORDS = 2048;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final LongAdder dropped = Metrics.counter("transfer_audit_dropped_total",
+            "Transfer outcomes left out of the audit log because its ring was full or the write failed");
+
+    private final Path file;
+    private final boolean blocking;
+    private final long forceIntervalNanos;
+    private final RingBuffer<Entry> ring;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+    private final Thread writer;
+    private volatile boolean closed;
+    private boolean failing;
+    // owned by the writer
+    private boolean unforced;
+    private long lastForce = System.nanoTime();
+
+    public TransferAuditLog(Path file, int ringSize, boolean blocking) throws IOException {
+        this(file, ringSize, blocking, 1000);
+    }
+
+    /**
+     * @param ringSize            records that may wait for the writer, a power of two
+     * @param blocking            {@code true} to make callers wait for a free slot, {@code false} to drop their
+     *                            records
+     * @param forceIntervalMillis longest time written records stay unforced, {@code 0} to force after every write
+     */
+    public TransferAuditLog(Path file, int ringSize, boolean blocking, long forceIntervalMillis) throws IOException {
+        this.file = file;
+        this.blocking = blocking;
+        this.forceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(forceIntervalMillis);
+        this.ring = new RingBuffer<>(ringSize, Entry::new);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, MAGIC);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            } else {
+                checkMagic(channel, file);
+                long valid = size - (size - Long.BYTES) % RECORD_SIZE;
+                if (valid < size) {
+                    logger.warn("truncating {} bytes of torn audit log tail in {}", size - valid, file);
+                    channel.truncate(valid);
+                }
+            }
+            channel.position(channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        Metrics.gauge("transfer_audit_pending", "Transfer outcomes waiting for the audit log writer",
+                ring::getPendingCount);
+
+        writer = new Thread(this::run, "transfer-audit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Hands the outcome over to the writer; never touches the file itself.
+     *
+     * @param outcome the ordinal of a {@link MoneyTransferStatus} or one of the negative outcome codes
+     * @param flags   {@link #REPLAYED} and {@link #BATCH_ITEM} combined
+     */
+    public void record(long senderId, long recipientId, BigDecimal amount, int outcome, int flags) {
+        long sequence = closed ? -1 : ring.tryClaim();
+        while (sequence < 0 && blocking && !closed) {
+            LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+            sequence = ring.tryClaim();
+        }
+        if (sequence < 0) {
+            dropped.increment();
+            return;
+        }
+        Entry entry = ring.get(sequence);
+        entry.timeMillis = System.currentTimeMillis();
+        entry.senderId = senderId;
+        entry.recipientId = recipientId;
+        entry.amount = toCents(amount);
+        entry.outcome = (byte) outcome;
+        entry.flags = (byte) flags;
+        ring.publish(sequence);
+    }
+
+    /**
+     * @return the amount in cents, {@code -1} if it has none or does not fit
+     */
+    private static long toCents(BigDecimal amount) {
+        if (amount == null) {
+            return -1;
+        }
+        try {
+            return Money.of(amount);
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    private void run() {
+        long next = 0;
+        while (!closed || ring.getPendingCount() > 0) {
+            long last = ring.await(next, IDLE_NANOS);
+            if (last >= next) {
+                for (long sequence = next; sequence <= last; sequence++) {
+                    if (buffer.remaining() < RECORD_SIZE) {
+                        write();
+                    }
+                    ring.get(sequence).encode(buffer);
+                }
+                ring.release(last);
+                write();
+                next = last + 1;
+            }
+            if (unforced && System.nanoTime() - lastForce >= forceIntervalNanos) {
+                force();
+            }
+        }
+    }
+
+    private void force() {
+        try {
+            channel.force(false);
+            unforced = false;
+        } catch (IOException e) {
+            if (!failing) {
+                logger.error("transfer audit log force of {} failed", file, e);
+                failing = true;
+            }
+        }
+        lastForce = System.nanoTime();
+    }
+
+    private void write() {
+        buffer.flip();
+        int records = buffer.remaining() / RECORD_SIZE;
+        long start = -1;
+        try {
+            start = channel.position();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            unforced = true;
+            failing = false;
+        } catch (IOException e) {
+            dropped.add(records);
+            if (!failing) {
+                logger.error("transfer audit log write to {} failed", file, e);
+                failing = true;
+            }
+            truncate(start);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    // drops a partly written run, so that the file still consists of whole records
+    private void truncate(long size) {
+        if (size < 0) {
+            return;
+        }
+        try {
+            channel.truncate(size);
+            channel.position(size);
+        } catch (IOException e) {
+            logger.debug("cannot truncate {} to {} bytes: {}", file, size, e.toString());
+        }
+    }
+
+    /**
+     * Writes out the records published so far and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void checkMagic(FileChannel in, Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        while (header.hasRemaining() && in.read(header, header.position()) > 0) {
+            // keep reading
+        }
+        if (header.hasRemaining() || header.getLong(0) != MAGIC) {
+            throw new IOException("not a transfer audit log: " + file);
+        }
+    }
+
+    private static final class Entry {
+        long timeMillis;
+        long senderId;
+        long recipientId;
+        long amount;
+        byte outcome;
+        byte flags;
+
+        void encode(ByteBuffer buffer) {
+            buffer.putLong(timeMillis).putLong(senderId).putLong(recipientId).putLong(amount)
+                    .put(outcome).put(flags);
+        }
+    }
+
+    /**
+     * Reads the records of an audit log in the order they were written, one {@link #next} at a time.
+     */
+    public static final class Reader implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+
+        private long timeMillis;
+        private long senderId;
+        private long recipientId;
+        private long amount;
+        private byte outcome;
+        private byte flags;
+
+        public Reader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                checkMagic(channel, file);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            channel.position(Long.BYTES);
+            buffer.flip();
+        }
+
+        public boolean next() throws IOException {
+            if (buffer.remaining() < RECORD_SIZE) {
+                buffer.compact();
+                while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                    // keep reading
+                }
+                buffer.flip();
+                if (buffer.remaining() < RECORD_SIZE) {
+                    return false;
+                }
+            }
+            timeMillis = buffer.getLong();
+            senderId = buffer.getLong();
+            recipientId = buffer.getLong();
+            amount = buffer.getLong();
+            outcome = buffer.get();
+            flags = buffer.get();
+            return true;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public long getSenderId() {
+            return senderId;
+        }
+
+        public long getRecipientId() {
+            return recipientId;
+        }
+
+        /**
+         * @return the requested amount, {@code null} if it was missing or too large to record
+         */
+        public BigDecimal getAmount() {
+            return amount < 0 ? null : Money.toBigDecimal(amount);
+        }
+
+        /**
+         * @return the ordinal of a {@link MoneyTransferStatus} or one of the negative outcome codes
+         */
+        public byte getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return the status answered, {@code null} if the request was rejected without one
+         */
+        public MoneyTransferStatus getStatus() {
+            return outcome < 0 ? null : MoneyTransferStatus.values()[outcome];
+        }
+
+        public boolean isReplayed() {
+            return (flags & REPLAYED) != 0;
+        }
+
+        public boolean isBatchItem() {
+            return (flags & BATCH_ITEM) != 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,904 @@
+package ru.ptrofimov.demo.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of ledger changes with group commit.
+ * <p>
+ * Every record is framed as {@code [int length][payload][int crc32]} so that a torn write at the tail
+ * is detected and dropped on recovery. Appenders copy records into a shared buffer and get a sequence
+ * number back; a single flusher thread collects whatever arrived within the group commit window, writes it
+ * with one {@code write} + {@code fsync} and wakes up everybody waiting in {@link #awaitDurable}.
+ * <p>
+ * The log is split into segments. Compaction rotates to a new segment, folds the previous snapshot and the
+ * closed segments into a new {@code snapshot.dat} and deletes them, so replay reads one snapshot plus the
+ * segments written since.
+ * <p>
+ * A transfer made under an idempotency key carries the key in its own record, so the two are durable together,
+ * and the transfers of a batch share one record, so a torn write drops them all.
+ * Halves of cross-partition transfers are journaled when reserved and when resolved. A snapshot keeps the pending
+ * halves, and the keys and resolved credits younger than the retention period.
+ */
+public class TransferJournal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransferJournal.class);
+
+    static final byte CREATE = 1;
+    static final byte TRANSFER = 2;
+    static final byte EXCHANGE = 3;
+    static final byte KEYED_TRANSFER = 4;
+    static final byte KEY = 5;
+    static final byte PENDING = 6;
+    static final byte RESOLVED = 7;
+    static final byte BATCH = 8;
+
+    private static final byte PENDING_CREDIT = 1;
+    private static final byte PENDING_APPLIED = 2;
+
+    private static final int MAX_RECORD_SIZE = 1024;
+    private static final int BATCH_ITEM_SIZE = 4 * Long.BYTES;
+    private static final int MAX_BATCH_RECORD_SIZE = 1 << 20;
+    private static final long SNAPSHOT_MAGIC = 0x4d54534e41500001L;
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+    private final long groupCommitNanos;
+    private final long segmentBytes;
+    private final long retentionMillis;
+    private final CRC32 appendCrc = new CRC32();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasData = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+
+    private ByteBuffer active;
+    private ByteBuffer flushing;
+    private long appendedSeq;
+    private long durableSeq;
+    private IOException failure;
+    private boolean running = true;
+    // failure == null && running, readable without the lock
+    private volatile boolean available = true;
+    private CompletableFuture<Long> rotation;
+
+    private FileChannel channel;
+    private long segmentIndex;
+    private final boolean empty;
+
+    private final Thread flusher;
+    private final ScheduledExecutorService compactor;
+    private final Object snapshotLock = new Object();
+
+    private long groupCount;
+    private long groupedRecords;
+
+    /**
+     * @param groupCommitMicros how long the flusher waits for more records before syncing a group
+     * @param segmentBytes      segment size that triggers a compaction
+     * @param snapshotIntervalMillis period of background compaction, {@code 0} to compact only on segment size
+     */
+    public TransferJournal(Path dir, long groupCommitMicros, long segmentBytes, int bufferBytes,
+                           long snapshotIntervalMillis) throws IOException {
+        this(dir, groupCommitMicros, segmentBytes, bufferBytes, snapshotIntervalMillis, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param retentionMillis age after which idempotency keys and resolved credits are left out of snapshots
+     */
+    public TransferJournal(Path dir, long groupCommitMicros, long segmentBytes, int bufferBytes,
+                           long snapshotIntervalMillis, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.retentionMillis = retentionMillis;
+        this.groupCommitNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitMicros);
+        this.segmentBytes = segmentBytes;
+        this.active = ByteBuffer.allocateDirect(Math.max(bufferBytes, 2 * MAX_RECORD_SIZE));
+        this.flushing = ByteBuffer.allocateDirect(active.capacity());
+        Files.createDirectories(dir);
+
+        List<Long> segments = listSegments();
+        empty = !Files.exists(dir.resolve(SNAPSHOT_FILE))
+                && segments.stream().allMatch(index -> segmentPath(index).toFile().length() == 0);
+        segmentIndex = segments.isEmpty() ? Math.max(readSnapshotCoverage(), 0) + 1 : segments.get(segments.size() - 1);
+        channel = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long valid = readRecords(channel, 0, null);
+        if (valid < channel.size()) {
+            logger.warn("truncating {} bytes of torn journal tail in {}", channel.size() - valid, segmentPath(segmentIndex));
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+
+        flusher = new Thread(this::flushLoop, "journal-flusher-" + dir.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-compactor-" + dir.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (snapshotIntervalMillis > 0) {
+            compactor.scheduleWithFixedDelay(this::compactQuietly, snapshotIntervalMillis, snapshotIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * @return {@code true} if nothing has ever been written, i.e. the ledger has to be seeded rather than replayed
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public long appendCreate(long accountId, Currency currency, long balance, String owner) {
+        byte[] ownerBytes = owner == null ? null : owner.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve();
+            encodeCreate(buffer, appendCrc, accountId, currency, balance, ownerBytes);
+            return published();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long appendTransfer(long senderId, long recipientId, long amount) {
+        return appendTransfer(senderId, recipientId, amount, amount);
+    }
+
+    /**
+     * Appends a transfer converted between currencies, or a plain one if both amounts are equal.
+     */
+    public long appendTransfer(long senderId, long recipientId, long debited, long credited) {
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve();
+            int start = begin(buffer, debited == credited ? TRANSFER : EXCHANGE);
+            buffer.putLong(senderId);
+            buffer.putLong(recipientId);
+            buffer.putLong(debited);
+            if (debited != credited) {
+                buffer.putLong(credited);
+            }
+            finish(buffer, appendCrc, start);
+            return published();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a transfer together with the idempotency key it was made under, or a plain one if {@code key}
+     * is {@code null}.
+     */
+    public long appendTransfer(long senderId, long recipientId, long debited, long credited, String key,
+                               String fingerprint) {
+        if (key == null) {
+            return appendTransfer(senderId, recipientId, debited, credited);
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] fingerprintBytes = fingerprint.getBytes(StandardCharsets.UTF_8);
+        long createdAt = System.currentTimeMillis();
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve();
+            int start = begin(buffer, KEYED_TRANSFER);
+            buffer.putLong(senderId);
+            buffer.putLong(recipientId);
+            buffer.putLong(debited);
+            buffer.putLong(credited);
+            putKey(buffer, keyBytes, fingerprintBytes, createdAt);
+            finish(buffer, appendCrc, start);
+            return published();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the transfers of a batch as a single record: replay applies every one of them or, if the record
+     * was not written whole, none.
+     *
+     * @throws IllegalArgumentException if the transfers do not fit in one record
+     */
+    public long appendTransfers(long[] senderIds, long[] recipientIds, long[] debited, long[] credited, int count) {
+        int size = 3 * Integer.BYTES + 1 + count * BATCH_ITEM_SIZE;
+        if (count < 1 || size > MAX_BATCH_RECORD_SIZE) {
+            throw new IllegalArgumentException("a journal record holds 1 to "
+                    + (MAX_BATCH_RECORD_SIZE - 3 * Integer.BYTES - 1) / BATCH_ITEM_SIZE + " transfers");
+        }
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve(size);
+            int start = begin(buffer, BATCH);
+            buffer.putInt(count);
+            for (int i = 0; i < count; i++) {
+                buffer.putLong(senderIds[i]);
+                buffer.putLong(recipientIds[i]);
+                buffer.putLong(debited[i]);
+                buffer.putLong(credited[i]);
+            }
+            finish(buffer, appendCrc, start);
+            return published();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a reserved half of a cross-partition transfer; a debit is taken from the sender on replay.
+     */
+    public long appendPending(LedgerState.Pending pending) {
+        lock.lock();
+        try {
+            encodePending(reserve(), appendCrc, pending, false);
+            return published();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long appendResolved(String txId, boolean commit) {
+        byte[] txBytes = txId.getBytes(StandardCharsets.UTF_8);
+        long resolvedAt = System.currentTimeMillis();
+        lock.lock();
+        try {
+            encodeResolved(reserve(), appendCrc, txBytes, commit, resolvedAt);
+            return published();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer reserve() {
+        return reserve(MAX_RECORD_SIZE);
+    }
+
+    private ByteBuffer reserve(int size) {
+        while (active.remaining() < size) {
+            checkFailure();
+            if (active.position() == 0) {
+                // a batch larger than the buffer; the flusher swaps buffers only under the lock
+                active = ByteBuffer.allocateDirect(size);
+                break;
+            }
+            hasData.signal();
+            notFull.awaitUninterruptibly();
+        }
+        checkFailure();
+        return active;
+    }
+
+    private long published() {
+        // the first record of a group starts the commit window, a half-full buffer ends it early
+        if (appendedSeq == durableSeq || active.position() >= active.capacity() / 2) {
+            hasData.signal();
+        }
+        return ++appendedSeq;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("journal is unavailable", failure);
+        } else if (!running) {
+            throw new IllegalStateException("journal is closed");
+        }
+    }
+
+    /**
+     * @return {@code false} once a write has failed or the journal is closed: nothing appended from then on can
+     * become durable
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and every record before it, is on disk.
+     */
+    public void awaitDurable(long seq) {
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (failure != null) {
+                    throw new UncheckedIOException("journal is unavailable", failure);
+                }
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long groupSeq;
+            boolean rotate;
+            lock.lock();
+            try {
+                while (running && active.position() == 0 && rotation == null) {
+                    hasData.awaitUninterruptibly();
+                }
+                if (!running && active.position() == 0) {
+                    return;
+                }
+                long remaining = groupCommitNanos;
+                while (running && remaining > 0 && active.position() < active.capacity() / 2 && rotation == null) {
+                    try {
+                        remaining = hasData.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        remaining = 0;
+                    }
+                }
+                ByteBuffer tmp = flushing;
+                flushing = active;
+                active = tmp;
+                groupSeq = appendedSeq;
+                rotate = rotation != null;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            long rotatedIndex = 0;
+            try {
+                flushing.flip();
+                if (flushing.hasRemaining()) {
+                    while (flushing.hasRemaining()) {
+                        channel.write(flushing);
+                    }
+                    channel.force(false);
+                }
+                flushing.clear();
+                if (rotate || channel.size() >= segmentBytes) {
+                    rotatedIndex = segmentIndex;
+                    channel.close();
+                    segmentIndex++;
+                    channel = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+            } catch (IOException e) {
+                logger.error("journal write failed", e);
+                error = e;
+            }
+
+            CompletableFuture<Long> rotated = null;
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                    running = false;
+                    available = false;
+                    notFull.signalAll();
+                    durable.signalAll();
+                    if (rotation != null) {
+                        rotation.completeExceptionally(error);
+                        rotation = null;
+                    }
+                    return;
+                }
+                if (groupSeq > durableSeq) {
+                    groupCount++;
+                    groupedRecords += groupSeq - durableSeq;
+                    durableSeq = groupSeq;
+                    durable.signalAll();
+                }
+                if (rotatedIndex > 0) {
+                    rotated = rotation;
+                    rotation = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (rotatedIndex > 0) {
+                if (rotated != null) {
+                    rotated.complete(rotatedIndex);
+                } else {
+                    long lastClosed = rotatedIndex;
+                    compactor.execute(() -> snapshotQuietly(lastClosed));
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment and folds the last snapshot plus every closed segment into a new snapshot.
+     */
+    public void compact() throws IOException {
+        CompletableFuture<Long> future;
+        lock.lock();
+        try {
+            checkFailure();
+            if (rotation == null) {
+                rotation = new CompletableFuture<>();
+                hasData.signal();
+            }
+            future = rotation;
+        } finally {
+            lock.unlock();
+        }
+        long lastClosed;
+        try {
+            lastClosed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while rotating journal", e);
+        } catch (ExecutionException e) {
+            throw new IOException("journal rotation failed", e.getCause());
+        }
+        writeSnapshot(lastClosed);
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            logger.error("journal compaction failed", e);
+        }
+    }
+
+    private void snapshotQuietly(long lastClosed) {
+        try {
+            writeSnapshot(lastClosed);
+        } catch (IOException | RuntimeException e) {
+            logger.error("journal compaction failed", e);
+        }
+    }
+
+    private void writeSnapshot(long lastClosed) throws IOException {
+        synchronized (snapshotLock) {
+            long covered = readSnapshotCoverage();
+            if (covered >= lastClosed) {
+                return;
+            }
+            boolean changed = false;
+            for (long index : listSegments()) {
+                if (index > covered && index <= lastClosed) {
+                    changed |= segmentPath(index).toFile().length() > 0;
+                }
+            }
+            if (changed) {
+                writeSnapshot(covered, lastClosed);
+            }
+            for (long index : listSegments()) {
+                if (index <= lastClosed) {
+                    Files.deleteIfExists(segmentPath(index));
+                }
+            }
+        }
+    }
+
+    private void writeSnapshot(long covered, long lastClosed) throws IOException {
+        long start = System.nanoTime();
+        LedgerState state = new LedgerState();
+        replay(state, lastClosed);
+
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            CRC32 crc = new CRC32();
+            buffer.putLong(SNAPSHOT_MAGIC);
+            buffer.putLong(lastClosed);
+            for (LedgerState.Account account : state.getAccounts()) {
+                if (buffer.remaining() < MAX_RECORD_SIZE) {
+                    writeFully(out, buffer);
+                }
+                byte[] owner = account.getOwner() == null ? null : account.getOwner().getBytes(StandardCharsets.UTF_8);
+                encodeCreate(buffer, crc, account.getId(), account.getCurrency(), account.getBalance(), owner);
+            }
+            long expiredBefore = retentionMillis == Long.MAX_VALUE ? Long.MIN_VALUE
+                    : System.currentTimeMillis() - retentionMillis;
+            for (LedgerState.Pending pending : state.getPending()) {
+                if (buffer.remaining() < MAX_RECORD_SIZE) {
+                    writeFully(out, buffer);
+                }
+                encodePending(buffer, crc, pending, true);
+            }
+            for (LedgerState.Resolved resolved : state.getResolved()) {
+                if (resolved.getResolvedAt() < expiredBefore) {
+                    continue;
+                }
+                if (buffer.remaining() < MAX_RECORD_SIZE) {
+                    writeFully(out, buffer);
+                }
+                encodeResolved(buffer, crc, resolved.getTxId().getBytes(StandardCharsets.UTF_8), resolved.isCommit(),
+                        resolved.getResolvedAt());
+            }
+            for (LedgerState.Key key : state.getKeys()) {
+                if (key.getCreatedAt() < expiredBefore) {
+                    continue;
+                }
+                if (buffer.remaining() < MAX_RECORD_SIZE) {
+                    writeFully(out, buffer);
+                }
+                encodeKey(buffer, crc, key.getKey().getBytes(StandardCharsets.UTF_8),
+                        key.getFingerprint().getBytes(StandardCharsets.UTF_8), key.getCreatedAt());
+            }
+            writeFully(out, buffer);
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        logger.info("journal snapshot of {} accounts covering segments {}..{} written in {} ms",
+                state.getAccounts().size(), covered + 1, lastClosed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Feeds the snapshot and every record written after it to the listener.
+     * Must be called before anything is appended.
+     *
+     * @return number of records replayed, snapshot entries included
+     */
+    public long replay(JournalListener listener) throws IOException {
+        synchronized (snapshotLock) {
+            return replay(listener, Long.MAX_VALUE);
+        }
+    }
+
+    private long replay(JournalListener listener, long lastSegment) throws IOException {
+        long[] count = new long[1];
+        JournalListener counting = new JournalListener() {
+            @Override
+            public void onCreate(long accountId, Currency currency, long balance, String owner) {
+                count[0]++;
+                listener.onCreate(accountId, currency, balance, owner);
+            }
+
+            @Override
+            public void onTransfer(long senderId, long recipientId, long debited, long credited) {
+                count[0]++;
+                listener.onTransfer(senderId, recipientId, debited, credited);
+            }
+
+            @Override
+            public void onKey(String key, String fingerprint, long createdAt) {
+                listener.onKey(key, fingerprint, createdAt);
+            }
+
+            @Override
+            public void onPending(LedgerState.Pending pending, boolean applied) {
+                count[0]++;
+                listener.onPending(pending, applied);
+            }
+
+            @Override
+            public void onResolved(String txId, boolean commit, long resolvedAt) {
+                count[0]++;
+                listener.onResolved(txId, commit, resolvedAt);
+            }
+        };
+        long covered = -1;
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                covered = readSnapshotHeader(in);
+                readRecords(in, 2 * Long.BYTES, counting);
+            }
+        }
+        for (long index : listSegments()) {
+            if (index > covered && index <= lastSegment) {
+                try (FileChannel in = FileChannel.open(segmentPath(index), StandardOpenOption.READ)) {
+                    readRecords(in, 0, counting);
+                }
+            }
+        }
+        return count[0];
+    }
+
+    private long readSnapshotCoverage() throws IOException {
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return -1;
+        }
+        try (FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            return readSnapshotHeader(in);
+        }
+    }
+
+    private static long readSnapshotHeader(FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(2 * Long.BYTES);
+        while (header.hasRemaining() && in.read(header, header.position()) > 0) {
+            // keep reading
+        }
+        if (header.hasRemaining() || header.getLong(0) != SNAPSHOT_MAGIC) {
+            throw new IOException("corrupted journal snapshot");
+        }
+        return header.getLong(Long.BYTES);
+    }
+
+    /**
+     * Reads intact records starting at the given position.
+     *
+     * @return position right after the last intact record
+     */
+    private static long readRecords(FileChannel in, long position, JournalListener listener) throws IOException {
+        long size = in.size();
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer record = ByteBuffer.allocate(MAX_RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        while (position + Integer.BYTES <= size) {
+            header.clear();
+            in.read(header, position);
+            int length = header.getInt(0);
+            if (length <= 0 || length + 2 * Integer.BYTES > MAX_BATCH_RECORD_SIZE
+                    || position + 2 * Integer.BYTES + length > size) {
+                break;
+            }
+            if (record.capacity() < length + Integer.BYTES) {
+                record = ByteBuffer.allocate(length + Integer.BYTES);
+            }
+            record.clear().limit(length + Integer.BYTES);
+            in.read(record, position + Integer.BYTES);
+            record.flip();
+            crc.reset();
+            ByteBuffer payload = record.duplicate();
+            payload.limit(length);
+            crc.update(payload);
+            if ((int) crc.getValue() != record.getInt(length)) {
+                break;
+            }
+            if (listener != null) {
+                dispatch(record, listener);
+            }
+            position += 2 * Integer.BYTES + length;
+        }
+        return position;
+    }
+
+    private static void dispatch(ByteBuffer record, JournalListener listener) {
+        byte type = record.get();
+        switch (type) {
+            case CREATE:
+                long accountId = record.getLong();
+                Currency currency = Currency.values()[record.get()];
+                long balance = record.getLong();
+                short ownerLength = record.getShort();
+                String owner = null;
+                if (ownerLength >= 0) {
+                    byte[] ownerBytes = new byte[ownerLength];
+                    record.get(ownerBytes);
+                    owner = new String(ownerBytes, StandardCharsets.UTF_8);
+                }
+                listener.onCreate(accountId, currency, balance, owner);
+                break;
+            case TRANSFER:
+                long senderId = record.getLong();
+                long recipientId = record.getLong();
+                long amount = record.getLong();
+                listener.onTransfer(senderId, recipientId, amount, amount);
+                break;
+            case EXCHANGE:
+                listener.onTransfer(record.getLong(), record.getLong(), record.getLong(), record.getLong());
+                break;
+            case KEYED_TRANSFER:
+                listener.onTransfer(record.getLong(), record.getLong(), record.getLong(), record.getLong());
+                dispatchKey(record, listener);
+                break;
+            case KEY:
+                dispatchKey(record, listener);
+                break;
+            case BATCH:
+                for (int i = record.getInt(); i > 0; i--) {
+                    listener.onTransfer(record.getLong(), record.getLong(), record.getLong(), record.getLong());
+                }
+                break;
+            case PENDING:
+                String txId = getString(record);
+                long pendingAccountId = record.getLong();
+                long counterpartyId = record.getLong();
+                long pendingAmount = record.getLong();
+                Currency pendingCurrency = Currency.values()[record.get()];
+                byte flags = record.get();
+                long createdAt = record.getLong();
+                String key = getNullableString(record);
+                String fingerprint = getNullableString(record);
+                listener.onPending(new LedgerState.Pending(txId, pendingAccountId, counterpartyId, pendingAmount,
+                        pendingCurrency, (flags & PENDING_CREDIT) != 0, key, fingerprint, createdAt),
+                        (flags & PENDING_APPLIED) != 0);
+                break;
+            case RESOLVED:
+                String resolvedTxId = getString(record);
+                boolean commit = record.get() != 0;
+                listener.onResolved(resolvedTxId, commit, record.getLong());
+                break;
+            default:
+                throw new IllegalStateException("unknown journal record type " + type);
+        }
+    }
+
+    private static void dispatchKey(ByteBuffer record, JournalListener listener) {
+        long createdAt = record.getLong();
+        String key = getString(record);
+        String fingerprint = getString(record);
+        listener.onKey(key, fingerprint, createdAt);
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String getNullableString(ByteBuffer record) {
+        short length = record.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putNullableString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static void encodePending(ByteBuffer buffer, CRC32 crc, LedgerState.Pending pending, boolean applied) {
+        int start = begin(buffer, PENDING);
+        putNullableString(buffer, pending.getTxId());
+        buffer.putLong(pending.getAccountId());
+        buffer.putLong(pending.getCounterpartyId());
+        buffer.putLong(pending.getAmount());
+        buffer.put((byte) pending.getCurrency().ordinal());
+        buffer.put((byte) ((pending.isCredit() ? PENDING_CREDIT : 0) | (applied ? PENDING_APPLIED : 0)));
+        buffer.putLong(pending.getCreatedAt());
+        putNullableString(buffer, pending.getIdempotencyKey());
+        putNullableString(buffer, pending.getFingerprint());
+        finish(buffer, crc, start);
+    }
+
+    private static void encodeResolved(ByteBuffer buffer, CRC32 crc, byte[] txId, boolean commit, long resolvedAt) {
+        int start = begin(buffer, RESOLVED);
+        buffer.putShort((short) txId.length);
+        buffer.put(txId);
+        buffer.put((byte) (commit ? 1 : 0));
+        buffer.putLong(resolvedAt);
+        finish(buffer, crc, start);
+    }
+
+    private static void putKey(ByteBuffer buffer, byte[] key, byte[] fingerprint, long createdAt) {
+        buffer.putLong(createdAt);
+        buffer.putShort((short) key.length);
+        buffer.put(key);
+        buffer.putShort((short) fingerprint.length);
+        buffer.put(fingerprint);
+    }
+
+    private static void encodeKey(ByteBuffer buffer, CRC32 crc, byte[] key, byte[] fingerprint, long createdAt) {
+        int start = begin(buffer, KEY);
+        putKey(buffer, key, fingerprint, createdAt);
+        finish(buffer, crc, start);
+    }
+
+    private static void encodeCreate(ByteBuffer buffer, CRC32 crc, long accountId, Currency currency,
+                                     long balance, byte[] owner) {
+        int start = begin(buffer, CREATE);
+        buffer.putLong(accountId);
+        buffer.put((byte) currency.ordinal());
+        buffer.putLong(balance);
+        buffer.putShort((short) (owner == null ? -1 : owner.length));
+        if (owner != null) {
+            buffer.put(owner);
+        }
+        finish(buffer, crc, start);
+    }
+
+    private static int begin(ByteBuffer buffer, byte type) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(type);
+        return start;
+    }
+
+    private static void finish(ByteBuffer buffer, CRC32 crc, int start) {
+        int length = buffer.position() - start - Integer.BYTES;
+        buffer.putInt(start, length);
+        crc.reset();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(start + Integer.BYTES).limit(start + Integer.BYTES + length);
+        crc.update(payload);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                result.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private Path segmentPath(long index) {
+        return dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return average number of records made durable by one fsync
+     */
+    public double getAverageGroupSize() {
+        lock.lock();
+        try {
+            return groupCount == 0 ? 0 : (double) groupedRecords / groupCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            running = false;
+            available = false;
+            hasData.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (rotation != null) {
+                rotation.completeExceptionally(new IOException("journal is closed"));
+                rotation = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        compactor.shutdownNow();
+        channel.close();
+    }
+}
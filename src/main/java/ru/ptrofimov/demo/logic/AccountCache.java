@@ -0,0 +1,95 @@
+package ru.ptrofimov.demo.logic;
+
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.utils.BoundedCache;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+/**
+ * Read-through cache of account details shared by all {@link AccountHelper} instances.
+ * Details are invalidated when a transfer touching the account starts and again once it commits or rolls back,
+ * and nothing read in between is cached; currencies never change, so they are kept in a separate cache that is
+ * only bounded by size.
+ */
+public final class AccountCache {
+
+    private static final boolean ENABLED = ConfigUtils.getBoolean("cache.accounts.enabled", true);
+
+    private static final BoundedCache<Long, AccountDetails> details = new BoundedCache<>(
+            ConfigUtils.getInt("cache.accounts.maxSize", 10_000),
+            ConfigUtils.getLong("cache.accounts.ttlMillis", 1000), 16);
+
+    private static final BoundedCache<Long, Currency> currencies = new BoundedCache<>(
+            ConfigUtils.getInt("cache.currencies.maxSize", 100_000), 0, 16);
+
+    static {
+        Metrics.counterGauge("account_cache_total", "Account details cache lookups by result",
+                details::getHitCount, "result", "hit");
+        Metrics.counterGauge("account_cache_total", "Account details cache lookups by result",
+                details::getMissCount, "result", "miss");
+        Metrics.gauge("account_cache_size", "Cached account details", details::size);
+    }
+
+    private AccountCache() {
+    }
+
+    static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    static AccountDetails getDetails(long accountId) {
+        AccountDetails cached = details.get(accountId);
+        return cached == null ? null : copy(cached);
+    }
+
+    static long version(long accountId) {
+        return details.version(accountId);
+    }
+
+    static void putDetails(AccountDetails accountDetails, long version) {
+        details.putIfUnchanged(accountDetails.getId(), copy(accountDetails), version);
+        currencies.put(accountDetails.getId(), accountDetails.getCurrency());
+    }
+
+    static Currency getCurrency(long accountId) {
+        return currencies.get(accountId);
+    }
+
+    static void putCurrency(long accountId, Currency currency) {
+        currencies.put(accountId, currency);
+    }
+
+    /**
+     * Called inside the transaction, before the balance of the account is changed.
+     */
+    static void beginWrite(long accountId) {
+        details.beginWrite(accountId);
+    }
+
+    /**
+     * Called after the transaction of the matching {@link #beginWrite} has committed or rolled back.
+     */
+    static void endWrite(long accountId) {
+        details.endWrite(accountId);
+    }
+
+    public static void clear() {
+        details.clear();
+        currencies.clear();
+    }
+
+    public static BoundedCache<Long, AccountDetails> getDetailsCache() {
+        return details;
+    }
+
+    public static BoundedCache<Long, Currency> getCurrencyCache() {
+        return currencies;
+    }
+
+    private static AccountDetails copy(AccountDetails source) {
+        AccountDetails result = new AccountDetails(source.getCurrency(), source.getBalance(), source.getOwner());
+        result.setId(source.getId());
+        return result;
+    }
+}
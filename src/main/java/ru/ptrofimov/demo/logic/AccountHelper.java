@@ -1,28 +1,92 @@
 package ru.ptrofimov.demo.logic;
 
+import org.h2.api.ErrorCode;
 import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
 import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyInProgressException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
 import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.journal.LedgerState;
 import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
 import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.utils.ConfigUtils;
 import ru.ptrofimov.demo.utils.DBUtils;
 
 import java.math.BigDecimal;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Transfers carry amounts as {@code long} {@link Money minor units} and convert them to and from the
+ * {@code DECIMAL(20, 2)} columns only when binding and reading, so SQL arithmetic stays exact decimal arithmetic.
+ */
 public class AccountHelper implements AutoCloseable {
 
+    private static final boolean CONDITIONAL_DEBIT = DBUtils.isConditionalBalanceValidation();
+    private static final int IMPORT_BATCH_SIZE = ConfigUtils.getInt("import.batchSize", 500);
+    private static final String INSERT_ACCOUNT = "INSERT INTO ACCOUNTS (CURRENCY, BALANCE, OWNER) VALUES (?, ?, ?)";
+    private static final String INSERT_TRANSFER = "INSERT INTO TRANSFERS (SENDER_ID, RECIPIENT_ID, AMOUNT, CURRENCY,"
+            + " CREATED_AT, CREDITED_AMOUNT, CREDITED_CURRENCY, RATE_VERSION) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_CURRENCY = "SELECT CURRENCY FROM ACCOUNTS WHERE ID = ?";
+    private static final String SELECT_ACCOUNT = "SELECT CURRENCY, BALANCE, OWNER FROM ACCOUNTS WHERE ID = ?";
+    private static final String CLAIM_KEY = "INSERT INTO IDEMPOTENCY_KEYS (ID, FINGERPRINT, CREATED_AT) VALUES (?, ?, ?)";
+    private static final String DEBIT =
+            "UPDATE ACCOUNTS SET BALANCE = BALANCE - ? WHERE ID = ? AND CURRENCY = ? AND BALANCE >= ?";
+    private static final String CREDIT = "UPDATE ACCOUNTS SET BALANCE = BALANCE + ? WHERE ID = ? AND CURRENCY = ?";
+    private static final String ADD_BALANCE = "UPDATE ACCOUNTS SET BALANCE = BALANCE + ? WHERE ID = ?";
+    private static final String MERGE_KEY = "MERGE INTO IDEMPOTENCY_KEYS (ID, FINGERPRINT, CREATED_AT) KEY (ID) VALUES (?, ?, ?)";
+
+    /**
+     * Returned instead of the credited amount by a transfer that was already made under its idempotency key.
+     */
+    static final long NOT_EXECUTED = -1;
+
+    /**
+     * Statements of single transfers and account lookups, for {@link ru.ptrofimov.demo.utils.ConnectionPool#prime}.
+     */
+    public static final List<String> HOT_STATEMENTS = Collections.unmodifiableList(CONDITIONAL_DEBIT
+            ? Arrays.asList(SELECT_CURRENCY, SELECT_ACCOUNT, CLAIM_KEY, DEBIT, CREDIT, INSERT_TRANSFER)
+            : Arrays.asList(SELECT_CURRENCY, SELECT_ACCOUNT, CLAIM_KEY, CREDIT, INSERT_TRANSFER));
+
     private Connection connection;
 
     public AccountHelper() throws SQLException {
-        this.connection = DBUtils.getConnection();
+        this(DBUtils.getConnection());
+    }
+
+    private AccountHelper(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @return a helper for reads only, on a connection of the {@link DBUtils#getQueryPool() query pool}
+     */
+    public static AccountHelper forQueries() throws SQLException {
+        return new AccountHelper(DBUtils.getQueryConnection());
     }
 
     public AccountDetails createAccount(Currency currency, BigDecimal balance, String owner) throws SQLException {
+        return createAccount(currency, balance, owner, null);
+    }
+
+    /**
+     * @param beforeCommit {@code null} if nobody needs to be told before the commit
+     */
+    AccountDetails createAccount(Currency currency, BigDecimal balance, String owner, CreateListener beforeCommit)
+            throws SQLException {
         long insertedId;
-        connection.setAutoCommit(true);
-        try (PreparedStatement statement = connection.prepareStatement(
-                "INSERT INTO ACCOUNTS (CURRENCY, BALANCE, OWNER) VALUES (?, ?, ?)",
+        connection.setAutoCommit(false);
+        ConservationChecker.beginCreate(currency);
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_ACCOUNT,
                 Statement.RETURN_GENERATED_KEYS)) {
             statement.setString(1, currency.getShortName());
             statement.setBigDecimal(2, balance);
@@ -32,15 +96,129 @@ public class AccountHelper implements AutoCloseable {
                 resultSet.next();
                 insertedId = resultSet.getLong(1);
             }
+            if (beforeCommit != null) {
+                beforeCommit.onCreate(insertedId, currency, balance, owner);
+            }
+            connection.commit();
+            ConservationChecker.onCreate(currency, balance);
+        } catch (Exception e) {
+            connection.rollback();
+            if (beforeCommit != null) {
+                beforeCommit.onRollback(e);
+            }
+            throw e;
+        } finally {
+            ConservationChecker.endCreate(currency);
         }
         AccountDetails result = new AccountDetails();
         result.setId(insertedId);
         return result;
     }
 
+    /**
+     * Inserts the accounts in one transaction, sending them in JDBC batches of {@code import.batchSize} rows.
+     *
+     * @return ids of the new accounts, in the order of {@code accounts}
+     */
+    public long[] createAccounts(List<AccountDetails> accounts) throws SQLException {
+        return createAccounts(accounts, null);
+    }
+
+    /**
+     * @param beforeCommit told about every account in order, {@code null} if nobody needs to be
+     */
+    long[] createAccounts(List<AccountDetails> accounts, CreateListener beforeCommit) throws SQLException {
+        long[] ids = new long[accounts.size()];
+        connection.setAutoCommit(false);
+        for (AccountDetails account : accounts) {
+            ConservationChecker.beginCreate(account.getCurrency());
+        }
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_ACCOUNT,
+                Statement.RETURN_GENERATED_KEYS)) {
+            int inserted = 0;
+            for (int i = 0; i < ids.length; i++) {
+                AccountDetails account = accounts.get(i);
+                statement.setString(1, account.getCurrency().getShortName());
+                statement.setBigDecimal(2, account.getBalance());
+                statement.setString(3, account.getOwner());
+                statement.addBatch();
+                if ((i + 1) % IMPORT_BATCH_SIZE == 0 || i == ids.length - 1) {
+                    statement.executeBatch();
+                    try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                        while (resultSet.next()) {
+                            ids[inserted++] = resultSet.getLong(1);
+                        }
+                    }
+                }
+            }
+            if (inserted != ids.length) {
+                throw new IllegalStateException(inserted + " keys generated for " + ids.length + " accounts");
+            }
+            if (beforeCommit != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    AccountDetails account = accounts.get(i);
+                    beforeCommit.onCreate(ids[i], account.getCurrency(), account.getBalance(), account.getOwner());
+                }
+            }
+            connection.commit();
+            for (AccountDetails account : accounts) {
+                ConservationChecker.onCreate(account.getCurrency(), account.getBalance());
+            }
+            return ids;
+        } catch (Exception e) {
+            connection.rollback();
+            if (beforeCommit != null) {
+                beforeCommit.onRollback(e);
+            }
+            throw e;
+        } finally {
+            for (AccountDetails account : accounts) {
+                ConservationChecker.endCreate(account.getCurrency());
+            }
+        }
+    }
+
     public AccountDetails getAccountDetails(long accountId) throws SQLException, AccountNotFoundException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "SELECT CURRENCY, BALANCE, OWNER FROM ACCOUNTS WHERE ID = ?")) {
+        if (!AccountCache.isEnabled()) {
+            return loadAccountDetails(accountId);
+        }
+        AccountDetails result = AccountCache.getDetails(accountId);
+        if (result == null) {
+            long version = AccountCache.version(accountId);
+            result = loadAccountDetails(accountId);
+            AccountCache.putDetails(result, version);
+        }
+        return result;
+    }
+
+    /**
+     * Currency of an account never changes, so it is served from the cache whenever possible.
+     */
+    public Currency getCurrency(long accountId) throws SQLException, AccountNotFoundException {
+        Currency result = AccountCache.isEnabled() ? AccountCache.getCurrency(accountId) : null;
+        if (result == null) {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_CURRENCY)) {
+                statement.setLong(1, accountId);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next()) {
+                        throw new AccountNotFoundException(accountId);
+                    }
+                    result = Currency.fromString(resultSet.getString(1));
+                }
+            }
+            AccountCache.putCurrency(accountId, result);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the account from the database, bypassing the cache.
+     */
+    AccountDetails loadAccountDetails(long accountId) throws SQLException, AccountNotFoundException {
+        try (PreparedStatement statement = connection.prepareStatement(AccountShards.count(accountId) == 0
+                ? SELECT_ACCOUNT
+                : "SELECT CURRENCY, BALANCE + COALESCE((SELECT SUM(S.BALANCE) FROM ACCOUNT_SHARDS S"
+                + " WHERE S.ACCOUNT_ID = A.ID), 0), OWNER FROM ACCOUNTS A WHERE ID = ?")) {
             statement.setLong(1, accountId);
             statement.execute();
             try (ResultSet resultSet = statement.getResultSet()) {
@@ -57,23 +235,111 @@ public class AccountHelper implements AutoCloseable {
         throw new AccountNotFoundException(accountId);
     }
 
-    public void transferMoney(long senderId, long recipientId, BigDecimal amount) throws SQLException, AccountNotFoundException, CurrencyMismatchException {
-        connection.setAutoCommit(false);
+    /**
+     * Both balances are changed by updates guarded with the account currencies, so a transfer between
+     * existing accounts takes two statements and no reads once their currencies are cached. A recipient whose
+     * currency is not cached is assumed to share the sender's; only when an update misses are the accounts
+     * looked up to tell the failures apart. The recipient of another currency is credited the amount converted
+     * at the current {@link FxRates} table.
+     *
+     * @return the amount credited to the recipient, in minor units of its currency
+     */
+    public long transferMoney(long senderId, long recipientId, BigDecimal amount) throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        return transferMoney(senderId, recipientId, Money.of(amount));
+    }
 
-        AccountDetails recipientAccountDetails = getAccountDetails(recipientId);
-        AccountDetails senderAccountDetails = getAccountDetails(senderId);
+    /**
+     * Like {@link #transferMoney(long, long, BigDecimal)} with {@code amount} in minor units.
+     */
+    public long transferMoney(long senderId, long recipientId, long amount) throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        try {
+            return transferMoney(senderId, recipientId, amount, null, null);
+        } catch (IdempotencyKeyReusedException e) {
+            // not thrown without a key
+            throw new IllegalStateException(e);
+        }
+    }
 
-        if (recipientAccountDetails.getCurrency() != senderAccountDetails.getCurrency()) {
-            throw new CurrencyMismatchException();
+    /**
+     * Like {@link #transferMoney(long, long, BigDecimal)}, but records {@code idempotencyKey} in the same
+     * transaction, so the transfer is made at most once per key.
+     *
+     * @return the amount credited to the recipient, or {@code -1} if the transfer was already made under this key
+     * @throws IdempotencyKeyReusedException if the key was used for a different transfer
+     */
+    public long transferMoney(long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        String fingerprint = IdempotencyKeys.fingerprint(senderId, recipientId, amount);
+        if (IdempotencyKeys.isKnown(idempotencyKey, fingerprint)) {
+            return NOT_EXECUTED;
         }
+        long credited = transferMoney(senderId, recipientId, Money.of(amount), idempotencyKey, fingerprint);
+        IdempotencyKeys.remember(idempotencyKey, fingerprint);
+        return credited;
+    }
 
+    private long transferMoney(long senderId, long recipientId, long amount, String idempotencyKey,
+                               String fingerprint)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        Currency currency;
         try {
-            updateBalances(senderId, recipientId, amount);
-            connection.commit();
+            currency = getCurrency(senderId);
+        } catch (AccountNotFoundException senderNotFound) {
+            getCurrency(recipientId);
+            throw senderNotFound;
+        }
+        Currency recipientCurrency = AccountCache.isEnabled() ? AccountCache.getCurrency(recipientId) : null;
+        return transferMoney(senderId, recipientId, amount, currency,
+                recipientCurrency != null ? recipientCurrency : currency, idempotencyKey, fingerprint);
+    }
+
+    private long transferMoney(long senderId, long recipientId, long amount, Currency currency,
+                               Currency recipientCurrency, String idempotencyKey, String fingerprint)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        // read once, so a concurrent reload cannot change the rate between the credit and its record
+        FxRates.Table rates = currency == recipientCurrency ? null : FxRates.current();
+        long credited = rates == null ? amount : rates.convert(amount, currency, recipientCurrency);
+
+        connection.setAutoCommit(false);
+        AccountCache.beginWrite(senderId);
+        AccountCache.beginWrite(recipientId);
+        try {
+            if (idempotencyKey != null && !claimKey(idempotencyKey, fingerprint)) {
+                connection.rollback();
+                return NOT_EXECUTED;
+            }
+            if (!updateBalances(senderId, recipientId, amount, currency, credited, recipientCurrency)) {
+                connection.rollback();
+                Currency actualRecipientCurrency = getCurrency(recipientId);
+                if (actualRecipientCurrency != recipientCurrency) {
+                    return transferMoney(senderId, recipientId, amount, currency, actualRecipientCurrency,
+                            idempotencyKey, fingerprint);
+                }
+                if (CONDITIONAL_DEBIT) {
+                    // the sender exists, so its debit was refused by the balance condition
+                    loadAccountDetails(senderId);
+                    throw new InsufficientFundsException();
+                }
+                throw new AccountNotFoundException(senderId);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_TRANSFER)) {
+                setTransfer(statement, senderId, recipientId, amount, currency, credited, recipientCurrency,
+                        rates == null ? 0 : rates.getVersion(), System.currentTimeMillis());
+                statement.executeUpdate();
+            }
+            ConservationChecker.beginTransfer(currency, recipientCurrency);
+            try {
+                connection.commit();
+                ConservationChecker.onTransfer(currency, amount, recipientCurrency, credited);
+            } finally {
+                ConservationChecker.endTransfer(currency, recipientCurrency);
+            }
+            return credited;
         } catch (SQLNonTransientException sqlException) {
             connection.rollback();
             Throwable cause = sqlException.getCause();
             if (cause instanceof InsufficientFundsException) {
+                getCurrency(recipientId);
                 throw (InsufficientFundsException) cause;
             } else {
                 throw sqlException;
@@ -81,38 +347,830 @@ public class AccountHelper implements AutoCloseable {
         } catch (Exception e) {
             connection.rollback();
             throw e;
+        } finally {
+            AccountCache.endWrite(senderId);
+            AccountCache.endWrite(recipientId);
         }
     }
 
-    private void updateBalances(long senderId, long recipientId, BigDecimal amount) throws SQLException {
-        long first, second;
-        BigDecimal firstAmount, secondAmount;
-        if (senderId <= recipientId) {
-            first = senderId;
-            second = recipientId;
-            firstAmount = amount.negate();
-            secondAmount = amount;
+    /**
+     * Inserts the key in the current transaction. A key inserted by a concurrent transfer that has not
+     * committed yet blocks the insert until that transfer finishes.
+     *
+     * @return {@code false} if the same transfer was already made under the key
+     */
+    private boolean claimKey(String idempotencyKey, String fingerprint)
+            throws SQLException, IdempotencyKeyReusedException {
+        long now = System.currentTimeMillis();
+        try (PreparedStatement statement = connection.prepareStatement(CLAIM_KEY)) {
+            statement.setString(1, idempotencyKey);
+            statement.setString(2, fingerprint);
+            statement.setLong(3, now);
+            statement.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+                throw e;
+            }
+        }
+        String recorded = getFingerprint(idempotencyKey, now);
+        if (recorded != null) {
+            return !IdempotencyKeys.checkReplay(idempotencyKey, fingerprint, recorded);
+        }
+        // expired but not purged yet, or purged in the meantime
+        try (PreparedStatement statement = connection.prepareStatement(MERGE_KEY)) {
+            statement.setString(1, idempotencyKey);
+            statement.setString(2, fingerprint);
+            statement.setLong(3, now);
+            statement.executeUpdate();
+        }
+        return true;
+    }
+
+    /**
+     * @return fingerprint of the transfer made under the key, or {@code null} if the key is unknown or expired
+     */
+    String getFingerprint(String idempotencyKey, long now) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT FINGERPRINT, CREATED_AT FROM IDEMPOTENCY_KEYS WHERE ID = ?")) {
+            statement.setString(1, idempotencyKey);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next() && resultSet.getLong(2) >= now - IdempotencyKeys.TTL_MILLIS) {
+                    return resultSet.getString(1);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void checkRecipient(long recipientId, Currency currency)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        if (getCurrency(recipientId) != currency) {
+            throw new CurrencyMismatchException();
+        }
+    }
+
+    /**
+     * Runs a batch of transfers in one transaction. The rows of all involved accounts are locked up front
+     * in ascending id order, so concurrent batches cannot deadlock, and the net change of every account
+     * is written with a single JDBC batch.
+     */
+    public MoneyTransferStatus[] transferMoney(List<TransferRequest> transfers, BatchMode mode) throws SQLException {
+        return transferMoney(new BatchPlanner(transfers, mode));
+    }
+
+    /**
+     * Like {@link #transferMoney(List, BatchMode)}; the credited amounts are then available from the planner.
+     */
+    MoneyTransferStatus[] transferMoney(BatchPlanner planner) throws SQLException {
+        long[] accountIds = planner.getAccountIds();
+        connection.setAutoCommit(false);
+        for (long accountId : accountIds) {
+            AccountCache.beginWrite(accountId);
+        }
+        try {
+            Currency[] currencies = new Currency[accountIds.length];
+            long[] balances = new long[accountIds.length];
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT CURRENCY, BALANCE FROM ACCOUNTS WHERE ID = ? FOR UPDATE")) {
+                for (int i = 0; i < accountIds.length; i++) {
+                    statement.setLong(1, accountIds[i]);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (resultSet.next()) {
+                            currencies[i] = Currency.fromString(resultSet.getString(1));
+                            balances[i] = Money.of(resultSet.getBigDecimal(2));
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < accountIds.length; i++) {
+                if (currencies[i] != null) {
+                    if (AccountShards.count(accountIds[i]) > 0) {
+                        balances[i] = Money.add(balances[i], fold(accountIds[i]));
+                    }
+                    planner.load(accountIds[i], currencies[i], balances[i]);
+                    AccountCache.putCurrency(accountIds[i], currencies[i]);
+                }
+            }
+            MoneyTransferStatus[] statuses = planner.plan();
+            if (planner.isApplicable()) {
+                try (PreparedStatement statement = connection.prepareStatement(ADD_BALANCE)) {
+                    for (int i = 0; i < accountIds.length; i++) {
+                        if (planner.getDelta(i) != 0) {
+                            statement.setBigDecimal(1, Money.toBigDecimal(planner.getDelta(i)));
+                            statement.setLong(2, accountIds[i]);
+                            statement.addBatch();
+                        }
+                    }
+                    statement.executeBatch();
+                }
+                recordTransfers(statuses, planner, currencies, accountIds);
+                Currency[] senderCurrencies = new Currency[statuses.length];
+                Currency[] recipientCurrencies = new Currency[statuses.length];
+                for (int i = 0; i < statuses.length; i++) {
+                    if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                        TransferRequest transfer = planner.getTransfers().get(i);
+                        senderCurrencies[i] = currencies[Arrays.binarySearch(accountIds, transfer.getFrom())];
+                        recipientCurrencies[i] = currencies[Arrays.binarySearch(accountIds, transfer.getTo())];
+                        ConservationChecker.beginTransfer(senderCurrencies[i], recipientCurrencies[i]);
+                    }
+                }
+                try {
+                    connection.commit();
+                    for (int i = 0; i < statuses.length; i++) {
+                        if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                            ConservationChecker.onTransfer(senderCurrencies[i], planner.getAmount(i),
+                                    recipientCurrencies[i], planner.getCredited(i));
+                        }
+                    }
+                } finally {
+                    for (int i = 0; i < statuses.length; i++) {
+                        if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                            ConservationChecker.endTransfer(senderCurrencies[i], recipientCurrencies[i]);
+                        }
+                    }
+                }
+            } else {
+                connection.rollback();
+            }
+            return statuses;
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            for (long accountId : accountIds) {
+                AccountCache.endWrite(accountId);
+            }
+        }
+    }
+
+    private void recordTransfers(MoneyTransferStatus[] statuses, BatchPlanner planner, Currency[] currencies,
+                                 long[] accountIds) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_TRANSFER)) {
+            for (int i = 0; i < statuses.length; i++) {
+                if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                    TransferRequest transfer = planner.getTransfers().get(i);
+                    Currency currency = currencies[Arrays.binarySearch(accountIds, transfer.getFrom())];
+                    Currency recipientCurrency = currencies[Arrays.binarySearch(accountIds, transfer.getTo())];
+                    setTransfer(statement, transfer.getFrom(), transfer.getTo(), planner.getAmount(i), currency,
+                            planner.getCredited(i), recipientCurrency, planner.getRates().getVersion(), now);
+                    statement.addBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static void setTransfer(PreparedStatement statement, long senderId, long recipientId, long amount,
+                                    Currency currency, long createdAt) throws SQLException {
+        setTransfer(statement, senderId, recipientId, amount, currency, amount, currency, 0, createdAt);
+    }
+
+    /**
+     * The credited amount, its currency and the {@link FxRates} version are recorded only for a transfer
+     * between currencies and left {@code NULL} otherwise.
+     */
+    private static void setTransfer(PreparedStatement statement, long senderId, long recipientId, long amount,
+                                    Currency currency, long credited, Currency recipientCurrency,
+                                    long rateVersion, long createdAt) throws SQLException {
+        statement.setLong(1, senderId);
+        statement.setLong(2, recipientId);
+        statement.setBigDecimal(3, Money.toBigDecimal(amount));
+        statement.setString(4, currency.getShortName());
+        statement.setLong(5, createdAt);
+        if (currency == recipientCurrency) {
+            statement.setNull(6, Types.DECIMAL);
+            statement.setNull(7, Types.CHAR);
+            statement.setNull(8, Types.BIGINT);
         } else {
-            first = recipientId;
-            second = senderId;
-            firstAmount = amount;
-            secondAmount = amount.negate();
+            statement.setBigDecimal(6, Money.toBigDecimal(credited));
+            statement.setString(7, recipientCurrency.getShortName());
+            statement.setLong(8, rateVersion);
         }
-        updateBalance(first, firstAmount);
-        updateBalance(second, secondAmount);
     }
 
-    private void updateBalance(long accountId, BigDecimal amount) throws SQLException {
-        try (PreparedStatement statement = connection
-                .prepareStatement("UPDATE ACCOUNTS SET BALANCE = BALANCE + ? WHERE ID = ?")) {
-            statement.setBigDecimal(1, amount);
+    /**
+     * Writes what the writer of {@link SequencedLedgerEngine} has decided, in one transaction: adds the net change
+     * of every account to its balance and inserts the executed transfers and their idempotency keys. The
+     * balances are not checked again, as no one else moves money meanwhile.
+     */
+    void writeSequenced(SequencedLedgerEngine.Changes changes) throws SQLException {
+        connection.setAutoCommit(false);
+        for (int i = 0; i < changes.getAccountCount(); i++) {
+            AccountCache.beginWrite(changes.getAccountId(i));
+        }
+        for (int i = 0; i < changes.getTransferCount(); i++) {
+            ConservationChecker.beginTransfer(changes.getCurrency(i), changes.getRecipientCurrency(i));
+        }
+        try {
+            try (PreparedStatement statement = connection.prepareStatement(ADD_BALANCE)) {
+                for (int i = 0; i < changes.getAccountCount(); i++) {
+                    if (changes.getDelta(i) != 0) {
+                        statement.setBigDecimal(1, Money.toBigDecimal(changes.getDelta(i)));
+                        statement.setLong(2, changes.getAccountId(i));
+                        statement.addBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+            long now = System.currentTimeMillis();
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_TRANSFER)) {
+                for (int i = 0; i < changes.getTransferCount(); i++) {
+                    setTransfer(statement, changes.getSenderId(i), changes.getRecipientId(i), changes.getAmount(i),
+                            changes.getCurrency(i), changes.getCredited(i), changes.getRecipientCurrency(i),
+                            changes.getRateVersion(i), now);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            if (changes.getKeyCount() > 0) {
+                try (PreparedStatement statement = connection.prepareStatement(MERGE_KEY)) {
+                    for (int i = 0; i < changes.getKeyCount(); i++) {
+                        statement.setString(1, changes.getKey(i));
+                        statement.setString(2, changes.getFingerprint(i));
+                        statement.setLong(3, now);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            connection.commit();
+            for (int i = 0; i < changes.getTransferCount(); i++) {
+                ConservationChecker.onTransfer(changes.getCurrency(i), changes.getAmount(i),
+                        changes.getRecipientCurrency(i), changes.getCredited(i));
+            }
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            for (int i = 0; i < changes.getAccountCount(); i++) {
+                AccountCache.endWrite(changes.getAccountId(i));
+            }
+            for (int i = 0; i < changes.getTransferCount(); i++) {
+                ConservationChecker.endTransfer(changes.getCurrency(i), changes.getRecipientCurrency(i));
+            }
+        }
+    }
+
+    /**
+     * Opens the transfers from and to the account with ids greater than {@code afterId}, in id order.
+     * The result owns this helper and closes it when it is closed itself.
+     */
+    public TransferHistory getTransfers(long accountId, long afterId, int limit)
+            throws SQLException, AccountNotFoundException {
+        getCurrency(accountId);
+        return new TransferHistory(this, connection, accountId, afterId, limit);
+    }
+
+    /**
+     * First phase of a transfer to an account of another partition: debits the sender and records the debit
+     * in {@code PENDING_TRANSFERS} under {@code txId}. The money stays out of both balances until
+     * {@link #resolvePending} commits or returns it. {@code idempotencyKey} is stored with the pending debit,
+     * whose unique index keeps a second transfer under the same key out, and becomes a key of
+     * {@code IDEMPOTENCY_KEYS} only when the transfer is committed.
+     *
+     * @return currency of the sender, or {@code null} if the transfer was already made under the key
+     * @throws IdempotencyKeyInProgressException if the same transfer is pending under the key
+     */
+    public Currency reserveDebit(String txId, long senderId, long recipientId, BigDecimal amount,
+                                 String idempotencyKey)
+            throws SQLException, AccountNotFoundException, IdempotencyKeyReusedException {
+        String fingerprint = IdempotencyKeys.fingerprint(senderId, recipientId, amount);
+        if (idempotencyKey != null && IdempotencyKeys.isKnown(idempotencyKey, fingerprint)) {
+            return null;
+        }
+        Currency currency = getCurrency(senderId);
+        connection.setAutoCommit(false);
+        AccountCache.beginWrite(senderId);
+        try {
+            if (idempotencyKey != null) {
+                String recorded = getFingerprint(idempotencyKey, System.currentTimeMillis());
+                if (recorded != null && IdempotencyKeys.checkReplay(idempotencyKey, fingerprint, recorded)) {
+                    connection.rollback();
+                    return null;
+                }
+            }
+            if (AccountShards.count(senderId) > 0) {
+                credit(senderId, 0, currency);
+                fold(senderId);
+            }
+            if (!debit(senderId, Money.of(amount), currency)) {
+                // the account exists, so with conditional validation the balance condition refused the debit
+                connection.rollback();
+                throw new InsufficientFundsException();
+            }
+            try {
+                insertPending(txId, senderId, recipientId, amount, currency, false, idempotencyKey);
+            } catch (SQLException e) {
+                if (idempotencyKey == null || e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+                    throw e;
+                }
+                connection.rollback();
+                throw pendingKeyConflict(idempotencyKey, fingerprint);
+            }
+            connection.commit();
+            return currency;
+        } catch (SQLNonTransientException sqlException) {
+            connection.rollback();
+            if (sqlException.getCause() instanceof InsufficientFundsException) {
+                throw (InsufficientFundsException) sqlException.getCause();
+            }
+            throw sqlException;
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            AccountCache.endWrite(senderId);
+        }
+    }
+
+    /**
+     * @return the exception for a key held by a pending debit: in progress for the same transfer, reused otherwise
+     */
+    private IdempotencyKeyReusedException pendingKeyConflict(String idempotencyKey, String fingerprint)
+            throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT ACCOUNT_ID, COUNTERPARTY_ID, AMOUNT"
+                + " FROM PENDING_TRANSFERS WHERE IDEMPOTENCY_KEY = ?")) {
+            statement.setString(1, idempotencyKey);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next() && !fingerprint.equals(IdempotencyKeys.fingerprint(resultSet.getLong(1),
+                        resultSet.getLong(2), resultSet.getBigDecimal(3)))) {
+                    return new IdempotencyKeyReusedException(idempotencyKey);
+                }
+            }
+        }
+        // also when the other transfer was resolved in the meantime: the retry will find its outcome
+        return new IdempotencyKeyInProgressException(idempotencyKey);
+    }
+
+    /**
+     * First phase on the recipient's partition: checks the recipient and records the pending credit. Repeating
+     * it for the same {@code txId} has no effect.
+     *
+     * @return {@code false} if the credit was recorded already
+     */
+    public boolean reserveCredit(String txId, long recipientId, long senderId, BigDecimal amount, Currency currency)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        checkRecipient(recipientId, currency);
+        connection.setAutoCommit(true);
+        try {
+            insertPending(txId, recipientId, senderId, amount, currency, true, null);
+            return true;
+        } catch (SQLException e) {
+            if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    private void insertPending(String txId, long accountId, long counterpartyId, BigDecimal amount,
+                               Currency currency, boolean credit, String idempotencyKey) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO PENDING_TRANSFERS"
+                + " (TX_ID, ACCOUNT_ID, COUNTERPARTY_ID, AMOUNT, CURRENCY, CREDIT, IDEMPOTENCY_KEY, CREATED_AT)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+            statement.setString(1, txId);
             statement.setLong(2, accountId);
+            statement.setLong(3, counterpartyId);
+            statement.setBigDecimal(4, amount);
+            statement.setString(5, currency.getShortName());
+            statement.setBoolean(6, credit);
+            statement.setString(7, idempotencyKey);
+            statement.setLong(8, System.currentTimeMillis());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Second phase on either partition. A committed transfer credits the pending amount to the recipient, or
+     * just drops the pending debit and stores its idempotency key, and is recorded in {@code TRANSFERS}; an
+     * aborted one returns the pending debit to the sender. The outcome of a credit is kept in
+     * {@code RESOLVED_TRANSFERS} for {@link #getResolution}.
+     *
+     * @return {@code false} if nothing is pending under {@code txId}
+     */
+    public boolean resolvePending(String txId, boolean commit) throws SQLException {
+        connection.setAutoCommit(false);
+        long accountId = 0;
+        boolean writing = false;
+        try {
+            long counterpartyId;
+            long amount;
+            Currency currency;
+            boolean credit;
+            String idempotencyKey;
+            try (PreparedStatement statement = connection.prepareStatement("SELECT ACCOUNT_ID, COUNTERPARTY_ID,"
+                    + " AMOUNT, CURRENCY, CREDIT, IDEMPOTENCY_KEY FROM PENDING_TRANSFERS WHERE TX_ID = ? FOR UPDATE")) {
+                statement.setString(1, txId);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next()) {
+                        connection.rollback();
+                        return false;
+                    }
+                    accountId = resultSet.getLong(1);
+                    counterpartyId = resultSet.getLong(2);
+                    amount = Money.of(resultSet.getBigDecimal(3));
+                    currency = Currency.fromString(resultSet.getString(4));
+                    credit = resultSet.getBoolean(5);
+                    idempotencyKey = resultSet.getString(6);
+                }
+            }
+            if (credit == commit) {
+                AccountCache.beginWrite(accountId);
+                writing = true;
+                int shards = AccountShards.count(accountId);
+                if (shards > 0) {
+                    creditShard(accountId, shards, amount);
+                } else {
+                    credit(accountId, amount, currency);
+                }
+            }
+            String fingerprint = idempotencyKey == null ? null
+                    : IdempotencyKeys.fingerprint(accountId, counterpartyId, Money.toBigDecimal(amount));
+            long now = System.currentTimeMillis();
+            if (commit && idempotencyKey != null) {
+                try (PreparedStatement statement = connection.prepareStatement(MERGE_KEY)) {
+                    statement.setString(1, idempotencyKey);
+                    statement.setString(2, fingerprint);
+                    statement.setLong(3, now);
+                    statement.executeUpdate();
+                }
+            }
+            if (credit) {
+                insertResolved(txId, commit, now);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM PENDING_TRANSFERS WHERE TX_ID = ?")) {
+                statement.setString(1, txId);
+                statement.executeUpdate();
+            }
+            if (commit) {
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_TRANSFER)) {
+                    setTransfer(statement, credit ? counterpartyId : accountId, credit ? accountId : counterpartyId,
+                            amount, currency, now);
+                    statement.executeUpdate();
+                }
+            }
+            connection.commit();
+            if (commit && idempotencyKey != null) {
+                IdempotencyKeys.remember(idempotencyKey, fingerprint);
+            }
+            return true;
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            if (writing) {
+                AccountCache.endWrite(accountId);
+            }
+        }
+    }
+
+    private void insertResolved(String txId, boolean commit, long resolvedAt) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "MERGE INTO RESOLVED_TRANSFERS (TX_ID, COMMITTED, RESOLVED_AT) KEY (TX_ID) VALUES (?, ?, ?)")) {
+            statement.setString(1, txId);
+            statement.setBoolean(2, commit);
+            statement.setLong(3, resolvedAt);
             statement.executeUpdate();
         }
     }
 
+    /**
+     * @return whether the credit {@code txId} was committed, or {@code null} if no resolution of it is kept
+     */
+    public Boolean getResolution(String txId) throws SQLException {
+        connection.setAutoCommit(true);
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT COMMITTED FROM RESOLVED_TRANSFERS WHERE TX_ID = ?")) {
+            statement.setString(1, txId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getBoolean(1) : null;
+            }
+        }
+    }
+
+    /**
+     * @return number of resolutions deleted
+     */
+    public int purgeResolved(long resolvedBefore) throws SQLException {
+        connection.setAutoCommit(true);
+        try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM RESOLVED_TRANSFERS WHERE RESOLVED_AT < ?")) {
+            statement.setLong(1, resolvedBefore);
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * @return ids of the transactions whose credits have been pending since before {@code createdBefore}
+     */
+    public List<String> findPendingCredits(long createdBefore) throws SQLException {
+        connection.setAutoCommit(true);
+        List<String> result = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT TX_ID FROM PENDING_TRANSFERS WHERE CREDIT = TRUE AND CREATED_AT < ?")) {
+            statement.setLong(1, createdBefore);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    result.add(resultSet.getString(1));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rows of {@code ACCOUNTS} are locked in ascending id order and rows of {@code ACCOUNT_SHARDS} only after
+     * all of them, so transfers cannot deadlock. A sharded recipient is credited in a random shard without
+     * locking its {@code ACCOUNTS} row, unless the sender is sharded too; a sharded sender folds its shards
+     * into its row before the debit.
+     *
+     * @return {@code false} if the sender does not exist or is not in {@code currency}, if the recipient does not
+     * exist or is not in {@code recipientCurrency}, or, with conditional validation, if the sender cannot cover
+     * {@code amount}
+     */
+    private boolean updateBalances(long senderId, long recipientId, long amount, Currency currency, long credited,
+                                   Currency recipientCurrency) throws SQLException, AccountNotFoundException {
+        boolean shardedSender = AccountShards.count(senderId) > 0;
+        int recipientShards = AccountShards.count(recipientId);
+        if (!shardedSender && recipientShards == 0) {
+            if (senderId <= recipientId) {
+                return debit(senderId, amount, currency) && credit(recipientId, credited, recipientCurrency);
+            } else {
+                return credit(recipientId, credited, recipientCurrency) && debit(senderId, amount, currency);
+            }
+        }
+        if (!shardedSender) {
+            return getCurrency(recipientId) == recipientCurrency && debit(senderId, amount, currency)
+                    && creditShard(recipientId, recipientShards, credited);
+        }
+        long rowCredit = recipientShards > 0 ? 0 : credited;
+        boolean locked = senderId <= recipientId
+                ? credit(senderId, 0, currency) && credit(recipientId, rowCredit, recipientCurrency)
+                : credit(recipientId, rowCredit, recipientCurrency) && credit(senderId, 0, currency);
+        if (!locked) {
+            return false;
+        }
+        fold(senderId);
+        return debit(senderId, amount, currency)
+                && (recipientShards == 0 || creditShard(recipientId, recipientShards, credited));
+    }
+
+    /**
+     * Moves the balances of the account's shards into its {@code ACCOUNTS} row, which must be locked already.
+     *
+     * @return the amount moved
+     */
+    private long fold(long accountId) throws SQLException {
+        long total = 0;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT BALANCE FROM ACCOUNT_SHARDS WHERE ACCOUNT_ID = ? FOR UPDATE")) {
+            statement.setLong(1, accountId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    total = Money.add(total, Money.of(resultSet.getBigDecimal(1)));
+                }
+            }
+        }
+        if (total == 0) {
+            return total;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE ACCOUNT_SHARDS SET BALANCE = 0 WHERE ACCOUNT_ID = ?")) {
+            statement.setLong(1, accountId);
+            statement.executeUpdate();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE ACCOUNTS SET BALANCE = BALANCE + ? WHERE ID = ?")) {
+            statement.setBigDecimal(1, Money.toBigDecimal(total));
+            statement.setLong(2, accountId);
+            statement.executeUpdate();
+        }
+        return total;
+    }
+
+    private boolean creditShard(long accountId, int shards, long amount) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE ACCOUNT_SHARDS SET BALANCE = BALANCE + ? WHERE ACCOUNT_ID = ? AND SHARD = ?")) {
+            statement.setBigDecimal(1, Money.toBigDecimal(amount));
+            statement.setLong(2, accountId);
+            statement.setInt(3, ThreadLocalRandom.current().nextInt(shards));
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Spreads future credits of the account over {@code shards} rows of {@code ACCOUNT_SHARDS}; the balance
+     * already held in shards is folded back first, so the count can be changed at any time.
+     */
+    public void shardAccount(long accountId, int shards) throws SQLException, AccountNotFoundException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shard count must be positive");
+        }
+        connection.setAutoCommit(false);
+        try {
+            if (!credit(accountId, 0, getCurrency(accountId))) {
+                throw new AccountNotFoundException(accountId);
+            }
+            fold(accountId);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM ACCOUNT_SHARDS WHERE ACCOUNT_ID = ?")) {
+                statement.setLong(1, accountId);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO ACCOUNT_SHARDS (ACCOUNT_ID, SHARD, BALANCE) VALUES (?, ?, 0)")) {
+                for (int shard = 0; shard < shards; shard++) {
+                    statement.setLong(1, accountId);
+                    statement.setInt(2, shard);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+            AccountShards.set(accountId, shards);
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        }
+    }
+
+    private boolean debit(long accountId, long amount, Currency currency) throws SQLException {
+        if (!CONDITIONAL_DEBIT) {
+            return credit(accountId, Money.negate(amount), currency);
+        }
+        try (PreparedStatement statement = connection.prepareStatement(DEBIT)) {
+            BigDecimal debited = Money.toBigDecimal(amount);
+            statement.setBigDecimal(1, debited);
+            statement.setLong(2, accountId);
+            statement.setString(3, currency.getShortName());
+            statement.setBigDecimal(4, debited);
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    private boolean credit(long accountId, long amount, Currency currency) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(CREDIT)) {
+            statement.setBigDecimal(1, Money.toBigDecimal(amount));
+            statement.setLong(2, accountId);
+            statement.setString(3, currency.getShortName());
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Reads every account into a {@link LedgerState}, balances in minor units.
+     */
+    public LedgerState exportAccounts() throws SQLException {
+        LedgerState state = new LedgerState();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT ID, CURRENCY, BALANCE"
+                     + " + COALESCE((SELECT SUM(S.BALANCE) FROM ACCOUNT_SHARDS S WHERE S.ACCOUNT_ID = A.ID), 0), OWNER"
+                     + " FROM ACCOUNTS A")) {
+            while (resultSet.next()) {
+                state.onCreate(resultSet.getLong(1), Currency.fromString(resultSet.getString(2)),
+                        Money.of(resultSet.getBigDecimal(3)), resultSet.getString(4));
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Replaces the content of {@code ACCOUNTS} with the given accounts, keeping their ids.
+     */
+    public void restoreAccounts(Collection<LedgerState.Account> accounts, long maxAccountId) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DELETE FROM ACCOUNT_SHARDS");
+                statement.executeUpdate("DELETE FROM ACCOUNTS");
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO ACCOUNTS (ID, CURRENCY, BALANCE, OWNER) VALUES (?, ?, ?, ?)")) {
+                for (LedgerState.Account account : accounts) {
+                    statement.setLong(1, account.getId());
+                    statement.setString(2, account.getCurrency().getShortName());
+                    statement.setBigDecimal(3, Money.toBigDecimal(account.getBalance()));
+                    statement.setString(4, account.getOwner());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("ALTER TABLE ACCOUNTS ALTER COLUMN ID RESTART WITH " + (maxAccountId + 1));
+            }
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            AccountShards.clear();
+            AccountCache.clear();
+        }
+    }
+
+    /**
+     * Replaces the content of {@code TRANSFERS} with the given journaled transfers. A transfer journaled without
+     * its time gets the current one; the {@link FxRates} version of a conversion is not journaled and left at
+     * {@code 0}.
+     */
+    public void restoreTransfers(Collection<LedgerState.Transfer> transfers) throws SQLException {
+        connection.setAutoCommit(false);
+        long now = System.currentTimeMillis();
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DELETE FROM TRANSFERS");
+            }
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_TRANSFER)) {
+                int batched = 0;
+                for (LedgerState.Transfer transfer : transfers) {
+                    setTransfer(statement, transfer.getSenderId(), transfer.getRecipientId(), transfer.getAmount(),
+                            transfer.getCurrency(), transfer.getCredited(), transfer.getRecipientCurrency(), 0,
+                            transfer.getCreatedAt() != 0 ? transfer.getCreatedAt() : now);
+                    statement.addBatch();
+                    if (++batched % IMPORT_BATCH_SIZE == 0) {
+                        statement.executeBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Puts the journaled halves of cross-partition transfers back into {@code PENDING_TRANSFERS} and the
+     * resolutions of credits into {@code RESOLVED_TRANSFERS}; the balances already reflect them.
+     */
+    public void restorePending(Collection<LedgerState.Pending> pending, Collection<LedgerState.Resolved> resolved)
+            throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            for (LedgerState.Pending transfer : pending) {
+                try (PreparedStatement statement = connection.prepareStatement("INSERT INTO PENDING_TRANSFERS"
+                        + " (TX_ID, ACCOUNT_ID, COUNTERPARTY_ID, AMOUNT, CURRENCY, CREDIT, IDEMPOTENCY_KEY, CREATED_AT)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+                    statement.setString(1, transfer.getTxId());
+                    statement.setLong(2, transfer.getAccountId());
+                    statement.setLong(3, transfer.getCounterpartyId());
+                    statement.setBigDecimal(4, Money.toBigDecimal(transfer.getAmount()));
+                    statement.setString(5, transfer.getCurrency().getShortName());
+                    statement.setBoolean(6, transfer.isCredit());
+                    statement.setString(7, transfer.getIdempotencyKey());
+                    statement.setLong(8, transfer.getCreatedAt());
+                    statement.executeUpdate();
+                }
+            }
+            for (LedgerState.Resolved resolution : resolved) {
+                insertResolved(resolution.getTxId(), resolution.isCommit(), resolution.getResolvedAt());
+            }
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Puts the journaled idempotency keys back into {@code IDEMPOTENCY_KEYS}; expired ones are left to the purge.
+     */
+    public void restoreKeys(Collection<LedgerState.Key> keys) throws SQLException {
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(MERGE_KEY)) {
+            for (LedgerState.Key key : keys) {
+                statement.setString(1, key.getKey());
+                statement.setString(2, key.getFingerprint());
+                statement.setLong(3, key.getCreatedAt());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        }
+    }
+
     @Override
-    public void close() throws Exception {
+    public void close() throws SQLException {
         connection.close();
     }
+
+    /**
+     * Told about new accounts while their rows are not committed yet, so nothing that refers to one of them can be
+     * committed, and recorded, before it has been told.
+     */
+    interface CreateListener {
+        void onCreate(long accountId, Currency currency, BigDecimal balance, String owner);
+
+        /**
+         * The accounts told about so far, if any, were rolled back.
+         */
+        void onRollback(Exception cause);
+    }
 }
@@ -0,0 +1,181 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.journal.JournalListener;
+import ru.ptrofimov.demo.journal.LedgerState;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process replica of the accounts of an {@link H2LedgerEngine}, answering account reads without a
+ * connection or a row lock. It starts from a snapshot of {@code ACCOUNTS} and is then fed the creations and
+ * transfers the engine has committed. Feeding only queues the change; a background thread applies the queue
+ * every {@code applyIntervalMillis}, so the write path never waits for the replica.
+ * <p>
+ * Every change is stamped when it is fed, right after its commit, and the replica is as old as the last change it
+ * has applied: {@link #getAgeMillis()} is the time since that commit. A read is answered only while that age is
+ * within {@code maxStalenessMillis}, otherwise the caller should go to the database, so a replica that has not been
+ * fed for a while sends reads to the database until the next commit.
+ */
+final class AccountReplica implements JournalListener, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountReplica.class);
+
+    private static final String READS_METRIC = "replica_reads_total";
+    private static final String READS_HELP = "Account reads by how the replica answered them";
+    private static final LongAdder hits = Metrics.counter(READS_METRIC, READS_HELP, "result", "hit");
+    private static final LongAdder stale = Metrics.counter(READS_METRIC, READS_HELP, "result", "stale");
+    private static final LongAdder misses = Metrics.counter(READS_METRIC, READS_HELP, "result", "miss");
+
+    private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+    private final long maxStalenessMillis;
+    private final ScheduledExecutorService applier;
+    private volatile long syncedAtMillis;
+
+    /**
+     * @param snapshot accounts as of now; nothing may be committed between taking it and feeding this replica
+     */
+    AccountReplica(LedgerState snapshot, long applyIntervalMillis, long maxStalenessMillis) {
+        for (LedgerState.Account account : snapshot.getAccounts()) {
+            accounts.put(account.getId(), new Account(account.getCurrency(), account.getBalance(), account.getOwner()));
+        }
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.syncedAtMillis = System.currentTimeMillis();
+        applier = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "account-replica");
+            thread.setDaemon(true);
+            return thread;
+        });
+        applier.scheduleWithFixedDelay(this::apply, applyIntervalMillis, applyIntervalMillis, TimeUnit.MILLISECONDS);
+        Metrics.gauge("replica_age_seconds", "Age of the account replica", () -> getAgeMillis() / 1e3);
+    }
+
+    @Override
+    public void onCreate(long accountId, Currency currency, long balance, String owner) {
+        changes.add(new Change(accountId, 0, balance, 0, currency, owner));
+    }
+
+    @Override
+    public void onTransfer(long senderId, long recipientId, long debited, long credited) {
+        changes.add(new Change(senderId, recipientId, debited, credited, null, null));
+    }
+
+    /**
+     * Applies the changes queued so far and moves the replica to the commit time of the last of them.
+     */
+    void apply() {
+        Change change;
+        try {
+            while ((change = changes.poll()) != null) {
+                apply(change);
+                syncedAtMillis = Math.max(syncedAtMillis, change.committedAt);
+            }
+        } catch (RuntimeException e) {
+            // a failed task is not run again, so the replica falls behind and reads go to the database
+            logger.error("account replica stopped", e);
+            throw e;
+        }
+    }
+
+    /**
+     * A transfer may be fed before the creation of an account it touches, as both are fed after their own commits.
+     * Its amount is then kept on an account without currency, which is not read, and added to the created balance.
+     */
+    private void apply(Change change) {
+        if (change.currency != null) {
+            Account early = accounts.get(change.accountId);
+            long balance = early == null ? change.amount : Money.add(change.amount, early.balance);
+            accounts.put(change.accountId, new Account(change.currency, balance, change.owner));
+        } else {
+            add(change.accountId, -change.amount);
+            add(change.counterpartyId, change.credited);
+        }
+    }
+
+    private void add(long accountId, long amount) {
+        accounts.compute(accountId, (id, account) ->
+                account == null ? new Account(null, amount, null) : account.plus(amount));
+    }
+
+    long getAgeMillis() {
+        return System.currentTimeMillis() - syncedAtMillis;
+    }
+
+    /**
+     * @return the account as of {@link #getAgeMillis()} ago, or {@code null} if the replica is too stale or does
+     * not have the account
+     */
+    Snapshot<AccountDetails> getAccountDetails(long accountId) {
+        long ageMillis = getAgeMillis();
+        if (ageMillis > maxStalenessMillis) {
+            stale.increment();
+            return null;
+        }
+        Account account = accounts.get(accountId);
+        if (account == null || account.currency == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        AccountDetails result = new AccountDetails(account.currency, Money.toBigDecimal(account.balance), account.owner);
+        result.setId(accountId);
+        return new Snapshot<>(result, ageMillis);
+    }
+
+    @Override
+    public void close() {
+        applier.shutdownNow();
+    }
+
+    private static final class Account {
+        private final Currency currency;
+        private final long balance;
+        private final String owner;
+
+        private Account(Currency currency, long balance, String owner) {
+            this.currency = currency;
+            this.balance = balance;
+            this.owner = owner;
+        }
+
+        private Account plus(long amount) {
+            return new Account(currency, Money.add(balance, amount), owner);
+        }
+    }
+
+    /**
+     * A creation when {@code currency} is set, otherwise a transfer of {@code amount} to {@code counterpartyId}
+     * that credits it with {@code credited}.
+     */
+    private static final class Change {
+        private final long accountId;
+        private final long counterpartyId;
+        private final long amount;
+        private final long credited;
+        private final Currency currency;
+        private final String owner;
+        private final long committedAt = System.currentTimeMillis();
+
+        private Change(long accountId, long counterpartyId, long amount, long credited, Currency currency,
+                       String owner) {
+            this.accountId = accountId;
+            this.counterpartyId = counterpartyId;
+            this.amount = amount;
+            this.credited = credited;
+            this.currency = currency;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ru.ptrofimov.demo.logic;
+
+import java.util.Arrays;
+
+/**
+ * Shard counts of the accounts whose credits are spread over rows of {@code ACCOUNT_SHARDS}.
+ * Few accounts are sharded, so lookups binary-search a copy-on-write array instead of boxing the id.
+ */
+final class AccountShards {
+
+    private static volatile Table table = new Table(new long[0], new int[0]);
+
+    private AccountShards() {
+    }
+
+    static int count(long accountId) {
+        Table current = table;
+        int index = Arrays.binarySearch(current.ids, accountId);
+        return index >= 0 ? current.counts[index] : 0;
+    }
+
+    static synchronized void set(long accountId, int count) {
+        Table current = table;
+        int index = Arrays.binarySearch(current.ids, accountId);
+        if (index >= 0) {
+            int[] counts = current.counts.clone();
+            counts[index] = count;
+            table = new Table(current.ids, counts);
+            return;
+        }
+        int insertAt = -index - 1;
+        long[] ids = new long[current.ids.length + 1];
+        int[] counts = new int[ids.length];
+        System.arraycopy(current.ids, 0, ids, 0, insertAt);
+        System.arraycopy(current.counts, 0, counts, 0, insertAt);
+        ids[insertAt] = accountId;
+        counts[insertAt] = count;
+        System.arraycopy(current.ids, insertAt, ids, insertAt + 1, current.ids.length - insertAt);
+        System.arraycopy(current.counts, insertAt, counts, insertAt + 1, current.counts.length - insertAt);
+        table = new Table(ids, counts);
+    }
+
+    static synchronized void clear() {
+        table = new Table(new long[0], new int[0]);
+    }
+
+    private static final class Table {
+        private final long[] ids;
+        private final int[] counts;
+
+        private Table(long[] ids, int[] counts) {
+            this.ids = ids;
+            this.counts = counts;
+        }
+    }
+}
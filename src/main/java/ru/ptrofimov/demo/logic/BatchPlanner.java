@@ -0,0 +1,149 @@
+package ru.ptrofimov.demo.logic;
+
+import ru.ptrofimov.demo.exceptions.AmountTooSmallException;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides the outcome of every transfer in a batch against the locked balances of the involved accounts
+ * and nets them into one balance change per account. Transfers between currencies are all converted with the
+ * {@link FxRates} table that was current when the planner was created.
+ * <p>
+ * Usage: lock and {@link #load} every id of {@link #getAccountIds()} in the given (ascending) order,
+ * call {@link #plan()}, then apply {@link #getDelta} to each account if {@link #isApplicable()}.
+ */
+final class BatchPlanner {
+
+    private final List<TransferRequest> transfers;
+    private final BatchMode mode;
+    private final long[] accountIds;
+    private final Currency[] currencies;
+    private final long[] balances;
+    private final long[] deltas;
+    private final long[] amounts;
+    private final long[] credited;
+    private final FxRates.Table rates = FxRates.current();
+    private MoneyTransferStatus[] statuses;
+    private boolean applicable;
+
+    BatchPlanner(List<TransferRequest> transfers, BatchMode mode) {
+        this.transfers = transfers;
+        this.mode = mode;
+        long[] ids = new long[transfers.size() * 2];
+        amounts = new long[transfers.size()];
+        credited = new long[transfers.size()];
+        for (int i = 0; i < transfers.size(); i++) {
+            TransferRequest transfer = transfers.get(i);
+            ids[2 * i] = transfer.getFrom();
+            ids[2 * i + 1] = transfer.getTo();
+            amounts[i] = Money.of(transfer.getAmount());
+        }
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        accountIds = Arrays.copyOf(ids, distinct);
+        currencies = new Currency[distinct];
+        balances = new long[distinct];
+        deltas = new long[distinct];
+    }
+
+    List<TransferRequest> getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * @return distinct ids of every account in the batch, ascending; this is the lock order
+     */
+    long[] getAccountIds() {
+        return accountIds;
+    }
+
+    void load(long accountId, Currency currency, long balance) {
+        int index = Arrays.binarySearch(accountIds, accountId);
+        currencies[index] = currency;
+        balances[index] = balance;
+    }
+
+    MoneyTransferStatus[] plan() {
+        statuses = new MoneyTransferStatus[transfers.size()];
+        boolean failed = false;
+        for (int i = 0; i < statuses.length; i++) {
+            TransferRequest transfer = transfers.get(i);
+            int sender = Arrays.binarySearch(accountIds, transfer.getFrom());
+            int recipient = Arrays.binarySearch(accountIds, transfer.getTo());
+            long amount = amounts[i];
+            if (currencies[sender] == null || currencies[recipient] == null) {
+                statuses[i] = MoneyTransferStatus.ACCOUNT_NOT_FOUND;
+            } else if (balances[sender] < amount) {
+                statuses[i] = MoneyTransferStatus.INSUFFICIENT_FUNDS;
+            } else if (!convert(i, currencies[sender], currencies[recipient])) {
+                statuses[i] = MoneyTransferStatus.AMOUNT_TOO_SMALL;
+            } else {
+                statuses[i] = MoneyTransferStatus.SUCCESS;
+                balances[sender] -= amount;
+                balances[recipient] = Math.addExact(balances[recipient], credited[i]);
+                deltas[sender] -= amount;
+                deltas[recipient] += credited[i];
+                continue;
+            }
+            failed = true;
+        }
+        applicable = !failed || mode == BatchMode.PER_ITEM;
+        if (!applicable) {
+            for (int i = 0; i < statuses.length; i++) {
+                if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                    statuses[i] = MoneyTransferStatus.ROLLED_BACK;
+                }
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * @return whether the amount of transfer {@code i} converts to a credit, which is then kept
+     */
+    private boolean convert(int i, Currency from, Currency to) {
+        try {
+            credited[i] = rates.convert(amounts[i], from, to);
+            return true;
+        } catch (AmountTooSmallException e) {
+            return false;
+        }
+    }
+
+    boolean isApplicable() {
+        return applicable;
+    }
+
+    /**
+     * @return net balance change of the account at the given index of {@link #getAccountIds()}, in minor units
+     */
+    long getDelta(int index) {
+        return deltas[index];
+    }
+
+    long getAmount(int transferIndex) {
+        return amounts[transferIndex];
+    }
+
+    /**
+     * @return amount credited to the recipient of a successful transfer, in its currency
+     */
+    long getCredited(int transferIndex) {
+        return credited[transferIndex];
+    }
+
+    FxRates.Table getRates() {
+        return rates;
+    }
+}
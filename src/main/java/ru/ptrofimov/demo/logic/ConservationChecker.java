@@ -0,0 +1,275 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.metrics.LatencyHistogram;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.ConservationReport;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.partition.Partitioning;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+import ru.ptrofimov.demo.utils.DBUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks that money is neither created nor lost: the total balance of every currency may only change when an
+ * account is created or when a transfer converts money between currencies.
+ * <p>
+ * The H2 engine reports both right after its commits, and the expected totals are kept as a baseline taken when
+ * the engine starts plus striped counters of these changes, so the transfer path does not contend on them.
+ * A background reconciliation sums the balances of {@code ACCOUNTS} and {@code ACCOUNT_SHARDS} with a single
+ * statement, which H2 reads from one snapshot of the committed data, and compares the sums with the totals.
+ * <p>
+ * A change is committed before it is reported, so the engine also counts when it begins and ends committing
+ * one. A currency is only judged when none of its changes was in progress when the scan started and none began
+ * until the totals were read after it; then the snapshot and the totals contain the same changes, and any drift
+ * is confirmed by that one scan.
+ */
+public final class ConservationChecker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConservationChecker.class);
+
+    private static final Currency[] CURRENCIES = Currency.values();
+
+    private static final String SUM_ALL = "SELECT CURRENCY, SUM(BALANCE) FROM ("
+            + "SELECT CURRENCY, BALANCE FROM ACCOUNTS "
+            + "UNION ALL SELECT A.CURRENCY, S.BALANCE FROM ACCOUNT_SHARDS S JOIN ACCOUNTS A ON A.ID = S.ACCOUNT_ID"
+            + ") GROUP BY CURRENCY";
+
+    private static final long INTERVAL_MILLIS = ConfigUtils.getLong("conservation.intervalMillis", 60_000);
+    private static final long MIN_INTERVAL_MILLIS = ConfigUtils.getLong("conservation.minIntervalMillis", 10_000);
+
+    private static final LongAdder[] flows = new LongAdder[CURRENCIES.length];
+    // changes that began and ended committing, per currency; see reconcile
+    private static final LongAdder[] begun = new LongAdder[CURRENCIES.length];
+    private static final LongAdder[] ended = new LongAdder[CURRENCIES.length];
+    // totals found by the scan at the start, plus created balances too large for the counters; guarded by itself
+    private static final BigDecimal[] baseline = new BigDecimal[CURRENCIES.length];
+    private static final double[] confirmedDrift = new double[CURRENCIES.length];
+
+    private static final LongAdder reconciliations = Metrics.counter("ledger_reconciliations_total",
+            "Full scans of the balances against the running per-currency totals");
+    private static final LatencyHistogram reconcileLatency = Metrics.histogram(
+            "ledger_reconciliation_duration_seconds", "Time to scan and compare the balances of all accounts");
+
+    static {
+        for (Currency currency : CURRENCIES) {
+            flows[currency.ordinal()] = new LongAdder();
+            begun[currency.ordinal()] = new LongAdder();
+            ended[currency.ordinal()] = new LongAdder();
+            baseline[currency.ordinal()] = BigDecimal.ZERO;
+            Metrics.gauge("ledger_conservation_drift", "Confirmed difference between the sum of the balances "
+                    + "and the running total of a currency", () -> confirmedDrift[currency.ordinal()],
+                    "currency", currency.getShortName());
+        }
+    }
+
+    private static volatile boolean started;
+    private static ScheduledExecutorService scheduler;
+    private static volatile ConservationReport lastReport;
+
+    private ConservationChecker() {
+    }
+
+    /**
+     * Called before the commit of an account of {@code currency}, and {@link #endCreate} after it is reported or
+     * has failed.
+     */
+    static void beginCreate(Currency currency) {
+        begun[currency.ordinal()].increment();
+    }
+
+    static void endCreate(Currency currency) {
+        ended[currency.ordinal()].increment();
+    }
+
+    /**
+     * Called before the commit of a transfer, and {@link #endTransfer} after it is reported or has failed; a
+     * transfer within a currency does not change its total and is not counted.
+     */
+    static void beginTransfer(Currency currency, Currency recipientCurrency) {
+        if (currency != recipientCurrency) {
+            begun[currency.ordinal()].increment();
+            begun[recipientCurrency.ordinal()].increment();
+        }
+    }
+
+    static void endTransfer(Currency currency, Currency recipientCurrency) {
+        if (currency != recipientCurrency) {
+            ended[currency.ordinal()].increment();
+            ended[recipientCurrency.ordinal()].increment();
+        }
+    }
+
+    static void onCreate(Currency currency, BigDecimal balance) {
+        try {
+            flows[currency.ordinal()].add(Money.of(balance));
+        } catch (ArithmeticException tooLarge) {
+            synchronized (baseline) {
+                baseline[currency.ordinal()] = baseline[currency.ordinal()]
+                        .add(balance.setScale(Money.SCALE, RoundingMode.HALF_UP));
+            }
+        }
+    }
+
+    /**
+     * @param amount   debited from the sender, in minor units of {@code currency}
+     * @param credited credited to the recipient, in minor units of {@code recipientCurrency}
+     */
+    static void onTransfer(Currency currency, long amount, Currency recipientCurrency, long credited) {
+        if (currency != recipientCurrency) {
+            flows[currency.ordinal()].add(-amount);
+            flows[recipientCurrency.ordinal()].add(credited);
+        }
+    }
+
+    /**
+     * Takes the baseline from the table and schedules the reconciliation, unless {@code conservation.enabled} is
+     * {@code false} or the instance is partitioned: pending halves of cross-partition transfers are in neither
+     * balance. Meant to be called by an engine before it serves anything, so no money moves during the scan.
+     */
+    static synchronized void start() throws SQLException {
+        if (!ConfigUtils.getBoolean("conservation.enabled", true) || Partitioning.isEnabled()) {
+            return;
+        }
+        for (LongAdder flow : flows) {
+            flow.reset();
+        }
+        BigDecimal[] totals = scan();
+        synchronized (baseline) {
+            System.arraycopy(totals, 0, baseline, 0, totals.length);
+        }
+        Arrays.fill(confirmedDrift, 0);
+        lastReport = null;
+        started = true;
+        if (scheduler == null && INTERVAL_MILLIS > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "conservation-checker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    reconcile();
+                } catch (SQLException | RuntimeException e) {
+                    logger.warn("failed to reconcile balances", e);
+                }
+            }, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Scans all balances and compares them with the running totals.
+     *
+     * @throws IllegalStateException if the checker is not {@link #isStarted() started}
+     */
+    public static synchronized ConservationReport reconcile() throws SQLException {
+        if (!started) {
+            throw new IllegalStateException("conservation checker is not started");
+        }
+        long start = System.nanoTime();
+        // read in this order, the counters are monotonic: equal ended and begun mean nothing was in progress
+        // when begun was read, and an unchanged begun afterwards means nothing was committed since
+        long[] endedBefore = sum(ended);
+        long[] begunBefore = sum(begun);
+        BigDecimal[] actual = scan();
+        long[] flowsAfter = sum(flows);
+        long[] begunAfter = sum(begun);
+        BigDecimal[] expected = new BigDecimal[CURRENCIES.length];
+        synchronized (baseline) {
+            for (int c = 0; c < expected.length; c++) {
+                expected[c] = baseline[c].add(Money.toBigDecimal(flowsAfter[c]));
+            }
+        }
+
+        ConservationReport report = new ConservationReport();
+        for (Currency currency : CURRENCIES) {
+            int c = currency.ordinal();
+            BigDecimal drift = actual[c].subtract(expected[c]);
+            boolean confirmed = drift.signum() != 0 && endedBefore[c] == begunBefore[c]
+                    && begunBefore[c] == begunAfter[c];
+            confirmedDrift[c] = confirmed ? drift.doubleValue() : 0;
+            if (confirmed) {
+                logger.error("{} balances sum up to {}, expected {}", currency.getShortName(), actual[c],
+                        expected[c]);
+            }
+            report.getTotals().add(new ConservationReport.Total(currency, expected[c], actual[c], confirmed));
+        }
+        report.setReconciledAt(System.currentTimeMillis());
+        report.setDurationMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        reconciliations.increment();
+        reconcileLatency.recordSince(start);
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * Reconciles on request, without letting callers run scans back to back: waits for a reconciliation in
+     * progress and returns its report, or returns the latest one while it is younger than
+     * {@code conservation.minIntervalMillis}.
+     *
+     * @throws IllegalStateException if the checker is not {@link #isStarted() started}
+     */
+    public static ConservationReport reconcileOnDemand() throws SQLException {
+        long requestedAt = System.currentTimeMillis();
+        synchronized (ConservationChecker.class) {
+            ConservationReport report = lastReport;
+            if (report != null && report.getReconciledAt() >= requestedAt - MIN_INTERVAL_MILLIS) {
+                return report;
+            }
+            return reconcile();
+        }
+    }
+
+    /**
+     * @return the report of the latest reconciliation, {@code null} if there was none since the start
+     */
+    public static ConservationReport getLastReport() {
+        return lastReport;
+    }
+
+    private static long[] sum(LongAdder[] counters) {
+        long[] result = new long[counters.length];
+        for (int c = 0; c < result.length; c++) {
+            result[c] = counters[c].sum();
+        }
+        return result;
+    }
+
+    /**
+     * Sums the balances by currency in one read-only transaction. The JDBC isolation level is left alone, as H2
+     * 1.4 maps it to the database-wide {@code LOCK_MODE} and would make every transfer lock whole tables; a
+     * single statement is already read from one snapshot.
+     */
+    private static BigDecimal[] scan() throws SQLException {
+        BigDecimal[] result = new BigDecimal[CURRENCIES.length];
+        Arrays.fill(result, BigDecimal.ZERO.setScale(Money.SCALE));
+        try (Connection connection = DBUtils.getQueryConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(SUM_ALL)) {
+                while (resultSet.next()) {
+                    result[Currency.fromString(resultSet.getString(1)).ordinal()] = resultSet.getBigDecimal(2);
+                }
+            }
+            connection.commit();
+        }
+        return result;
+    }
+}
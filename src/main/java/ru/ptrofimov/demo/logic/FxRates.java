@@ -0,0 +1,196 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.exceptions.AmountTooSmallException;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exchange rates between every pair of {@link Currency currencies}. The current {@link Table} is immutable
+ * and replaced as a whole, so a transfer reads it once and converts with one array lookup, taking no lock and
+ * allocating nothing, while a reload swaps in the next table.
+ * <p>
+ * Rates are read from the properties file {@code fx.ratesFile}, or from the bundled {@code fx-rates.properties}
+ * when it is not set: a {@code version} and the value of one unit of every currency, by short name, in a
+ * common unit. A configured file is checked every {@code fx.reloadIntervalMillis} and swapped in when its
+ * version changes; a file that cannot be read is logged and the current table is kept.
+ */
+public final class FxRates {
+
+    private static final Logger logger = LoggerFactory.getLogger(FxRates.class);
+
+    /**
+     * Rates are fixed-point numbers with this many units per 1.
+     */
+    static final long RATE_SCALE = 100_000_000L;
+
+    // keeps the low half of an amount times a rate within a long
+    private static final long MAX_RATE = Long.MAX_VALUE / RATE_SCALE;
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final String BUNDLED_RATES = "/fx-rates.properties";
+    private static final String RATES_FILE = ConfigUtils.getString("fx.ratesFile", null);
+    private static final long RELOAD_INTERVAL_MILLIS = ConfigUtils.getLong("fx.reloadIntervalMillis", 5000);
+
+    private static final String RELOADS_METRIC = "fx_reloads_total";
+    private static final String RELOADS_HELP = "Checks of the rates file by their outcome";
+    private static final LongAdder swapped = Metrics.counter(RELOADS_METRIC, RELOADS_HELP, "result", "swapped");
+    private static final LongAdder unchanged = Metrics.counter(RELOADS_METRIC, RELOADS_HELP, "result", "unchanged");
+    private static final LongAdder failed = Metrics.counter(RELOADS_METRIC, RELOADS_HELP, "result", "failed");
+
+    private static final AtomicReference<Table> current = new AtomicReference<>(loadInitial());
+
+    static {
+        Metrics.gauge("fx_rates_version", "Version of the exchange rates in use", () -> current.get().version);
+        if (RATES_FILE != null && RELOAD_INTERVAL_MILLIS > 0) {
+            ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "fx-rates-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(() -> reload(Paths.get(RATES_FILE)),
+                    RELOAD_INTERVAL_MILLIS, RELOAD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private FxRates() {
+    }
+
+    public static Table current() {
+        return current.get();
+    }
+
+    private static Table loadInitial() {
+        try {
+            if (RATES_FILE != null) {
+                return load(Paths.get(RATES_FILE));
+            }
+            try (InputStream in = FxRates.class.getResourceAsStream(BUNDLED_RATES)) {
+                return parse(in);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot load exchange rates", e);
+        }
+    }
+
+    /**
+     * Swaps in the rates of {@code file} if their version differs from the current one. Transfers that have
+     * already read the current table finish with it.
+     *
+     * @return whether the table was swapped
+     */
+    static boolean reload(Path file) {
+        Table next;
+        try {
+            next = load(file);
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            logger.warn("keeping exchange rates version {}: cannot load {}", current().version, file, e);
+            return false;
+        }
+        Table previous = current.get();
+        if (next.version == previous.version || !current.compareAndSet(previous, next)) {
+            unchanged.increment();
+            return false;
+        }
+        swapped.increment();
+        logger.info("exchange rates version {} replaced version {}", next.version, previous.version);
+        return true;
+    }
+
+    static void set(Table table) {
+        current.set(table);
+    }
+
+    private static Table load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return parse(in);
+        }
+    }
+
+    static Table parse(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        String version = properties.getProperty("version");
+        if (version == null) {
+            throw new IllegalArgumentException("exchange rates have no version");
+        }
+        BigDecimal[] values = new BigDecimal[CURRENCIES.length];
+        for (Currency currency : CURRENCIES) {
+            String value = properties.getProperty(currency.getShortName());
+            if (value == null) {
+                throw new IllegalArgumentException("no exchange rate for " + currency.getShortName());
+            }
+            values[currency.ordinal()] = new BigDecimal(value.trim());
+            if (values[currency.ordinal()].signum() <= 0) {
+                throw new IllegalArgumentException("exchange rate of " + currency.getShortName() + " must be positive");
+            }
+        }
+        long[] rates = new long[CURRENCIES.length * CURRENCIES.length];
+        for (int from = 0; from < CURRENCIES.length; from++) {
+            for (int to = 0; to < CURRENCIES.length; to++) {
+                long rate = values[from].multiply(BigDecimal.valueOf(RATE_SCALE))
+                        .divide(values[to], 0, RoundingMode.HALF_UP).longValueExact();
+                if (rate <= 0 || rate > MAX_RATE) {
+                    throw new IllegalArgumentException("exchange rate from " + CURRENCIES[from].getShortName()
+                            + " to " + CURRENCIES[to].getShortName() + " is out of range");
+                }
+                rates[from * CURRENCIES.length + to] = rate;
+            }
+        }
+        return new Table(Long.parseLong(version.trim()), rates);
+    }
+
+    /**
+     * Immutable rates of one version: {@code rates[from.ordinal() * N + to.ordinal()]} is the amount of
+     * {@code to} bought by one unit of {@code from}, scaled by {@link #RATE_SCALE}.
+     */
+    public static final class Table {
+        private final long version;
+        private final long[] rates;
+
+        private Table(long version, long[] rates) {
+            this.version = version;
+            this.rates = rates;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @param amount non-negative amount of {@code from} in minor units
+         * @return the amount of {@code to} in minor units, rounded half up
+         * @throws ArithmeticException if the result does not fit a {@code long}
+         * @throws AmountTooSmallException if a positive amount rounds to zero, which would debit the sender and
+         *                                 credit nothing
+         */
+        public long convert(long amount, Currency from, Currency to) {
+            if (from == to) {
+                return amount;
+            }
+            long rate = rates[from.ordinal() * CURRENCIES.length + to.ordinal()];
+            long low = (amount % RATE_SCALE * rate + RATE_SCALE / 2) / RATE_SCALE;
+            long result = Math.addExact(Math.multiplyExact(amount / RATE_SCALE, rate), low);
+            if (result == 0 && amount > 0) {
+                throw new AmountTooSmallException();
+            }
+            return result;
+        }
+    }
+}
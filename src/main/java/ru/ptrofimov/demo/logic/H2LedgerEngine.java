@@ -0,0 +1,382 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.journal.LedgerState;
+import ru.ptrofimov.demo.journal.TransferJournal;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps balances in the H2 {@code ACCOUNTS} table and relies on its row locks and trigger.
+ * Every executed transfer is also recorded in {@code TRANSFERS} within the same transaction, together with the
+ * credited amount and the {@link FxRates} version when it was converted between currencies.
+ * <p>
+ * H2 runs in memory, so durability comes from the optional {@link TransferJournal}: committed changes are
+ * journaled and acknowledged only once their group is synced, and on startup the tables are rebuilt from
+ * the journal. A new account is journaled just before its commit, so nothing touching it is journaled first.
+ * Once the journal has failed, changes are refused with {@link RejectedExecutionException} before they reach the
+ * table. Account reads use the {@link ru.ptrofimov.demo.utils.DBUtils#getQueryPool() query pool} and, when
+ * replicated, snapshot reads are answered from an {@link AccountReplica} fed after every commit.
+ * Created accounts and conversions between currencies are reported to the {@link ConservationChecker}.
+ */
+public class H2LedgerEngine implements LedgerEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(H2LedgerEngine.class);
+
+    private final TransferJournal journal;
+    private final AccountReplica replica;
+    private volatile RejectedExecutionException journalFailure;
+
+    public H2LedgerEngine() {
+        this.journal = null;
+        this.replica = null;
+        IdempotencyKeys.startCompaction();
+    }
+
+    public H2LedgerEngine(TransferJournal journal) throws SQLException, IOException {
+        this(journal, false);
+    }
+
+    /**
+     * @param journal    {@code null} to keep no journal
+     * @param replicated whether account reads may be answered from an {@link AccountReplica}; the engine must
+     *                   then be the only writer of the database
+     */
+    public H2LedgerEngine(TransferJournal journal, boolean replicated) throws SQLException, IOException {
+        this.journal = journal;
+        IdempotencyKeys.startCompaction();
+        try (AccountHelper helper = new AccountHelper()) {
+            if (journal != null) {
+                syncWithJournal(helper);
+            }
+            replica = replicated ? new AccountReplica(helper.exportAccounts(),
+                    ConfigUtils.getLong("replica.applyIntervalMillis", 10),
+                    ConfigUtils.getLong("replica.maxStalenessMillis", 1000)) : null;
+        }
+        ConservationChecker.start();
+    }
+
+    /**
+     * Seeds an empty journal with the accounts of the table, or rebuilds the table from a non-empty one.
+     */
+    private void syncWithJournal(AccountHelper helper) throws SQLException, IOException {
+        if (journal.isEmpty()) {
+            long seq = 0;
+            for (LedgerState.Account account : helper.exportAccounts().getAccounts()) {
+                seq = journal.appendCreate(account.getId(), account.getCurrency(), account.getBalance(),
+                        account.getOwner());
+            }
+            journal.awaitDurable(seq);
+        } else {
+            long start = System.nanoTime();
+            LedgerState state = new LedgerState(true);
+            long replayed = journal.replay(state);
+            helper.restoreAccounts(state.getAccounts(), state.getMaxAccountId());
+            helper.restoreKeys(state.getKeys());
+            helper.restorePending(state.getPending(), state.getResolved());
+            helper.restoreTransfers(state.getTransfers());
+            logger.info("restored {} accounts, {} idempotency keys and {} transfers from {} journal records in {} ms",
+                    state.getAccounts().size(), state.getKeys().size(), state.getTransfers().size(), replayed,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    @Override
+    public AccountDetails createAccount(Currency currency, BigDecimal balance, String owner) throws SQLException {
+        checkJournal();
+        CreateJournaler journaler = journal == null ? null : new CreateJournaler();
+        AccountDetails result;
+        try (AccountHelper helper = new AccountHelper()) {
+            result = helper.createAccount(currency, balance, owner, journaler);
+        }
+        if (replica != null) {
+            replica.onCreate(result.getId(), currency, Money.of(balance), owner);
+        }
+        if (journaler != null) {
+            awaitDurable(journaler.seq);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] createAccounts(List<AccountDetails> accounts) throws SQLException {
+        checkJournal();
+        CreateJournaler journaler = journal == null ? null : new CreateJournaler();
+        long[] ids;
+        try (AccountHelper helper = new AccountHelper()) {
+            ids = helper.createAccounts(accounts, journaler);
+        }
+        if (replica != null) {
+            for (int i = 0; i < ids.length; i++) {
+                AccountDetails account = accounts.get(i);
+                replica.onCreate(ids[i], account.getCurrency(), Money.of(account.getBalance()), account.getOwner());
+            }
+        }
+        if (journaler != null) {
+            awaitDurable(journaler.seq);
+        }
+        return ids;
+    }
+
+    @Override
+    public AccountDetails getAccountDetails(long accountId) throws SQLException, AccountNotFoundException {
+        try (AccountHelper helper = AccountHelper.forQueries()) {
+            return helper.getAccountDetails(accountId);
+        }
+    }
+
+    @Override
+    public Snapshot<AccountDetails> getAccountSnapshot(long accountId) throws SQLException, AccountNotFoundException {
+        Snapshot<AccountDetails> result = replica == null ? null : replica.getAccountDetails(accountId);
+        return result != null ? result : new Snapshot<>(getAccountDetails(accountId), 0);
+    }
+
+    @Override
+    public void transferMoney(long senderId, long recipientId, BigDecimal amount)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        checkJournal();
+        long minorAmount = Money.of(amount);
+        long credited;
+        try (AccountHelper helper = new AccountHelper()) {
+            credited = helper.transferMoney(senderId, recipientId, minorAmount);
+        }
+        journalTransfer(senderId, recipientId, minorAmount, credited);
+    }
+
+    @Override
+    public boolean transferMoney(long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        checkJournal();
+        long credited;
+        try (AccountHelper helper = new AccountHelper()) {
+            credited = helper.transferMoney(senderId, recipientId, amount, idempotencyKey);
+        }
+        if (credited == AccountHelper.NOT_EXECUTED) {
+            return false;
+        }
+        awaitDurable(recordTransfer(senderId, recipientId, Money.of(amount), credited, idempotencyKey,
+                IdempotencyKeys.fingerprint(senderId, recipientId, amount)));
+        return true;
+    }
+
+    @Override
+    public void shardAccount(long accountId, int shards) throws SQLException, AccountNotFoundException {
+        try (AccountHelper helper = new AccountHelper()) {
+            helper.shardAccount(accountId, shards);
+        }
+    }
+
+    /**
+     * With a journal, {@code TRANSFERS} is rebuilt on startup from the transfers journaled since the last
+     * snapshot; older ones are folded into the balances of the snapshot and no longer listed.
+     */
+    @Override
+    public TransferHistory getTransfers(long accountId, long afterId, int limit)
+            throws SQLException, AccountNotFoundException {
+        AccountHelper helper = AccountHelper.forQueries();
+        try {
+            return helper.getTransfers(accountId, afterId, limit);
+        } catch (Exception e) {
+            helper.close();
+            throw e;
+        }
+    }
+
+    private void journalTransfer(long senderId, long recipientId, long amount, long credited) {
+        // journaled after the commit so that replay never resurrects a rolled back transfer;
+        // the request is acknowledged only once the record is durable
+        awaitDurable(recordTransfer(senderId, recipientId, amount, credited));
+    }
+
+    /**
+     * Feeds a committed transfer to the replica and the journal.
+     *
+     * @return journal sequence of the transfer, {@code 0} without a journal
+     */
+    long recordTransfer(long senderId, long recipientId, long amount, long credited) {
+        return recordTransfer(senderId, recipientId, amount, credited, null, null);
+    }
+
+    /**
+     * Like {@link #recordTransfer(long, long, long, long)}, journaling the idempotency key with the transfer.
+     *
+     * @param idempotencyKey {@code null} for a transfer without a key
+     */
+    long recordTransfer(long senderId, long recipientId, long amount, long credited, String idempotencyKey,
+                        String fingerprint) {
+        if (replica != null) {
+            replica.onTransfer(senderId, recipientId, amount, credited);
+        }
+        return journal == null ? 0 : append(() -> journal.appendTransfer(senderId, recipientId, amount, credited,
+                idempotencyKey, fingerprint));
+    }
+
+    /**
+     * @throws RejectedExecutionException if the journal has failed: the change may be lost on restart
+     */
+    void awaitDurable(long seq) {
+        if (journal != null) {
+            try {
+                journal.awaitDurable(seq);
+            } catch (UncheckedIOException e) {
+                throw new RejectedExecutionException("the journal failed", e);
+            }
+        }
+    }
+
+    private static long append(LongSupplier record) {
+        try {
+            return record.getAsLong();
+        } catch (UncheckedIOException e) {
+            throw new RejectedExecutionException("the journal failed", e);
+        }
+    }
+
+    /**
+     * Refuses a change before its transaction once the journal has failed: committed to the table but never
+     * journaled, the change would be lost on restart, while its client, told it failed, would make it again.
+     *
+     * @throws RejectedExecutionException answered with {@code 503}, as by the {@link SequencedLedgerEngine}
+     */
+    void checkJournal() {
+        if (journalFailure != null) {
+            throw journalFailure;
+        }
+        if (journal != null && !journal.isAvailable()) {
+            throw new RejectedExecutionException("the journal failed");
+        }
+    }
+
+    /**
+     * Journals new accounts before their rows are committed. A transfer to an account can only commit once the
+     * account has, so its record always follows the account's on replay.
+     */
+    private final class CreateJournaler implements AccountHelper.CreateListener {
+        private long seq;
+
+        @Override
+        public void onCreate(long accountId, Currency currency, BigDecimal balance, String owner) {
+            seq = append(() -> journal.appendCreate(accountId, currency, Money.of(balance), owner));
+        }
+
+        /**
+         * Journaled accounts that were rolled back would come back on restart, so the journal no longer matches
+         * the table and no more changes are accepted.
+         */
+        @Override
+        public void onRollback(Exception cause) {
+            if (seq != 0) {
+                logger.error("journaled accounts were rolled back, refusing changes until restarted", cause);
+                journalFailure = new RejectedExecutionException("journaled accounts were rolled back", cause);
+            }
+        }
+    }
+
+    @Override
+    public MoneyTransferStatus[] transferMoney(List<TransferRequest> transfers, BatchMode mode) throws SQLException {
+        checkJournal();
+        BatchPlanner planner = new BatchPlanner(transfers, mode);
+        MoneyTransferStatus[] statuses;
+        try (AccountHelper helper = new AccountHelper()) {
+            statuses = helper.transferMoney(planner);
+        }
+        long seq = 0;
+        for (int i = 0; i < statuses.length; i++) {
+            if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                TransferRequest transfer = transfers.get(i);
+                seq = recordTransfer(transfer.getFrom(), transfer.getTo(), planner.getAmount(i),
+                        planner.getCredited(i));
+            }
+        }
+        awaitDurable(seq);
+        return statuses;
+    }
+
+    /**
+     * Journaled like {@link AccountHelper#reserveDebit}, after the commit.
+     */
+    public Currency reserveDebit(String txId, long senderId, long recipientId, BigDecimal amount,
+                                 String idempotencyKey)
+            throws SQLException, AccountNotFoundException, IdempotencyKeyReusedException {
+        checkJournal();
+        Currency currency;
+        try (AccountHelper helper = new AccountHelper()) {
+            currency = helper.reserveDebit(txId, senderId, recipientId, amount, idempotencyKey);
+        }
+        if (currency != null && journal != null) {
+            LedgerState.Pending pending = new LedgerState.Pending(txId, senderId, recipientId, Money.of(amount),
+                    currency, false, idempotencyKey, idempotencyKey == null ? null
+                    : IdempotencyKeys.fingerprint(senderId, recipientId, amount), System.currentTimeMillis());
+            awaitDurable(append(() -> journal.appendPending(pending)));
+        }
+        return currency;
+    }
+
+    /**
+     * Journaled like {@link AccountHelper#reserveCredit}, after the commit.
+     */
+    public void reserveCredit(String txId, long recipientId, long senderId, BigDecimal amount, Currency currency)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        checkJournal();
+        boolean reserved;
+        try (AccountHelper helper = new AccountHelper()) {
+            reserved = helper.reserveCredit(txId, recipientId, senderId, amount, currency);
+        }
+        if (reserved && journal != null) {
+            LedgerState.Pending pending = new LedgerState.Pending(txId, recipientId, senderId, Money.of(amount),
+                    currency, true, null, null, System.currentTimeMillis());
+            awaitDurable(append(() -> journal.appendPending(pending)));
+        }
+    }
+
+    /**
+     * Journaled like {@link AccountHelper#resolvePending}, after the commit.
+     */
+    public boolean resolvePending(String txId, boolean commit) throws SQLException {
+        checkJournal();
+        boolean resolved;
+        try (AccountHelper helper = new AccountHelper()) {
+            resolved = helper.resolvePending(txId, commit);
+        }
+        if (resolved && journal != null) {
+            awaitDurable(append(() -> journal.appendResolved(txId, commit)));
+        }
+        return resolved;
+    }
+
+    /**
+     * @see AccountHelper#getResolution
+     */
+    public Boolean getResolution(String txId) throws SQLException {
+        try (AccountHelper helper = new AccountHelper()) {
+            return helper.getResolution(txId);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (replica != null) {
+            replica.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.utils.BoundedCache;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+import ru.ptrofimov.demo.utils.DBUtils;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keys of transfers made with an {@code Idempotency-Key}, each mapped to a fingerprint of its transfer.
+ * <p>
+ * The H2 engine stores keys in {@code IDEMPOTENCY_KEYS} in the transaction of the transfer itself; recently
+ * used keys are also kept in a bounded in-memory cache so that most retries are answered without a query.
+ * Keys expire after {@code idempotency.ttlMillis} and expired rows are deleted in the background. The table lives
+ * in memory, so keys are also journaled with their transfers and put back into it on startup.
+ */
+public final class IdempotencyKeys {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyKeys.class);
+
+    public static final int MAX_KEY_LENGTH = 64;
+
+    static final long TTL_MILLIS = ConfigUtils.getLong("idempotency.ttlMillis", TimeUnit.DAYS.toMillis(1));
+    private static final long COMPACTION_INTERVAL_MILLIS =
+            ConfigUtils.getLong("idempotency.compactionIntervalMillis", 60_000);
+    private static final int COMPACTION_CHUNK = 10_000;
+
+    private static final BoundedCache<String, String> recent = new BoundedCache<>(
+            ConfigUtils.getInt("idempotency.cache.maxSize", 100_000), TTL_MILLIS, 16);
+
+    private static final LongAdder replays = Metrics.counter("idempotency_replays_total",
+            "Transfers answered from an earlier request with the same Idempotency-Key");
+    private static final LongAdder purged = Metrics.counter("idempotency_keys_purged_total",
+            "Expired idempotency keys deleted from IDEMPOTENCY_KEYS");
+
+    private static ScheduledExecutorService compactor;
+
+    private IdempotencyKeys() {
+    }
+
+    static String fingerprint(long senderId, long recipientId, BigDecimal amount) {
+        return senderId + ">" + recipientId + ":" + amount.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * @return whether the transfer was already made under {@code key}, judging by the in-memory cache only
+     * @throws IdempotencyKeyReusedException if the key is known for a different transfer
+     */
+    static boolean isKnown(String key, String fingerprint) throws IdempotencyKeyReusedException {
+        String recorded = recent.get(key);
+        if (recorded == null) {
+            return false;
+        }
+        return checkReplay(key, fingerprint, recorded);
+    }
+
+    static boolean checkReplay(String key, String fingerprint, String recorded) throws IdempotencyKeyReusedException {
+        if (!recorded.equals(fingerprint)) {
+            throw new IdempotencyKeyReusedException(key);
+        }
+        replays.increment();
+        return true;
+    }
+
+    static void remember(String key, String fingerprint) {
+        recent.put(key, fingerprint);
+    }
+
+    static synchronized void startCompaction() {
+        if (compactor != null || COMPACTION_INTERVAL_MILLIS <= 0) {
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "idempotency-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                purgeExpired();
+            } catch (SQLException | RuntimeException e) {
+                logger.warn("failed to purge expired idempotency keys", e);
+            }
+        }, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes expired keys in chunks, each in its own transaction, so the table is never locked for long.
+     *
+     * @return number of deleted keys
+     */
+    public static long purgeExpired() throws SQLException {
+        long total = 0;
+        try (Connection connection = DBUtils.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "DELETE FROM IDEMPOTENCY_KEYS WHERE CREATED_AT < ? LIMIT ?")) {
+            statement.setLong(1, System.currentTimeMillis() - TTL_MILLIS);
+            statement.setInt(2, COMPACTION_CHUNK);
+            int deleted;
+            do {
+                deleted = statement.executeUpdate();
+                total += deleted;
+            } while (deleted == COMPACTION_CHUNK);
+        }
+        purged.add(total);
+        if (total > 0) {
+            logger.debug("purged {} expired idempotency keys", total);
+        }
+        return total;
+    }
+
+    public static void clear() {
+        recent.clear();
+    }
+}
@@ -0,0 +1,610 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.journal.JournalListener;
+import ru.ptrofimov.demo.journal.LedgerState;
+import ru.ptrofimov.demo.journal.TransferJournal;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps balances in memory as {@code long} cents and serialises transfers with striped locks.
+ * <p>
+ * Accounts live in fixed-size chunks addressed by id, so a lookup is two array reads. A transfer locks
+ * the stripes of both accounts in ascending stripe order, which rules out deadlocks the same way
+ * {@link AccountHelper} orders its row updates by id. Changes are appended to the {@link TransferJournal},
+ * when one is configured, before they become visible and acknowledged once the journal reports them durable.
+ * A sharded account is credited into one of its cells under the sender's stripe alone; the cells are folded
+ * into the balance, under the account's own stripe, whenever the account is debited.
+ * The initial accounts are copied from the H2 schema created by {@code init.sql}.
+ */
+public class InMemoryLedgerEngine implements LedgerEngine, JournalListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryLedgerEngine.class);
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    private final AtomicReferenceArray<Slot[]> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final AtomicLong lastId = new AtomicLong();
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+    private final Object[] keyLocks = new Object[64];
+    private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<>();
+    /** keys in the order they were recorded, for expiry */
+    private final ArrayDeque<Key> keyQueue = new ArrayDeque<>();
+    private final TransferJournal journal;
+
+    public InMemoryLedgerEngine(int stripeCount, TransferJournal journal) throws SQLException, IOException {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("stripe count must be a power of two");
+        }
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.stripeMask = stripeCount - 1;
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new Object();
+        }
+        this.journal = journal;
+        if (journal == null || journal.isEmpty()) {
+            loadInitialAccounts();
+        } else {
+            long replayed = journal.replay(this);
+            logger.info("replayed {} journal records from {}", replayed, journal.getDir());
+        }
+    }
+
+    private void loadInitialAccounts() throws SQLException {
+        LedgerState state;
+        try (AccountHelper helper = new AccountHelper()) {
+            state = helper.exportAccounts();
+        }
+        long seq = 0;
+        for (LedgerState.Account account : state.getAccounts()) {
+            onCreate(account.getId(), account.getCurrency(), account.getBalance(), account.getOwner());
+            if (journal != null) {
+                seq = journal.appendCreate(account.getId(), account.getCurrency(), account.getBalance(),
+                        account.getOwner());
+            }
+        }
+        if (journal != null) {
+            journal.awaitDurable(seq);
+        }
+    }
+
+    @Override
+    public AccountDetails createAccount(Currency currency, BigDecimal balance, String owner) {
+        checkOwner(owner);
+        long accountId = lastId.incrementAndGet();
+        long seq = create(accountId, currency, Money.of(balance), owner);
+        if (journal != null) {
+            journal.awaitDurable(seq);
+        }
+        AccountDetails result = new AccountDetails();
+        result.setId(accountId);
+        return result;
+    }
+
+    /**
+     * Checks every account before creating any, and waits for the journal once, after the last one.
+     */
+    @Override
+    public long[] createAccounts(List<AccountDetails> accounts) {
+        long[] balances = new long[accounts.size()];
+        for (int i = 0; i < balances.length; i++) {
+            checkOwner(accounts.get(i).getOwner());
+            balances[i] = Money.of(accounts.get(i).getBalance());
+        }
+        long[] ids = new long[balances.length];
+        long seq = 0;
+        for (int i = 0; i < ids.length; i++) {
+            AccountDetails account = accounts.get(i);
+            ids[i] = lastId.incrementAndGet();
+            seq = Math.max(seq, create(ids[i], account.getCurrency(), balances[i], account.getOwner()));
+        }
+        if (journal != null) {
+            journal.awaitDurable(seq);
+        }
+        return ids;
+    }
+
+    private static void checkOwner(String owner) {
+        if (owner != null && owner.length() > AccountDetails.MAX_OWNER_LENGTH) {
+            throw new IllegalArgumentException("owner is longer than " + AccountDetails.MAX_OWNER_LENGTH
+                    + " characters");
+        }
+    }
+
+    /**
+     * @return journal sequence of the creation, {@code 0} without a journal
+     */
+    private long create(long accountId, Currency currency, long minorBalance, String owner) {
+        long seq = 0;
+        ReentrantLock lock = stripeOf(accountId);
+        lock.lock();
+        try {
+            if (journal != null) {
+                seq = journal.appendCreate(accountId, currency, minorBalance, owner);
+            }
+            install(new Slot(accountId, currency, owner, minorBalance));
+        } finally {
+            lock.unlock();
+        }
+        return seq;
+    }
+
+    @Override
+    public AccountDetails getAccountDetails(long accountId) throws AccountNotFoundException {
+        Slot slot = slotOf(accountId);
+        long balance;
+        ReentrantLock lock = stripeOf(accountId);
+        lock.lock();
+        try {
+            Cells cells = slot.cells;
+            balance = cells == null ? slot.balance : slot.balance + cells.sum();
+        } finally {
+            lock.unlock();
+        }
+        AccountDetails result = new AccountDetails(slot.currency, Money.toBigDecimal(balance), slot.owner);
+        result.setId(accountId);
+        return result;
+    }
+
+    @Override
+    public void transferMoney(long senderId, long recipientId, BigDecimal amount)
+            throws AccountNotFoundException, CurrencyMismatchException {
+        Slot recipient = slotOf(recipientId);
+        Slot sender = slotOf(senderId);
+        transferMoney(sender, recipient, amount, null, null);
+    }
+
+    private void transferMoney(Slot sender, Slot recipient, BigDecimal amount, String idempotencyKey,
+                               String fingerprint) {
+        long seq = apply(sender, recipient, amount, idempotencyKey, fingerprint);
+        if (journal != null) {
+            journal.awaitDurable(seq);
+        }
+    }
+
+    /**
+     * @return journal sequence of the transfer, or 0 without a journal
+     */
+    private long apply(Slot sender, Slot recipient, BigDecimal amount, String idempotencyKey, String fingerprint) {
+        long minorAmount = Money.of(amount);
+        long credited = FxRates.current().convert(minorAmount, sender.currency, recipient.currency);
+        return recipient.cells == null
+                ? transfer(sender, recipient, minorAmount, credited, idempotencyKey, fingerprint)
+                : transferToCells(sender, recipient, minorAmount, credited, idempotencyKey, fingerprint);
+    }
+
+    private long transfer(Slot sender, Slot recipient, long minorAmount, long credited, String idempotencyKey,
+                          String fingerprint) {
+        int senderStripe = stripeIndex(sender.id);
+        int recipientStripe = stripeIndex(recipient.id);
+        ReentrantLock first = stripes[Math.min(senderStripe, recipientStripe)];
+        ReentrantLock second = stripes[Math.max(senderStripe, recipientStripe)];
+        first.lock();
+        try {
+            if (second != first) {
+                second.lock();
+            }
+            try {
+                long seq = debit(sender, recipient.id, minorAmount, credited, idempotencyKey, fingerprint);
+                Cells recipientCells = recipient.cells;
+                if (recipientCells != null) {
+                    // sharded while we were waiting for the locks
+                    recipientCells.add(credited);
+                } else {
+                    recipient.balance = Math.addExact(recipient.balance, credited);
+                }
+                return seq;
+            } finally {
+                if (second != first) {
+                    second.unlock();
+                }
+            }
+        } finally {
+            first.unlock();
+        }
+    }
+
+    /**
+     * The cells are replaced only while every stripe is held and never removed, so holding the sender's
+     * stripe is enough to credit the current ones.
+     */
+    private long transferToCells(Slot sender, Slot recipient, long minorAmount, long credited,
+                                 String idempotencyKey, String fingerprint) {
+        ReentrantLock lock = stripeOf(sender.id);
+        lock.lock();
+        try {
+            long seq = debit(sender, recipient.id, minorAmount, credited, idempotencyKey, fingerprint);
+            recipient.cells.add(credited);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called with the sender's stripe held.
+     *
+     * @return journal sequence of the transfer, or 0 without a journal
+     */
+    private long debit(Slot sender, long recipientId, long minorAmount, long credited, String idempotencyKey,
+                       String fingerprint) {
+        fold(sender);
+        long newSenderBalance = sender.balance - minorAmount;
+        if (newSenderBalance < 0) {
+            throw new InsufficientFundsException();
+        }
+        long seq = journal != null ? journal.appendTransfer(sender.id, recipientId, minorAmount, credited,
+                idempotencyKey, fingerprint) : 0;
+        sender.balance = newSenderBalance;
+        return seq;
+    }
+
+    /**
+     * Moves the balance of the account's cells into {@link Slot#balance}; the account's stripe must be held.
+     */
+    private static void fold(Slot slot) {
+        Cells cells = slot.cells;
+        if (cells != null) {
+            slot.balance = Math.addExact(slot.balance, cells.drain());
+        }
+    }
+
+    /**
+     * Spreads future credits of the account over {@code shards} cells, folding the current ones first.
+     */
+    @Override
+    public void shardAccount(long accountId, int shards) throws AccountNotFoundException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shard count must be positive");
+        }
+        Slot slot = slotOf(accountId);
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            fold(slot);
+            slot.cells = new Cells(shards);
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Keys are kept by the engine itself until they expire, never evicted earlier, and journaled in the record
+     * of their transfer, so a retry is recognised after a restart too. Transfers with the same key are
+     * serialised by a key lock that is always taken before, never while holding, the account stripes. The key
+     * is recorded as pending when its transfer is applied and the lock released for the durability wait; a
+     * retry meanwhile waits for the outcome.
+     */
+    @Override
+    public boolean transferMoney(long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        String fingerprint = IdempotencyKeys.fingerprint(senderId, recipientId, amount);
+        Object keyLock = keyLocks[(idempotencyKey.hashCode() & 0x7fffffff) % keyLocks.length];
+        Key key;
+        long seq;
+        synchronized (keyLock) {
+            long now = System.currentTimeMillis();
+            Key recorded = awaitOutcome(keyLock, idempotencyKey);
+            if (recorded != null && recorded.createdAt >= now - IdempotencyKeys.TTL_MILLIS
+                    && IdempotencyKeys.checkReplay(idempotencyKey, fingerprint, recorded.fingerprint)) {
+                return false;
+            }
+            Slot recipient = slotOf(recipientId);
+            Slot sender = slotOf(senderId);
+            seq = apply(sender, recipient, amount, idempotencyKey, fingerprint);
+            key = rememberKey(idempotencyKey, fingerprint, now, journal == null);
+        }
+        if (journal != null) {
+            boolean durable = false;
+            try {
+                journal.awaitDurable(seq);
+                durable = true;
+            } finally {
+                synchronized (keyLock) {
+                    if (durable) {
+                        key.durable = true;
+                    } else {
+                        // the journal failed and refuses everything from now on; let the retries find that out
+                        keys.remove(idempotencyKey, key);
+                    }
+                    keyLock.notifyAll();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits, releasing the key lock, while a transfer under the key is waiting for the journal.
+     *
+     * @return the recorded key, {@code null} if there is none
+     */
+    private Key awaitOutcome(Object keyLock, String idempotencyKey) {
+        boolean interrupted = false;
+        Key recorded = keys.get(idempotencyKey);
+        while (recorded != null && !recorded.durable) {
+            try {
+                keyLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            recorded = keys.get(idempotencyKey);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return recorded;
+    }
+
+    private Key rememberKey(String idempotencyKey, String fingerprint, long createdAt, boolean durable) {
+        Key key = new Key(idempotencyKey, fingerprint, createdAt, durable);
+        keys.put(idempotencyKey, key);
+        synchronized (keyQueue) {
+            keyQueue.addLast(key);
+            long expiredBefore = System.currentTimeMillis() - IdempotencyKeys.TTL_MILLIS;
+            for (Key head = keyQueue.peekFirst(); head != null && head.createdAt < expiredBefore;
+                 head = keyQueue.peekFirst()) {
+                keyQueue.pollFirst();
+                keys.remove(head.key, head);
+            }
+        }
+        return key;
+    }
+
+    @Override
+    public MoneyTransferStatus[] transferMoney(List<TransferRequest> transfers, BatchMode mode) {
+        BatchPlanner planner = new BatchPlanner(transfers, mode);
+        long[] accountIds = planner.getAccountIds();
+        Slot[] slots = new Slot[accountIds.length];
+        for (int i = 0; i < accountIds.length; i++) {
+            slots[i] = chunkSlot(accountIds[i]);
+        }
+        boolean[] locked = new boolean[stripes.length];
+        for (long accountId : accountIds) {
+            locked[stripeIndex(accountId)] = true;
+        }
+        long seq = 0;
+        MoneyTransferStatus[] statuses;
+        // stripes are taken in ascending index order across the whole batch
+        for (int i = 0; i < locked.length; i++) {
+            if (locked[i]) {
+                stripes[i].lock();
+            }
+        }
+        try {
+            for (int i = 0; i < accountIds.length; i++) {
+                if (slots[i] == null) {
+                    slots[i] = chunkSlot(accountIds[i]);
+                }
+                if (slots[i] != null) {
+                    fold(slots[i]);
+                    planner.load(accountIds[i], slots[i].currency, slots[i].balance);
+                }
+            }
+            statuses = planner.plan();
+            if (planner.isApplicable()) {
+                if (journal != null) {
+                    seq = journalBatch(transfers, statuses, planner);
+                }
+                for (int i = 0; i < accountIds.length; i++) {
+                    if (planner.getDelta(i) != 0) {
+                        slots[i].balance += planner.getDelta(i);
+                    }
+                }
+            }
+        } finally {
+            for (int i = locked.length - 1; i >= 0; i--) {
+                if (locked[i]) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+        if (journal != null && seq > 0) {
+            journal.awaitDurable(seq);
+        }
+        return statuses;
+    }
+
+    /**
+     * Journals the successful transfers of a batch as one record, so that replay applies all of them or none.
+     *
+     * @return journal sequence of the record, {@code 0} if nothing succeeded
+     * @throws RejectedExecutionException if the journal has failed, before anything is appended
+     */
+    private long journalBatch(List<TransferRequest> transfers, MoneyTransferStatus[] statuses, BatchPlanner planner) {
+        if (!journal.isAvailable()) {
+            throw new RejectedExecutionException("the journal failed");
+        }
+        long[] senderIds = new long[statuses.length];
+        long[] recipientIds = new long[statuses.length];
+        long[] debited = new long[statuses.length];
+        long[] credited = new long[statuses.length];
+        int count = 0;
+        for (int i = 0; i < statuses.length; i++) {
+            if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                TransferRequest transfer = transfers.get(i);
+                senderIds[count] = transfer.getFrom();
+                recipientIds[count] = transfer.getTo();
+                debited[count] = planner.getAmount(i);
+                credited[count] = planner.getCredited(i);
+                count++;
+            }
+        }
+        return count == 0 ? 0 : journal.appendTransfers(senderIds, recipientIds, debited, credited, count);
+    }
+
+    @Override
+    public void onCreate(long accountId, Currency currency, long balance, String owner) {
+        install(new Slot(accountId, currency, owner, balance));
+        lastId.accumulateAndGet(accountId, Math::max);
+    }
+
+    @Override
+    public void onTransfer(long senderId, long recipientId, long debited, long credited) {
+        Slot sender = chunkSlot(senderId);
+        Slot recipient = chunkSlot(recipientId);
+        if (sender == null || recipient == null) {
+            throw new IllegalStateException("journal references unknown account " + (sender == null ? senderId : recipientId));
+        }
+        sender.balance -= debited;
+        recipient.balance += credited;
+    }
+
+    @Override
+    public void onKey(String key, String fingerprint, long createdAt) {
+        rememberKey(key, fingerprint, createdAt, true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void install(Slot slot) {
+        int chunkIndex = (int) (slot.id >>> CHUNK_BITS);
+        if (chunkIndex >= MAX_CHUNKS) {
+            throw new IllegalStateException("account id " + slot.id + " exceeds in-memory ledger capacity");
+        }
+        Slot[] chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunks.compareAndSet(chunkIndex, null, new Slot[CHUNK_SIZE]);
+            chunk = chunks.get(chunkIndex);
+        }
+        chunk[(int) (slot.id & (CHUNK_SIZE - 1))] = slot;
+    }
+
+    private Slot chunkSlot(long accountId) {
+        if (accountId <= 0 || (accountId >>> CHUNK_BITS) >= MAX_CHUNKS) {
+            return null;
+        }
+        Slot[] chunk = chunks.get((int) (accountId >>> CHUNK_BITS));
+        return chunk == null ? null : chunk[(int) (accountId & (CHUNK_SIZE - 1))];
+    }
+
+    private Slot slotOf(long accountId) throws AccountNotFoundException {
+        Slot slot = chunkSlot(accountId);
+        if (slot == null) {
+            // the slot is written under the stripe lock, so take it before concluding the account is missing
+            ReentrantLock lock = stripeOf(accountId);
+            lock.lock();
+            try {
+                slot = chunkSlot(accountId);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (slot == null) {
+            throw new AccountNotFoundException(accountId);
+        }
+        return slot;
+    }
+
+    private ReentrantLock stripeOf(long accountId) {
+        return stripes[stripeIndex(accountId)];
+    }
+
+    private int stripeIndex(long accountId) {
+        return (int) (accountId & stripeMask);
+    }
+
+    private static final class Key {
+        private final String key;
+        private final String fingerprint;
+        private final long createdAt;
+        /** {@code false} while the transfer waits for the journal; guarded by the key lock */
+        private boolean durable;
+
+        private Key(String key, String fingerprint, long createdAt, boolean durable) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.createdAt = createdAt;
+            this.durable = durable;
+        }
+    }
+
+    private static final class Slot {
+        private final long id;
+        private final Currency currency;
+        private final String owner;
+        private long balance;
+        /** {@code null} unless the account is sharded */
+        private volatile Cells cells;
+
+        private Slot(long id, Currency currency, String owner, long balance) {
+            this.id = id;
+            this.currency = currency;
+            this.owner = owner;
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * Credit cells of a sharded account. Each cell sits on its own cache line so that concurrent credits to
+     * different cells do not contend.
+     */
+    private static final class Cells {
+        private static final int STRIDE = 8;
+
+        private final AtomicLongArray values;
+        private final int count;
+
+        private Cells(int count) {
+            this.count = count;
+            this.values = new AtomicLongArray((count + 1) * STRIDE);
+        }
+
+        void add(long amount) {
+            values.getAndAdd((ThreadLocalRandom.current().nextInt(count) + 1) * STRIDE, amount);
+        }
+
+        long sum() {
+            long result = 0;
+            for (int i = 1; i <= count; i++) {
+                result += values.get(i * STRIDE);
+            }
+            return result;
+        }
+
+        long drain() {
+            long result = 0;
+            for (int i = 1; i <= count; i++) {
+                result += values.getAndSet(i * STRIDE, 0);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ru.ptrofimov.demo.logic;
+
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage and transfer logic behind {@link ru.ptrofimov.demo.rest.MoneyTransferEntryPoint}.
+ * Implementations are selected once at startup through {@link LedgerEngines}.
+ */
+public interface LedgerEngine extends AutoCloseable {
+
+    AccountDetails createAccount(Currency currency, BigDecimal balance, String owner) throws SQLException;
+
+    /**
+     * Creates the accounts at once: either all of them or, on failure, none.
+     *
+     * @return ids of the new accounts, in the order of {@code accounts}
+     */
+    default long[] createAccounts(List<AccountDetails> accounts) throws SQLException {
+        long[] ids = new long[accounts.size()];
+        for (int i = 0; i < ids.length; i++) {
+            AccountDetails account = accounts.get(i);
+            ids[i] = createAccount(account.getCurrency(), account.getBalance(), account.getOwner()).getId();
+        }
+        return ids;
+    }
+
+    AccountDetails getAccountDetails(long accountId) throws SQLException, AccountNotFoundException;
+
+    /**
+     * Like {@link #getAccountDetails}, but the account may be read from a replica that lags behind the latest
+     * commits by at most {@code replica.maxStalenessMillis}.
+     */
+    default Snapshot<AccountDetails> getAccountSnapshot(long accountId) throws SQLException, AccountNotFoundException {
+        return new Snapshot<>(getAccountDetails(accountId), 0);
+    }
+
+    /**
+     * @throws InsufficientFundsException if the sender's balance would become negative
+     */
+    void transferMoney(long senderId, long recipientId, BigDecimal amount)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException;
+
+    /**
+     * Like {@link #transferMoney(long, long, BigDecimal)}, but the transfer is made at most once per
+     * {@code idempotencyKey}: a retry with the same key and transfer is acknowledged without moving money again.
+     * Only successful transfers record their key, so a rejected transfer may be retried under the same key.
+     *
+     * @return {@code false} if the transfer was already made under this key
+     * @throws IdempotencyKeyReusedException if the key was used for a different transfer
+     */
+    boolean transferMoney(long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException;
+
+    /**
+     * Executes the transfers in order; each one sees the balances left by the previous ones.
+     *
+     * @return status of every transfer, in request order
+     */
+    MoneyTransferStatus[] transferMoney(List<TransferRequest> transfers, BatchMode mode) throws SQLException;
+
+    /**
+     * Spreads credits of a hot account over {@code shards} sub-balances so that concurrent transfers to it
+     * do not queue on one lock. Debits and reads fold the sub-balances back, so the account behaves as before.
+     * Calling it again changes the shard count.
+     */
+    void shardAccount(long accountId, int shards) throws SQLException, AccountNotFoundException;
+
+    /**
+     * Opens the transfers made from or to the account with ids greater than {@code afterId}, at most
+     * {@code limit} of them, in id order. The caller must close the result.
+     * <p>
+     * History is an optional capability: an engine that keeps none, or cannot keep it complete, throws and the
+     * REST layer answers {@code 501 Not Implemented}.
+     *
+     * @throws UnsupportedOperationException if the engine keeps no transfer history
+     */
+    default TransferHistory getTransfers(long accountId, long afterId, int limit)
+            throws SQLException, AccountNotFoundException {
+        throw new UnsupportedOperationException("transfer history is not kept by " + getClass().getSimpleName());
+    }
+
+    @Override
+    default void close() throws Exception {
+    }
+}
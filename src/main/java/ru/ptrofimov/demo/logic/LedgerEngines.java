@@ -0,0 +1,155 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.journal.TransferAuditLog;
+import ru.ptrofimov.demo.journal.TransferJournal;
+import ru.ptrofimov.demo.partition.PartitionedLedgerEngine;
+import ru.ptrofimov.demo.partition.Partitioning;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Holds the {@link LedgerEngine} used by the REST layer.
+ * The engine is chosen by name ({@code h2}, {@code memory} or {@code sequenced}) from {@link ru.ptrofimov.demo.App};
+ * when nothing was selected the {@code demo.ledger.engine} property is used.
+ * <p>
+ * Also holds the {@link TransferAuditLog}, which {@link ru.ptrofimov.demo.App} opens at startup and closes on
+ * shutdown; until then transfer outcomes are not audited.
+ */
+public final class LedgerEngines {
+    private static final Logger logger = LoggerFactory.getLogger(LedgerEngines.class);
+
+    public static final String H2 = "h2";
+    public static final String MEMORY = "memory";
+    public static final String SEQUENCED = "sequenced";
+
+    private static volatile LedgerEngine engine;
+    private static volatile TransferAuditLog auditLog;
+
+    private LedgerEngines() {
+    }
+
+    public static LedgerEngine get() throws Exception {
+        LedgerEngine result = engine;
+        if (result == null) {
+            synchronized (LedgerEngines.class) {
+                result = engine;
+                if (result == null) {
+                    result = create(ConfigUtils.getString("ledger.engine", H2));
+                    engine = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the engine if it is {@link SequencedLedgerEngine sequenced} and already set up, {@code null} otherwise
+     */
+    public static SequencedLedgerEngine getSequenced() {
+        LedgerEngine result = engine;
+        return result instanceof SequencedLedgerEngine ? (SequencedLedgerEngine) result : null;
+    }
+
+    /**
+     * @return the audit log, {@code null} if {@code audit.file} is not set or the log is not open
+     */
+    public static TransferAuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * Opens the audit log of {@code audit.file}, if it is set, in place of the one open before.
+     */
+    public static synchronized void openAuditLog() throws IOException {
+        String file = ConfigUtils.getString("audit.file", null);
+        if (file == null) {
+            return;
+        }
+        TransferAuditLog opened = new TransferAuditLog(Paths.get(file), ConfigUtils.getInt("audit.ringSize", 65536),
+                ConfigUtils.getBoolean("audit.blocking", true), ConfigUtils.getLong("audit.forceIntervalMillis", 1000));
+        logger.info("auditing transfer outcomes to {}", file);
+        closeAuditLog();
+        auditLog = opened;
+    }
+
+    /**
+     * Writes out and forces the records published so far; later outcomes are not audited.
+     */
+    public static synchronized void closeAuditLog() throws IOException {
+        TransferAuditLog previous = auditLog;
+        auditLog = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    public static synchronized void select(String name) throws Exception {
+        LedgerEngine previous = engine;
+        engine = create(name);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private static LedgerEngine create(String name) throws Exception {
+        LedgerEngine result;
+        if (Partitioning.isEnabled()) {
+            // pending halves of cross-partition transfers are kept in H2 and journaled, but not replicated
+            if (!name.equals(H2) || ConfigUtils.getBoolean("replica.enabled", false)) {
+                throw new IllegalArgumentException("partitioning requires the h2 engine without a replica");
+            }
+            result = new PartitionedLedgerEngine(new H2LedgerEngine(openJournal(name), false));
+        } else {
+            result = instantiate(name);
+        }
+        String sharded = ConfigUtils.getString("ledger.shardedAccounts", "");
+        for (String accountId : sharded.split(",")) {
+            if (!accountId.trim().isEmpty() && Partitioning.isLocal(Long.parseLong(accountId.trim()))) {
+                result.shardAccount(Long.parseLong(accountId.trim()), ConfigUtils.getInt("ledger.shards", 16));
+            }
+        }
+        return result;
+    }
+
+    private static LedgerEngine instantiate(String name) throws Exception {
+        switch (name) {
+            case H2:
+                return new H2LedgerEngine(openJournal(name), ConfigUtils.getBoolean("replica.enabled", false));
+            case MEMORY:
+                TransferJournal journal = openJournal(name);
+                if (journal == null) {
+                    logger.warn("NO JOURNAL: the memory engine keeps balances only in this process and loses every"
+                            + " account and transfer on restart; set demo.journal.dir to keep them");
+                }
+                return new InMemoryLedgerEngine(ConfigUtils.getInt("ledger.memory.stripes", 1024), journal);
+            case SEQUENCED:
+                return newSequenced(new H2LedgerEngine(openJournal(name),
+                        ConfigUtils.getBoolean("replica.enabled", false)));
+            default:
+                throw new IllegalArgumentException("unknown ledger engine: " + name);
+        }
+    }
+
+    static SequencedLedgerEngine newSequenced(H2LedgerEngine store) {
+        return new SequencedLedgerEngine(store, ConfigUtils.getInt("ledger.sequenced.ringSize", 4096),
+                ConfigUtils.getInt("ledger.sequenced.maxBatch", 256),
+                ConfigUtils.getInt("ledger.sequenced.maxAccounts", SequencedLedgerEngine.DEFAULT_MAX_ACCOUNTS));
+    }
+
+    private static TransferJournal openJournal(String engineName) throws IOException {
+        String dir = ConfigUtils.getString("journal.dir", null);
+        if (dir == null) {
+            return null;
+        }
+        return new TransferJournal(Paths.get(dir, engineName),
+                ConfigUtils.getLong("journal.groupCommitMicros", 1000),
+                ConfigUtils.getLong("journal.segmentBytes", 64L << 20),
+                ConfigUtils.getInt("journal.bufferBytes", 1 << 20),
+                ConfigUtils.getLong("journal.snapshotIntervalMillis", 300_000),
+                IdempotencyKeys.TTL_MILLIS);
+    }
+}
@@ -0,0 +1,666 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.metrics.LatencyHistogram;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+import ru.ptrofimov.demo.utils.RingBuffer;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Applies all transfers on a single writer thread, so they never wait for row locks or roll back on conflicts.
+ * <p>
+ * A request publishes its transfer or batch into a preallocated {@link RingBuffer} and gets a future back.
+ * The writer takes everything published so far, at most {@code maxBatch} commands, decides each of them in order
+ * against balances it keeps in memory, and writes the outcome of the whole run to H2 in one transaction: the net
+ * change of every account, the {@code TRANSFERS} rows and the idempotency keys. The futures are completed once
+ * that transaction has committed and the journal, if any, has synced. An account is loaded from {@code ACCOUNTS}
+ * when the writer first needs it and dropped, least recently used first, when more than {@code maxAccounts} are
+ * held between runs; when a write fails, the accounts it changed are dropped, to be loaded again, and all of its
+ * requests fail. A run that has committed but cannot be journaled is not durable: its requests and every later one
+ * fail with {@link RejectedExecutionException} until the engine is restarted from the journal.
+ * <p>
+ * Accounts are created and read through the wrapped {@link H2LedgerEngine}, which also keeps the journal and the
+ * replica, but only the writer may move money: the engine must be the only one changing balances in the database.
+ * A full ring rejects new transfers with {@link RejectedExecutionException}. Hot accounts are not sharded: credits
+ * never contend with a single writer.
+ */
+public class SequencedLedgerEngine implements LedgerEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(SequencedLedgerEngine.class);
+
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long TIMEOUT_MILLIS = ConfigUtils.getLong("ledger.sequenced.timeoutMillis", 10_000);
+    static final int DEFAULT_MAX_ACCOUNTS = 1_000_000;
+
+    private static final LatencyHistogram runLatency = Metrics.histogram("sequencer_run_duration_seconds",
+            "Time the sequencer takes to decide and write one run of commands");
+
+    private final H2LedgerEngine store;
+    private final RingBuffer<Command> ring;
+    private final int maxBatch;
+    private final int maxAccounts;
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile RejectedExecutionException journalFailure;
+
+    // owned by the writer; in access order, so the least recently used accounts are dropped first
+    private final Map<Long, Account> accounts = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> runKeys = new HashMap<>();
+    private final Changes changes = new Changes();
+
+    public SequencedLedgerEngine(H2LedgerEngine store, int ringSize, int maxBatch) {
+        this(store, ringSize, maxBatch, DEFAULT_MAX_ACCOUNTS);
+    }
+
+    /**
+     * @param store       engine that accounts are created and read through
+     * @param ringSize    capacity of the ring, a power of two
+     * @param maxBatch    most commands written in one transaction
+     * @param maxAccounts most accounts whose balances the writer keeps between runs
+     */
+    public SequencedLedgerEngine(H2LedgerEngine store, int ringSize, int maxBatch, int maxAccounts) {
+        if (maxBatch < 1 || maxAccounts < 1) {
+            throw new IllegalArgumentException("batch size and account limit must be positive");
+        }
+        this.store = store;
+        this.ring = new RingBuffer<>(ringSize, Command::new);
+        this.maxBatch = maxBatch;
+        this.maxAccounts = maxAccounts;
+        Metrics.gauge("sequencer_pending", "Commands published to the sequencer and not written yet",
+                ring::getPendingCount);
+        writer = new Thread(this::run, "sequencer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public AccountDetails createAccount(Currency currency, BigDecimal balance, String owner) throws SQLException {
+        return store.createAccount(currency, balance, owner);
+    }
+
+    @Override
+    public long[] createAccounts(List<AccountDetails> accounts) throws SQLException {
+        return store.createAccounts(accounts);
+    }
+
+    @Override
+    public AccountDetails getAccountDetails(long accountId) throws SQLException, AccountNotFoundException {
+        return store.getAccountDetails(accountId);
+    }
+
+    @Override
+    public Snapshot<AccountDetails> getAccountSnapshot(long accountId) throws SQLException, AccountNotFoundException {
+        return store.getAccountSnapshot(accountId);
+    }
+
+    @Override
+    public TransferHistory getTransfers(long accountId, long afterId, int limit)
+            throws SQLException, AccountNotFoundException {
+        return store.getTransfers(accountId, afterId, limit);
+    }
+
+    /**
+     * Does nothing but check that the account exists: credits never contend with a single writer, so
+     * {@code ledger.shardedAccounts} has no effect on this engine.
+     */
+    @Override
+    public void shardAccount(long accountId, int shards) throws SQLException, AccountNotFoundException {
+        store.getAccountDetails(accountId);
+    }
+
+    @Override
+    public void transferMoney(long senderId, long recipientId, BigDecimal amount)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        try {
+            await(submitTransfer(senderId, recipientId, amount, null));
+        } catch (IdempotencyKeyReusedException e) {
+            // not thrown without a key
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean transferMoney(long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        return await(submitTransfer(senderId, recipientId, amount, idempotencyKey));
+    }
+
+    @Override
+    public MoneyTransferStatus[] transferMoney(List<TransferRequest> transfers, BatchMode mode) throws SQLException {
+        try {
+            return await(submitTransfers(transfers, mode));
+        } catch (AccountNotFoundException | IdempotencyKeyReusedException e) {
+            // batches report them as statuses
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Publishes a transfer without waiting for it. The future fails with the exceptions of
+     * {@link #transferMoney(long, long, BigDecimal, String)}, or with {@link RejectedExecutionException} if the ring
+     * is full.
+     *
+     * @param idempotencyKey {@code null} for a transfer without a key
+     * @return completes with {@code false} if the transfer was already made under the key
+     */
+    public CompletableFuture<Boolean> submitTransfer(long senderId, long recipientId, BigDecimal amount,
+                                                     String idempotencyKey) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            String fingerprint = null;
+            if (idempotencyKey != null) {
+                fingerprint = IdempotencyKeys.fingerprint(senderId, recipientId, amount);
+                if (IdempotencyKeys.isKnown(idempotencyKey, fingerprint)) {
+                    result.complete(false);
+                    return result;
+                }
+            }
+            long minorAmount = Money.of(amount);
+            long sequence = claim();
+            Command command = ring.get(sequence);
+            command.senderId = senderId;
+            command.recipientId = recipientId;
+            command.amount = minorAmount;
+            command.idempotencyKey = idempotencyKey;
+            command.fingerprint = fingerprint;
+            command.transfer = result;
+            ring.publish(sequence);
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Publishes a batch without waiting for it; the future fails with {@link RejectedExecutionException} if the
+     * ring is full.
+     */
+    public CompletableFuture<MoneyTransferStatus[]> submitTransfers(List<TransferRequest> transfers, BatchMode mode) {
+        CompletableFuture<MoneyTransferStatus[]> result = new CompletableFuture<>();
+        try {
+            long sequence = claim();
+            Command command = ring.get(sequence);
+            command.transfers = transfers;
+            command.mode = mode;
+            command.batch = result;
+            ring.publish(sequence);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private long claim() {
+        if (closed) {
+            throw new RejectedExecutionException("engine is closed");
+        }
+        if (journalFailure != null) {
+            throw journalFailure;
+        }
+        return ring.claim();
+    }
+
+    /**
+     * @throws SQLTimeoutException if the command is not written within {@code ledger.sequenced.timeoutMillis};
+     *                             it may still be written later
+     */
+    private static <T> T await(CompletableFuture<T> future)
+            throws SQLException, AccountNotFoundException, IdempotencyKeyReusedException {
+        try {
+            return future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SQLTimeoutException("sequencer did not answer within " + TIMEOUT_MILLIS + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the sequencer", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof AccountNotFoundException) {
+                throw (AccountNotFoundException) cause;
+            } else if (cause instanceof IdempotencyKeyReusedException) {
+                throw (IdempotencyKeyReusedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void run() {
+        long next = 0;
+        while (!closed || ring.getPendingCount() > 0) {
+            long last = ring.await(next, IDLE_WAIT_NANOS);
+            if (last < next) {
+                continue;
+            }
+            last = Math.min(last, next + maxBatch - 1);
+            long start = System.nanoTime();
+            execute(next, last);
+            runLatency.recordSince(start);
+            ring.release(last);
+            next = last + 1;
+        }
+    }
+
+    /**
+     * Decides and writes the commands {@code first..last}, then completes and clears them.
+     */
+    private void execute(long first, long last) {
+        // commands published before a journal failure was noticed are refused like later ones
+        Exception failure = journalFailure;
+        if (failure == null) {
+            try (AccountHelper helper = new AccountHelper()) {
+                for (long sequence = first; sequence <= last; sequence++) {
+                    decide(helper, ring.get(sequence));
+                }
+                if (!changes.isEmpty()) {
+                    helper.writeSequenced(changes);
+                }
+            } catch (SQLException | RuntimeException e) {
+                logger.error("failed to write {} sequenced commands", last - first + 1, e);
+                failure = e;
+                for (int i = 0; i < changes.getAccountCount(); i++) {
+                    accounts.remove(changes.getAccountId(i));
+                }
+            }
+        }
+        if (failure == null) {
+            try {
+                journal();
+            } catch (RuntimeException e) {
+                logger.error("failed to journal {} sequenced commands, rejecting transfers until restarted",
+                        last - first + 1, e);
+                journalFailure = new RejectedExecutionException("the journal failed", e);
+                failure = journalFailure;
+            }
+        }
+        changes.clear();
+        runKeys.clear();
+        evictAccounts();
+        for (long sequence = first; sequence <= last; sequence++) {
+            ring.get(sequence).complete(failure);
+        }
+    }
+
+    private void journal() {
+        long seq = 0;
+        for (int i = 0; i < changes.getTransferCount(); i++) {
+            int key = changes.getKeyIndex(i);
+            seq = store.recordTransfer(changes.getSenderId(i), changes.getRecipientId(i), changes.getAmount(i),
+                    changes.getCredited(i), key < 0 ? null : changes.getKey(key),
+                    key < 0 ? null : changes.getFingerprint(key));
+        }
+        store.awaitDurable(seq);
+        for (int i = 0; i < changes.getKeyCount(); i++) {
+            IdempotencyKeys.remember(changes.getKey(i), changes.getFingerprint(i));
+        }
+    }
+
+    /**
+     * Drops the least recently used accounts over {@code maxAccounts}; only between runs, when every balance
+     * held here is also committed to H2.
+     */
+    private void evictAccounts() {
+        Iterator<Account> iterator = accounts.values().iterator();
+        for (int excess = accounts.size() - maxAccounts; excess > 0; excess--) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private void decide(AccountHelper helper, Command command) {
+        try {
+            if (command.transfers != null) {
+                command.statuses = decideBatch(helper, command.transfers, command.mode);
+            } else {
+                command.executed = decideTransfer(helper, command);
+            }
+        } catch (Exception e) {
+            command.error = e;
+        }
+    }
+
+    private boolean decideTransfer(AccountHelper helper, Command command) throws Exception {
+        String key = command.idempotencyKey;
+        if (key != null) {
+            String recorded = runKeys.get(key);
+            if (recorded == null) {
+                recorded = helper.getFingerprint(key, System.currentTimeMillis());
+            }
+            if (recorded != null && IdempotencyKeys.checkReplay(key, command.fingerprint, recorded)) {
+                return false;
+            }
+        }
+        Account recipient = getAccount(helper, command.recipientId);
+        if (recipient == null) {
+            throw new AccountNotFoundException(command.recipientId);
+        }
+        Account sender = getAccount(helper, command.senderId);
+        if (sender == null) {
+            throw new AccountNotFoundException(command.senderId);
+        }
+        if (sender.balance < command.amount) {
+            throw new InsufficientFundsException();
+        }
+        FxRates.Table rates = sender.currency == recipient.currency ? null : FxRates.current();
+        long credited = rates == null ? command.amount : rates.convert(command.amount, sender.currency,
+                recipient.currency);
+        // an overflowing credit fails before anything is changed
+        Math.addExact(recipient.balance, credited);
+        move(sender, -command.amount);
+        move(recipient, credited);
+        changes.addTransfer(sender.id, recipient.id, command.amount, sender.currency, credited, recipient.currency,
+                rates == null ? 0 : rates.getVersion());
+        if (key != null) {
+            changes.addKey(key, command.fingerprint);
+            runKeys.put(key, command.fingerprint);
+        }
+        return true;
+    }
+
+    private MoneyTransferStatus[] decideBatch(AccountHelper helper, List<TransferRequest> transfers, BatchMode mode)
+            throws SQLException {
+        BatchPlanner planner = new BatchPlanner(transfers, mode);
+        long[] accountIds = planner.getAccountIds();
+        Account[] batchAccounts = new Account[accountIds.length];
+        for (int i = 0; i < accountIds.length; i++) {
+            batchAccounts[i] = getAccount(helper, accountIds[i]);
+            if (batchAccounts[i] != null) {
+                planner.load(accountIds[i], batchAccounts[i].currency, batchAccounts[i].balance);
+            }
+        }
+        MoneyTransferStatus[] statuses = planner.plan();
+        if (planner.isApplicable()) {
+            for (int i = 0; i < accountIds.length; i++) {
+                if (planner.getDelta(i) != 0) {
+                    move(batchAccounts[i], planner.getDelta(i));
+                }
+            }
+            for (int i = 0; i < statuses.length; i++) {
+                if (statuses[i] == MoneyTransferStatus.SUCCESS) {
+                    TransferRequest transfer = transfers.get(i);
+                    Currency currency = batchAccounts[Arrays.binarySearch(accountIds, transfer.getFrom())].currency;
+                    Currency recipientCurrency =
+                            batchAccounts[Arrays.binarySearch(accountIds, transfer.getTo())].currency;
+                    changes.addTransfer(transfer.getFrom(), transfer.getTo(), planner.getAmount(i), currency,
+                            planner.getCredited(i), recipientCurrency, planner.getRates().getVersion());
+                }
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * @return the account, loaded on first use, or {@code null} if it does not exist
+     */
+    private Account getAccount(AccountHelper helper, long accountId) throws SQLException {
+        Account result = accounts.get(accountId);
+        if (result == null) {
+            AccountDetails details;
+            try {
+                details = helper.loadAccountDetails(accountId);
+            } catch (AccountNotFoundException e) {
+                return null;
+            }
+            result = new Account(accountId, details.getCurrency(), Money.of(details.getBalance()));
+            accounts.put(accountId, result);
+        }
+        return result;
+    }
+
+    private void move(Account account, long delta) {
+        account.balance += delta;
+        changes.addDelta(account, delta);
+    }
+
+    /**
+     * Waits for the commands published so far to be written, then closes the wrapped engine.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    /**
+     * Slot of the ring: either a single transfer or a batch, its future and, once decided, its outcome.
+     */
+    private static final class Command {
+        private long senderId;
+        private long recipientId;
+        private long amount;
+        private String idempotencyKey;
+        private String fingerprint;
+        private CompletableFuture<Boolean> transfer;
+
+        private List<TransferRequest> transfers;
+        private BatchMode mode;
+        private CompletableFuture<MoneyTransferStatus[]> batch;
+
+        private boolean executed;
+        private MoneyTransferStatus[] statuses;
+        private Exception error;
+
+        /**
+         * @param failure error of the whole run, {@code null} if it was written
+         */
+        private void complete(Exception failure) {
+            Exception outcome = failure != null ? failure : error;
+            if (transfer != null) {
+                if (outcome != null) {
+                    transfer.completeExceptionally(outcome);
+                } else {
+                    transfer.complete(executed);
+                }
+            } else if (outcome != null) {
+                batch.completeExceptionally(outcome);
+            } else {
+                batch.complete(statuses);
+            }
+            idempotencyKey = null;
+            fingerprint = null;
+            transfer = null;
+            transfers = null;
+            batch = null;
+            executed = false;
+            statuses = null;
+            error = null;
+        }
+    }
+
+    private static final class Account {
+        private final long id;
+        private final Currency currency;
+        private long balance;
+        // index of the account in the changes of the current run, -1 if unchanged
+        private int changeIndex = -1;
+
+        private Account(long id, Currency currency, long balance) {
+            this.id = id;
+            this.currency = currency;
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * Everything one run of the writer has decided, for {@link AccountHelper#writeSequenced}: the net balance
+     * change of every account and the executed transfers with their idempotency keys. The arrays grow as needed
+     * and are reused by the next run.
+     */
+    static final class Changes {
+        private final List<Account> changedAccounts = new ArrayList<>();
+        private long[] deltas = new long[64];
+
+        private int transferCount;
+        private long[] senderIds = new long[64];
+        private long[] recipientIds = new long[64];
+        private long[] amounts = new long[64];
+        private long[] credited = new long[64];
+        private long[] rateVersions = new long[64];
+        private Currency[] currencies = new Currency[64];
+        private Currency[] recipientCurrencies = new Currency[64];
+        private int[] keyIndexes = new int[64];
+
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> fingerprints = new ArrayList<>();
+
+        private void addDelta(Account account, long delta) {
+            if (account.changeIndex < 0) {
+                account.changeIndex = changedAccounts.size();
+                changedAccounts.add(account);
+                if (account.changeIndex == deltas.length) {
+                    deltas = Arrays.copyOf(deltas, deltas.length * 2);
+                }
+                deltas[account.changeIndex] = 0;
+            }
+            deltas[account.changeIndex] += delta;
+        }
+
+        private void addTransfer(long senderId, long recipientId, long amount, Currency currency, long credited,
+                                 Currency recipientCurrency, long rateVersion) {
+            if (transferCount == senderIds.length) {
+                int length = transferCount * 2;
+                senderIds = Arrays.copyOf(senderIds, length);
+                recipientIds = Arrays.copyOf(recipientIds, length);
+                amounts = Arrays.copyOf(amounts, length);
+                this.credited = Arrays.copyOf(this.credited, length);
+                rateVersions = Arrays.copyOf(rateVersions, length);
+                currencies = Arrays.copyOf(currencies, length);
+                recipientCurrencies = Arrays.copyOf(recipientCurrencies, length);
+                keyIndexes = Arrays.copyOf(keyIndexes, length);
+            }
+            senderIds[transferCount] = senderId;
+            recipientIds[transferCount] = recipientId;
+            amounts[transferCount] = amount;
+            this.credited[transferCount] = credited;
+            rateVersions[transferCount] = rateVersion;
+            currencies[transferCount] = currency;
+            recipientCurrencies[transferCount] = recipientCurrency;
+            keyIndexes[transferCount] = -1;
+            transferCount++;
+        }
+
+        /**
+         * Records the key of the transfer added last.
+         */
+        private void addKey(String key, String fingerprint) {
+            keyIndexes[transferCount - 1] = keys.size();
+            keys.add(key);
+            fingerprints.add(fingerprint);
+        }
+
+        boolean isEmpty() {
+            return changedAccounts.isEmpty() && keys.isEmpty();
+        }
+
+        int getAccountCount() {
+            return changedAccounts.size();
+        }
+
+        long getAccountId(int index) {
+            return changedAccounts.get(index).id;
+        }
+
+        long getDelta(int index) {
+            return deltas[index];
+        }
+
+        int getTransferCount() {
+            return transferCount;
+        }
+
+        long getSenderId(int index) {
+            return senderIds[index];
+        }
+
+        long getRecipientId(int index) {
+            return recipientIds[index];
+        }
+
+        long getAmount(int index) {
+            return amounts[index];
+        }
+
+        Currency getCurrency(int index) {
+            return currencies[index];
+        }
+
+        long getCredited(int index) {
+            return credited[index];
+        }
+
+        Currency getRecipientCurrency(int index) {
+            return recipientCurrencies[index];
+        }
+
+        long getRateVersion(int index) {
+            return rateVersions[index];
+        }
+
+        /**
+         * @return index of the transfer's idempotency key, {@code -1} if it was made without one
+         */
+        int getKeyIndex(int transferIndex) {
+            return keyIndexes[transferIndex];
+        }
+
+        int getKeyCount() {
+            return keys.size();
+        }
+
+        String getKey(int index) {
+            return keys.get(index);
+        }
+
+        String getFingerprint(int index) {
+            return fingerprints.get(index);
+        }
+
+        private void clear() {
+            for (Account account : changedAccounts) {
+                account.changeIndex = -1;
+            }
+            changedAccounts.clear();
+            Arrays.fill(currencies, 0, transferCount, null);
+            Arrays.fill(recipientCurrencies, 0, transferCount, null);
+            transferCount = 0;
+            keys.clear();
+            fingerprints.clear();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ru.ptrofimov.demo.logic;
+
+/**
+ * A value read from a copy of the ledger that may lag behind the latest commits.
+ */
+public final class Snapshot<T> {
+    private final T value;
+    private final long ageMillis;
+
+    public Snapshot(T value, long ageMillis) {
+        this.value = value;
+        this.ageMillis = ageMillis;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return how long ago the copy was last known to be current, {@code 0} if it was read from the ledger itself
+     */
+    public long getAgeMillis() {
+        return ageMillis;
+    }
+}
@@ -0,0 +1,185 @@
+package ru.ptrofimov.demo.logic;
+
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Forward-only cursor over the {@code TRANSFERS} rows of one account, in id order.
+ * <p>
+ * Outgoing and incoming transfers are read by two index-ordered queries that H2 executes lazily and merged
+ * here, so a statement of any length is read with a bounded number of rows in memory. Pages are chained by
+ * passing the last id seen as {@code afterId} of the next request; ids are assigned on insert, so a transfer
+ * that commits after a later one may be skipped by a page read in between.
+ */
+public final class TransferHistory implements AutoCloseable {
+
+    private static final int FETCH_SIZE = ConfigUtils.getInt("history.fetchSize", 1000);
+
+    private final AccountHelper owner;
+    private final Connection connection;
+    private PreparedStatement outgoingStatement;
+    private PreparedStatement incomingStatement;
+    private ResultSet outgoing;
+    private ResultSet incoming;
+    private boolean outgoingPending;
+    private boolean incomingPending;
+    private int remaining;
+
+    private long id;
+    private long senderId;
+    private long recipientId;
+    private BigDecimal amount;
+    private Currency currency;
+    private long createdAt;
+    private BigDecimal creditedAmount;
+    private Currency creditedCurrency;
+    private long rateVersion;
+
+    TransferHistory(AccountHelper owner, Connection connection, long accountId, long afterId, int limit)
+            throws SQLException {
+        this.owner = owner;
+        this.connection = connection;
+        this.remaining = limit;
+        connection.setAutoCommit(true);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LAZY_QUERY_EXECUTION 1");
+        }
+        try {
+            outgoingStatement = prepare("SENDER_ID", accountId, afterId, limit);
+            incomingStatement = prepare("RECIPIENT_ID", accountId, afterId, limit);
+            outgoing = outgoingStatement.executeQuery();
+            incoming = incomingStatement.executeQuery();
+            outgoingPending = outgoing.next();
+            incomingPending = incoming.next();
+        } catch (SQLException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private PreparedStatement prepare(String column, long accountId, long afterId, int limit) throws SQLException {
+        // ordering by the whole index lets H2 stream the rows instead of sorting them
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT ID, SENDER_ID, RECIPIENT_ID, AMOUNT, CURRENCY, CREATED_AT, CREDITED_AMOUNT, CREDITED_CURRENCY,"
+                        + " RATE_VERSION FROM TRANSFERS"
+                        + " WHERE " + column + " = ? AND ID > ? ORDER BY " + column + ", ID LIMIT ?");
+        statement.setFetchSize(FETCH_SIZE);
+        statement.setLong(1, accountId);
+        statement.setLong(2, afterId);
+        statement.setInt(3, limit);
+        return statement;
+    }
+
+    /**
+     * Moves to the next transfer.
+     *
+     * @return {@code false} when the history or the requested page is exhausted
+     */
+    public boolean next() throws SQLException {
+        if (remaining == 0 || !outgoingPending && !incomingPending) {
+            return false;
+        }
+        remaining--;
+        if (!incomingPending || outgoingPending && outgoing.getLong(1) < incoming.getLong(1)) {
+            read(outgoing);
+            outgoingPending = outgoing.next();
+        } else {
+            read(incoming);
+            incomingPending = incoming.next();
+        }
+        return true;
+    }
+
+    private void read(ResultSet resultSet) throws SQLException {
+        id = resultSet.getLong(1);
+        senderId = resultSet.getLong(2);
+        recipientId = resultSet.getLong(3);
+        amount = resultSet.getBigDecimal(4);
+        currency = Currency.fromString(resultSet.getString(5));
+        createdAt = resultSet.getLong(6);
+        creditedAmount = resultSet.getBigDecimal(7);
+        String credited = resultSet.getString(8);
+        creditedCurrency = credited == null ? null : Currency.fromString(credited);
+        rateVersion = resultSet.getLong(9);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getSenderId() {
+        return senderId;
+    }
+
+    public long getRecipientId() {
+        return recipientId;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    /**
+     * @return commit time in milliseconds since the epoch
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return amount credited to the recipient in {@link #getCreditedCurrency()}, or {@code null} if the transfer
+     * was not converted between currencies
+     */
+    public BigDecimal getCreditedAmount() {
+        return creditedAmount;
+    }
+
+    public Currency getCreditedCurrency() {
+        return creditedCurrency;
+    }
+
+    /**
+     * @return version of the {@link FxRates} the transfer was converted with, or 0 if it was not converted
+     */
+    public long getRateVersion() {
+        return rateVersion;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            release();
+        } finally {
+            owner.close();
+        }
+    }
+
+    private void release() throws SQLException {
+        if (outgoing != null) {
+            outgoing.close();
+        }
+        if (incoming != null) {
+            incoming.close();
+        }
+        if (outgoingStatement != null) {
+            outgoingStatement.close();
+        }
+        if (incomingStatement != null) {
+            incomingStatement.close();
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LAZY_QUERY_EXECUTION 0");
+        }
+    }
+}
@@ -33,7 +33,7 @@ public class UpdateBalanceTrigger implements Trigger {
     private void validateBalance(Object oldVal, Object newVal) {
         BigDecimal oldBalance = (BigDecimal) oldVal;
         BigDecimal newBalance = (BigDecimal) newVal;
-        if (newBalance.compareTo(oldBalance) < 0 && newBalance.compareTo(BigDecimal.ZERO) < 0) {
+        if (newBalance.signum() < 0 && newBalance.compareTo(oldBalance) < 0) {
             throw new InsufficientFundsException();
         }
     }
@@ -0,0 +1,90 @@
+package ru.ptrofimov.demo.logic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+import ru.ptrofimov.demo.utils.DBUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs synthetic traffic through a throwaway engine over {@link DBUtils#withScratchDatabase a scratch database},
+ * so that the classes of the transfer path are loaded and its hot methods compiled before the first request.
+ * Neither the real database nor the journal is touched; the caches filled on the way are cleared and the
+ * {@link Metrics} counters and histograms zeroed afterwards, so they only count real traffic.
+ */
+public final class WarmUp {
+    private static final Logger logger = LoggerFactory.getLogger(WarmUp.class);
+
+    private static final int ACCOUNTS = 100;
+    private static final int BATCH_SIZE = 10;
+
+    private WarmUp() {
+    }
+
+    /**
+     * @param engineName kind of engine to warm up, {@code h2}, {@code memory} or {@code sequenced}
+     * @param transfers  single transfers to make; every tenth is keyed and followed by a lookup and a batch
+     */
+    public static void run(String engineName, int transfers) throws Exception {
+        if (transfers <= 0) {
+            return;
+        }
+        DBUtils.withScratchDatabase(() -> {
+            try (LedgerEngine engine = create(engineName)) {
+                drive(engine, transfers);
+            }
+            return null;
+        });
+        AccountCache.clear();
+        IdempotencyKeys.clear();
+        Metrics.reset();
+        logger.debug("warmed up the {} engine with {} transfers", engineName, transfers);
+    }
+
+    private static LedgerEngine create(String engineName) throws Exception {
+        switch (engineName) {
+            case LedgerEngines.MEMORY:
+                return new InMemoryLedgerEngine(ConfigUtils.getInt("ledger.memory.stripes", 1024), null);
+            case LedgerEngines.SEQUENCED:
+                return LedgerEngines.newSequenced(new H2LedgerEngine());
+            default:
+                return new H2LedgerEngine();
+        }
+    }
+
+    private static void drive(LedgerEngine engine, int transfers) throws Exception {
+        List<AccountDetails> accounts = new ArrayList<>(ACCOUNTS);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts.add(new AccountDetails(Currency.AMERICAN_DOLLAR, new BigDecimal("1000000.00"), "warm-up"));
+        }
+        long[] ids = engine.createAccounts(accounts);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<TransferRequest> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < transfers; i++) {
+            int sender = random.nextInt(ACCOUNTS);
+            long senderId = ids[sender];
+            long recipientId = ids[(sender + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS];
+            BigDecimal amount = BigDecimal.valueOf(1 + random.nextInt(1000), 2);
+            if (i % 10 != 0) {
+                engine.transferMoney(senderId, recipientId, amount);
+                continue;
+            }
+            engine.transferMoney(senderId, recipientId, amount, "warm-up-" + i);
+            engine.getAccountDetails(recipientId);
+            batch.clear();
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                batch.add(new TransferRequest(ids[(sender + j) % ACCOUNTS], ids[(sender + j + 1) % ACCOUNTS], amount));
+            }
+            engine.transferMoney(batch, BatchMode.ALL_OR_NOTHING);
+        }
+    }
+}
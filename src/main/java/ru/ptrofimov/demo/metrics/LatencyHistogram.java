@@ -0,0 +1,66 @@
+package ru.ptrofimov.demo.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of durations in nanoseconds with two buckets per power of two from about 1 µs to 69 s.
+ * Recording is a couple of atomic increments and never allocates.
+ */
+public final class LatencyHistogram {
+
+    private static final int MIN_EXPONENT = 10;
+    private static final int MAX_EXPONENT = 35;
+    static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT + 1) * 2;
+
+    /** the last slot counts values above the upper bound of the last bucket */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(nanos));
+        sumNanos.add(nanos);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        sumNanos.reset();
+    }
+
+    static int indexOf(long nanos) {
+        if (nanos < 1L << MIN_EXPONENT) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS;
+        }
+        int half = (int) (nanos >>> (exponent - 1)) & 1;
+        return (exponent - MIN_EXPONENT) * 2 + half;
+    }
+
+    /**
+     * @return inclusive upper bound of bucket {@code index} in nanoseconds
+     */
+    static long upperBound(int index) {
+        long base = 1L << (MIN_EXPONENT + index / 2);
+        return (index & 1) == 0 ? base + base / 2 - 1 : 2 * base - 1;
+    }
+
+    long getCount(int index) {
+        return counts.get(index);
+    }
+
+    long getSumNanos() {
+        return sumNanos.sum();
+    }
+}
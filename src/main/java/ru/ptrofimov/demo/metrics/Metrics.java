@@ -0,0 +1,170 @@
+package ru.ptrofimov.demo.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide registry of histograms, counters and gauges, written out in the Prometheus text format.
+ * <p>
+ * Metrics are looked up once, typically into static fields, and recorded without touching the registry.
+ * Registering a gauge under a name and labels that already exist replaces the previous one.
+ */
+public final class Metrics {
+
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    static {
+        registerJvmGauges();
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param labels label names and values, alternating
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) register(name, help, "histogram", labels, new LatencyHistogram(), false);
+    }
+
+    public static LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) register(name, help, "counter", labels, new LongAdder(), false);
+    }
+
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "gauge", labels, value, true);
+    }
+
+    /**
+     * Like a gauge, but declared as a counter because the value only grows.
+     */
+    public static void counterGauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "counter", labels, value, true);
+    }
+
+    private static synchronized Object register(String name, String help, String type, String[] labels,
+                                                Object metric, boolean replace) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        String key = formatLabels(labels);
+        Object existing = family.children.get(key);
+        if (existing != null && !replace) {
+            return existing;
+        }
+        family.children.put(key, metric);
+        return metric;
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name-value pairs");
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            result.append(result.length() == 0 ? "" : ",").append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Zeroes every counter and histogram; gauges are left alone. Meant for synthetic traffic before the real one,
+     * such as a warm-up: a value recorded concurrently may be lost.
+     */
+    public static synchronized void reset() {
+        for (Family family : families.values()) {
+            for (Object metric : family.children.values()) {
+                if (metric instanceof LatencyHistogram) {
+                    ((LatencyHistogram) metric).reset();
+                } else if (metric instanceof LongAdder) {
+                    ((LongAdder) metric).reset();
+                }
+            }
+        }
+    }
+
+    public static synchronized void write(Writer out) throws IOException {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.write("# HELP " + name + " " + family.help + "\n");
+            out.write("# TYPE " + name + " " + family.type + "\n");
+            for (Map.Entry<String, Object> child : family.children.entrySet()) {
+                String labels = child.getKey();
+                Object metric = child.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    writeHistogram(out, name, labels, (LatencyHistogram) metric);
+                } else if (metric instanceof LongAdder) {
+                    writeSample(out, name, labels, ((LongAdder) metric).sum());
+                } else {
+                    writeSample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                }
+            }
+        }
+    }
+
+    private static void writeHistogram(Writer out, String name, String labels, LatencyHistogram histogram)
+            throws IOException {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += histogram.getCount(i);
+            out.write(name + "_bucket{" + prefix + "le=\"" + LatencyHistogram.upperBound(i) / 1e9 + "\"} "
+                    + cumulative + "\n");
+        }
+        cumulative += histogram.getCount(LatencyHistogram.BUCKETS);
+        out.write(name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative + "\n");
+        writeSample(out, name + "_sum", labels, histogram.getSumNanos() / 1e9);
+        writeSample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void writeSample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name);
+        if (!labels.isEmpty()) {
+            out.write("{" + labels + "}");
+        }
+        out.write(" " + (value == (long) value ? Long.toString((long) value) : Double.toString(value)) + "\n");
+    }
+
+    private static void registerJvmGauges() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_memory_used_bytes", "Used JVM memory", () -> memory.getHeapMemoryUsage().getUsed(),
+                "area", "heap");
+        gauge("jvm_memory_used_bytes", "Used JVM memory", () -> memory.getNonHeapMemoryUsage().getUsed(),
+                "area", "nonheap");
+        gauge("jvm_memory_committed_bytes", "Committed JVM memory",
+                () -> memory.getHeapMemoryUsage().getCommitted(), "area", "heap");
+        gauge("jvm_memory_max_bytes", "Maximum JVM heap", () -> memory.getHeapMemoryUsage().getMax(),
+                "area", "heap");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counterGauge("jvm_gc_collections_total", "Garbage collections", gc::getCollectionCount,
+                    "gc", gc.getName());
+            counterGauge("jvm_gc_collection_seconds_total", "Time spent in garbage collections",
+                    () -> gc.getCollectionTime() / 1e3, "gc", gc.getName());
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        gauge("jvm_threads", "Live JVM threads", threads::getThreadCount);
+        gauge("jvm_uptime_seconds", "JVM uptime", () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> children = new LinkedHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
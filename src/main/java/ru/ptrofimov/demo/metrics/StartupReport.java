@@ -0,0 +1,47 @@
+package ru.ptrofimov.demo.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durations of startup phases, exported as {@code startup_phase_seconds} and logged as one table when startup
+ * is done. Phases may overlap, so the total is the time since the JVM started rather than their sum; the first
+ * phase, {@code jvm}, runs from the start of the JVM to the creation of the report.
+ */
+public final class StartupReport {
+    private static final Logger logger = LoggerFactory.getLogger(StartupReport.class);
+
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+
+    public StartupReport() {
+        record("jvm", TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - jvmStartMillis));
+    }
+
+    /**
+     * Records the phase {@code name} that started at {@code startNanos} and ends now.
+     */
+    public void recordSince(String name, long startNanos) {
+        record(name, System.nanoTime() - startNanos);
+    }
+
+    private synchronized void record(String name, long nanos) {
+        phaseNanos.put(name, nanos);
+        Metrics.gauge("startup_phase_seconds", "Duration of startup phases", () -> nanos / 1e9, "phase", name);
+    }
+
+    public synchronized void log() {
+        StringBuilder table = new StringBuilder("started in ")
+                .append(System.currentTimeMillis() - jvmStartMillis).append(" ms");
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            table.append(String.format("%n  %-8s %6d ms", phase.getKey(),
+                    TimeUnit.NANOSECONDS.toMillis(phase.getValue())));
+        }
+        logger.info(table.toString());
+    }
+}
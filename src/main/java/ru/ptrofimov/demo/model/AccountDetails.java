@@ -3,6 +3,11 @@ package ru.ptrofimov.demo.model;
 import java.math.BigDecimal;
 
 public class AccountDetails {
+    /**
+     * Width of the {@code OWNER} column.
+     */
+    public static final int MAX_OWNER_LENGTH = 56;
+
     private long id;
     private Currency currency;
     private BigDecimal balance;
@@ -0,0 +1,12 @@
+package ru.ptrofimov.demo.model;
+
+public enum BatchMode {
+    /**
+     * Either every transfer of the batch is applied or none is.
+     */
+    ALL_OR_NOTHING,
+    /**
+     * Each transfer succeeds or fails on its own; failed ones do not affect the rest.
+     */
+    PER_ITEM
+}
@@ -0,0 +1,114 @@
+package ru.ptrofimov.demo.model;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a reconciliation of the running per-currency totals with the balances in the database.
+ */
+public class ConservationReport {
+
+    private long reconciledAt;
+    private long durationMillis;
+    private List<Total> totals = new ArrayList<>();
+
+    public long getReconciledAt() {
+        return reconciledAt;
+    }
+
+    public void setReconciledAt(long reconciledAt) {
+        this.reconciledAt = reconciledAt;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public List<Total> getTotals() {
+        return totals;
+    }
+
+    public void setTotals(List<Total> totals) {
+        this.totals = totals;
+    }
+
+    /**
+     * @return {@code false} if any currency has a confirmed drift
+     */
+    public boolean isConserved() {
+        for (Total total : totals) {
+            if (total.isConfirmed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class Total {
+        private Currency currency;
+        private BigDecimal expected;
+        private BigDecimal actual;
+        private boolean confirmed;
+
+        public Total() {
+        }
+
+        public Total(Currency currency, BigDecimal expected, BigDecimal actual, boolean confirmed) {
+            this.currency = currency;
+            this.expected = expected;
+            this.actual = actual;
+            this.confirmed = confirmed;
+        }
+
+        public Currency getCurrency() {
+            return currency;
+        }
+
+        public void setCurrency(Currency currency) {
+            this.currency = currency;
+        }
+
+        /**
+         * @return the running total
+         */
+        public BigDecimal getExpected() {
+            return expected;
+        }
+
+        public void setExpected(BigDecimal expected) {
+            this.expected = expected;
+        }
+
+        /**
+         * @return the sum of the balances found by the scan
+         */
+        public BigDecimal getActual() {
+            return actual;
+        }
+
+        public void setActual(BigDecimal actual) {
+            this.actual = actual;
+        }
+
+        public BigDecimal getDrift() {
+            return actual == null || expected == null ? null : actual.subtract(expected);
+        }
+
+        /**
+         * @return whether the drift is non-zero while no change of the currency was being committed during the
+         * scan, so that it cannot be explained by one
+         */
+        public boolean isConfirmed() {
+            return confirmed;
+        }
+
+        public void setConfirmed(boolean confirmed) {
+            this.confirmed = confirmed;
+        }
+    }
+}
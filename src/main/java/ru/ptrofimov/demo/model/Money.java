@@ -0,0 +1,50 @@
+package ru.ptrofimov.demo.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amounts as {@code long} minor units (cents), the fixed scale of the {@code DECIMAL(20, 2)} balance columns.
+ * A {@code long} holds up to 92 233 720 368 547 758.07, less than the columns allow; every conversion and
+ * arithmetic operation here throws {@link ArithmeticException} instead of overflowing.
+ */
+public final class Money {
+
+    public static final int SCALE = 2;
+
+    private static final long[] SCALE_FACTORS = {1, 10, 100};
+
+    private Money() {
+    }
+
+    /**
+     * @throws ArithmeticException if {@code amount} has fractions of a cent, which are never rounded away
+     */
+    public static long of(BigDecimal amount) {
+        int scale = amount.scale();
+        if (scale >= 0 && scale <= SCALE) {
+            // moving the point to scale 0 keeps small values compact, so nothing is inflated
+            return Math.multiplyExact(amount.movePointRight(scale).longValueExact(), SCALE_FACTORS[SCALE - scale]);
+        }
+        return amount.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @return whether {@code amount} is a whole number of cents, trailing zeros aside
+     */
+    public static boolean isWholeCents(BigDecimal amount) {
+        return amount.scale() <= SCALE || amount.stripTrailingZeros().scale() <= SCALE;
+    }
+
+    public static BigDecimal toBigDecimal(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long negate(long minorUnits) {
+        return Math.negateExact(minorUnits);
+    }
+}
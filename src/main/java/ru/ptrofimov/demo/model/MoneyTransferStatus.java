@@ -1,5 +1,17 @@
 package ru.ptrofimov.demo.model;
 
 public enum MoneyTransferStatus {
-    ACCOUNT_NOT_FOUND, CURRENCY_MISMATCH, INSUFFICIENT_FUNDS, SUCCESS
+    ACCOUNT_NOT_FOUND, CURRENCY_MISMATCH, INSUFFICIENT_FUNDS, SUCCESS,
+    /**
+     * The transfer itself was valid but its all-or-nothing batch failed.
+     */
+    ROLLED_BACK,
+    /**
+     * The amount converted to the recipient's currency rounds to zero minor units.
+     */
+    AMOUNT_TOO_SMALL,
+    /**
+     * An item of a per-item batch whose other partition could not be reached; nothing was moved.
+     */
+    UNAVAILABLE
 }
@@ -0,0 +1,42 @@
+package ru.ptrofimov.demo.model;
+
+import java.math.BigDecimal;
+
+public class TransferRequest {
+    private long from;
+    private long to;
+    private BigDecimal amount;
+
+    public TransferRequest() {
+    }
+
+    public TransferRequest(long from, long to, BigDecimal amount) {
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public void setFrom(long from) {
+        this.from = from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public void setTo(long to) {
+        this.to = to;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public void setAmount(BigDecimal amount) {
+        this.amount = amount;
+    }
+}
@@ -0,0 +1,197 @@
+package ru.ptrofimov.demo.partition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Durable log of the cross-partition transfers coordinated by this partition, one text line per record:
+ * {@code P} when a transfer is prepared, {@code C} or {@code A} when it is decided, and {@code D} when both
+ * partitions have applied the decision. Prepare and decision records are synced before the protocol goes on;
+ * concurrent syncs are shared, so one {@code fsync} covers every record written before it started.
+ * <p>
+ * On opening, the log is read back into the transfers that are not done yet and rewritten with just those.
+ * A torn last line is ignored. While running, the log is emptied whenever it has grown large and every
+ * transfer in it is done.
+ */
+final class CoordinatorLog implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoordinatorLog.class);
+
+    private final Path file;
+    private final Map<String, Transfer> recovered = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long writtenSeq;
+    private volatile long syncedSeq;
+    private final Object syncLock = new Object();
+
+    CoordinatorLog(Path file) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if (Files.exists(file)) {
+            read();
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel rewrite = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Transfer transfer : recovered.values()) {
+                write(rewrite, prepareRecord(transfer));
+                if (transfer.outcome != null) {
+                    write(rewrite, decisionRecord(transfer.txId, transfer.outcome));
+                }
+            }
+            rewrite.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (!recovered.isEmpty()) {
+            logger.info("{} unfinished cross-partition transfers recovered from {}", recovered.size(), file);
+        }
+    }
+
+    private void read() throws IOException {
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        int end = content.lastIndexOf('\n');
+        if (end < 0) {
+            return;
+        }
+        for (String line : content.substring(0, end).split("\n")) {
+            apply(line.split(" "));
+        }
+    }
+
+    private void apply(String[] fields) {
+        String txId = fields[1];
+        switch (fields[0]) {
+            case "P":
+                recovered.put(txId, new Transfer(txId, Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                        new BigDecimal(fields[4]), Currency.fromString(fields[5]), Integer.parseInt(fields[6])));
+                break;
+            case "C":
+            case "A":
+                Transfer transfer = recovered.get(txId);
+                if (transfer != null) {
+                    transfer.outcome = fields[0].equals("C");
+                }
+                break;
+            case "D":
+                recovered.remove(txId);
+                break;
+            default:
+                throw new IllegalStateException("corrupt coordinator log record: " + String.join(" ", fields));
+        }
+    }
+
+    /**
+     * @return transfers that were prepared and not done when the log was opened; their {@code outcome} is
+     * {@code null} if no decision was logged
+     */
+    Map<String, Transfer> getRecovered() {
+        return recovered;
+    }
+
+    void prepared(Transfer transfer) throws IOException {
+        sync(append(prepareRecord(transfer)));
+    }
+
+    void decided(String txId, boolean commit) throws IOException {
+        sync(append(decisionRecord(txId, commit)));
+    }
+
+    /**
+     * Not synced: losing it only makes recovery repeat an idempotent second phase.
+     */
+    void done(String txId) throws IOException {
+        append("D " + txId + "\n");
+    }
+
+    /**
+     * Empties the log if it is larger than {@code maxBytes} and {@code idle} holds. Records are appended only
+     * after their transfer has been registered, so checking for registered transfers under the append lock
+     * is enough to tell that nothing in the log is still needed.
+     */
+    synchronized void truncateIf(long maxBytes, BooleanSupplier idle) throws IOException {
+        if (channel.size() > maxBytes && idle.getAsBoolean()) {
+            channel.truncate(0);
+            channel.force(true);
+        }
+    }
+
+    private static String prepareRecord(Transfer transfer) {
+        return "P " + transfer.txId + " " + transfer.senderId + " " + transfer.recipientId + " "
+                + transfer.amount.toPlainString() + " " + transfer.currency.getShortName() + " "
+                + transfer.participant + "\n";
+    }
+
+    private static String decisionRecord(String txId, boolean commit) {
+        return (commit ? "C " : "A ") + txId + "\n";
+    }
+
+    private synchronized long append(String record) throws IOException {
+        write(channel, record);
+        return ++writtenSeq;
+    }
+
+    private static void write(FileChannel channel, String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void sync(long seq) throws IOException {
+        if (syncedSeq >= seq) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                target = writtenSeq;
+            }
+            channel.force(false);
+            syncedSeq = target;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static final class Transfer {
+        final String txId;
+        final long senderId;
+        final long recipientId;
+        final BigDecimal amount;
+        final Currency currency;
+        final int participant;
+        /** {@code null} until decided, then whether the transfer commits */
+        Boolean outcome;
+
+        Transfer(String txId, long senderId, long recipientId, BigDecimal amount, Currency currency,
+                 int participant) {
+            this.txId = txId;
+            this.senderId = senderId;
+            this.recipientId = recipientId;
+            this.amount = amount;
+            this.currency = currency;
+            this.participant = participant;
+        }
+    }
+}
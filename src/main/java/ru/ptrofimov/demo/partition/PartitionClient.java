@@ -0,0 +1,188 @@
+package ru.ptrofimov.demo.partition;
+
+import org.glassfish.jersey.client.ClientProperties;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.AmountTooSmallException;
+import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyInProgressException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.exceptions.PartitionUnavailableException;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferResponse;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.math.BigDecimal;
+
+import static ru.ptrofimov.demo.rest.PathConstants.*;
+
+/**
+ * Calls the REST API of other partitions. Connection failures, timeouts and unexpected responses all turn
+ * into {@link PartitionUnavailableException}.
+ */
+final class PartitionClient implements AutoCloseable {
+
+    private final Client client;
+
+    PartitionClient(int timeoutMillis) {
+        client = ClientBuilder.newClient()
+                .property(ClientProperties.CONNECT_TIMEOUT, timeoutMillis)
+                .property(ClientProperties.READ_TIMEOUT, timeoutMillis);
+    }
+
+    private WebTarget target(int partition) {
+        return client.target(Partitioning.peerUrl(partition)).path(API);
+    }
+
+    /**
+     * Request to the internal API of another partition, which accepts it only with the shared secret.
+     */
+    private Invocation.Builder internal(int partition, String path, MediaType... types) {
+        return target(partition).path(PARTITION + "/" + path).request(types)
+                .header(PARTITION_SECRET, Partitioning.getSecret());
+    }
+
+    AccountDetails getAccountDetails(int partition, long accountId)
+            throws AccountNotFoundException, PartitionUnavailableException {
+        try {
+            Response response = target(partition).path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + accountId)
+                    .request(MediaType.APPLICATION_JSON_TYPE).get();
+            if (response.getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+                response.close();
+                throw new AccountNotFoundException(accountId);
+            }
+            return expect(partition, response, AccountDetails.class);
+        } catch (ProcessingException e) {
+            throw new PartitionUnavailableException(partition, e);
+        }
+    }
+
+    /**
+     * Hands a whole transfer to the partition of its sender, which runs it as if it was received there.
+     *
+     * @return {@code false} if the transfer was already made under {@code idempotencyKey}
+     */
+    boolean transferMoney(int partition, long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException,
+            PartitionUnavailableException {
+        Form form = new Form();
+        form.param("from", Long.toString(senderId));
+        form.param("amount", amount.toPlainString());
+        MoneyTransferResponse result;
+        boolean replayed;
+        try {
+            Response response = target(partition)
+                    .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + recipientId + "/balance")
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .header(IDEMPOTENCY_KEY, idempotencyKey)
+                    .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+            if (response.getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+                response.close();
+                throw new AccountNotFoundException(recipientId);
+            }
+            if (response.getStatus() == 422) {
+                response.close();
+                throw new IdempotencyKeyReusedException(idempotencyKey);
+            }
+            if (response.getStatus() == Response.Status.CONFLICT.getStatusCode()) {
+                response.close();
+                throw new IdempotencyKeyInProgressException(idempotencyKey);
+            }
+            replayed = Boolean.parseBoolean(response.getHeaderString(IDEMPOTENT_REPLAYED));
+            result = expect(partition, response, MoneyTransferResponse.class);
+        } catch (ProcessingException e) {
+            throw new PartitionUnavailableException(partition, e);
+        }
+        switch (result.getStatus()) {
+            case SUCCESS:
+                return !replayed;
+            case ACCOUNT_NOT_FOUND:
+                throw new AccountNotFoundException(senderId);
+            case CURRENCY_MISMATCH:
+                throw new CurrencyMismatchException();
+            case INSUFFICIENT_FUNDS:
+                throw new InsufficientFundsException();
+            case AMOUNT_TOO_SMALL:
+                throw new AmountTooSmallException();
+            default:
+                throw new PartitionUnavailableException(partition,
+                        new IllegalStateException("unexpected transfer status " + result.getStatus()));
+        }
+    }
+
+    void prepare(int partition, String txId, long recipientId, long senderId, BigDecimal amount, Currency currency)
+            throws AccountNotFoundException, CurrencyMismatchException, PartitionUnavailableException {
+        Form form = new Form();
+        form.param("tx", txId);
+        form.param("account", Long.toString(recipientId));
+        form.param("from", Long.toString(senderId));
+        form.param("amount", amount.toPlainString());
+        form.param("currency", currency.getShortName());
+        try {
+            Response response = internal(partition, PREPARE)
+                    .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+            int status = response.getStatus();
+            response.close();
+            if (status == Response.Status.NOT_FOUND.getStatusCode()) {
+                throw new AccountNotFoundException(recipientId);
+            } else if (status == Response.Status.CONFLICT.getStatusCode()) {
+                throw new CurrencyMismatchException();
+            } else if (status != Response.Status.NO_CONTENT.getStatusCode()) {
+                throw new PartitionUnavailableException(partition, new IllegalStateException("prepare got " + status));
+            }
+        } catch (ProcessingException e) {
+            throw new PartitionUnavailableException(partition, e);
+        }
+    }
+
+    void resolve(int partition, String txId, boolean commit) throws PartitionUnavailableException {
+        Form form = new Form();
+        form.param("tx", txId);
+        try {
+            Response response = internal(partition, commit ? COMMIT : ABORT)
+                    .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+            int status = response.getStatus();
+            response.close();
+            if (status != Response.Status.NO_CONTENT.getStatusCode()) {
+                throw new PartitionUnavailableException(partition, new IllegalStateException("resolve got " + status));
+            }
+        } catch (ProcessingException e) {
+            throw new PartitionUnavailableException(partition, e);
+        }
+    }
+
+    /**
+     * Asks the coordinator of a transfer for its decision; an undecided transfer is aborted by the question.
+     */
+    boolean isCommitted(int partition, String txId) throws PartitionUnavailableException {
+        try {
+            return Boolean.parseBoolean(expect(partition, internal(partition, DECISION + "/" + txId,
+                    MediaType.TEXT_PLAIN_TYPE).get(), String.class).trim());
+        } catch (ProcessingException e) {
+            throw new PartitionUnavailableException(partition, e);
+        }
+    }
+
+    private static <T> T expect(int partition, Response response, Class<T> type) throws PartitionUnavailableException {
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            response.close();
+            throw new PartitionUnavailableException(partition,
+                    new IllegalStateException("unexpected status " + response.getStatus()));
+        }
+        return response.readEntity(type);
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
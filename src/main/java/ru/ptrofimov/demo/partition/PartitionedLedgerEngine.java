@@ -0,0 +1,374 @@
+package ru.ptrofimov.demo.partition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.AmountTooSmallException;
+import ru.ptrofimov.demo.exceptions.BatchSpansPartitionsException;
+import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.exceptions.PartitionUnavailableException;
+import ru.ptrofimov.demo.logic.AccountHelper;
+import ru.ptrofimov.demo.logic.H2LedgerEngine;
+import ru.ptrofimov.demo.logic.LedgerEngine;
+import ru.ptrofimov.demo.logic.TransferHistory;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One partition of a ledger whose accounts are spread over several {@link ru.ptrofimov.demo.App} instances
+ * (see {@link Partitioning}). Operations on local accounts go to the wrapped engine; reads of remote accounts
+ * and transfers from remote senders are handed to the owning partition.
+ * <p>
+ * A transfer from a local sender to a remote recipient is coordinated here with two-phase commit:
+ * <ol>
+ * <li>the sender is debited into a pending row, which also catches overdrafts before anything is logged;</li>
+ * <li>the transfer is logged as prepared and the recipient's partition records a pending credit;</li>
+ * <li>the decision is logged, and from then on the transfer is committed or aborted on both sides,
+ * retried in the background until both acknowledge.</li>
+ * </ol>
+ * A participant that holds a pending credit for longer than {@code partition.inDoubtMillis} asks the coordinator
+ * for the decision. A transfer without a logged decision is presumed aborted, and asking about it aborts it, so
+ * the coordinator and the participant cannot decide differently. A participant asks the same question before it
+ * applies a decision it was sent, so only the coordinator's logged decision ever moves money, and it keeps the
+ * outcome of resolved credits for {@code partition.resolvedRetentionMillis} to tell a repeated decision from one
+ * about a transfer it never prepared, which fails. Pending halves and their outcomes are journaled with the rest
+ * of the ledger when {@code journal.dir} is set. The money is taken from the sender in the
+ * first phase and given to the recipient only after the decision, so no balance ever shows money that may
+ * still be returned. Unlike local transfers, a cross-partition one is not converted between currencies: the
+ * pending rows of both sides carry one amount in one currency.
+ */
+public class PartitionedLedgerEngine implements LedgerEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedLedgerEngine.class);
+
+    private static final LongAdder committed = Metrics.counter("partition_transfers_total",
+            "Cross-partition transfers coordinated by this partition", "outcome", "commit");
+    private static final LongAdder aborted = Metrics.counter("partition_transfers_total",
+            "Cross-partition transfers coordinated by this partition", "outcome", "abort");
+
+    private final H2LedgerEngine local;
+    private final PartitionClient client;
+    private final CoordinatorLog log;
+    private final Map<String, CoordinatorLog.Transfer> transfers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService recovery;
+    private final long inDoubtMillis;
+    private final long logMaxBytes;
+    private final long resolvedRetentionMillis;
+
+    public PartitionedLedgerEngine(H2LedgerEngine local) throws IOException {
+        this.local = local;
+        this.client = new PartitionClient(ConfigUtils.getInt("partition.timeoutMillis", 5000));
+        this.inDoubtMillis = ConfigUtils.getLong("partition.inDoubtMillis", 5000);
+        this.logMaxBytes = ConfigUtils.getLong("partition.log.maxBytes", 16L << 20);
+        this.resolvedRetentionMillis = ConfigUtils.getLong("partition.resolvedRetentionMillis",
+                TimeUnit.DAYS.toMillis(1));
+        this.log = new CoordinatorLog(Paths.get(ConfigUtils.getString("partition.dir", "partition"),
+                "coordinator-" + Partitioning.getIndex() + ".log"));
+        for (CoordinatorLog.Transfer transfer : log.getRecovered().values()) {
+            if (transfer.outcome == null) {
+                log.decided(transfer.txId, false);
+                transfer.outcome = false;
+            }
+            transfers.put(transfer.txId, transfer);
+        }
+        Metrics.gauge("partition_transfers_unresolved",
+                "Cross-partition transfers coordinated here and not yet applied on both sides", transfers::size);
+        long interval = ConfigUtils.getLong("partition.retryIntervalMillis", 1000);
+        recovery = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "partition-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        recovery.scheduleWithFixedDelay(this::recover, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public AccountDetails createAccount(Currency currency, BigDecimal balance, String owner) throws SQLException {
+        return local.createAccount(currency, balance, owner);
+    }
+
+    @Override
+    public long[] createAccounts(List<AccountDetails> accounts) throws SQLException {
+        return local.createAccounts(accounts);
+    }
+
+    @Override
+    public AccountDetails getAccountDetails(long accountId) throws SQLException, AccountNotFoundException {
+        if (Partitioning.isLocal(accountId)) {
+            return local.getAccountDetails(accountId);
+        }
+        return client.getAccountDetails(Partitioning.partitionOf(accountId), accountId);
+    }
+
+    @Override
+    public void transferMoney(long senderId, long recipientId, BigDecimal amount)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        if (Partitioning.isLocal(senderId) && Partitioning.isLocal(recipientId)) {
+            local.transferMoney(senderId, recipientId, amount);
+            return;
+        }
+        try {
+            transferMoney(senderId, recipientId, amount, null);
+        } catch (IdempotencyKeyReusedException e) {
+            // not thrown without a key
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean transferMoney(long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        if (!Partitioning.isLocal(senderId)) {
+            return client.transferMoney(Partitioning.partitionOf(senderId), senderId, recipientId, amount,
+                    idempotencyKey);
+        }
+        if (Partitioning.isLocal(recipientId)) {
+            return local.transferMoney(senderId, recipientId, amount, idempotencyKey);
+        }
+        return coordinate(senderId, recipientId, amount, idempotencyKey);
+    }
+
+    private boolean coordinate(long senderId, long recipientId, BigDecimal amount, String idempotencyKey)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException, IdempotencyKeyReusedException {
+        String txId = Partitioning.getIndex() + "-" + UUID.randomUUID();
+        int participant = Partitioning.partitionOf(recipientId);
+        Currency currency = local.reserveDebit(txId, senderId, recipientId, amount, idempotencyKey);
+        if (currency == null) {
+            return false;
+        }
+        CoordinatorLog.Transfer transfer = new CoordinatorLog.Transfer(txId, senderId, recipientId, amount, currency,
+                participant);
+        transfers.put(txId, transfer);
+        try {
+            log.prepared(transfer);
+            client.prepare(participant, txId, recipientId, senderId, amount, currency);
+        } catch (AccountNotFoundException | CurrencyMismatchException | PartitionUnavailableException e) {
+            abort(transfer);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            abort(transfer);
+            throw new SQLException(e);
+        }
+        if (!decide(transfer, true)) {
+            // a participant in doubt asked first and aborted it
+            complete(transfer);
+            throw new PartitionUnavailableException(participant, new IllegalStateException(txId + " timed out"));
+        }
+        complete(transfer);
+        return true;
+    }
+
+    /**
+     * Logs the decision unless the transfer is decided already.
+     *
+     * @return the decision in effect
+     */
+    private boolean decide(CoordinatorLog.Transfer transfer, boolean commit) throws SQLException {
+        synchronized (transfer) {
+            if (transfer.outcome == null) {
+                try {
+                    log.decided(transfer.txId, commit);
+                } catch (IOException e) {
+                    throw new SQLException(e);
+                }
+                transfer.outcome = commit;
+                (commit ? committed : aborted).increment();
+            }
+            return transfer.outcome;
+        }
+    }
+
+    private void abort(CoordinatorLog.Transfer transfer) throws SQLException {
+        if (decide(transfer, false)) {
+            throw new IllegalStateException(transfer.txId + " was committed before it was prepared");
+        }
+        complete(transfer);
+    }
+
+    /**
+     * Applies the decision on both partitions; on failure the recovery task tries again later.
+     */
+    private void complete(CoordinatorLog.Transfer transfer) {
+        try {
+            // the coordinator's own half may be resolved already when this is retried after a restart
+            local.resolvePending(transfer.txId, transfer.outcome);
+            client.resolve(transfer.participant, transfer.txId, transfer.outcome);
+            log.done(transfer.txId);
+            transfers.remove(transfer.txId);
+        } catch (Exception e) {
+            logger.warn("{} of {} is left to recovery: {}", transfer.outcome ? "commit" : "abort", transfer.txId,
+                    e.toString());
+        }
+    }
+
+    /**
+     * Participant side of the first phase.
+     */
+    public void prepareCredit(String txId, long recipientId, long senderId, BigDecimal amount, Currency currency)
+            throws SQLException, AccountNotFoundException, CurrencyMismatchException {
+        if (!Partitioning.isLocal(recipientId)) {
+            throw new AccountNotFoundException(recipientId);
+        }
+        local.reserveCredit(txId, recipientId, senderId, amount, currency);
+    }
+
+    /**
+     * Participant side of the second phase. The decision is checked with the coordinator before it is applied;
+     * repeating it has no effect.
+     *
+     * @throws IllegalStateException if the coordinator decided otherwise, or if the transfer is neither pending
+     *                               nor known to be resolved that way here
+     */
+    public void resolve(String txId, boolean commit) throws SQLException {
+        if (client.isCommitted(coordinatorOf(txId), txId) != commit) {
+            throw new IllegalStateException("coordinator of " + txId + " did not decide to "
+                    + (commit ? "commit" : "abort") + " it");
+        }
+        apply(txId, commit);
+    }
+
+    private void apply(String txId, boolean commit) throws SQLException {
+        if (local.resolvePending(txId, commit)) {
+            return;
+        }
+        Boolean resolution = local.getResolution(txId);
+        // an abort of a transfer that was never prepared here is expected, a commit of one is not
+        if (commit ? !Boolean.TRUE.equals(resolution) : Boolean.TRUE.equals(resolution)) {
+            throw new IllegalStateException("nothing to " + (commit ? "commit" : "abort") + " under " + txId
+                    + (resolution == null ? "" : ", it was " + (resolution ? "committed" : "aborted")));
+        }
+    }
+
+    private static int coordinatorOf(String txId) {
+        return Integer.parseInt(txId.substring(0, txId.indexOf('-')));
+    }
+
+    /**
+     * Coordinator's answer to a participant in doubt. A transfer that is not registered here was either never
+     * prepared, so it is presumed aborted, or is done already, in which case the participant holds nothing for it.
+     */
+    public boolean isCommitted(String txId) throws SQLException {
+        CoordinatorLog.Transfer transfer = transfers.get(txId);
+        return transfer != null && decide(transfer, false);
+    }
+
+    private void recover() {
+        try {
+            for (CoordinatorLog.Transfer transfer : transfers.values()) {
+                synchronized (transfer) {
+                    if (transfer.outcome == null) {
+                        continue;
+                    }
+                }
+                complete(transfer);
+            }
+            log.truncateIf(logMaxBytes, transfers::isEmpty);
+            List<String> inDoubt;
+            try (AccountHelper helper = new AccountHelper()) {
+                inDoubt = helper.findPendingCredits(System.currentTimeMillis() - inDoubtMillis);
+                helper.purgeResolved(System.currentTimeMillis() - resolvedRetentionMillis);
+            }
+            for (String txId : inDoubt) {
+                apply(txId, client.isCommitted(coordinatorOf(txId), txId));
+            }
+        } catch (Exception e) {
+            logger.warn("cross-partition recovery failed: {}", e.toString());
+        }
+    }
+
+    /**
+     * Batches whose accounts are all local run on the local engine. Others are supported only per item, as
+     * atomicity across partitions would need the batch to be one distributed transaction. An item that cannot
+     * reach its partition gets {@link MoneyTransferStatus#UNAVAILABLE}, as do the later items of that partition
+     * without trying it again, and the other items still run, so the statuses always tell which items moved money.
+     *
+     * @throws BatchSpansPartitionsException if an all-or-nothing batch spans partitions
+     */
+    @Override
+    public MoneyTransferStatus[] transferMoney(List<TransferRequest> transfers, BatchMode mode) throws SQLException {
+        boolean allLocal = true;
+        for (TransferRequest transfer : transfers) {
+            allLocal &= Partitioning.isLocal(transfer.getFrom()) && Partitioning.isLocal(transfer.getTo());
+        }
+        if (allLocal) {
+            return local.transferMoney(transfers, mode);
+        }
+        if (mode != BatchMode.PER_ITEM) {
+            throw new BatchSpansPartitionsException();
+        }
+        MoneyTransferStatus[] result = new MoneyTransferStatus[transfers.size()];
+        BitSet unavailable = new BitSet(Partitioning.getCount());
+        for (int i = 0; i < result.length; i++) {
+            TransferRequest transfer = transfers.get(i);
+            if (unavailable.get(Partitioning.partitionOf(transfer.getFrom()))
+                    || unavailable.get(Partitioning.partitionOf(transfer.getTo()))) {
+                result[i] = MoneyTransferStatus.UNAVAILABLE;
+                continue;
+            }
+            try {
+                transferMoney(transfer.getFrom(), transfer.getTo(), transfer.getAmount());
+                result[i] = MoneyTransferStatus.SUCCESS;
+            } catch (AccountNotFoundException e) {
+                result[i] = MoneyTransferStatus.ACCOUNT_NOT_FOUND;
+            } catch (CurrencyMismatchException e) {
+                result[i] = MoneyTransferStatus.CURRENCY_MISMATCH;
+            } catch (InsufficientFundsException e) {
+                result[i] = MoneyTransferStatus.INSUFFICIENT_FUNDS;
+            } catch (AmountTooSmallException e) {
+                result[i] = MoneyTransferStatus.AMOUNT_TOO_SMALL;
+            } catch (PartitionUnavailableException e) {
+                logger.warn("batch item {} failed: {}", i, e.toString());
+                unavailable.set(e.getPartition());
+                result[i] = MoneyTransferStatus.UNAVAILABLE;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void shardAccount(long accountId, int shards) throws SQLException, AccountNotFoundException {
+        if (!Partitioning.isLocal(accountId)) {
+            throw new AccountNotFoundException(accountId);
+        }
+        local.shardAccount(accountId, shards);
+    }
+
+    @Override
+    public TransferHistory getTransfers(long accountId, long afterId, int limit)
+            throws SQLException, AccountNotFoundException {
+        if (!Partitioning.isLocal(accountId)) {
+            throw new UnsupportedOperationException("account " + accountId + " is kept by partition "
+                    + Partitioning.partitionOf(accountId));
+        }
+        return local.getTransfers(accountId, afterId, limit);
+    }
+
+    @Override
+    public void close() throws Exception {
+        recovery.shutdownNow();
+        client.close();
+        log.close();
+        local.close();
+    }
+}
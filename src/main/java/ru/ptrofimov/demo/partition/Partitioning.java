@@ -0,0 +1,89 @@
+package ru.ptrofimov.demo.partition;
+
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Placement of accounts in a partitioned deployment. Every {@link ru.ptrofimov.demo.App} instance is given
+ * the base URLs of all instances ({@code demo.partition.peers}) and its own position in that list
+ * ({@code demo.partition.index}); an account lives on partition {@code id mod count}, and each instance
+ * allocates ids of its own residue only. Without peers there is a single partition.
+ * <p>
+ * The partitions talk to each other through an internal API that moves money, so every such request carries the
+ * shared {@code demo.partition.secret}, without which a partitioned instance refuses to start.
+ */
+public final class Partitioning {
+
+    private static final String[] PEERS = parsePeers(ConfigUtils.getString("partition.peers", ""));
+    private static final int COUNT = Math.max(1, PEERS.length);
+    private static final int INDEX = ConfigUtils.getInt("partition.index", 0);
+    private static final String SECRET = ConfigUtils.getString("partition.secret", null);
+
+    static {
+        if (INDEX < 0 || INDEX >= COUNT) {
+            throw new IllegalArgumentException("partition index " + INDEX + " is out of range for " + COUNT + " peers");
+        }
+        if (COUNT > 1 && (SECRET == null || SECRET.isEmpty())) {
+            throw new IllegalArgumentException("partitioning requires demo.partition.secret");
+        }
+    }
+
+    private Partitioning() {
+    }
+
+    private static String[] parsePeers(String value) {
+        if (value.trim().isEmpty()) {
+            return new String[0];
+        }
+        String[] result = value.split(",");
+        for (int i = 0; i < result.length; i++) {
+            result[i] = result[i].trim().replaceAll("/+$", "");
+        }
+        return result;
+    }
+
+    public static boolean isEnabled() {
+        return COUNT > 1;
+    }
+
+    public static int getCount() {
+        return COUNT;
+    }
+
+    public static int getIndex() {
+        return INDEX;
+    }
+
+    public static int partitionOf(long accountId) {
+        return (int) Math.floorMod(accountId, (long) COUNT);
+    }
+
+    public static boolean isLocal(long accountId) {
+        return partitionOf(accountId) == INDEX;
+    }
+
+    /**
+     * @return smallest id not below {@code minId} that belongs to this partition
+     */
+    public static long firstLocalId(long minId) {
+        return minId + Math.floorMod(INDEX - minId, (long) COUNT);
+    }
+
+    static String peerUrl(int partition) {
+        return PEERS[partition];
+    }
+
+    static String getSecret() {
+        return SECRET;
+    }
+
+    /**
+     * @return whether {@code secret} is the shared secret of the partitions; compared in constant time
+     */
+    public static boolean isAuthorized(String secret) {
+        return SECRET != null && secret != null && MessageDigest.isEqual(SECRET.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+}
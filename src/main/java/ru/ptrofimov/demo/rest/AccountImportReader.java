@@ -0,0 +1,233 @@
+package ru.ptrofimov.demo.rest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the body of a bulk account import one record at a time, so a body of any size is imported in
+ * constant memory. Records are either newline-delimited JSON objects shaped like {@link AccountDetails} or
+ * CSV lines {@code currency,balance,owner} after an optional header line; currencies may be given by name or
+ * by short name. A record with a missing or invalid field is rejected on its own, while malformed JSON ends
+ * the import with an {@link IOException}.
+ */
+abstract class AccountImportReader implements Closeable {
+
+    static final String NDJSON = "application/x-ndjson";
+    static final String CSV = "text/csv";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private AccountDetails account;
+    private String error;
+
+    static AccountImportReader open(String mediaType, InputStream stream) throws IOException {
+        return mediaType.startsWith(CSV) ? new Csv(stream) : new Ndjson(stream);
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return {@code false} at the end of the body
+     */
+    abstract boolean next() throws IOException;
+
+    /**
+     * @return the current record, or {@code null} if it was rejected
+     */
+    AccountDetails getAccount() {
+        return account;
+    }
+
+    /**
+     * @return why the current record was rejected
+     */
+    String getError() {
+        return error;
+    }
+
+    void accept(String currency, BigDecimal balance, String owner) {
+        account = null;
+        if (currency == null || balance == null || owner == null) {
+            error = "currency, balance and owner are required";
+        } else if (balance.signum() < 0) {
+            error = "balance is negative";
+        } else if (!Money.isWholeCents(balance)) {
+            error = "balance has fractions of a cent";
+        } else if (owner.length() > AccountDetails.MAX_OWNER_LENGTH) {
+            error = "owner is longer than " + AccountDetails.MAX_OWNER_LENGTH + " characters";
+        } else {
+            try {
+                account = new AccountDetails(toCurrency(currency), Money.toBigDecimal(Money.of(balance)), owner);
+                error = null;
+            } catch (IllegalArgumentException e) {
+                error = "unknown currency " + currency;
+            } catch (ArithmeticException e) {
+                error = "balance is too large";
+            }
+        }
+    }
+
+    void reject(String error) {
+        account = null;
+        this.error = error;
+    }
+
+    private static Currency toCurrency(String value) {
+        for (Currency currency : Currency.values()) {
+            if (currency.name().equals(value)) {
+                return currency;
+            }
+        }
+        return Currency.fromString(value);
+    }
+
+    private static final class Ndjson extends AccountImportReader {
+
+        private final JsonParser parser;
+
+        Ndjson(InputStream stream) throws IOException {
+            parser = JSON_FACTORY.createParser(stream);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return false;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                reject("not an object");
+                return true;
+            }
+            String currency = null;
+            BigDecimal balance = null;
+            String owner = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (field) {
+                    case "currency":
+                        currency = parser.getValueAsString();
+                        break;
+                    case "balance":
+                        balance = value.isNumeric() ? parser.getDecimalValue() : decimal(parser.getValueAsString());
+                        break;
+                    case "owner":
+                        owner = parser.getValueAsString();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            accept(currency, balance, owner);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            parser.close();
+        }
+    }
+
+    private static final class Csv extends AccountImportReader {
+
+        private final BufferedReader reader;
+        private final List<String> fields = new ArrayList<>(3);
+        private boolean first = true;
+
+        Csv(InputStream stream) {
+            reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+            } while (line.trim().isEmpty());
+            if (!split(line)) {
+                reject("unterminated quote");
+                return true;
+            }
+            if (first) {
+                first = false;
+                if (fields.get(0).trim().equalsIgnoreCase("currency")) {
+                    return next();
+                }
+            }
+            if (fields.size() != 3) {
+                reject("expected 3 fields, found " + fields.size());
+                return true;
+            }
+            accept(fields.get(0).trim(), decimal(fields.get(1).trim()), fields.get(2));
+            return true;
+        }
+
+        /**
+         * Splits an RFC 4180 line; quoted fields may contain commas and doubled quotes, but not line breaks.
+         *
+         * @return {@code false} if a quote is not closed
+         */
+        private boolean split(String line) {
+            fields.clear();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString());
+            return !quoted;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private static BigDecimal decimal(String value) {
+        try {
+            return value == null ? null : new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
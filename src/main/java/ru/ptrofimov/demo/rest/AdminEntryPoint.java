@@ -0,0 +1,71 @@
+package ru.ptrofimov.demo.rest;
+
+import ru.ptrofimov.demo.logic.ConservationChecker;
+import ru.ptrofimov.demo.model.ConservationReport;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+
+import static ru.ptrofimov.demo.rest.PathConstants.ADMIN;
+import static ru.ptrofimov.demo.rest.PathConstants.ADMIN_SECRET;
+import static ru.ptrofimov.demo.rest.PathConstants.CONSERVATION;
+
+/**
+ * Operational API. Every request must carry {@code demo.admin.secret} in {@code X-Admin-Secret}, or it is answered
+ * with {@code 403}; without that setting the API is closed. Answers {@code 404} for the {@link ConservationChecker}
+ * when it is not running, i.e. it is disabled or the engine does not report to it.
+ */
+@Path("/" + ADMIN)
+public class AdminEntryPoint {
+
+    private static final String SECRET = ConfigUtils.getString("admin.secret", null);
+
+    /**
+     * @return the latest reconciliation, made now if there was none yet
+     */
+    @GET
+    @Path(CONSERVATION)
+    @Produces(MediaType.APPLICATION_JSON)
+    public ConservationReport getConservation(@HeaderParam(ADMIN_SECRET) String secret) throws SQLException {
+        authorize(secret);
+        checkStarted();
+        ConservationReport report = ConservationChecker.getLastReport();
+        return report != null ? report : ConservationChecker.reconcileOnDemand();
+    }
+
+    /**
+     * @return a reconciliation made now, unless one is in progress or was made less than
+     * {@code conservation.minIntervalMillis} ago; its report is returned then
+     */
+    @POST
+    @Path(CONSERVATION)
+    @Produces(MediaType.APPLICATION_JSON)
+    public ConservationReport reconcile(@HeaderParam(ADMIN_SECRET) String secret) throws SQLException {
+        authorize(secret);
+        checkStarted();
+        return ConservationChecker.reconcileOnDemand();
+    }
+
+    private static void authorize(String secret) {
+        if (SECRET == null || SECRET.isEmpty() || secret == null || !MessageDigest.isEqual(
+                SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8))) {
+            throw new ForbiddenException();
+        }
+    }
+
+    private static void checkStarted() {
+        if (!ConservationChecker.isStarted()) {
+            throw new NotFoundException();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package ru.ptrofimov.demo.rest;
+
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
+import ru.ptrofimov.demo.model.MoneyTransferResponse;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact big-endian encoding of the model classes, negotiated with the {@value #APPLICATION_MONEY_TRANSFER} media type as an
+ * alternative to JSON:
+ * <ul>
+ * <li>{@link AccountDetails}: {@code long id, byte currency, long balance, short ownerLength, owner};</li>
+ * <li>{@link TransferRequest}: {@code long from, long to, long amount};</li>
+ * <li>{@link MoneyTransferResponse}: {@code byte status};</li>
+ * <li>a list of transfer requests or responses: {@code int count} followed by the elements.</li>
+ * </ul>
+ * Amounts are {@link Money minor units}, enums are ordinal bytes and the owner is UTF-8. An absent currency or
+ * status is {@code -1}, an absent amount {@link Long#MIN_VALUE} and an absent owner has length {@code -1}.
+ */
+@Provider
+@Consumes(BinaryFormat.APPLICATION_MONEY_TRANSFER)
+@Produces(BinaryFormat.APPLICATION_MONEY_TRANSFER)
+public final class BinaryFormat implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+    public static final String APPLICATION_MONEY_TRANSFER = "application/x-money-transfer";
+    public static final MediaType APPLICATION_MONEY_TRANSFER_TYPE = MediaType.valueOf(APPLICATION_MONEY_TRANSFER);
+
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final MoneyTransferStatus[] STATUSES = MoneyTransferStatus.values();
+    private static final long NO_AMOUNT = Long.MIN_VALUE;
+    private static final int TRANSFER_BYTES = 3 * Long.BYTES;
+    private static final int RESPONSE_BYTES = 1;
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == AccountDetails.class || type == TransferRequest.class || type == MoneyTransferResponse.class
+                || type == List.class && elementSize(genericType) > 0;
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+        DataInputStream in = new DataInputStream(entityStream);
+        try {
+            Class<?> entityType = type;
+            if (entityType == AccountDetails.class) {
+                return readAccountDetails(in);
+            }
+            if (entityType == TransferRequest.class) {
+                byte[] bytes = new byte[TRANSFER_BYTES];
+                in.readFully(bytes);
+                return readTransferRequest(ByteBuffer.wrap(bytes));
+            }
+            if (entityType == MoneyTransferResponse.class) {
+                return new MoneyTransferResponse(STATUSES[in.readByte()]);
+            }
+            return readList(in, elementSize(genericType));
+        } catch (EOFException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new BadRequestException("malformed " + APPLICATION_MONEY_TRANSFER + " body", e);
+        }
+    }
+
+    private static AccountDetails readAccountDetails(DataInputStream in) throws IOException {
+        AccountDetails result = new AccountDetails();
+        result.setId(in.readLong());
+        byte currency = in.readByte();
+        result.setCurrency(currency < 0 ? null : CURRENCIES[currency]);
+        result.setBalance(toBigDecimal(in.readLong()));
+        short ownerLength = in.readShort();
+        if (ownerLength >= 0) {
+            byte[] owner = new byte[ownerLength];
+            in.readFully(owner);
+            result.setOwner(new String(owner, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    private static TransferRequest readTransferRequest(ByteBuffer buffer) {
+        return new TransferRequest(buffer.getLong(), buffer.getLong(), toBigDecimal(buffer.getLong()));
+    }
+
+    /**
+     * Reads the elements with one {@code readFully}, so a batch costs no more stream calls than one transfer.
+     */
+    private static List<Object> readList(DataInputStream in, int elementSize) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MoneyTransferEntryPoint.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("list of " + count + " elements");
+        }
+        byte[] bytes = new byte[count * elementSize];
+        in.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        List<Object> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(elementSize == TRANSFER_BYTES
+                    ? readTransferRequest(buffer)
+                    : new MoneyTransferResponse(STATUSES[buffer.get()]));
+        }
+        return result;
+    }
+
+    /**
+     * @return encoded size of an element of a list of {@code genericType}, or {@code 0} if it is not a list of
+     * transfer requests or responses
+     */
+    private static int elementSize(Type genericType) {
+        if (genericType instanceof ParameterizedType) {
+            Type element = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+            if (element == TransferRequest.class) {
+                return TRANSFER_BYTES;
+            }
+            if (element == MoneyTransferResponse.class) {
+                return RESPONSE_BYTES;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Lists are checked element by element when written, as the resources return them without their generic type.
+     */
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == AccountDetails.class || type == TransferRequest.class || type == MoneyTransferResponse.class
+                || List.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(Object entity, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Object entity, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+        ByteBuffer buffer;
+        if (entity instanceof AccountDetails) {
+            buffer = writeAccountDetails((AccountDetails) entity);
+        } else if (entity instanceof List) {
+            List<?> list = (List<?>) entity;
+            int size = Integer.BYTES;
+            for (Object element : list) {
+                size += element instanceof TransferRequest ? TRANSFER_BYTES : RESPONSE_BYTES;
+            }
+            buffer = ByteBuffer.allocate(size);
+            buffer.putInt(list.size());
+            for (Object element : list) {
+                write(buffer, element);
+            }
+        } else {
+            buffer = ByteBuffer.allocate(TRANSFER_BYTES);
+            write(buffer, entity);
+        }
+        entityStream.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static ByteBuffer writeAccountDetails(AccountDetails details) {
+        byte[] owner = details.getOwner() == null ? null : details.getOwner().getBytes(StandardCharsets.UTF_8);
+        if (owner != null && owner.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("owner of " + owner.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + 1 + Long.BYTES + Short.BYTES
+                + (owner == null ? 0 : owner.length));
+        buffer.putLong(details.getId());
+        buffer.put(details.getCurrency() == null ? -1 : (byte) details.getCurrency().ordinal());
+        buffer.putLong(details.getBalance() == null ? NO_AMOUNT : Money.of(details.getBalance()));
+        buffer.putShort(owner == null ? -1 : (short) owner.length);
+        if (owner != null) {
+            buffer.put(owner);
+        }
+        return buffer;
+    }
+
+    private static void write(ByteBuffer buffer, Object element) {
+        if (element instanceof TransferRequest) {
+            TransferRequest transfer = (TransferRequest) element;
+            buffer.putLong(transfer.getFrom());
+            buffer.putLong(transfer.getTo());
+            buffer.putLong(transfer.getAmount() == null ? NO_AMOUNT : Money.of(transfer.getAmount()));
+        } else if (element instanceof MoneyTransferResponse) {
+            MoneyTransferStatus status = ((MoneyTransferResponse) element).getStatus();
+            buffer.put(status == null ? -1 : (byte) status.ordinal());
+        } else {
+            throw new IllegalArgumentException("cannot write " + element.getClass().getName() + " as " + APPLICATION_MONEY_TRANSFER);
+        }
+    }
+
+    private static BigDecimal toBigDecimal(long minorUnits) {
+        return minorUnits == NO_AMOUNT ? null : Money.toBigDecimal(minorUnits);
+    }
+}
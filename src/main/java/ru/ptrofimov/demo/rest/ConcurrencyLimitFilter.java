@@ -0,0 +1,178 @@
+package ru.ptrofimov.demo.rest;
+
+import ru.ptrofimov.demo.journal.TransferAuditLog;
+import ru.ptrofimov.demo.logic.LedgerEngines;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.utils.ConcurrencyLimiter;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.HttpHeaders;
+import java.io.IOException;
+
+/**
+ * Sheds requests to {@link MoneyTransferEntryPoint} beyond the {@link ConcurrencyLimiter adaptive limit} with an
+ * immediate {@code 503} and {@code Retry-After}, before they take a thread or a connection. Transfers and batches
+ * have priority: other requests only get the part of the limit not reserved for them. A request is in flight
+ * until its response is complete, including the time it spends suspended. Shed transfers are audited as
+ * {@link TransferAuditLog#UNAVAILABLE} from the path alone, as the body is never read for a request that is
+ * shed: a single transfer with its recipient but no sender or amount, a batch as one record without accounts.
+ */
+public class ConcurrencyLimitFilter implements Filter {
+
+    private final ConcurrencyLimiter limiter;
+
+    public ConcurrencyLimitFilter() {
+        this(new ConcurrencyLimiter(ConfigUtils.getInt("rest.limit.initial", 50),
+                ConfigUtils.getInt("rest.limit.min", 4),
+                ConfigUtils.getInt("rest.limit.max", ConfigUtils.getInt("jetty.maxThreads", 200)),
+                Double.parseDouble(ConfigUtils.getString("rest.limit.reservedShare", "0.25")),
+                ConfigUtils.getLong("rest.limit.windowMillis", 100)));
+    }
+
+    public ConcurrencyLimitFilter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        Metrics.gauge("rest_concurrency_limit", "Requests allowed in flight", limiter::getLimit);
+        Metrics.gauge("rest_in_flight", "Requests in flight under the concurrency limit", limiter::getInFlight);
+        Metrics.counterGauge("rest_shed_total", "Requests rejected with 503 over the concurrency limit",
+                () -> limiter.getRejectedCount(true), "priority", "transfer");
+        Metrics.counterGauge("rest_shed_total", "Requests rejected with 503 over the concurrency limit",
+                () -> limiter.getRejectedCount(false), "priority", "other");
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        boolean transfer = isTransfer(request);
+        if (!limiter.tryAcquire(transfer)) {
+            if (transfer) {
+                audit(request);
+            }
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader(HttpHeaders.RETRY_AFTER, RequestDispatcher.RETRY_AFTER_SECONDS);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean released = true;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // suspended requests are answered later, possibly by another thread
+                request.getAsyncContext().addListener(new Release(start));
+                released = false;
+            }
+        } finally {
+            if (released) {
+                release(start, response);
+            }
+        }
+    }
+
+    private void release(long start, ServletResponse response) {
+        limiter.release(System.nanoTime() - start, isOverload(((HttpServletResponse) response).getStatus()));
+    }
+
+    /**
+     * Only answers that say the server behind the filter was saturated lower the limit: a {@code 503} from a full
+     * executor or an exhausted pool, and a {@code 504}. Other errors, such as the {@code 400} of an atomic batch
+     * spanning partitions, say nothing about load.
+     */
+    static boolean isOverload(int status) {
+        return status == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                || status == HttpServletResponse.SC_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * @return whether the request moves money: a single transfer or a batch
+     */
+    static boolean isTransfer(HttpServletRequest request) {
+        if (!HttpMethod.POST.equals(request.getMethod())) {
+            return false;
+        }
+        String path = request.getRequestURI();
+        return path.endsWith("/balance") || path.endsWith("/" + PathConstants.TRANSFERS);
+    }
+
+    private static void audit(HttpServletRequest request) {
+        TransferAuditLog auditLog = LedgerEngines.getAuditLog();
+        if (auditLog == null) {
+            return;
+        }
+        String path = request.getRequestURI();
+        if (!path.endsWith("/balance")) {
+            auditLog.record(0, 0, null, TransferAuditLog.UNAVAILABLE, TransferAuditLog.BATCH_ITEM);
+            return;
+        }
+        String[] segments = path.split("/");
+        auditLog.record(0, parseId(segments[segments.length - 2]), null, TransferAuditLog.UNAVAILABLE, 0);
+    }
+
+    private static long parseId(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private final class Release implements AsyncListener {
+        private final long start;
+        private boolean done;
+
+        Release(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish(event, false);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            finish(event, true);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish(event, false);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+
+        private synchronized void finish(AsyncEvent event, boolean failed) {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (failed) {
+                limiter.release(System.nanoTime() - start, true);
+            } else {
+                release(start, event.getSuppliedResponse());
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ru.ptrofimov.demo.rest;
+
+import ru.ptrofimov.demo.metrics.Metrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import static ru.ptrofimov.demo.rest.PathConstants.METRICS;
+
+@Path("/" + METRICS)
+public class MetricsEntryPoint {
+
+    static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    @GET
+    @Produces(PROMETHEUS_TEXT)
+    public StreamingOutput getMetrics() {
+        return output -> {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            Metrics.write(writer);
+            writer.flush();
+        };
+    }
+}
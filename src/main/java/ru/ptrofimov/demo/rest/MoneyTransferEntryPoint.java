@@ -1,22 +1,55 @@
 package ru.ptrofimov.demo.rest;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.AmountTooSmallException;
+import ru.ptrofimov.demo.exceptions.BatchSpansPartitionsException;
 import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyInProgressException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
 import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
-import ru.ptrofimov.demo.logic.AccountHelper;
+import ru.ptrofimov.demo.exceptions.PartitionUnavailableException;
+import ru.ptrofimov.demo.journal.TransferAuditLog;
+import ru.ptrofimov.demo.logic.IdempotencyKeys;
+import ru.ptrofimov.demo.logic.LedgerEngine;
+import ru.ptrofimov.demo.logic.LedgerEngines;
+import ru.ptrofimov.demo.logic.SequencedLedgerEngine;
+import ru.ptrofimov.demo.logic.Snapshot;
+import ru.ptrofimov.demo.logic.TransferHistory;
+import ru.ptrofimov.demo.metrics.LatencyHistogram;
+import ru.ptrofimov.demo.metrics.Metrics;
 import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
 import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.Money;
 import ru.ptrofimov.demo.model.MoneyTransferResponse;
 import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.utils.ConfigUtils;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import static ru.ptrofimov.demo.rest.BinaryFormat.APPLICATION_MONEY_TRANSFER;
 import static ru.ptrofimov.demo.rest.PathConstants.*;
 
 @Path("/" + MONEY_TRANSFER_ENTRY_POINT)
@@ -26,6 +59,50 @@ public class MoneyTransferEntryPoint {
 
     static final String GREETING_TEXT = "I'm a lean mean money transferring machine";
 
+    static final int MAX_BATCH_SIZE = ConfigUtils.getInt("batch.maxSize", 10_000);
+    private static final int MAX_HISTORY_LIMIT = ConfigUtils.getInt("history.maxLimit", 10_000);
+    private static final int IMPORT_CHUNK_SIZE = ConfigUtils.getInt("import.chunkSize", 10_000);
+    private static final String PARTITION_RETRY_AFTER_SECONDS = "1";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final int UNPROCESSABLE_ENTITY = 422;
+
+    private static final String LATENCY_METRIC = "http_request_duration_seconds";
+    private static final String LATENCY_HELP = "Time to handle a request";
+    private static final LatencyHistogram createAccountLatency =
+            Metrics.histogram(LATENCY_METRIC, LATENCY_HELP, "endpoint", "createAccount");
+    private static final LatencyHistogram getAccountLatency =
+            Metrics.histogram(LATENCY_METRIC, LATENCY_HELP, "endpoint", "getAccountDetails");
+    private static final LatencyHistogram transferLatency =
+            Metrics.histogram(LATENCY_METRIC, LATENCY_HELP, "endpoint", "transferMoney");
+    private static final LatencyHistogram batchTransferLatency =
+            Metrics.histogram(LATENCY_METRIC, LATENCY_HELP, "endpoint", "batchTransfer");
+    private static final LatencyHistogram transferHistoryLatency =
+            Metrics.histogram(LATENCY_METRIC, LATENCY_HELP, "endpoint", "getTransfers");
+    private static final LatencyHistogram importLatency =
+            Metrics.histogram(LATENCY_METRIC, LATENCY_HELP, "endpoint", "importAccounts");
+
+    private static final LongAdder importedAccounts =
+            Metrics.counter("import_accounts_total", "Accounts created by bulk imports");
+    private static final LongAdder rejectedAccounts =
+            Metrics.counter("import_rejected_total", "Bulk import records rejected as invalid");
+    private static final LatencyHistogram importChunkLatency = Metrics.histogram("import_chunk_duration_seconds",
+            "Time to insert and commit one chunk of a bulk import");
+    private static final AtomicInteger activeImports = new AtomicInteger();
+
+    static {
+        Metrics.gauge("import_active", "Bulk imports in progress", activeImports::get);
+    }
+
+    private static final LongAdder[] outcomes = new LongAdder[MoneyTransferStatus.values().length];
+
+    static {
+        for (MoneyTransferStatus status : MoneyTransferStatus.values()) {
+            outcomes[status.ordinal()] = Metrics.counter("transfer_outcomes_total",
+                    "Transfers by outcome, batch items included", "status", status.name());
+        }
+    }
+
     @GET
     @Path(GREETING_PATH)
     @Produces(MediaType.TEXT_PLAIN)
@@ -35,63 +112,431 @@ public class MoneyTransferEntryPoint {
 
     @POST
     @Path(ACCOUNTS)
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_MONEY_TRANSFER})
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_MONEY_TRANSFER})
+    public void createAccount(AccountDetails accountDetails, @Suspended AsyncResponse asyncResponse) {
+        if (!isValid(accountDetails)) {
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+        RequestDispatcher.dispatch(createAccountLatency, asyncResponse, () -> {
+            try {
+                Currency currency = Objects.requireNonNull(accountDetails.getCurrency());
+                BigDecimal balance = Objects.requireNonNull(accountDetails.getBalance());
+                String owner = Objects.requireNonNull(accountDetails.getOwner());
+                logger.trace("inserting currency = {} balance = {} owner = {}", currency, balance, owner);
+                return Response.ok(LedgerEngines.get().createAccount(currency, balance, owner)).build();
+            } catch (RejectedExecutionException ree) {
+                // the journal failed
+                return RequestDispatcher.unavailable();
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * May be answered from the account replica; {@code X-Snapshot-Age-Millis} tells how far the answer can lag
+     * behind the latest commits.
+     */
+    @GET
+    @Path(ACCOUNTS + "/{accountId}")
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_MONEY_TRANSFER})
+    public void getAccountDetails(@PathParam("accountId") long accountId, @Suspended AsyncResponse asyncResponse) {
+        RequestDispatcher.dispatch(getAccountLatency, asyncResponse, () -> {
+            try {
+                Snapshot<AccountDetails> account = LedgerEngines.get().getAccountSnapshot(accountId);
+                return Response.ok(account.getValue()).header(SNAPSHOT_AGE, account.getAgeMillis()).build();
+            } catch (AccountNotFoundException accEx) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            } catch (PartitionUnavailableException pue) {
+                return unavailable(pue);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Creates the accounts of a streamed NDJSON or CSV body, see {@link AccountImportReader}, and streams back a
+     * JSON array with the id of every record in input order, {@code null} for rejected ones. Every
+     * {@code import.chunkSize} records are committed in their own transaction before their ids are written, so
+     * an interrupted import keeps the chunks whose ids were received.
+     */
+    @POST
+    @Path(ACCOUNTS + "/" + IMPORT)
+    @Consumes({AccountImportReader.NDJSON, AccountImportReader.CSV})
     @Produces(MediaType.APPLICATION_JSON)
-    public AccountDetails createAccount(AccountDetails accountDetails) throws Exception {
+    public void importAccounts(@HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType, InputStream body,
+                               @Suspended AsyncResponse asyncResponse) {
+        RequestDispatcher.dispatch(importLatency, asyncResponse, () -> {
+            LedgerEngine engine = LedgerEngines.get();
+            StreamingOutput output = stream -> {
+                activeImports.incrementAndGet();
+                try (AccountImportReader reader = AccountImportReader.open(contentType, body);
+                     JsonGenerator generator = JSON_FACTORY.createGenerator(stream)) {
+                    generator.writeStartArray();
+                    importAccounts(engine, reader, generator);
+                    generator.writeEndArray();
+                } catch (SQLException e) {
+                    logger.error(e.getMessage(), e);
+                    throw new WebApplicationException(e);
+                } finally {
+                    activeImports.decrementAndGet();
+                }
+            };
+            return Response.ok(output).build();
+        });
+    }
+
+    private static void importAccounts(LedgerEngine engine, AccountImportReader reader, JsonGenerator generator)
+            throws IOException, SQLException {
+        long start = System.nanoTime();
+        long records = 0;
+        long rejected = 0;
+        // null stands for a rejected record
+        List<AccountDetails> chunk = new ArrayList<>(Math.min(IMPORT_CHUNK_SIZE, 1024));
         try {
-            Currency currency = Objects.requireNonNull(accountDetails.getCurrency());
-            BigDecimal balance = Objects.requireNonNull(accountDetails.getBalance());
-            String owner = Objects.requireNonNull(accountDetails.getOwner());
-            try (AccountHelper helper = new AccountHelper()) {
-                logger.trace("inserting currency = {} balance = {} owner = {}", currency, balance, owner);
-                return helper.createAccount(currency, balance, owner);
+            while (reader.next()) {
+                records++;
+                AccountDetails account = reader.getAccount();
+                if (account == null) {
+                    rejected++;
+                    rejectedAccounts.increment();
+                    logger.debug("import record {} rejected: {}", records, reader.getError());
+                }
+                chunk.add(account);
+                if (chunk.size() == IMPORT_CHUNK_SIZE) {
+                    commitChunk(engine, chunk, generator);
+                }
             }
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
+        } finally {
+            // a malformed body still keeps what was read before the error
+            commitChunk(engine, chunk, generator);
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            logger.info("imported {} accounts, {} rejected, in {} ms ({} records/s)", records - rejected, rejected,
+                    millis, records * 1000 / millis);
+        }
+    }
+
+    private static void commitChunk(LedgerEngine engine, List<AccountDetails> chunk, JsonGenerator generator)
+            throws IOException, SQLException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        long[] ids;
+        try {
+            List<AccountDetails> accounts = new ArrayList<>(chunk.size());
+            for (AccountDetails account : chunk) {
+                if (account != null) {
+                    accounts.add(account);
+                }
+            }
+            long start = System.nanoTime();
+            ids = accounts.isEmpty() ? new long[0] : engine.createAccounts(accounts);
+            importChunkLatency.recordSince(start);
+            importedAccounts.add(ids.length);
+        } catch (SQLException | RuntimeException e) {
+            chunk.clear();
             throw e;
         }
+        int next = 0;
+        for (AccountDetails account : chunk) {
+            if (account == null) {
+                generator.writeNull();
+            } else {
+                generator.writeNumber(ids[next++]);
+            }
+        }
+        chunk.clear();
+        generator.flush();
     }
 
+    /**
+     * Answers the account's transfers as a JSON array in id order. The next page starts after the id of the
+     * last element. A page of at most {@code history.maxLimit} transfers is read into a buffer and the connection
+     * is released before the answer is written, so a slow client never holds a pooled connection.
+     */
     @GET
-    @Path(ACCOUNTS + "/{accountId}")
+    @Path(ACCOUNTS + "/{accountId}/" + TRANSFERS)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getAccountDetails(@PathParam("accountId") long accountId) throws Exception {
-        try (AccountHelper helper = new AccountHelper()) {
-            return Response.ok(helper.getAccountDetails(accountId)).build();
-        } catch (AccountNotFoundException accEx) {
-            return Response.status(Response.Status.NOT_FOUND).build();
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-            throw e;
+    public void getTransfers(@PathParam("accountId") long accountId,
+                             @QueryParam("after") @DefaultValue("0") long afterId,
+                             @QueryParam("limit") @DefaultValue("1000") int limit,
+                             @Suspended AsyncResponse asyncResponse) {
+        if (afterId < 0 || limit <= 0 || limit > MAX_HISTORY_LIMIT) {
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
         }
+        RequestDispatcher.dispatch(transferHistoryLatency, asyncResponse, () -> {
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            try (TransferHistory transfers = LedgerEngines.get().getTransfers(accountId, afterId, limit);
+                 JsonGenerator generator = JSON_FACTORY.createGenerator(page)) {
+                generator.writeStartArray();
+                while (transfers.next()) {
+                    generator.writeStartObject();
+                    generator.writeNumberField("id", transfers.getId());
+                    generator.writeNumberField("from", transfers.getSenderId());
+                    generator.writeNumberField("to", transfers.getRecipientId());
+                    generator.writeNumberField("amount", transfers.getAmount());
+                    generator.writeStringField("currency", transfers.getCurrency().name());
+                    generator.writeNumberField("createdAt", transfers.getCreatedAt());
+                    if (transfers.getCreditedAmount() != null) {
+                        generator.writeNumberField("creditedAmount", transfers.getCreditedAmount());
+                        generator.writeStringField("creditedCurrency", transfers.getCreditedCurrency().name());
+                        generator.writeNumberField("rateVersion", transfers.getRateVersion());
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+            } catch (AccountNotFoundException accEx) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            } catch (UnsupportedOperationException uoe) {
+                return Response.status(Response.Status.NOT_IMPLEMENTED).build();
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                throw e;
+            }
+            return Response.ok(page.toByteArray()).build();
+        });
     }
 
     @POST
     @Path(ACCOUNTS + "/{accountId}/balance")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response transferMoney(@PathParam("accountId") long recipientId,
-                                  @FormParam("from") long senderId,
-                                  @FormParam("amount") BigDecimal amount) throws Exception {
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_MONEY_TRANSFER})
+    public void transferMoney(@PathParam("accountId") long recipientId,
+                              @FormParam("from") long senderId,
+                              @FormParam("amount") BigDecimal amount,
+                              @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+                              @Suspended AsyncResponse asyncResponse) {
+        dispatchTransfer(recipientId, senderId, amount, idempotencyKey, asyncResponse);
+    }
+
+    /**
+     * The same transfer with a {@link BinaryFormat binary} {@link TransferRequest} body instead of a form; its
+     * {@code to} must be the recipient of the path or {@code 0}.
+     */
+    @POST
+    @Path(ACCOUNTS + "/{accountId}/balance")
+    @Consumes(APPLICATION_MONEY_TRANSFER)
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_MONEY_TRANSFER})
+    public void transferMoney(@PathParam("accountId") long recipientId,
+                              TransferRequest transfer,
+                              @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey,
+                              @Suspended AsyncResponse asyncResponse) {
+        if (transfer.getTo() != 0 && transfer.getTo() != recipientId) {
+            audit(transfer.getFrom(), recipientId, transfer.getAmount(), TransferAuditLog.REJECTED, 0);
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+        dispatchTransfer(recipientId, transfer.getFrom(), transfer.getAmount(), idempotencyKey, asyncResponse);
+    }
+
+    private static void dispatchTransfer(long recipientId, long senderId, BigDecimal amount, String idempotencyKey,
+                                         AsyncResponse asyncResponse) {
         if (recipientId == 0 || senderId == 0 || recipientId == senderId ||
-                amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
-            return Response.status(Response.Status.BAD_REQUEST).build();
-        }
-        try (AccountHelper helper = new AccountHelper()) {
-            helper.transferMoney(senderId, recipientId, amount);
-            return Response.ok(new MoneyTransferResponse(MoneyTransferStatus.SUCCESS)).build();
-        } catch (AccountNotFoundException anfe) {
-            if (anfe.getAccountId() == recipientId) {
+                amount == null || amount.signum() <= 0 || !Money.isWholeCents(amount) ||
+                idempotencyKey != null && (idempotencyKey.isEmpty()
+                        || idempotencyKey.length() > IdempotencyKeys.MAX_KEY_LENGTH)) {
+            audit(senderId, recipientId, amount, TransferAuditLog.REJECTED, 0);
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+        SequencedLedgerEngine sequencer = LedgerEngines.getSequenced();
+        if (sequencer != null) {
+            // no thread waits for the sequencer, and the answer is written off its writer thread
+            long start = System.nanoTime();
+            sequencer.submitTransfer(senderId, recipientId, amount, idempotencyKey)
+                    .whenCompleteAsync((executed, error) -> {
+                        transferLatency.recordSince(start);
+                        try {
+                            asyncResponse.resume(error == null
+                                    ? transferResponse(senderId, recipientId, amount, executed)
+                                    : transferFailure(error, senderId, recipientId, amount));
+                        } catch (Throwable e) {
+                            asyncResponse.resume(e);
+                        }
+                    }, RequestDispatcher.COMPLETIONS);
+            return;
+        }
+        RequestDispatcher.dispatch(transferLatency, asyncResponse, () -> {
+            try {
+                if (idempotencyKey == null) {
+                    LedgerEngines.get().transferMoney(senderId, recipientId, amount);
+                    return transferResponse(senderId, recipientId, amount, true);
+                }
+                return transferResponse(senderId, recipientId, amount,
+                        LedgerEngines.get().transferMoney(senderId, recipientId, amount, idempotencyKey));
+            } catch (Exception e) {
+                return transferFailure(e, senderId, recipientId, amount);
+            }
+        }, () -> audit(senderId, recipientId, amount, TransferAuditLog.UNAVAILABLE, 0));
+    }
+
+    /**
+     * @param executed {@code false} if the transfer was already made under its idempotency key
+     */
+    private static Response transferResponse(long senderId, long recipientId, BigDecimal amount, boolean executed) {
+        if (!executed) {
+            audit(senderId, recipientId, amount, MoneyTransferStatus.SUCCESS.ordinal(), TransferAuditLog.REPLAYED);
+            return Response.ok(new MoneyTransferResponse(MoneyTransferStatus.SUCCESS))
+                    .header(IDEMPOTENT_REPLAYED, true).build();
+        }
+        return transferResponse(senderId, recipientId, amount, MoneyTransferStatus.SUCCESS);
+    }
+
+    /**
+     * @throws E {@code error} itself if it is not an expected outcome of a transfer
+     */
+    private static <E extends Throwable> Response transferFailure(E error, long senderId, long recipientId,
+                                                                  BigDecimal amount) throws E {
+        if (error instanceof AccountNotFoundException) {
+            if (((AccountNotFoundException) error).getAccountId() == recipientId) {
+                audit(senderId, recipientId, amount, TransferAuditLog.RECIPIENT_NOT_FOUND, 0);
                 return Response.status(Response.Status.NOT_FOUND).build();
-            } else {
-                return Response.ok(new MoneyTransferResponse(MoneyTransferStatus.ACCOUNT_NOT_FOUND)).build();
             }
-        } catch (CurrencyMismatchException cme) {
-            return Response.ok(new MoneyTransferResponse(MoneyTransferStatus.CURRENCY_MISMATCH)).build();
-        } catch (InsufficientFundsException ife) {
-            return Response.ok(new MoneyTransferResponse(MoneyTransferStatus.INSUFFICIENT_FUNDS)).build();
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-            throw e;
+            return transferResponse(senderId, recipientId, amount, MoneyTransferStatus.ACCOUNT_NOT_FOUND);
+        } else if (error instanceof CurrencyMismatchException) {
+            return transferResponse(senderId, recipientId, amount, MoneyTransferStatus.CURRENCY_MISMATCH);
+        } else if (error instanceof InsufficientFundsException) {
+            return transferResponse(senderId, recipientId, amount, MoneyTransferStatus.INSUFFICIENT_FUNDS);
+        } else if (error instanceof AmountTooSmallException) {
+            return transferResponse(senderId, recipientId, amount, MoneyTransferStatus.AMOUNT_TOO_SMALL);
+        } else if (error instanceof IdempotencyKeyInProgressException) {
+            audit(senderId, recipientId, amount, TransferAuditLog.IN_PROGRESS, 0);
+            return Response.status(Response.Status.CONFLICT)
+                    .header(HttpHeaders.RETRY_AFTER, PARTITION_RETRY_AFTER_SECONDS).build();
+        } else if (error instanceof IdempotencyKeyReusedException) {
+            audit(senderId, recipientId, amount, TransferAuditLog.KEY_REUSED, 0);
+            return Response.status(UNPROCESSABLE_ENTITY).build();
+        } else if (error instanceof PartitionUnavailableException) {
+            audit(senderId, recipientId, amount, TransferAuditLog.UNAVAILABLE, 0);
+            return unavailable((PartitionUnavailableException) error);
+        } else if (error instanceof RejectedExecutionException) {
+            audit(senderId, recipientId, amount, TransferAuditLog.UNAVAILABLE, 0);
+            return RequestDispatcher.unavailable();
+        }
+        audit(senderId, recipientId, amount, TransferAuditLog.FAILED, 0);
+        logger.error(error.getMessage(), error);
+        throw error;
+    }
+
+    @POST
+    @Path(TRANSFERS)
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_MONEY_TRANSFER})
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_MONEY_TRANSFER})
+    public void transferMoney(List<TransferRequest> transfers,
+                              @QueryParam("mode") @DefaultValue("ALL_OR_NOTHING") BatchMode mode,
+                              @Suspended AsyncResponse asyncResponse) {
+        if (!isValid(transfers)) {
+            // the items of an invalid batch may be missing or too many to record one by one
+            audit(0, 0, null, TransferAuditLog.REJECTED, TransferAuditLog.BATCH_ITEM);
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+        SequencedLedgerEngine sequencer = LedgerEngines.getSequenced();
+        if (sequencer != null) {
+            long start = System.nanoTime();
+            sequencer.submitTransfers(transfers, mode).whenCompleteAsync((statuses, error) -> {
+                batchTransferLatency.recordSince(start);
+                if (error instanceof RejectedExecutionException) {
+                    auditBatch(transfers, TransferAuditLog.UNAVAILABLE);
+                    asyncResponse.resume(RequestDispatcher.unavailable());
+                } else if (error != null) {
+                    auditBatch(transfers, TransferAuditLog.FAILED);
+                    logger.error(error.getMessage(), error);
+                    asyncResponse.resume(error);
+                } else {
+                    asyncResponse.resume(batchResponse(transfers, statuses));
+                }
+            }, RequestDispatcher.COMPLETIONS);
+            return;
+        }
+        RequestDispatcher.dispatch(batchTransferLatency, asyncResponse, () -> {
+            try {
+                return batchResponse(transfers, LedgerEngines.get().transferMoney(transfers, mode));
+            } catch (BatchSpansPartitionsException bspe) {
+                auditBatch(transfers, TransferAuditLog.REJECTED);
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            } catch (PartitionUnavailableException pue) {
+                auditBatch(transfers, TransferAuditLog.UNAVAILABLE);
+                return unavailable(pue);
+            } catch (RejectedExecutionException ree) {
+                auditBatch(transfers, TransferAuditLog.UNAVAILABLE);
+                return RequestDispatcher.unavailable();
+            } catch (Exception e) {
+                auditBatch(transfers, TransferAuditLog.FAILED);
+                logger.error(e.getMessage(), e);
+                throw e;
+            }
+        }, () -> auditBatch(transfers, TransferAuditLog.UNAVAILABLE));
+    }
+
+    private static Response batchResponse(List<TransferRequest> transfers, MoneyTransferStatus[] statuses) {
+        List<MoneyTransferResponse> result = new ArrayList<>(statuses.length);
+        for (int i = 0; i < statuses.length; i++) {
+            MoneyTransferStatus status = statuses[i];
+            outcomes[status.ordinal()].increment();
+            TransferRequest transfer = transfers.get(i);
+            audit(transfer.getFrom(), transfer.getTo(), transfer.getAmount(), status.ordinal(),
+                    TransferAuditLog.BATCH_ITEM);
+            result.add(new MoneyTransferResponse(status));
+        }
+        return Response.ok(result).build();
+    }
+
+    private static Response transferResponse(long senderId, long recipientId, BigDecimal amount,
+                                             MoneyTransferStatus status) {
+        outcomes[status.ordinal()].increment();
+        audit(senderId, recipientId, amount, status.ordinal(), 0);
+        return Response.ok(new MoneyTransferResponse(status)).build();
+    }
+
+    private static void audit(long senderId, long recipientId, BigDecimal amount, int outcome, int flags) {
+        TransferAuditLog auditLog = LedgerEngines.getAuditLog();
+        if (auditLog != null) {
+            auditLog.record(senderId, recipientId, amount, outcome, flags);
+        }
+    }
+
+    private static void auditBatch(List<TransferRequest> transfers, int outcome) {
+        TransferAuditLog auditLog = LedgerEngines.getAuditLog();
+        if (auditLog != null) {
+            for (TransferRequest transfer : transfers) {
+                auditLog.record(transfer.getFrom(), transfer.getTo(), transfer.getAmount(), outcome,
+                        TransferAuditLog.BATCH_ITEM);
+            }
+        }
+    }
+
+    private static Response unavailable(PartitionUnavailableException e) {
+        // expected while a partition is down, so one line per request rather than the whole trace
+        logger.warn("{}: {}", e.getMessage(), String.valueOf(e.getCause()));
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, PARTITION_RETRY_AFTER_SECONDS).build();
+    }
+
+    private static boolean isValid(AccountDetails account) {
+        return account != null && account.getCurrency() != null && account.getBalance() != null
+                && Money.isWholeCents(account.getBalance()) && account.getOwner() != null
+                && account.getOwner().length() <= AccountDetails.MAX_OWNER_LENGTH;
+    }
+
+    private static boolean isValid(List<TransferRequest> transfers) {
+        if (transfers == null || transfers.isEmpty() || transfers.size() > MAX_BATCH_SIZE) {
+            return false;
+        }
+        for (TransferRequest transfer : transfers) {
+            if (transfer == null || transfer.getFrom() == 0 || transfer.getTo() == 0
+                    || transfer.getFrom() == transfer.getTo()
+                    || transfer.getAmount() == null || transfer.getAmount().signum() <= 0
+                    || !Money.isWholeCents(transfer.getAmount())) {
+                return false;
+            }
         }
+        return true;
     }
 }
@@ -0,0 +1,103 @@
+package ru.ptrofimov.demo.rest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.CurrencyMismatchException;
+import ru.ptrofimov.demo.logic.LedgerEngine;
+import ru.ptrofimov.demo.logic.LedgerEngines;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.partition.PartitionedLedgerEngine;
+import ru.ptrofimov.demo.partition.Partitioning;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.math.BigDecimal;
+
+import static ru.ptrofimov.demo.rest.PathConstants.*;
+
+/**
+ * Internal API through which the partitions of a {@link PartitionedLedgerEngine} run cross-partition transfers.
+ * Every request must carry the shared partition secret in {@code X-Partition-Secret}, or it is answered with
+ * {@code 403}. Answers {@code 404} when this instance is not partitioned.
+ */
+@Path("/" + PARTITION)
+public class PartitionEntryPoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionEntryPoint.class);
+
+    @POST
+    @Path(PREPARE)
+    public Response prepare(@HeaderParam(PARTITION_SECRET) String secret,
+                            @FormParam("tx") String txId,
+                            @FormParam("account") long recipientId,
+                            @FormParam("from") long senderId,
+                            @FormParam("amount") BigDecimal amount,
+                            @FormParam("currency") String currency) throws Exception {
+        authorize(secret);
+        try {
+            engine().prepareCredit(txId, recipientId, senderId, amount, Currency.fromString(currency));
+            return Response.noContent().build();
+        } catch (AccountNotFoundException e) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        } catch (CurrencyMismatchException e) {
+            return Response.status(Response.Status.CONFLICT).build();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    @POST
+    @Path(COMMIT)
+    public Response commit(@HeaderParam(PARTITION_SECRET) String secret, @FormParam("tx") String txId)
+            throws Exception {
+        return resolve(secret, txId, true);
+    }
+
+    @POST
+    @Path(ABORT)
+    public Response abort(@HeaderParam(PARTITION_SECRET) String secret, @FormParam("tx") String txId)
+            throws Exception {
+        return resolve(secret, txId, false);
+    }
+
+    /**
+     * A decision the coordinator does not confirm, or one about a transfer unknown here, is logged as an error
+     * and answered with {@code 409}, so the coordinator keeps the transfer unresolved and retries it.
+     */
+    private static Response resolve(String secret, String txId, boolean commit) throws Exception {
+        authorize(secret);
+        try {
+            engine().resolve(txId, commit);
+            return Response.noContent().build();
+        } catch (IllegalStateException e) {
+            logger.error("refused to {} {}: {}", commit ? "commit" : "abort", txId, e.getMessage());
+            return Response.status(Response.Status.CONFLICT).build();
+        }
+    }
+
+    @GET
+    @Path(DECISION + "/{tx}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String decision(@HeaderParam(PARTITION_SECRET) String secret, @PathParam("tx") String txId)
+            throws Exception {
+        authorize(secret);
+        return Boolean.toString(engine().isCommitted(txId));
+    }
+
+    private static void authorize(String secret) {
+        if (!Partitioning.isAuthorized(secret)) {
+            throw new ForbiddenException();
+        }
+    }
+
+    private static PartitionedLedgerEngine engine() throws Exception {
+        LedgerEngine engine = LedgerEngines.get();
+        if (!(engine instanceof PartitionedLedgerEngine)) {
+            throw new NotFoundException();
+        }
+        return (PartitionedLedgerEngine) engine;
+    }
+}
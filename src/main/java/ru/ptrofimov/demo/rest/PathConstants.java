@@ -4,7 +4,22 @@ public final class PathConstants {
     private PathConstants() {
     }
     public static final String API = "api";
-    static final String MONEY_TRANSFER_ENTRY_POINT = "moneyTransfer";
+    public static final String MONEY_TRANSFER_ENTRY_POINT = "moneyTransfer";
     static final String GREETING_PATH = "greeting";
-    static final String ACCOUNTS = "accounts";
+    public static final String ACCOUNTS = "accounts";
+    public static final String TRANSFERS = "transfers";
+    static final String IMPORT = "import";
+    static final String METRICS = "metrics";
+    static final String ADMIN = "admin";
+    static final String CONSERVATION = "conservation";
+    public static final String PARTITION = "partition";
+    public static final String PREPARE = "prepare";
+    public static final String COMMIT = "commit";
+    public static final String ABORT = "abort";
+    public static final String DECISION = "decision";
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    public static final String SNAPSHOT_AGE = "X-Snapshot-Age-Millis";
+    public static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
+    public static final String PARTITION_SECRET = "X-Partition-Secret";
+    public static final String ADMIN_SECRET = "X-Admin-Secret";
 }
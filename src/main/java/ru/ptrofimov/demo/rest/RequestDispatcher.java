@@ -0,0 +1,113 @@
+package ru.ptrofimov.demo.rest;
+
+import ru.ptrofimov.demo.metrics.LatencyHistogram;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.utils.BoundedExecutor;
+import ru.ptrofimov.demo.utils.ConfigUtils;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the blocking part of a request either on the Jetty thread that received it or, in async mode, on a
+ * bounded executor while the Jetty thread returns to the pool. A saturated executor turns into
+ * {@code 503 Service Unavailable} with {@code Retry-After}.
+ */
+final class RequestDispatcher {
+
+    private static final boolean ASYNC = ConfigUtils.getBoolean("rest.async", false);
+    static final String RETRY_AFTER_SECONDS = ConfigUtils.getString("rest.async.retryAfterSeconds", "1");
+
+    private static volatile BoundedExecutor executor;
+
+    /**
+     * Runs the answer to a request that another thread has finished, such as a transfer written by the sequencer,
+     * on the executor, so that thread can move on. An answer is never dropped: when the executor is saturated
+     * the finishing thread runs it itself.
+     */
+    static final Executor COMPLETIONS = task -> {
+        try {
+            getExecutor().submit(Executors.callable(task));
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    };
+
+    private RequestDispatcher() {
+    }
+
+    static void dispatch(LatencyHistogram latency, AsyncResponse asyncResponse, Callable<Response> handler) {
+        dispatch(latency, asyncResponse, handler, null);
+    }
+
+    /**
+     * @param latency  records the time until the response is ready, including any wait for the executor
+     * @param rejected runs, if not {@code null}, when the request is answered with {@code 503} without running
+     *                 the handler
+     */
+    static void dispatch(LatencyHistogram latency, AsyncResponse asyncResponse, Callable<Response> handler,
+                         Runnable rejected) {
+        long start = System.nanoTime();
+        if (!ASYNC) {
+            try {
+                asyncResponse.resume(handler.call());
+            } catch (Exception e) {
+                asyncResponse.resume(e);
+            } finally {
+                latency.recordSince(start);
+            }
+            return;
+        }
+        try {
+            getExecutor().submit(handler).whenComplete((response, error) -> {
+                latency.recordSince(start);
+                if (error != null) {
+                    asyncResponse.resume(error);
+                } else {
+                    asyncResponse.resume(response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            latency.recordSince(start);
+            if (rejected != null) {
+                rejected.run();
+            }
+            asyncResponse.resume(unavailable());
+        }
+    }
+
+    /**
+     * @return {@code 503} for a request rejected because the server is saturated
+     */
+    static Response unavailable() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS).build();
+    }
+
+    static BoundedExecutor getExecutor() {
+        BoundedExecutor result = executor;
+        if (result == null) {
+            synchronized (RequestDispatcher.class) {
+                result = executor;
+                if (result == null) {
+                    result = new BoundedExecutor("db-executor",
+                            ConfigUtils.getInt("rest.async.threads", ConfigUtils.getInt("db.pool.size", 16)),
+                            ConfigUtils.getInt("rest.async.queueSize", 1000),
+                            ConfigUtils.getBoolean("rest.async.virtualThreads", true));
+                    BoundedExecutor registered = result;
+                    Metrics.gauge("rest_executor_pending", "Requests queued or running on the async executor",
+                            registered::getPendingCount);
+                    Metrics.counterGauge("rest_executor_rejected_total", "Requests rejected with 503",
+                            registered::getRejectedCount);
+                    executor = result;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+package ru.ptrofimov.demo.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size- and TTL-bounded LRU cache split into independently locked segments.
+ * <p>
+ * Read-through callers take a {@link #version} before loading a value and store it with
+ * {@link #putIfUnchanged}; an {@link #invalidate} in between makes the store a no-op, so a value loaded
+ * before a write commits can never overwrite the invalidation made after it. A write may also bracket its
+ * transaction with {@link #beginWrite} and {@link #endWrite}: while it is in flight its key is not served and
+ * nothing loaded in its segment is stored, so no value read before the commit survives it.
+ */
+public class BoundedCache<K, V> {
+
+    private final Segment<K, V>[] segments;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param ttlMillis entry lifetime, {@code 0} for entries that only leave by size or invalidation
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCache(int maxSize, long ttlMillis, int segmentCount) {
+        if (Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("segment count must be a power of two");
+        }
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.segments = new Segment[segmentCount];
+        int segmentSize = Math.max(1, maxSize / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(segmentSize, evictions);
+        }
+    }
+
+    public V get(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.map.get(key);
+            if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.createdAt > ttlNanos) {
+                segment.map.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.value;
+        }
+    }
+
+    public long version(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            return segment.version;
+        }
+    }
+
+    public void put(K key, V value) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            segment.map.put(key, new Entry<>(value));
+        }
+    }
+
+    /**
+     * Stores the value unless its segment was invalidated after {@code version} was taken.
+     */
+    public void putIfUnchanged(K key, V value, long version) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            if (segment.version == version && segment.writers == 0) {
+                segment.map.put(key, new Entry<>(value));
+            }
+        }
+    }
+
+    /**
+     * Invalidates the key and refuses {@link #putIfUnchanged} in its segment until the matching {@link #endWrite}.
+     */
+    public void beginWrite(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            segment.version++;
+            segment.writers++;
+            segment.map.remove(key);
+        }
+    }
+
+    /**
+     * Invalidates the key again once its write has committed or rolled back; must follow every {@link #beginWrite}.
+     */
+    public void endWrite(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            segment.version++;
+            segment.writers--;
+            segment.map.remove(key);
+        }
+    }
+
+    public void invalidate(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            segment.version++;
+            segment.map.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.version++;
+                segment.map.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment<K, V> segmentOf(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long createdAt = System.nanoTime();
+
+        private Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Segment<K, V> {
+        private final LinkedHashMap<K, Entry<V>> map;
+        private long version;
+        private int writers;
+
+        private Segment(int maxSize, LongAdder evictions) {
+            this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                    if (size() > maxSize) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.ptrofimov.demo.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor for blocking work that accepts at most {@code concurrency + queueSize} tasks at a time and rejects the
+ * rest with {@link RejectedExecutionException} instead of queueing without bound.
+ * <p>
+ * With {@code virtualThreads} and a JDK that has them every task gets its own virtual thread and only the
+ * number of accepted tasks is bounded; otherwise {@code concurrency} platform threads share a queue.
+ */
+public class BoundedExecutor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BoundedExecutor.class);
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+    private final int capacity;
+    private final boolean virtual;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public BoundedExecutor(String name, int concurrency, int queueSize, boolean virtualThreads) {
+        this.capacity = concurrency + queueSize;
+        this.permits = new Semaphore(capacity);
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            delegate = virtualExecutor;
+            virtual = true;
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            delegate = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            virtual = false;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.info("virtual threads are not available, using a platform thread pool");
+            return null;
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if {@code concurrency + queueSize} tasks are already pending
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException("executor is saturated");
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            delegate.execute(() -> {
+                // the permit is released first, so whoever sees the result can submit again
+                T value;
+                try {
+                    value = task.call();
+                } catch (Throwable e) {
+                    permits.release();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                permits.release();
+                result.complete(value);
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            rejected.increment();
+            throw e;
+        }
+        submitted.increment();
+        return result;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return tasks accepted and not yet finished
+     */
+    public int getPendingCount() {
+        return capacity - permits.availablePermits();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        delegate.shutdownNow();
+    }
+}
@@ -0,0 +1,154 @@
+package ru.ptrofimov.demo.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of requests in flight by a limit it learns from their latency.
+ * <p>
+ * Completed requests are sampled in windows of at least {@code windowMillis} and {@value #MIN_SAMPLES} requests.
+ * At the end of a window its average latency is compared with a long-term average: as long as the two agree
+ * the limit grows by about its square root, and as the window gets slower than usual, i.e. requests queue
+ * somewhere downstream, the limit is multiplied by the ratio down to half. Failed requests cut the limit
+ * multiplicatively. The limit does not grow while less than half of it is used.
+ * <p>
+ * Requests of normal priority may only use the part of the limit that is not reserved for priority ones, so
+ * they are shed first.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    static final int MIN_SAMPLES = 10;
+    // windows in the long-term average
+    private static final double LONG_WINDOWS = 60;
+    // how much slower than the long-term average a window may be before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double FAILURE_BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double reservedShare;
+    private final long windowNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private volatile double limit;
+
+    private final LongAdder windowLatency = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final LongAdder windowFailures = new LongAdder();
+    private final ReentrantLock updateLock = new ReentrantLock();
+    private volatile long windowEnd;
+    // guarded by updateLock
+    private double longLatency;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rejectedPriority = new LongAdder();
+
+    /**
+     * @param reservedShare share of the limit that only priority requests may use
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double reservedShare, long windowMillis) {
+        if (minLimit < 1 || minLimit > maxLimit || reservedShare < 0 || reservedShare >= 1) {
+            throw new IllegalArgumentException("invalid concurrency limits");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.reservedShare = reservedShare;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.windowEnd = System.nanoTime() + windowNanos;
+    }
+
+    /**
+     * @return {@code false} if the request has to be shed; otherwise it must be {@link #release released}
+     */
+    public boolean tryAcquire(boolean priority) {
+        double current = limit;
+        int allowed = priority ? (int) current : Math.max(1, (int) (current * (1 - reservedShare)));
+        while (true) {
+            int count = inFlight.get();
+            if (count >= allowed) {
+                (priority ? rejectedPriority : rejected).increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(count, count + 1)) {
+                if (count + 1 > peakInFlight.get()) {
+                    peakInFlight.accumulateAndGet(count + 1, Math::max);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyNanos how long the request was in flight
+     * @param failed       {@code true} if it failed in a way that suggests overload
+     */
+    public void release(long latencyNanos, boolean failed) {
+        inFlight.decrementAndGet();
+        windowLatency.add(latencyNanos);
+        windowSamples.increment();
+        if (failed) {
+            windowFailures.increment();
+        }
+        if (System.nanoTime() - windowEnd >= 0 && windowSamples.sum() >= MIN_SAMPLES && updateLock.tryLock()) {
+            try {
+                if (System.nanoTime() - windowEnd >= 0) {
+                    update();
+                    windowEnd = System.nanoTime() + windowNanos;
+                }
+            } finally {
+                updateLock.unlock();
+            }
+        }
+    }
+
+    private void update() {
+        long samples = windowSamples.sumThenReset();
+        double latency = (double) windowLatency.sumThenReset() / Math.max(1, samples);
+        long failures = windowFailures.sumThenReset();
+        int peak = peakInFlight.getAndSet(inFlight.get());
+
+        longLatency = longLatency == 0 ? latency : longLatency + (latency - longLatency) / LONG_WINDOWS;
+        if (longLatency > 2 * latency) {
+            // recover sooner from a slow period, which would otherwise keep the limit high for long
+            longLatency *= 0.95;
+        }
+        double current = limit;
+        double next;
+        if (failures > 0) {
+            next = current * FAILURE_BACKOFF;
+        } else if (peak < current / 2) {
+            return;
+        } else {
+            double gradient = Math.max(0.5, Math.min(1, TOLERANCE * longLatency / latency));
+            next = current * (1 - SMOOTHING) + (current * gradient + Math.sqrt(current)) * SMOOTHING;
+        }
+        next = Math.max(minLimit, Math.min(maxLimit, next));
+        if ((int) next != (int) current) {
+            logger.debug("concurrency limit {} -> {}, latency {} us, long-term {} us", (int) current, (int) next,
+                    (long) latency / 1000, (long) longLatency / 1000);
+        }
+        limit = next;
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejectedCount(boolean priority) {
+        return (priority ? rejectedPriority : rejected).sum();
+    }
+}
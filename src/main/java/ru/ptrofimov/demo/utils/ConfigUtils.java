@@ -0,0 +1,30 @@
+package ru.ptrofimov.demo.utils;
+
+/**
+ * Access to tunables passed as {@code -Ddemo.<key>=<value>} system properties.
+ */
+public final class ConfigUtils {
+    private static final String PREFIX = "demo.";
+
+    private ConfigUtils() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
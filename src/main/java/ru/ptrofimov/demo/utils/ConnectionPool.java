@@ -0,0 +1,595 @@
+package ru.ptrofimov.demo.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ptrofimov.demo.metrics.LatencyHistogram;
+import ru.ptrofimov.demo.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-size JDBC connection pool.
+ * Connections are opened lazily up to {@code maxSize} and handed out wrapped in handles whose {@code close()}
+ * returns the physical connection to the pool instead of closing it.
+ * <p>
+ * Every physical connection also keeps up to {@code statementCacheSize} prepared statements by SQL text: a
+ * {@code prepareStatement(sql)} call with the same SQL as a statement closed earlier on that connection gets the
+ * already parsed statement back. Statements prepared with options are not cached.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final String PHASE_METRIC = "db_phase_seconds";
+    private static final String PHASE_HELP = "Time spent acquiring connections and in JDBC calls";
+    private static final LatencyHistogram acquireLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "acquire");
+    private static final LatencyHistogram prepareLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "prepare");
+    private static final LatencyHistogram executeLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "execute");
+    private static final LatencyHistogram commitLatency = Metrics.histogram(PHASE_METRIC, PHASE_HELP, "phase", "commit");
+    private static final LongAdder rollbacks = Metrics.counter("db_rollbacks_total", "Explicit transaction rollbacks");
+
+    private final String url;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long leakThresholdMillis;
+    private final int statementCacheSize;
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final ScheduledExecutorService leakDetector;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private volatile boolean closed;
+
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong acquireWaitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private final AtomicLong statementHitCount = new AtomicLong();
+    private final AtomicLong statementMissCount = new AtomicLong();
+
+    public ConnectionPool(String url, int maxSize, long acquireTimeoutMillis,
+                          long validationIntervalMillis, long leakThresholdMillis) {
+        this(url, maxSize, acquireTimeoutMillis, validationIntervalMillis, leakThresholdMillis, 0);
+    }
+
+    /**
+     * @param statementCacheSize prepared statements kept per connection, {@code 0} disables caching
+     */
+    public ConnectionPool(String url, int maxSize, long acquireTimeoutMillis,
+                          long validationIntervalMillis, long leakThresholdMillis, int statementCacheSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("pool size must be positive");
+        }
+        this.url = url;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+        if (leakThresholdMillis > 0) {
+            leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "connection-leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(leakThresholdMillis / 2, 100);
+            leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            leakDetector = null;
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        while (true) {
+            if (closed) {
+                throw new SQLException("connection pool is closed");
+            }
+            PooledConnection pooled = idle.poll();
+            if (pooled == null) {
+                pooled = tryOpen();
+            }
+            if (pooled == null) {
+                if (!awaitAvailable(deadline)) {
+                    timeoutCount.incrementAndGet();
+                    throw new SQLTransientConnectionException(
+                            "timed out after " + acquireTimeoutMillis + " ms waiting for a connection");
+                }
+                continue;
+            }
+            if (!isUsable(pooled)) {
+                destroy(pooled);
+                continue;
+            }
+            acquireCount.incrementAndGet();
+            acquireWaitNanos.addAndGet(System.nanoTime() - start);
+            acquireLatency.recordSince(start);
+            return pooled.borrow();
+        }
+    }
+
+    /**
+     * Opens every connection the pool may hold and prepares {@code statements} on each, so that later
+     * {@code prepareStatement} calls with the same SQL and no options are served from the statement cache.
+     */
+    public void prime(Collection<String> statements) throws SQLException {
+        List<Connection> connections = new ArrayList<>(maxSize);
+        try {
+            for (int i = 0; i < maxSize; i++) {
+                Connection connection = getConnection();
+                connections.add(connection);
+                for (String sql : statements) {
+                    connection.prepareStatement(sql).close();
+                }
+            }
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Waits until a connection is returned or a slot is freed by a destroyed one.
+     *
+     * @return {@code false} if neither happened before {@code deadline}
+     */
+    private boolean awaitAvailable(long deadline) throws SQLException {
+        lock.lock();
+        try {
+            while (!closed && idle.isEmpty() && opened.get() >= maxSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                available.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("interrupted while waiting for a connection", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalAvailable() {
+        lock.lock();
+        try {
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PooledConnection tryOpen() throws SQLException {
+        int current;
+        do {
+            current = opened.get();
+            if (current >= maxSize) {
+                return null;
+            }
+        } while (!opened.compareAndSet(current, current + 1));
+        try {
+            PooledConnection pooled = new PooledConnection(DriverManager.getConnection(url));
+            createdCount.incrementAndGet();
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            opened.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastReturnedAt < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            return pooled.physical.isValid(1);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        borrowed.remove(pooled);
+        try {
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.warn("discarding connection that failed to reset: {}", e.getMessage());
+            destroy(pooled);
+            return;
+        }
+        pooled.lastReturnedAt = System.currentTimeMillis();
+        if (closed || !idle.offer(pooled)) {
+            destroy(pooled);
+            return;
+        }
+        signalAvailable();
+    }
+
+    private void destroy(PooledConnection pooled) {
+        opened.decrementAndGet();
+        destroyedCount.incrementAndGet();
+        signalAvailable();
+        pooled.closeStatements();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            logger.debug("failed to close connection", e);
+        }
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooled : borrowed) {
+            if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdMillis) {
+                pooled.leakReported = true;
+                leakCount.incrementAndGet();
+                logger.warn("connection borrowed " + (now - pooled.borrowedAt) + " ms ago has not been returned",
+                        pooled.borrowSite);
+            }
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenCount() {
+        return opened.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    public long getAcquireWaitNanos() {
+        return acquireWaitNanos.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getDestroyedCount() {
+        return destroyedCount.get();
+    }
+
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    public long getStatementHitCount() {
+        return statementHitCount.get();
+    }
+
+    public long getStatementMissCount() {
+        return statementMissCount.get();
+    }
+
+    /**
+     * @return share of {@code prepareStatement} calls served from the statement cache, {@code NaN} before the first
+     */
+    public double getStatementHitRate() {
+        long hits = statementHitCount.get();
+        return (double) hits / (hits + statementMissCount.get());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (leakDetector != null) {
+            leakDetector.shutdownNow();
+        }
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            destroy(pooled);
+        }
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class PooledConnection {
+        private final Connection physical;
+        private volatile long lastReturnedAt = System.currentTimeMillis();
+        private volatile long borrowedAt;
+        private volatile Throwable borrowSite;
+        private volatile boolean leakReported;
+        private final Map<String, PooledStatement> statements;
+        private boolean destroyed;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new LinkedHashMap<String, PooledStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PooledStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        closeQuietly(eldest.getValue().physical);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * A cached statement is removed from the cache while it is in use, so two open statements with the
+         * same SQL never share one physical statement.
+         */
+        private synchronized PooledStatement takeStatement(String sql) {
+            return statements.remove(sql);
+        }
+
+        private synchronized void returnStatement(PooledStatement statement) {
+            if (statementCacheSize == 0 || destroyed || statement.sql == null
+                    || statements.containsKey(statement.sql)) {
+                closeQuietly(statement.physical);
+                return;
+            }
+            try {
+                statement.physical.clearParameters();
+                statement.physical.clearBatch();
+                statement.physical.clearWarnings();
+            } catch (SQLException e) {
+                closeQuietly(statement.physical);
+                return;
+            }
+            statements.put(statement.sql, statement);
+        }
+
+        private synchronized void closeStatements() {
+            destroyed = true;
+            for (PooledStatement statement : statements.values()) {
+                closeQuietly(statement.physical);
+            }
+            statements.clear();
+        }
+
+        private Connection borrow() {
+            borrowedAt = System.currentTimeMillis();
+            leakReported = false;
+            borrowSite = leakDetector == null ? null : new Throwable("borrowed here");
+            borrowed.add(this);
+            return new Handle(this);
+        }
+    }
+
+    /**
+     * What a borrower gets; detached from the physical connection on {@code close()}, so a handle kept after
+     * that can no longer reach a connection lent to someone else.
+     */
+    private final class Handle extends DelegatingConnection {
+        private PooledConnection pooled;
+
+        private Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        protected Connection target() throws SQLException {
+            if (pooled == null) {
+                throw new SQLException("connection is closed");
+            }
+            return pooled.physical;
+        }
+
+        @Override
+        public void close() {
+            if (pooled != null) {
+                PooledConnection toRelease = pooled;
+                pooled = null;
+                release(toRelease);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return pooled == null;
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            Connection physical = target();
+            long start = System.nanoTime();
+            PooledStatement statement = pooled.takeStatement(sql);
+            if (statement != null) {
+                statementHitCount.incrementAndGet();
+            } else {
+                statementMissCount.incrementAndGet();
+                statement = new PooledStatement(pooled, sql, physical.prepareStatement(sql));
+            }
+            statement.connection = this;
+            prepareLatency.recordSince(start);
+            return statement;
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+                throws SQLException {
+            long start = System.nanoTime();
+            PreparedStatement statement = target().prepareStatement(sql, resultSetType, resultSetConcurrency);
+            prepareLatency.recordSince(start);
+            return uncached(statement);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+                                                  int resultSetHoldability) throws SQLException {
+            long start = System.nanoTime();
+            PreparedStatement statement = target().prepareStatement(sql, resultSetType, resultSetConcurrency,
+                    resultSetHoldability);
+            prepareLatency.recordSince(start);
+            return uncached(statement);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            long start = System.nanoTime();
+            PreparedStatement statement = target().prepareStatement(sql, autoGeneratedKeys);
+            prepareLatency.recordSince(start);
+            return uncached(statement);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+            long start = System.nanoTime();
+            PreparedStatement statement = target().prepareStatement(sql, columnIndexes);
+            prepareLatency.recordSince(start);
+            return uncached(statement);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+            long start = System.nanoTime();
+            PreparedStatement statement = target().prepareStatement(sql, columnNames);
+            prepareLatency.recordSince(start);
+            return uncached(statement);
+        }
+
+        /**
+         * Statements with options are rare and never cached; they are closed with their handle.
+         */
+        private PreparedStatement uncached(PreparedStatement physical) {
+            statementMissCount.incrementAndGet();
+            PooledStatement statement = new PooledStatement(pooled, null, physical);
+            statement.connection = this;
+            return statement;
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            Connection physical = target();
+            long start = System.nanoTime();
+            try {
+                physical.commit();
+            } finally {
+                commitLatency.recordSince(start);
+            }
+        }
+
+        @Override
+        public void rollback() throws SQLException {
+            rollbacks.increment();
+            super.rollback();
+        }
+
+        @Override
+        public void rollback(Savepoint savepoint) throws SQLException {
+            rollbacks.increment();
+            super.rollback(savepoint);
+        }
+
+        @Override
+        public String toString() {
+            return "PooledConnection[" + (pooled == null ? "closed" : pooled.physical) + "]";
+        }
+    }
+
+    /**
+     * A cached physical statement together with its handle: both go back to the cache of their connection on
+     * {@code close()} and are handed out again by the next {@code prepareStatement} with the same SQL.
+     */
+    private static final class PooledStatement extends DelegatingPreparedStatement {
+        private final PooledConnection owner;
+        /** {@code null} for a statement that is not cached */
+        private final String sql;
+        private final PreparedStatement physical;
+        /** handle it was prepared on, {@code null} while closed */
+        private Connection connection;
+
+        private PooledStatement(PooledConnection owner, String sql, PreparedStatement physical) {
+            this.owner = owner;
+            this.sql = sql;
+            this.physical = physical;
+        }
+
+        @Override
+        protected PreparedStatement target() throws SQLException {
+            if (connection == null) {
+                throw new SQLException("statement is closed");
+            }
+            return physical;
+        }
+
+        @Override
+        protected void executed(long startNanos) {
+            executeLatency.recordSince(startNanos);
+        }
+
+        @Override
+        public void close() {
+            if (connection != null) {
+                connection = null;
+                owner.returnStatement(this);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return connection == null;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            target();
+            return connection;
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.debug("failed to close statement", e);
+        }
+    }
+}
@@ -1,25 +1,177 @@
 package ru.ptrofimov.demo.utils;
 
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.partition.Partitioning;
+
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Objects;
+import java.util.concurrent.Callable;
 
 public class DBUtils {
     private DBUtils() {
     }
 
-    private static boolean initialised;
+    private static final String URL = "jdbc:h2:mem:demodb;DB_CLOSE_DELAY=-1;";
+    private static final String SCRATCH_URL = "jdbc:h2:mem:scratch;DB_CLOSE_DELAY=-1;";
+
+    private static final String BALANCE_VALIDATION = ConfigUtils.getString("db.balanceValidation", "trigger");
+
+    private static volatile ConnectionPool pool;
+    private static volatile ConnectionPool queryPool;
 
     public static Connection getConnection() throws SQLException {
-        String url = "jdbc:h2:mem:demodb;DB_CLOSE_DELAY=-1;";
-        if (!initialised) {
-            URL initSqlRes = Objects.requireNonNull(Thread.currentThread().getContextClassLoader().getResource("init.sql"));
-            url += "INIT=runscript from '" + initSqlRes + "'";
+        return getPool().getConnection();
+    }
+
+    /**
+     * Returns the shared pool, running {@code init.sql} exactly once before the first connection is handed out.
+     */
+    public static ConnectionPool getPool() throws SQLException {
+        ConnectionPool result = pool;
+        if (result == null) {
+            synchronized (DBUtils.class) {
+                result = pool;
+                if (result == null) {
+                    initSchema(URL);
+                    result = createPool(URL, ConfigUtils.getInt("db.pool.size", 16),
+                            ConfigUtils.getLong("db.pool.leakThresholdMillis", 0));
+                    registerGauges(result);
+                    pool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs {@code task} while both pools hand out connections to a scratch database with the same schema, then
+     * drops the scratch database. Meant for warming up before anything else has used the database: other
+     * threads asking for connections meanwhile would get scratch connections too.
+     */
+    public static synchronized <T> T withScratchDatabase(Callable<T> task) throws Exception {
+        ConnectionPool previous = pool;
+        ConnectionPool previousQueryPool = queryPool;
+        initSchema(SCRATCH_URL);
+        ConnectionPool scratch = createPool(SCRATCH_URL, ConfigUtils.getInt("db.pool.size", 16), 0);
+        pool = scratch;
+        queryPool = scratch;
+        try {
+            return task.call();
+        } finally {
+            pool = previous;
+            queryPool = previousQueryPool;
+            scratch.close();
+            try (Connection connection = DriverManager.getConnection(SCRATCH_URL);
+                 Statement statement = connection.createStatement()) {
+                statement.execute("SHUTDOWN");
+            }
+        }
+    }
+
+    private static ConnectionPool createPool(String url, int size, long leakThresholdMillis) {
+        return new ConnectionPool(url, size,
+                ConfigUtils.getLong("db.pool.acquireTimeoutMillis", 5000),
+                ConfigUtils.getLong("db.pool.validationIntervalMillis", 30000),
+                leakThresholdMillis,
+                ConfigUtils.getInt("db.pool.statementCacheSize", 64));
+    }
+
+    public static Connection getQueryConnection() throws SQLException {
+        return getQueryPool().getConnection();
+    }
+
+    /**
+     * Returns the pool kept for read-only queries, so reads do not wait for connections held by transfers;
+     * with {@code db.queryPool.size} of {@code 0} it is the shared pool. H2 reads committed data without locking
+     * rows, so queries neither block nor are blocked by writes.
+     */
+    public static ConnectionPool getQueryPool() throws SQLException {
+        ConnectionPool result = queryPool;
+        if (result == null) {
+            ConnectionPool shared = getPool();
+            synchronized (DBUtils.class) {
+                result = queryPool;
+                if (result == null) {
+                    int size = ConfigUtils.getInt("db.queryPool.size", 4);
+                    if (size == 0) {
+                        result = shared;
+                    } else {
+                        result = createPool(URL, size, ConfigUtils.getLong("db.pool.leakThresholdMillis", 0));
+                        ConnectionPool registered = result;
+                        Metrics.gauge("db_query_pool_connections", "Pooled query connections by state",
+                                registered::getActiveCount, "state", "active");
+                        Metrics.gauge("db_query_pool_connections", "Pooled query connections by state",
+                                registered::getIdleCount, "state", "idle");
+                    }
+                    queryPool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void registerGauges(ConnectionPool pool) {
+        Metrics.gauge("db_pool_connections", "Pooled connections by state", pool::getActiveCount, "state", "active");
+        Metrics.gauge("db_pool_connections", "Pooled connections by state", pool::getIdleCount, "state", "idle");
+        Metrics.counterGauge("db_pool_acquire_timeouts_total", "Connection requests that timed out",
+                pool::getTimeoutCount);
+        Metrics.counterGauge("db_statement_cache_total", "Prepared statement lookups by result",
+                pool::getStatementHitCount, "result", "hit");
+        Metrics.counterGauge("db_statement_cache_total", "Prepared statement lookups by result",
+                pool::getStatementMissCount, "result", "miss");
+    }
+
+    /**
+     * In conditional mode single transfers prevent overdrafts by {@code BALANCE >= ?} in the debiting update, so
+     * they are refused without an exception. {@link ru.ptrofimov.demo.logic.UpdateBalanceTrigger} stays in the
+     * schema either way and still guards the updates that are not conditional, such as batch and sequenced writes.
+     */
+    public static boolean isConditionalBalanceValidation() {
+        switch (BALANCE_VALIDATION) {
+            case "trigger":
+                return false;
+            case "conditional":
+                return true;
+            default:
+                throw new IllegalArgumentException("unknown balance validation mode " + BALANCE_VALIDATION);
+        }
+    }
+
+    private static void initSchema(String url) throws SQLException {
+        URL initSqlRes = Objects.requireNonNull(Thread.currentThread().getContextClassLoader().getResource("init.sql"));
+        try (Connection connection = DriverManager.getConnection(url + "INIT=runscript from '" + initSqlRes + "'")) {
+            if (Partitioning.isEnabled()) {
+                partitionAccounts(connection);
+            }
+        }
+    }
+
+    /**
+     * Keeps only the initial accounts of this partition and makes the id sequence step over the ids of
+     * the other partitions.
+     */
+    private static void partitionAccounts(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            long maxId;
+            try (ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(ID), 0) FROM ACCOUNTS")) {
+                resultSet.next();
+                maxId = resultSet.getLong(1);
+            }
+            statement.executeUpdate("DELETE FROM ACCOUNTS WHERE MOD(ID, " + Partitioning.getCount() + ") <> "
+                    + Partitioning.getIndex());
+            String sequence;
+            try (ResultSet resultSet = statement.executeQuery("SELECT SEQUENCE_NAME FROM INFORMATION_SCHEMA.COLUMNS"
+                    + " WHERE TABLE_NAME = 'ACCOUNTS' AND COLUMN_NAME = 'ID'")) {
+                resultSet.next();
+                sequence = resultSet.getString(1);
+            }
+            statement.executeUpdate("ALTER SEQUENCE " + sequence + " RESTART WITH "
+                    + Partitioning.firstLocalId(maxId + 1) + " INCREMENT BY " + Partitioning.getCount());
         }
-        Connection connection = DriverManager.getConnection(url);
-        initialised = true;
-        return connection;
     }
 }
@@ -1,29 +1,91 @@
 package ru.ptrofimov.demo.utils;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
+import org.glassfish.jersey.servlet.ServletContainer;
+import ru.ptrofimov.demo.metrics.Metrics;
+import ru.ptrofimov.demo.rest.AdminEntryPoint;
+import ru.ptrofimov.demo.rest.BinaryFormat;
+import ru.ptrofimov.demo.rest.ConcurrencyLimitFilter;
+import ru.ptrofimov.demo.rest.MetricsEntryPoint;
 import ru.ptrofimov.demo.rest.MoneyTransferEntryPoint;
+import ru.ptrofimov.demo.rest.PartitionEntryPoint;
 import ru.ptrofimov.demo.rest.PathConstants;
 
+import javax.servlet.DispatcherType;
+import java.util.EnumSet;
+
 public final class JettyUtils {
     private JettyUtils() {
     }
 
     public static Server createServer() {
+        return createServer(ConfigUtils.getInt("jetty.port", 8080));
+    }
+
+    /**
+     * Thread pool and connector are sized by the {@code jetty.*} settings; {@code -1} acceptors or selectors
+     * lets Jetty derive the count from the number of CPUs. Unless {@code rest.limit.enabled} is {@code false},
+     * money transfer requests pass the {@link ConcurrencyLimitFilter}.
+     *
+     * @param port port to listen on, {@code 0} for any free port (see {@link #getPort})
+     */
+    public static Server createServer(int port) {
         ServletContextHandler context = new ServletContextHandler(0);
         context.setContextPath("/");
 
-        Server jettyServer = new Server(8080);
+        QueuedThreadPool threadPool = new QueuedThreadPool(
+                ConfigUtils.getInt("jetty.maxThreads", 200),
+                ConfigUtils.getInt("jetty.minThreads", 8),
+                ConfigUtils.getInt("jetty.idleTimeoutMillis", 60_000));
+        threadPool.setName("jetty");
+        Metrics.gauge("jetty_threads", "Threads of the Jetty pool", threadPool::getThreads);
+        Metrics.gauge("jetty_threads_idle", "Idle threads of the Jetty pool", threadPool::getIdleThreads);
+        Metrics.gauge("jetty_threads_busy", "Busy threads of the Jetty pool", threadPool::getBusyThreads);
+        Metrics.gauge("jetty_threads_max", "Maximum threads of the Jetty pool", threadPool::getMaxThreads);
+        Metrics.gauge("jetty_queue_size", "Jobs waiting for a Jetty thread", threadPool::getQueueSize);
+        Server jettyServer = new Server(threadPool);
+        ServerConnector connector = new ServerConnector(jettyServer,
+                ConfigUtils.getInt("jetty.acceptors", -1), ConfigUtils.getInt("jetty.selectors", -1));
+        connector.setPort(port);
+        connector.setAcceptQueueSize(ConfigUtils.getInt("jetty.acceptQueueSize", 0));
+        jettyServer.addConnector(connector);
         jettyServer.setHandler(context);
 
-        ServletHolder jerseyServlet = context.addServlet(
-                org.glassfish.jersey.servlet.ServletContainer.class, "/" + PathConstants.API + "/*");
+        ServletHolder jerseyServlet = new ServletHolder(new ServletContainer(createResourceConfig()));
         jerseyServlet.setInitOrder(0);
-
-        jerseyServlet.setInitParameter(
-                "jersey.config.server.provider.classnames",
-                MoneyTransferEntryPoint.class.getCanonicalName());
+        jerseyServlet.setAsyncSupported(true);
+        context.addServlet(jerseyServlet, "/" + PathConstants.API + "/*");
+        if (ConfigUtils.getBoolean("rest.limit.enabled", true)) {
+            FilterHolder limitFilter = new FilterHolder(new ConcurrencyLimitFilter());
+            limitFilter.setAsyncSupported(true);
+            context.addFilter(limitFilter,
+                    "/" + PathConstants.API + "/" + PathConstants.MONEY_TRANSFER_ENTRY_POINT + "/*",
+                    EnumSet.of(DispatcherType.REQUEST));
+        }
         return jettyServer;
     }
+
+    /**
+     * Resources are registered as classes rather than found by name, and the WADL generator, which nothing
+     * here uses, is left out to keep it from loading JAXB on startup.
+     */
+    private static ResourceConfig createResourceConfig() {
+        return new ResourceConfig(MoneyTransferEntryPoint.class, MetricsEntryPoint.class, PartitionEntryPoint.class,
+                AdminEntryPoint.class, BinaryFormat.class)
+                .property(ServerProperties.WADL_FEATURE_DISABLE, true);
+    }
+
+    /**
+     * @return port the started server actually listens on
+     */
+    public static int getPort(Server jettyServer) {
+        return ((ServerConnector) jettyServer.getConnectors()[0]).getLocalPort();
+    }
 }
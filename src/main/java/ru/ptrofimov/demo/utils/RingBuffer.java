@@ -0,0 +1,134 @@
+package ru.ptrofimov.demo.utils;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Fixed ring of preallocated slots passed from any number of producers to a single consumer in sequence order.
+ * <p>
+ * A producer {@link #claim claims} the next sequence, fills the slot returned by {@link #get} and
+ * {@link #publish publishes} it. The consumer {@link #await awaits} published sequences, reads their slots in
+ * order and {@link #release releases} them for reuse. Slots are never allocated after construction, and a full
+ * ring rejects producers instead of blocking them.
+ */
+public final class RingBuffer<T> {
+
+    private static final int SPINS = 100;
+
+    private final Object[] slots;
+    private final int mask;
+    // sequence last published into each slot
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private volatile long released = -1;
+    private volatile Thread consumer;
+    private volatile boolean parked;
+
+    public RingBuffer(int capacity, Supplier<T> factory) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("ring capacity must be a power of two");
+        }
+        this.slots = new Object[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = factory.get();
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * @return the next sequence, whose slot belongs to the caller until it is published
+     * @throws RejectedExecutionException if every slot is still waiting for the consumer
+     */
+    public long claim() {
+        long sequence = tryClaim();
+        if (sequence < 0) {
+            throw new RejectedExecutionException("ring buffer is full");
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the next sequence as {@link #claim} does, or {@code -1} if every slot is still waiting for the consumer
+     */
+    public long tryClaim() {
+        long current;
+        do {
+            current = claimed.get();
+            if (current - released >= slots.length) {
+                return -1;
+            }
+        } while (!claimed.compareAndSet(current, current + 1));
+        return current + 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(long sequence) {
+        return (T) slots[(int) sequence & mask];
+    }
+
+    public void publish(long sequence) {
+        published.set((int) sequence & mask, sequence);
+        if (parked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Waits, yielding briefly and then parking, until {@code sequence} is published. Only one thread may consume.
+     *
+     * @return the last sequence of the unbroken run of published ones starting at {@code sequence}, or
+     * {@code sequence - 1} if nothing was published within the timeout
+     */
+    public long await(long sequence, long timeoutNanos) {
+        consumer = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (int spins = 0; !isPublished(sequence); spins++) {
+            if (spins < SPINS) {
+                Thread.yield();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return sequence - 1;
+            }
+            parked = true;
+            // a publish between the check and the flag would otherwise go unnoticed
+            if (!isPublished(sequence)) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            parked = false;
+        }
+        long last = sequence;
+        while (last - sequence < mask && isPublished(last + 1)) {
+            last++;
+        }
+        return last;
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == sequence;
+    }
+
+    /**
+     * Returns the slots up to and including {@code sequence} to the producers.
+     */
+    public void release(long sequence) {
+        released = sequence;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return sequences claimed and not released yet
+     */
+    public long getPendingCount() {
+        return claimed.get() - released;
+    }
+}
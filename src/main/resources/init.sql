@@ -14,4 +14,53 @@ CALL "ru.ptrofimov.demo.logic.UpdateBalanceTrigger";
 INSERT INTO ACCOUNTS (CURRENCY, BALANCE, OWNER) VALUES ('RUR', 1000, 'owner1');
 INSERT INTO ACCOUNTS (CURRENCY, BALANCE, OWNER) VALUES ('USD', 200, 'owner2');
 INSERT INTO ACCOUNTS (CURRENCY, BALANCE, OWNER) VALUES ('EUR', 150, 'owner3');
-INSERT INTO ACCOUNTS (CURRENCY, BALANCE, OWNER) VALUES ('RUR', 500, 'owner4');
\ No newline at end of file
+INSERT INTO ACCOUNTS (CURRENCY, BALANCE, OWNER) VALUES ('RUR', 500, 'owner4');
+
+CREATE TABLE IDEMPOTENCY_KEYS (
+    ID VARCHAR(64) NOT NULL PRIMARY KEY,
+    FINGERPRINT VARCHAR(128) NOT NULL,
+    CREATED_AT BIGINT NOT NULL
+);
+
+CREATE INDEX IDEMPOTENCY_KEYS_CREATED_AT ON IDEMPOTENCY_KEYS (CREATED_AT);
+
+CREATE TABLE ACCOUNT_SHARDS (
+    ACCOUNT_ID BIGINT NOT NULL,
+    SHARD INT NOT NULL,
+    BALANCE DECIMAL(20, 2) NOT NULL DEFAULT 0 CHECK (BALANCE >= 0),
+    PRIMARY KEY (ACCOUNT_ID, SHARD)
+);
+
+CREATE TABLE TRANSFERS (
+    ID IDENTITY NOT NULL,
+    SENDER_ID BIGINT NOT NULL,
+    RECIPIENT_ID BIGINT NOT NULL,
+    AMOUNT DECIMAL(20, 2) NOT NULL,
+    CURRENCY CHAR(3) NOT NULL,
+    CREATED_AT BIGINT NOT NULL,
+    CREDITED_AMOUNT DECIMAL(20, 2),
+    CREDITED_CURRENCY CHAR(3),
+    RATE_VERSION BIGINT
+);
+
+CREATE INDEX TRANSFERS_SENDER ON TRANSFERS (SENDER_ID, ID);
+CREATE INDEX TRANSFERS_RECIPIENT ON TRANSFERS (RECIPIENT_ID, ID);
+
+CREATE TABLE PENDING_TRANSFERS (
+    TX_ID VARCHAR(64) NOT NULL PRIMARY KEY,
+    ACCOUNT_ID BIGINT NOT NULL,
+    COUNTERPARTY_ID BIGINT NOT NULL,
+    AMOUNT DECIMAL(20, 2) NOT NULL,
+    CURRENCY CHAR(3) NOT NULL,
+    CREDIT BOOLEAN NOT NULL,
+    IDEMPOTENCY_KEY VARCHAR(64),
+    CREATED_AT BIGINT NOT NULL
+);
+
+CREATE UNIQUE INDEX PENDING_TRANSFERS_IDEMPOTENCY_KEY ON PENDING_TRANSFERS (IDEMPOTENCY_KEY);
+
+CREATE TABLE RESOLVED_TRANSFERS (
+    TX_ID VARCHAR(64) NOT NULL PRIMARY KEY,
+    COMMITTED BOOLEAN NOT NULL,
+    RESOLVED_AT BIGINT NOT NULL
+);
@@ -0,0 +1,45 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.logic.AccountHelper;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-account operations of {@link AccountHelper}: reading details (served by the account cache unless
+ * {@code -Ddemo.cache.accounts.enabled=false} is passed through {@code -jvmArgs}) and creating accounts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccountHelperBenchmark {
+
+    private long[] accountIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        accountIds = Accounts.create(1000, Currency.AMERICAN_DOLLAR);
+    }
+
+    @Benchmark
+    public AccountDetails getAccountDetails() throws Exception {
+        long accountId = accountIds[ThreadLocalRandom.current().nextInt(accountIds.length)];
+        try (AccountHelper helper = new AccountHelper()) {
+            return helper.getAccountDetails(accountId);
+        }
+    }
+
+    @Benchmark
+    public AccountDetails createAccount() throws Exception {
+        try (AccountHelper helper = new AccountHelper()) {
+            return helper.createAccount(Currency.EURO, BigDecimal.TEN, "owner");
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.logic.H2LedgerEngine;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Account reads running alongside transfers between the same accounts, with reads going to the database
+ * ({@code replicated = false}) or to the account replica.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccountReadBenchmark {
+
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+    private static final int ACCOUNTS = 64;
+
+    @Param({"false", "true"})
+    public boolean replicated;
+
+    private H2LedgerEngine engine;
+    private long[] accounts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = new H2LedgerEngine(null, replicated);
+        accounts = new long[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = engine.createAccount(Currency.EURO, BigDecimal.valueOf(1_000_000_000L), "bench" + i).getId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        engine.close();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public AccountDetails read() throws Exception {
+        return engine.getAccountSnapshot(accounts[ThreadLocalRandom.current().nextInt(ACCOUNTS)]).getValue();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void transfer() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sender = random.nextInt(ACCOUNTS);
+        engine.transferMoney(accounts[sender], accounts[(sender + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS], AMOUNT);
+    }
+}
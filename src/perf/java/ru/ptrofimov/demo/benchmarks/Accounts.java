@@ -0,0 +1,25 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import ru.ptrofimov.demo.logic.AccountHelper;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+
+final class Accounts {
+    private Accounts() {
+    }
+
+    /**
+     * Creates accounts with balances large enough that random transfers practically never run dry.
+     */
+    static long[] create(int count, Currency currency) throws SQLException {
+        long[] ids = new long[count];
+        try (AccountHelper helper = new AccountHelper()) {
+            for (int i = 0; i < count; i++) {
+                ids[i] = helper.createAccount(currency, BigDecimal.valueOf(1_000_000_000L), "bench" + i).getId();
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.logic.AccountHelper;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers through {@link AccountHelper} with overdrafts rejected by the update trigger or by the conditional
+ * debit ({@code demo.db.balanceValidation}). The mode is fixed when the schema is created, so it is set here
+ * before anything touches the database; every parameter value runs in its own fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BalanceValidationBenchmark {
+
+    @Param({"trigger", "conditional"})
+    public String validation;
+
+    private long emptyAccount;
+    private long[] accountIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("demo.db.balanceValidation", validation);
+        accountIds = Accounts.create(2, Currency.EURO);
+        try (AccountHelper helper = new AccountHelper()) {
+            emptyAccount = helper.createAccount(Currency.EURO, BigDecimal.ZERO, "empty").getId();
+        }
+    }
+
+    @Benchmark
+    public boolean rejected() throws Exception {
+        try (AccountHelper helper = new AccountHelper()) {
+            helper.transferMoney(emptyAccount, accountIds[0], BigDecimal.ONE);
+            return true;
+        } catch (InsufficientFundsException e) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public void accepted() throws Exception {
+        try (AccountHelper helper = new AccountHelper()) {
+            helper.transferMoney(accountIds[0], accountIds[1], BigDecimal.ONE);
+        }
+    }
+}
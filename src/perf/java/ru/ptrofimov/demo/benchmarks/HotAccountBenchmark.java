@@ -0,0 +1,61 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.logic.H2LedgerEngine;
+import ru.ptrofimov.demo.logic.InMemoryLedgerEngine;
+import ru.ptrofimov.demo.logic.LedgerEngine;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers from many senders into one hot recipient, with the recipient unsharded ({@code shards = 0}) or
+ * with its credits spread over {@link LedgerEngine#shardAccount sub-balances}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotAccountBenchmark {
+
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+    private static final int SENDERS = 256;
+
+    @Param({"h2", "memory"})
+    public String engineName;
+
+    @Param({"0", "4", "16"})
+    public int shards;
+
+    private LedgerEngine engine;
+    private long hotAccount;
+    private long[] senders;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = engineName.equals("h2") ? new H2LedgerEngine() : new InMemoryLedgerEngine(1024, null);
+        hotAccount = engine.createAccount(Currency.EURO, BigDecimal.ZERO, "hot").getId();
+        if (shards > 0) {
+            engine.shardAccount(hotAccount, shards);
+        }
+        senders = new long[SENDERS];
+        for (int i = 0; i < SENDERS; i++) {
+            senders[i] = engine.createAccount(Currency.EURO, BigDecimal.valueOf(1_000_000_000L), "bench" + i).getId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        engine.close();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void creditHotAccount() throws Exception {
+        engine.transferMoney(senders[ThreadLocalRandom.current().nextInt(SENDERS)], hotAccount, AMOUNT);
+    }
+}
@@ -0,0 +1,151 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.App;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static ru.ptrofimov.demo.rest.PathConstants.*;
+
+/**
+ * HTTP transfers against a ledger split over {@code partitions} local {@link App} processes. Each request goes
+ * to the sender's partition; {@code crossPercent} of the transfers have a recipient on another partition and
+ * run the two-phase protocol. On a machine with fewer cores than partitions the processes compete for CPU,
+ * so only the cost of the protocol and not the scaling shows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartitionScalingBenchmark {
+
+    private static final int ACCOUNTS_PER_PARTITION = 64;
+
+    @Param({"1", "2", "4"})
+    public int partitions;
+
+    @Param({"0", "10", "50"})
+    public int crossPercent;
+
+    private Process[] processes;
+    private String[] urls;
+    private long[][] accounts;
+    private Client client;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("partitions");
+        urls = new String[partitions];
+        for (int i = 0; i < partitions; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                urls[i] = "http://localhost:" + socket.getLocalPort();
+            }
+        }
+        processes = new Process[partitions];
+        for (int i = 0; i < partitions; i++) {
+            processes[i] = start(i);
+        }
+        client = ClientBuilder.newClient();
+        accounts = new long[partitions][ACCOUNTS_PER_PARTITION];
+        for (int i = 0; i < partitions; i++) {
+            awaitStarted(i);
+            for (int j = 0; j < ACCOUNTS_PER_PARTITION; j++) {
+                accounts[i][j] = api(i).path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS)
+                        .request(MediaType.APPLICATION_JSON_TYPE)
+                        .post(Entity.entity(new AccountDetails(Currency.EURO, BigDecimal.valueOf(1_000_000_000L),
+                                "bench" + j), MediaType.APPLICATION_JSON_TYPE), AccountDetails.class)
+                        .getId();
+            }
+        }
+    }
+
+    private Process start(int index) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String[] command = partitions == 1
+                ? new String[]{java, "-cp", System.getProperty("java.class.path"), port(index), App.class.getName()}
+                : new String[]{java, "-cp", System.getProperty("java.class.path"), port(index),
+                "-Ddemo.partition.peers=" + String.join(",", urls),
+                "-Ddemo.partition.index=" + index,
+                "-Ddemo.partition.dir=" + dir.resolve("partition-" + index),
+                App.class.getName()};
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("partition-" + index + ".out").toFile())
+                .start();
+    }
+
+    private String port(int index) {
+        return "-Ddemo.jetty.port=" + urls[index].substring(urls[index].lastIndexOf(':') + 1);
+    }
+
+    private void awaitStarted(int index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (true) {
+            try {
+                if (api(index).path(MONEY_TRANSFER_ENTRY_POINT + "/greeting").request().get().getStatus() == 200) {
+                    return;
+                }
+            } catch (ProcessingException e) {
+                if (System.currentTimeMillis() > deadline || !processes[index].isAlive()) {
+                    throw e;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private WebTarget api(int partition) {
+        return client.target(urls[partition]).path(API);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        for (Process process : processes) {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(partitions);
+        int to = partitions > 1 && random.nextInt(100) < crossPercent
+                ? (from + 1 + random.nextInt(partitions - 1)) % partitions
+                : from;
+        long sender = accounts[from][random.nextInt(ACCOUNTS_PER_PARTITION)];
+        long recipient = accounts[to][random.nextInt(ACCOUNTS_PER_PARTITION)];
+        if (sender == recipient) {
+            return 0;
+        }
+        Form form = new Form();
+        form.param("from", Long.toString(sender));
+        form.param("amount", "0.01");
+        Response response = api(from).path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + recipient + "/balance")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+        response.close();
+        return response.getStatus();
+    }
+}
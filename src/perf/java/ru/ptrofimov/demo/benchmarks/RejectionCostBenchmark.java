@@ -0,0 +1,48 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the exception that rejects a transfer on its own, apart from {@link BalanceValidationBenchmark}: the
+ * stackless {@link InsufficientFundsException} against an exception that captures its stack trace, thrown
+ * {@code depth} frames below the catch as from inside the trigger H2 calls.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RejectionCostBenchmark {
+
+    @Param({"10", "50"})
+    public int depth;
+
+    @Benchmark
+    public Object stackless() {
+        try {
+            return reject(depth, true);
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object withStackTrace() {
+        try {
+            return reject(depth, false);
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    private static Object reject(int depth, boolean stackless) {
+        if (depth > 0) {
+            return reject(depth - 1, stackless);
+        }
+        throw stackless ? new InsufficientFundsException() : new IllegalStateException("insufficient funds");
+    }
+}
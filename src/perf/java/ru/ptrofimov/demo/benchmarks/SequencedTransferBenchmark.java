@@ -0,0 +1,77 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.logic.H2LedgerEngine;
+import ru.ptrofimov.demo.logic.LedgerEngine;
+import ru.ptrofimov.demo.logic.SequencedLedgerEngine;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers from many threads, each in its own H2 transaction ({@code h2}) or published to the single writer of
+ * the {@link SequencedLedgerEngine} ({@code sequenced}), which writes them in batched transactions. Accounts are
+ * drawn uniformly or, with {@code skew}, from a Zipf distribution that makes most transfers contend for a few rows.
+ * {@code SampleTime} reports the tail latency alongside the throughput.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// requests queue for pooled connections in the h2 mode, which must not time out
+@Fork(value = 1, jvmArgsAppend = "-Ddemo.db.pool.acquireTimeoutMillis=60000")
+@State(Scope.Benchmark)
+public class SequencedTransferBenchmark {
+
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+
+    @Param({"h2", "sequenced"})
+    public String engineName;
+
+    @Param({"1000"})
+    public int accountCount;
+
+    @Param({"0", "1.2"})
+    public double skew;
+
+    private LedgerEngine engine;
+    private long[] accountIds;
+    private ZipfGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = engineName.equals("h2") ? new H2LedgerEngine()
+                : new SequencedLedgerEngine(new H2LedgerEngine(), 4096, 256);
+        accountIds = Accounts.create(accountCount, Currency.EURO);
+        generator = new ZipfGenerator(accountCount, skew);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        engine.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void transfer(ThreadState state) throws Exception {
+        int sender = generator.next(state.random);
+        int recipient = generator.next(state.random);
+        if (sender == recipient) {
+            recipient = (recipient + 1) % accountIds.length;
+        }
+        try {
+            engine.transferMoney(accountIds[sender], accountIds[recipient], AMOUNT);
+        } catch (InsufficientFundsException ignored) {
+            // practically impossible with the seeded balances
+        }
+    }
+}
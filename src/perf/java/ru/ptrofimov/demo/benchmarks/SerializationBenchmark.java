@@ -0,0 +1,132 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferResponse;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.rest.BinaryFormat;
+
+import javax.ws.rs.core.GenericType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * (De)serialisation of the REST bodies as JSON, with Jackson as Jersey uses it, and in the {@link BinaryFormat}.
+ * The encoded size of every body is printed when the trial starts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final Type TRANSFERS = new GenericType<List<TransferRequest>>() {
+    }.getType();
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private Body details;
+    private Body response;
+    private Body transfers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        AccountDetails account = new AccountDetails(Currency.RUSSIAN_RUBLE, new BigDecimal("12345.67"), "owner1");
+        account.setId(42);
+        List<TransferRequest> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new TransferRequest(1000 + i, 2000 + i, new BigDecimal("12.34")));
+        }
+        details = new Body(format, account, AccountDetails.class, AccountDetails.class);
+        response = new Body(format, new MoneyTransferResponse(MoneyTransferStatus.SUCCESS),
+                MoneyTransferResponse.class, MoneyTransferResponse.class);
+        transfers = new Body(format, batch, List.class, TRANSFERS);
+        System.out.printf("%n%s bytes: AccountDetails %d, MoneyTransferResponse %d, %d transfers %d%n", format,
+                details.encoded.length, response.encoded.length, BATCH_SIZE, transfers.encoded.length);
+    }
+
+    @Benchmark
+    public byte[] writeAccountDetails() throws Exception {
+        return details.write();
+    }
+
+    @Benchmark
+    public Object readAccountDetails() throws Exception {
+        return details.read();
+    }
+
+    @Benchmark
+    public byte[] writeMoneyTransferResponse() throws Exception {
+        return response.write();
+    }
+
+    @Benchmark
+    public Object readMoneyTransferResponse() throws Exception {
+        return response.read();
+    }
+
+    @Benchmark
+    public byte[] writeTransferBatch() throws Exception {
+        return transfers.write();
+    }
+
+    @Benchmark
+    public Object readTransferBatch() throws Exception {
+        return transfers.read();
+    }
+
+    private static final class Body {
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+        private static final BinaryFormat BINARY = new BinaryFormat();
+
+        private final Object value;
+        private final Class<?> type;
+        private final Type genericType;
+        private final ObjectWriter writer;
+        private final ObjectReader reader;
+        private final byte[] encoded;
+
+        private Body(String format, Object value, Class<?> type, Type genericType) throws IOException {
+            this.value = value;
+            this.type = type;
+            this.genericType = genericType;
+            boolean json = "json".equals(format);
+            writer = json ? MAPPER.writerFor(MAPPER.constructType(genericType)) : null;
+            reader = json ? MAPPER.readerFor(MAPPER.constructType(genericType)) : null;
+            encoded = write();
+        }
+
+        private byte[] write() throws IOException {
+            if (writer != null) {
+                return writer.writeValueAsBytes(value);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BINARY.writeTo(value, type, genericType, null, BinaryFormat.APPLICATION_MONEY_TRANSFER_TYPE, null, out);
+            return out.toByteArray();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object read() throws IOException {
+            if (reader != null) {
+                return reader.readValue(encoded);
+            }
+            return BINARY.readFrom((Class<Object>) type, genericType, null,
+                    BinaryFormat.APPLICATION_MONEY_TRANSFER_TYPE, null, new ByteArrayInputStream(encoded));
+        }
+    }
+}
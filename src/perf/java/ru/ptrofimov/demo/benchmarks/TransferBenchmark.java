@@ -0,0 +1,71 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.logic.AccountHelper;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AccountHelper#transferMoney(long, long, BigDecimal)} between accounts drawn uniformly
+ * ({@code skew = 0}) or from a Zipf distribution that concentrates traffic on a few hot accounts.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+
+    @Param({"1000"})
+    public int accountCount;
+
+    @Param({"0", "1.2"})
+    public double skew;
+
+    private long[] accountIds;
+    private ZipfGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        accountIds = Accounts.create(accountCount, Currency.EURO);
+        generator = new ZipfGenerator(accountCount, skew);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void transferSingleThread(ThreadState state) throws Exception {
+        transfer(state.random);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void transferAllThreads(ThreadState state) throws Exception {
+        transfer(state.random);
+    }
+
+    private void transfer(Random random) throws Exception {
+        int sender = generator.next(random);
+        int recipient = generator.next(random);
+        if (sender == recipient) {
+            recipient = (recipient + 1) % accountIds.length;
+        }
+        try (AccountHelper helper = new AccountHelper()) {
+            helper.transferMoney(accountIds[sender], accountIds[recipient], AMOUNT);
+        } catch (InsufficientFundsException ignored) {
+            // practically impossible with the seeded balances
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ptrofimov.demo.logic.UpdateBalanceTrigger;
+import ru.ptrofimov.demo.utils.DBUtils;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one {@link UpdateBalanceTrigger#fire} call as H2 makes it for every updated {@code ACCOUNTS} row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateBalanceTriggerBenchmark {
+
+    private UpdateBalanceTrigger trigger;
+    private Object[] oldRow;
+    private Object[] newRow;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        trigger = new UpdateBalanceTrigger();
+        try (Connection connection = DBUtils.getConnection()) {
+            trigger.init(connection, "PUBLIC", "UPDATE_BALANCE_TRIGGER", "ACCOUNTS", true, 0);
+        }
+        oldRow = new Object[]{1L, "EUR", new BigDecimal("100.00"), "owner"};
+        newRow = new Object[]{1L, "EUR", new BigDecimal("99.99"), "owner"};
+    }
+
+    @Benchmark
+    public void fire() throws Exception {
+        trigger.fire(null, oldRow, newRow);
+    }
+}
@@ -0,0 +1,30 @@
+package ru.ptrofimov.demo.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws indexes {@code 0..n-1} where index {@code k} is picked with probability proportional to
+ * {@code 1 / (k + 1)^skew}; {@code skew = 0} is the uniform distribution.
+ */
+public final class ZipfGenerator {
+
+    private final double[] cdf;
+
+    public ZipfGenerator(int n, double skew) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1 / Math.pow(k + 1, skew);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= sum;
+        }
+    }
+
+    public int next(Random random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, cdf.length - 1);
+    }
+}
@@ -0,0 +1,368 @@
+package ru.ptrofimov.demo.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.jetty.server.Server;
+import ru.ptrofimov.demo.benchmarks.ZipfGenerator;
+import ru.ptrofimov.demo.logic.ConservationChecker;
+import ru.ptrofimov.demo.logic.LedgerEngines;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.ConservationReport;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.utils.JettyUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-model HTTP load test against an embedded server started on a free port.
+ * <p>
+ * Requests of a create/get/transfer mix are issued at a constant arrival rate regardless of how fast the
+ * server answers; latency is measured from the moment a request was due, so queueing delay caused by a
+ * slow server is part of the numbers (no coordinated omission). After the run the total balance per currency
+ * over every account the generator knows is compared with what it should be.
+ * <p>
+ * Requests shed by the server with {@code 503} are counted apart from errors, and the goodput counts only the
+ * successful answers that came within {@code deadline} milliseconds: under overload it shows whether the server
+ * keeps doing useful work or lets every request get slow.
+ * <p>
+ * Arguments are {@code key=value} pairs, see {@link Options}.
+ */
+public class LoadGenerator {
+
+    enum Operation {CREATE, GET, TRANSFER}
+
+    static final class Options {
+        /** requests per second */
+        double rate = 500;
+        int durationSeconds = 20;
+        int warmupSeconds = 5;
+        /** maximum number of requests in flight */
+        int concurrency = 32;
+        int accounts = 200;
+        /** Zipf exponent of account selection, 0 is uniform */
+        double skew = 0;
+        int createPercent = 5;
+        int getPercent = 45;
+        long deadlineMillis = 1000;
+        String engine = LedgerEngines.H2;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] pair = arg.split("=", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("expected key=value but got " + arg);
+                }
+                switch (pair[0]) {
+                    case "rate": options.rate = Double.parseDouble(pair[1]); break;
+                    case "duration": options.durationSeconds = Integer.parseInt(pair[1]); break;
+                    case "warmup": options.warmupSeconds = Integer.parseInt(pair[1]); break;
+                    case "concurrency": options.concurrency = Integer.parseInt(pair[1]); break;
+                    case "accounts": options.accounts = Integer.parseInt(pair[1]); break;
+                    case "skew": options.skew = Double.parseDouble(pair[1]); break;
+                    case "create": options.createPercent = Integer.parseInt(pair[1]); break;
+                    case "get": options.getPercent = Integer.parseInt(pair[1]); break;
+                    case "deadline": options.deadlineMillis = Long.parseLong(pair[1]); break;
+                    case "engine": options.engine = pair[1]; break;
+                    default: throw new IllegalArgumentException("unknown option " + pair[0]);
+                }
+            }
+            return options;
+        }
+    }
+
+    private static final BigDecimal INITIAL_BALANCE = BigDecimal.valueOf(1_000_000);
+    private static final BigDecimal TRANSFER_AMOUNT = new BigDecimal("0.01");
+
+    private final Options options;
+    private final String baseUrl;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> shed = new EnumMap<>(Operation.class);
+    private final Map<MoneyTransferStatus, LongAdder> transferStatuses = new EnumMap<>(MoneyTransferStatus.class);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder good = new LongAdder();
+
+    private long[] accountIds;
+    private ZipfGenerator accountPicker;
+    private final Queue<AccountDetails> createdAccounts = new ConcurrentLinkedQueue<>();
+
+    public LoadGenerator(Options options, String baseUrl) {
+        this.options = options;
+        this.baseUrl = baseUrl;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new ConcurrentHistogram(TimeUnit.SECONDS.toNanos(60), 3));
+            errors.put(operation, new LongAdder());
+            shed.put(operation, new LongAdder());
+        }
+        for (MoneyTransferStatus status : MoneyTransferStatus.values()) {
+            transferStatuses.put(status, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        LedgerEngines.select(options.engine);
+        Server server = JettyUtils.createServer(0);
+        server.start();
+        boolean conserved;
+        try {
+            String baseUrl = "http://localhost:" + JettyUtils.getPort(server) + "/api/moneyTransfer";
+            conserved = new LoadGenerator(options, baseUrl).run(System.out);
+        } finally {
+            server.stop();
+            server.destroy();
+        }
+        System.exit(conserved ? 0 : 1);
+    }
+
+    /**
+     * @return whether money was conserved
+     */
+    public boolean run(PrintStream out) throws Exception {
+        accountIds = new long[options.accounts];
+        for (int i = 0; i < accountIds.length; i++) {
+            accountIds[i] = createAccount(Currency.EURO, INITIAL_BALANCE);
+        }
+        accountPicker = new ZipfGenerator(accountIds.length, options.skew);
+
+        ExecutorService executor = new ThreadPoolExecutor(options.concurrency, options.concurrency,
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        for (long due = start; due < end; due += period) {
+            long delay = due - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            long dueAt = due;
+            executor.execute(() -> issue(dueAt, dueAt >= measureFrom));
+        }
+        executor.shutdown();
+        boolean drained = executor.awaitTermination(1, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - measureFrom;
+
+        report(out, elapsed);
+        writeHistograms(Paths.get("target"));
+        if (!drained) {
+            // balances read now could still change, so they prove nothing
+            out.println("requests still in flight after a minute, conservation not checked");
+            return false;
+        }
+        return checkConservation(out);
+    }
+
+    private void issue(long due, boolean measured) {
+        Random random = ThreadLocalRandom.current();
+        int dice = random.nextInt(100);
+        Operation operation = dice < options.createPercent ? Operation.CREATE
+                : dice < options.createPercent + options.getPercent ? Operation.GET : Operation.TRANSFER;
+        try {
+            switch (operation) {
+                case CREATE:
+                    Currency currency = Currency.values()[random.nextInt(Currency.values().length)];
+                    BigDecimal balance = BigDecimal.valueOf(random.nextInt(100_000), 2);
+                    AccountDetails created = new AccountDetails(currency, balance, "load");
+                    created.setId(createAccount(currency, balance));
+                    createdAccounts.add(created);
+                    break;
+                case GET:
+                    request("GET", "/accounts/" + pickAccount(random), null, null);
+                    break;
+                case TRANSFER:
+                    int sender = accountPicker.next(random);
+                    int recipient = accountPicker.next(random);
+                    if (sender == recipient) {
+                        recipient = (recipient + 1) % accountIds.length;
+                    }
+                    String body = "from=" + accountIds[sender] + "&amount=" + TRANSFER_AMOUNT;
+                    JsonNode response = mapper.readTree(request("POST", "/accounts/" + accountIds[recipient] + "/balance",
+                            "application/x-www-form-urlencoded", body));
+                    if (measured) {
+                        MoneyTransferStatus status = MoneyTransferStatus.valueOf(response.get("status").asText());
+                        transferStatuses.get(status).increment();
+                    }
+                    break;
+            }
+            if (measured) {
+                long latency = System.nanoTime() - due;
+                latencies.get(operation).recordValue(latency);
+                completed.increment();
+                if (latency <= TimeUnit.MILLISECONDS.toNanos(options.deadlineMillis)) {
+                    good.increment();
+                }
+            }
+        } catch (ShedException e) {
+            if (measured) {
+                shed.get(operation).increment();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (measured) {
+                errors.get(operation).increment();
+            }
+        }
+    }
+
+    private long pickAccount(Random random) {
+        return accountIds[accountPicker.next(random)];
+    }
+
+    private long createAccount(Currency currency, BigDecimal balance) throws IOException {
+        String body = "{\"currency\":\"" + currency.name() + "\",\"balance\":" + balance.toPlainString()
+                + ",\"owner\":\"load\"}";
+        return mapper.readTree(request("POST", "/accounts", "application/json", body)).get("id").asLong();
+    }
+
+    private byte[] request(String method, String path, String contentType, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        if (is != null) {
+            try (InputStream in = is) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    result.write(buffer, 0, read);
+                }
+            }
+        }
+        if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+            throw new ShedException();
+        }
+        if (status >= 300) {
+            throw new IOException("HTTP " + status + " for " + method + " " + path);
+        }
+        return result.toByteArray();
+    }
+
+    private void report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        out.printf("%nengine=%s rate=%.0f/s concurrency=%d accounts=%d skew=%.2f%n",
+                options.engine, options.rate, options.concurrency, options.accounts, options.skew);
+        out.printf("throughput: %.1f req/s over %.1f s%n", completed.sum() / seconds, seconds);
+        out.printf("goodput: %.1f req/s answered within %d ms%n", good.sum() / seconds, options.deadlineMillis);
+        out.printf("%-9s %9s %7s %7s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "shed", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "mean ms");
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latencies.get(operation);
+            out.printf("%-9s %9d %7d %7d %10.3f %10.3f %10.3f %10.3f %10.3f%n", operation, histogram.getTotalCount(),
+                    errors.get(operation).sum(), shed.get(operation).sum(), ms(histogram.getValueAtPercentile(50)),
+                    ms(histogram.getValueAtPercentile(99)), ms(histogram.getValueAtPercentile(99.9)),
+                    ms(histogram.getMaxValue()), histogram.getMean() / 1e6);
+        }
+        out.print("transfer outcomes:");
+        transferStatuses.forEach((status, count) -> out.print(" " + status + "=" + count.sum()));
+        out.println();
+    }
+
+    /**
+     * Writes one HdrHistogram percentile file per operation, values in milliseconds.
+     */
+    private void writeHistograms(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        for (Operation operation : Operation.values()) {
+            Path file = dir.resolve("load-" + operation.name().toLowerCase() + ".hgrm");
+            try (PrintStream ps = new PrintStream(Files.newOutputStream(file), false, "UTF-8")) {
+                latencies.get(operation).outputPercentileDistribution(ps, 1e6);
+            }
+        }
+    }
+
+    /**
+     * The server answered {@code 503}: the request was shed, not failed.
+     */
+    private static final class ShedException extends IOException {
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Transfers only move money between the pre-created accounts, so every currency must still add up to
+     * the initial deposits of all accounts created during the run. Called once every request was answered;
+     * when the server runs in this JVM its {@link ConservationChecker} must also agree.
+     */
+    private boolean checkConservation(PrintStream out) throws IOException, SQLException {
+        Map<Currency, BigDecimal> expected = new EnumMap<>(Currency.class);
+        Map<Currency, BigDecimal> actual = new EnumMap<>(Currency.class);
+        List<Long> ids = new ArrayList<>();
+        expected.put(Currency.EURO, INITIAL_BALANCE.multiply(BigDecimal.valueOf(accountIds.length)));
+        for (long id : accountIds) {
+            ids.add(id);
+        }
+        for (AccountDetails created : createdAccounts) {
+            expected.merge(created.getCurrency(), created.getBalance(), BigDecimal::add);
+            ids.add(created.getId());
+        }
+        for (long id : ids) {
+            JsonNode details = mapper.readTree(request("GET", "/accounts/" + id, null, null));
+            actual.merge(Currency.valueOf(details.get("currency").asText()),
+                    details.get("balance").decimalValue(), BigDecimal::add);
+        }
+        boolean conserved = true;
+        for (Currency currency : Currency.values()) {
+            BigDecimal want = expected.getOrDefault(currency, BigDecimal.ZERO);
+            BigDecimal got = actual.getOrDefault(currency, BigDecimal.ZERO);
+            if (want.compareTo(got) != 0) {
+                out.printf("money not conserved for %s: expected %s, found %s%n", currency, want, got);
+                conserved = false;
+            }
+        }
+        if (ConservationChecker.isStarted()) {
+            ConservationReport report = ConservationChecker.reconcile();
+            for (ConservationReport.Total total : report.getTotals()) {
+                if (total.isConfirmed()) {
+                    out.printf("conservation checker found a drift of %s for %s%n", total.getDrift(),
+                            total.getCurrency());
+                }
+            }
+            conserved &= report.isConserved();
+        }
+        out.println(conserved ? "balance per currency conserved" : "BALANCE INVARIANT VIOLATED");
+        return conserved;
+    }
+}
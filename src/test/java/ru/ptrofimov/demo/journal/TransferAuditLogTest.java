@@ -0,0 +1,119 @@
+package ru.ptrofimov.demo.journal;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class TransferAuditLogTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsFromManyThreads() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("audit").resolve("transfers.audit");
+        int threads = 4;
+        int perThread = 5_000;
+        // far fewer slots than records, so producers wait for the writer
+        try (TransferAuditLog log = new TransferAuditLog(file, 256, true)) {
+            Thread[] producers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                long sender = t + 1;
+                producers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        log.record(sender, 100, BigDecimal.valueOf(i, 2),
+                                MoneyTransferStatus.SUCCESS.ordinal(), TransferAuditLog.BATCH_ITEM);
+                    }
+                });
+                producers[t].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+        }
+
+        long[] next = new long[threads + 1];
+        try (TransferAuditLog.Reader reader = new TransferAuditLog.Reader(file)) {
+            while (reader.next()) {
+                int sender = (int) reader.getSenderId();
+                assertEquals("records of a thread keep their order", next[sender]++,
+                        reader.getAmount().movePointRight(2).longValueExact());
+                assertEquals(MoneyTransferStatus.SUCCESS, reader.getStatus());
+                assertTrue(reader.isBatchItem());
+                assertFalse(reader.isReplayed());
+            }
+        }
+        for (int t = 1; t <= threads; t++) {
+            assertEquals(perThread, next[t]);
+        }
+    }
+
+    @Test
+    public void testReopenAppendsAfterTornTail() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("transfers.audit");
+        try (TransferAuditLog log = new TransferAuditLog(file, 16, false)) {
+            log.record(1, 2, new BigDecimal("10.50"), MoneyTransferStatus.INSUFFICIENT_FUNDS.ordinal(), 0);
+            log.record(1, 3, null, TransferAuditLog.RECIPIENT_NOT_FOUND, 0);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+        try (TransferAuditLog log = new TransferAuditLog(file, 16, false)) {
+            log.record(1, 2, BigDecimal.ONE, MoneyTransferStatus.SUCCESS.ordinal(), TransferAuditLog.REPLAYED);
+        }
+
+        try (TransferAuditLog.Reader reader = new TransferAuditLog.Reader(file)) {
+            assertTrue(reader.next());
+            assertEquals(MoneyTransferStatus.INSUFFICIENT_FUNDS, reader.getStatus());
+            assertEquals(new BigDecimal("10.50"), reader.getAmount());
+            assertTrue(reader.getTimeMillis() > 0);
+
+            assertTrue(reader.next());
+            assertNull(reader.getStatus());
+            assertEquals(TransferAuditLog.RECIPIENT_NOT_FOUND, reader.getOutcome());
+            assertEquals(3, reader.getRecipientId());
+            assertNull(reader.getAmount());
+
+            assertTrue(reader.next());
+            assertEquals(MoneyTransferStatus.SUCCESS, reader.getStatus());
+            assertTrue(reader.isReplayed());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void testRecordsAreWrittenWhileOpen() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("transfers.audit");
+        try (TransferAuditLog log = new TransferAuditLog(file, 16, true, 0)) {
+            log.record(1, 2, BigDecimal.TEN, TransferAuditLog.REJECTED, TransferAuditLog.BATCH_ITEM);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (Files.size(file) < Long.BYTES + TransferAuditLog.RECORD_SIZE) {
+                assertTrue("the writer appends without waiting for close", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            try (TransferAuditLog.Reader reader = new TransferAuditLog.Reader(file)) {
+                assertTrue(reader.next());
+                assertEquals(TransferAuditLog.REJECTED, reader.getOutcome());
+                assertTrue(reader.isBatchItem());
+                assertFalse(reader.next());
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsForeignFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("foreign");
+        Files.write(file, new byte[64]);
+        new TransferAuditLog(file, 16, true).close();
+    }
+}
@@ -0,0 +1,248 @@
+package ru.ptrofimov.demo.journal;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TransferJournalTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransferJournal open() throws IOException {
+        return new TransferJournal(folder.getRoot().toPath(), 2000, 1 << 20, 64 * 1024, 0);
+    }
+
+    @Test
+    public void testConcurrentAppendsShareSyncs() throws Exception {
+        try (TransferJournal journal = open()) {
+            assertTrue(journal.isEmpty());
+            journal.awaitDurable(journal.appendCreate(1, Currency.EURO, 1_000_000, "first"));
+            journal.awaitDurable(journal.appendCreate(2, Currency.EURO, 0, null));
+
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 50; j++) {
+                        journal.awaitDurable(journal.appendTransfer(1, 2, 1));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            assertTrue(journal.getAverageGroupSize() > 1);
+        }
+
+        LedgerState state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            assertFalse(journal.isEmpty());
+            assertEquals(402, journal.replay(state));
+        }
+        assertEquals(1_000_000 - 400, state.getAccounts().iterator().next().getBalance());
+    }
+
+    @Test
+    public void testCompactionBoundsReplay() throws Exception {
+        try (TransferJournal journal = open()) {
+            journal.appendCreate(1, Currency.AMERICAN_DOLLAR, 500, "first");
+            journal.appendCreate(2, Currency.AMERICAN_DOLLAR, 0, "second");
+            for (int i = 0; i < 100; i++) {
+                journal.appendTransfer(1, 2, 5);
+            }
+            journal.compact();
+            journal.awaitDurable(journal.appendTransfer(2, 1, 20));
+        }
+
+        LedgerState state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            // two snapshot entries plus the one transfer written after compaction
+            assertEquals(3, journal.replay(state));
+        }
+        List<LedgerState.Account> accounts = new ArrayList<>(state.getAccounts());
+        assertEquals(20, accounts.get(0).getBalance());
+        assertEquals(480, accounts.get(1).getBalance());
+        assertEquals("second", accounts.get(1).getOwner());
+    }
+
+    @Test
+    public void testExchangeIsReplayed() throws Exception {
+        try (TransferJournal journal = open()) {
+            journal.appendCreate(1, Currency.EURO, 1000, "euros");
+            journal.appendCreate(2, Currency.AMERICAN_DOLLAR, 0, "dollars");
+            journal.appendTransfer(1, 2, 100, 108);
+            journal.compact();
+            journal.awaitDurable(journal.appendTransfer(2, 1, 54, 50));
+        }
+
+        LedgerState state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            assertEquals(3, journal.replay(state));
+        }
+        List<LedgerState.Account> accounts = new ArrayList<>(state.getAccounts());
+        assertEquals(950, accounts.get(0).getBalance());
+        assertEquals(54, accounts.get(1).getBalance());
+    }
+
+    @Test
+    public void testTransfersAreKeptSinceSnapshot() throws Exception {
+        try (TransferJournal journal = open()) {
+            journal.appendCreate(1, Currency.EURO, 1000, "euros");
+            journal.appendCreate(2, Currency.AMERICAN_DOLLAR, 0, "dollars");
+            journal.appendTransfer(1, 2, 10);
+            journal.compact();
+            journal.appendTransfer(1, 2, 100, 108, "key", "1>2:1");
+            journal.awaitDurable(journal.appendTransfers(new long[]{2}, new long[]{1}, new long[]{54},
+                    new long[]{50}, 1));
+        }
+
+        LedgerState state = new LedgerState(true);
+        try (TransferJournal journal = open()) {
+            journal.replay(state);
+        }
+        List<LedgerState.Transfer> transfers = state.getTransfers();
+        // the first one is folded into the snapshot
+        assertEquals(2, transfers.size());
+        assertEquals(1, transfers.get(0).getSenderId());
+        assertEquals(108, transfers.get(0).getCredited());
+        assertEquals(Currency.AMERICAN_DOLLAR, transfers.get(0).getRecipientCurrency());
+        assertEquals(new ArrayList<>(state.getKeys()).get(0).getCreatedAt(), transfers.get(0).getCreatedAt());
+        assertEquals(2, transfers.get(1).getSenderId());
+        assertEquals(Currency.AMERICAN_DOLLAR, transfers.get(1).getCurrency());
+        assertEquals(0, transfers.get(1).getCreatedAt());
+    }
+
+    @Test
+    public void testKeysSurviveCompaction() throws Exception {
+        try (TransferJournal journal = open()) {
+            journal.appendCreate(1, Currency.EURO, 1000, "first");
+            journal.appendCreate(2, Currency.EURO, 0, "second");
+            journal.appendTransfer(1, 2, 100, 100, "before", "1>2:1");
+            journal.compact();
+            journal.awaitDurable(journal.appendTransfer(1, 2, 200, 200, "after", "1>2:2"));
+        }
+
+        LedgerState state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            journal.replay(state);
+        }
+        List<LedgerState.Key> keys = new ArrayList<>(state.getKeys());
+        assertEquals(2, keys.size());
+        assertEquals("before", keys.get(0).getKey());
+        assertEquals("1>2:1", keys.get(0).getFingerprint());
+        assertEquals("after", keys.get(1).getKey());
+        assertEquals(700, new ArrayList<>(state.getAccounts()).get(0).getBalance());
+    }
+
+    @Test
+    public void testPendingTransfersSurviveCompaction() throws Exception {
+        try (TransferJournal journal = open()) {
+            journal.appendCreate(1, Currency.EURO, 1000, "sender");
+            journal.appendCreate(2, Currency.EURO, 0, "recipient");
+            journal.appendPending(new LedgerState.Pending("0-a", 1, 3, 100, Currency.EURO, false, "key", "1>3:1",
+                    1));
+            journal.appendPending(new LedgerState.Pending("0-b", 1, 3, 200, Currency.EURO, false, null, null, 1));
+            journal.appendPending(new LedgerState.Pending("1-c", 2, 4, 50, Currency.EURO, true, null, null, 1));
+            journal.compact();
+            journal.appendResolved("0-a", true);
+            journal.appendResolved("0-b", false);
+            journal.awaitDurable(journal.appendResolved("1-c", true));
+        }
+
+        LedgerState state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            journal.replay(state);
+        }
+        List<LedgerState.Account> accounts = new ArrayList<>(state.getAccounts());
+        assertEquals(900, accounts.get(0).getBalance());
+        assertEquals(50, accounts.get(1).getBalance());
+        assertTrue(state.getPending().isEmpty());
+        // only the credit's outcome is kept, to answer a repeated decision
+        List<LedgerState.Resolved> resolved = new ArrayList<>(state.getResolved());
+        assertEquals(1, resolved.size());
+        assertEquals("1-c", resolved.get(0).getTxId());
+        assertTrue(resolved.get(0).isCommit());
+        assertEquals("key", new ArrayList<>(state.getKeys()).get(0).getKey());
+    }
+
+    @Test
+    public void testTornBatchIsDroppedWhole() throws Exception {
+        int count = 3000;
+        long[] senders = new long[count];
+        long[] recipients = new long[count];
+        long[] amounts = new long[count];
+        for (int i = 0; i < count; i++) {
+            senders[i] = 1;
+            recipients[i] = 2;
+            amounts[i] = 1;
+        }
+        try (TransferJournal journal = open()) {
+            journal.appendCreate(1, Currency.EURO, count, "first");
+            journal.awaitDurable(journal.appendCreate(2, Currency.EURO, 0, "second"));
+            // larger than the buffer
+            journal.awaitDurable(journal.appendTransfers(senders, recipients, amounts, amounts, count));
+        }
+        LedgerState state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            assertEquals(2 + count, journal.replay(state));
+        }
+        assertEquals(0, state.getAccounts().iterator().next().getBalance());
+
+        Path segment;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.getRoot().toPath(), "journal-*.log")) {
+            segment = stream.iterator().next();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            assertEquals(2, journal.replay(state));
+        }
+        assertEquals(count, state.getAccounts().iterator().next().getBalance());
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        try (TransferJournal journal = open()) {
+            journal.appendCreate(1, Currency.EURO, 100, "first");
+            journal.appendCreate(2, Currency.EURO, 100, "second");
+            journal.awaitDurable(journal.appendTransfer(1, 2, 10));
+        }
+        Path segment;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.getRoot().toPath(), "journal-*.log")) {
+            segment = stream.iterator().next();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 25, 2, 0, 0}));
+        }
+
+        LedgerState state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            assertEquals(3, journal.replay(state));
+            journal.awaitDurable(journal.appendTransfer(2, 1, 1));
+        }
+        state = new LedgerState();
+        try (TransferJournal journal = open()) {
+            assertEquals(4, journal.replay(state));
+        }
+        assertEquals(91, state.getAccounts().iterator().next().getBalance());
+    }
+}
@@ -0,0 +1,86 @@
+package ru.ptrofimov.demo.logic;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.journal.LedgerState;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+public class AccountReplicaTest extends Assert {
+
+    @Test
+    public void testReplicaFollowsCommits() throws Exception {
+        try (H2LedgerEngine engine = new H2LedgerEngine(null, true)) {
+            long first = engine.createAccount(Currency.EURO, new BigDecimal("10.00"), "first").getId();
+            long second = engine.createAccount(Currency.EURO, new BigDecimal("5.00"), "second").getId();
+            engine.transferMoney(first, second, new BigDecimal("1.50"));
+            engine.transferMoney(second, first, new BigDecimal("0.25"), "replica-test-" + first);
+            engine.transferMoney(Arrays.asList(new TransferRequest(first, second, new BigDecimal("2.00")),
+                    new TransferRequest(second, first, new BigDecimal("100.00"))), BatchMode.PER_ITEM);
+
+            assertEquals(new BigDecimal("6.75"), awaitBalance(engine, first, new BigDecimal("6.75")));
+            Snapshot<AccountDetails> snapshot = engine.getAccountSnapshot(second);
+            assertEquals(new BigDecimal("8.25"), snapshot.getValue().getBalance());
+            assertEquals("second", snapshot.getValue().getOwner());
+            assertEquals(second, snapshot.getValue().getId());
+            assertTrue(snapshot.getAgeMillis() <= 1000);
+
+            try {
+                engine.getAccountSnapshot(Long.MAX_VALUE);
+                fail();
+            } catch (AccountNotFoundException expected) {
+                // not in the replica, so the database is asked
+            }
+        }
+    }
+
+    @Test
+    public void testStaleReplicaIsNotRead() throws Exception {
+        try (AccountReplica replica = new AccountReplica(new LedgerState(), 60_000, 50)) {
+            replica.onCreate(1, Currency.EURO, 1000, "owner");
+            assertNull(replica.getAccountDetails(1));
+
+            replica.apply();
+            assertEquals(new BigDecimal("10.00"), replica.getAccountDetails(1).getValue().getBalance());
+
+            Thread.sleep(100);
+            assertNull(replica.getAccountDetails(1));
+            replica.apply();
+            assertNull("nothing was committed since", replica.getAccountDetails(1));
+            replica.onCreate(2, Currency.EURO, 0, "other");
+            replica.apply();
+            assertNotNull(replica.getAccountDetails(1));
+        }
+    }
+
+    @Test
+    public void testTransferFedBeforeCreationIsKept() {
+        try (AccountReplica replica = new AccountReplica(new LedgerState(), 60_000, 1000)) {
+            replica.onCreate(1, Currency.EURO, 1000, "sender");
+            replica.onTransfer(1, 2, 250, 250);
+            replica.apply();
+            assertNull(replica.getAccountDetails(2));
+
+            replica.onCreate(2, Currency.EURO, 100, "recipient");
+            replica.apply();
+            assertEquals(new BigDecimal("7.50"), replica.getAccountDetails(1).getValue().getBalance());
+            assertEquals(new BigDecimal("3.50"), replica.getAccountDetails(2).getValue().getBalance());
+        }
+    }
+
+    private static BigDecimal awaitBalance(LedgerEngine engine, long accountId, BigDecimal expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        BigDecimal balance;
+        while (!(balance = engine.getAccountSnapshot(accountId).getValue().getBalance()).equals(expected)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return balance;
+    }
+}
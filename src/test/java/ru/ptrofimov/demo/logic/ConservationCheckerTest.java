@@ -0,0 +1,114 @@
+package ru.ptrofimov.demo.logic;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.ConservationReport;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.TransferRequest;
+import ru.ptrofimov.demo.utils.DBUtils;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class ConservationCheckerTest extends Assert {
+
+    private static void assertNoDrift(ConservationReport report) {
+        assertTrue(report.isConserved());
+        for (ConservationReport.Total total : report.getTotals()) {
+            assertEquals(total.getCurrency().getShortName(), 0, total.getDrift().signum());
+        }
+    }
+
+    @Test
+    public void testTotalsFollowCreatedAccountsAndConversions() throws Exception {
+        H2LedgerEngine engine = new H2LedgerEngine(null, false);
+        try (SequencedLedgerEngine sequenced = new SequencedLedgerEngine(engine, 64, 8)) {
+            assertTrue(ConservationChecker.isStarted());
+            long dollars = engine.createAccount(Currency.AMERICAN_DOLLAR, new BigDecimal("100.00"), "usd").getId();
+            long euros = engine.createAccount(Currency.EURO, new BigDecimal("50.05"), "eur").getId();
+            long[] more = engine.createAccounts(Arrays.asList(
+                    new AccountDetails(Currency.EURO, BigDecimal.TEN, "eur"),
+                    new AccountDetails(Currency.JAPANESE_YEN, BigDecimal.TEN, "yen")));
+            engine.shardAccount(more[0], 2);
+
+            engine.transferMoney(dollars, euros, new BigDecimal("10.01"));
+            engine.transferMoney(euros, more[0], BigDecimal.ONE);
+            engine.transferMoney(Arrays.asList(new TransferRequest(euros, dollars, new BigDecimal("3.33")),
+                    new TransferRequest(more[1], more[0], BigDecimal.ONE)), BatchMode.PER_ITEM);
+            assertTrue(sequenced.submitTransfer(euros, dollars, new BigDecimal("0.07"), null)
+                    .get(5, TimeUnit.SECONDS));
+            sequenced.transferMoney(dollars, more[1], new BigDecimal("2.50"));
+            assertNoDrift(ConservationChecker.reconcile());
+            assertNoDrift(ConservationChecker.getLastReport());
+        }
+    }
+
+    @Test
+    public void testDriftIsConfirmedByOneReconciliation() throws Exception {
+        try (H2LedgerEngine engine = new H2LedgerEngine(null, false)) {
+            long account = engine.createAccount(Currency.RUSSIAN_RUBLE, BigDecimal.TEN, "rur").getId();
+            assertNoDrift(ConservationChecker.reconcile());
+
+            addBalance(account, "0.01");
+            try {
+                ConservationReport report = ConservationChecker.reconcile();
+                assertFalse(report.isConserved());
+                for (ConservationReport.Total total : report.getTotals()) {
+                    boolean rubles = total.getCurrency() == Currency.RUSSIAN_RUBLE;
+                    assertEquals(rubles, total.isConfirmed());
+                    assertEquals(rubles ? new BigDecimal("0.01") : BigDecimal.ZERO.setScale(2), total.getDrift());
+                }
+            } finally {
+                addBalance(account, "-0.01");
+            }
+            assertNoDrift(ConservationChecker.reconcile());
+        }
+    }
+
+    @Test
+    public void testDriftIsNotJudgedWhileAChangeIsCommitted() throws Exception {
+        try (H2LedgerEngine engine = new H2LedgerEngine(null, false)) {
+            long account = engine.createAccount(Currency.RUSSIAN_RUBLE, BigDecimal.TEN, "rur").getId();
+            // as if a conversion had committed its credit but not reported it yet
+            ConservationChecker.beginTransfer(Currency.EURO, Currency.RUSSIAN_RUBLE);
+            addBalance(account, "0.01");
+            try {
+                ConservationReport report = ConservationChecker.reconcile();
+                assertTrue(report.isConserved());
+                for (ConservationReport.Total total : report.getTotals()) {
+                    assertEquals(total.getCurrency() == Currency.RUSSIAN_RUBLE ? new BigDecimal("0.01")
+                            : BigDecimal.ZERO.setScale(2), total.getDrift());
+                }
+                ConservationChecker.onTransfer(Currency.EURO, 0, Currency.RUSSIAN_RUBLE, 1);
+            } finally {
+                ConservationChecker.endTransfer(Currency.EURO, Currency.RUSSIAN_RUBLE);
+            }
+            assertNoDrift(ConservationChecker.reconcile());
+        }
+    }
+
+    @Test
+    public void testOnDemandReconciliationReturnsARecentReport() throws Exception {
+        try (H2LedgerEngine engine = new H2LedgerEngine(null, false)) {
+            ConservationReport report = ConservationChecker.reconcile();
+            assertSame(report, ConservationChecker.reconcileOnDemand());
+            assertSame(report, ConservationChecker.getLastReport());
+        }
+    }
+
+    private static void addBalance(long accountId, String amount) throws Exception {
+        try (Connection connection = DBUtils.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "UPDATE ACCOUNTS SET BALANCE = BALANCE + ? WHERE ID = ?")) {
+            connection.setAutoCommit(true);
+            statement.setBigDecimal(1, new BigDecimal(amount));
+            statement.setLong(2, accountId);
+            assertEquals(1, statement.executeUpdate());
+        }
+    }
+}
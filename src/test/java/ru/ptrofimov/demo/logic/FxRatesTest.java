@@ -0,0 +1,114 @@
+package ru.ptrofimov.demo.logic;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ptrofimov.demo.exceptions.AmountTooSmallException;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class FxRatesTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConversion() throws Exception {
+        FxRates.Table rates = parse("version=7\nUSD=1\nEUR=1.08\nRUR=0.011\nYEN=0.0067\n");
+        assertEquals(7, rates.getVersion());
+        assertEquals(1234, rates.convert(1234, Currency.EURO, Currency.EURO));
+        assertEquals(1080, rates.convert(1000, Currency.EURO, Currency.AMERICAN_DOLLAR));
+        // 10.00 / 1.08 = 9.259...
+        assertEquals(926, rates.convert(1000, Currency.AMERICAN_DOLLAR, Currency.EURO));
+        // 0.05 * 1.08 = 0.054, 0.15 * 1.08 = 0.162
+        assertEquals(5, rates.convert(5, Currency.EURO, Currency.AMERICAN_DOLLAR));
+        assertEquals(16, rates.convert(15, Currency.EURO, Currency.AMERICAN_DOLLAR));
+        assertEquals(1_080_000_000_000_000L,
+                rates.convert(1_000_000_000_000_000L, Currency.EURO, Currency.AMERICAN_DOLLAR));
+        try {
+            rates.convert(Long.MAX_VALUE, Currency.AMERICAN_DOLLAR, Currency.JAPANESE_YEN);
+            fail();
+        } catch (ArithmeticException expected) {
+            // more yen than a long holds
+        }
+    }
+
+    @Test
+    public void testCreditRoundingToNothingIsRefused() throws Exception {
+        FxRates.Table rates = parse("version=7\nUSD=1\nEUR=1.08\nRUR=0.011\nYEN=0.0067\n");
+        // 0.01 yen is worth 0.000067 dollars
+        try {
+            rates.convert(1, Currency.JAPANESE_YEN, Currency.AMERICAN_DOLLAR);
+            fail();
+        } catch (AmountTooSmallException expected) {
+            // the sender would be debited for nothing
+        }
+        assertEquals(0, rates.convert(0, Currency.JAPANESE_YEN, Currency.AMERICAN_DOLLAR));
+        // 0.75 yen is worth 0.005025 dollars, which rounds up to a cent
+        assertEquals(1, rates.convert(75, Currency.JAPANESE_YEN, Currency.AMERICAN_DOLLAR));
+
+        BatchPlanner planner = new BatchPlanner(Arrays.asList(
+                new TransferRequest(1, 2, new BigDecimal("0.01")), new TransferRequest(1, 2, new BigDecimal("1.00"))),
+                BatchMode.PER_ITEM);
+        planner.load(1, Currency.JAPANESE_YEN, 10_000);
+        planner.load(2, Currency.AMERICAN_DOLLAR, 0);
+        assertArrayEquals(new MoneyTransferStatus[]{MoneyTransferStatus.AMOUNT_TOO_SMALL, MoneyTransferStatus.SUCCESS},
+                planner.plan());
+    }
+
+    @Test
+    public void testInvalidRatesAreRejected() throws Exception {
+        for (String rates : new String[]{"USD=1\nEUR=1\nRUR=1\nYEN=1\n", "version=1\nUSD=1\nEUR=1\nRUR=1\n",
+                "version=1\nUSD=1\nEUR=0\nRUR=1\nYEN=1\n", "version=1\nUSD=1\nEUR=1\nRUR=1\nYEN=0.0001\n"}) {
+            try {
+                parse(rates);
+                fail(rates);
+            } catch (IllegalArgumentException expected) {
+                // no version, a missing or non-positive currency, or a rate out of range
+            }
+        }
+    }
+
+    @Test
+    public void testReloadSwapsNewVersionsOnly() throws Exception {
+        FxRates.Table previous = FxRates.current();
+        Path file = folder.newFile("rates.properties").toPath();
+        try {
+            write(file, "version=100\nUSD=1\nEUR=2\nRUR=0.01\nYEN=0.01\n");
+            assertTrue(FxRates.reload(file));
+            FxRates.Table reloaded = FxRates.current();
+            assertEquals(100, reloaded.getVersion());
+            assertEquals(200, reloaded.convert(100, Currency.EURO, Currency.AMERICAN_DOLLAR));
+
+            assertFalse(FxRates.reload(file));
+            write(file, "version=101\nUSD=1\n");
+            assertFalse(FxRates.reload(file));
+            assertSame(reloaded, FxRates.current());
+            // a table read before a reload keeps converting at its own rates
+            write(file, "version=101\nUSD=1\nEUR=3\nRUR=0.01\nYEN=0.01\n");
+            assertTrue(FxRates.reload(file));
+            assertEquals(200, reloaded.convert(100, Currency.EURO, Currency.AMERICAN_DOLLAR));
+            assertEquals(300, FxRates.current().convert(100, Currency.EURO, Currency.AMERICAN_DOLLAR));
+        } finally {
+            FxRates.set(previous);
+        }
+    }
+
+    private static FxRates.Table parse(String rates) throws Exception {
+        return FxRates.parse(new ByteArrayInputStream(rates.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static void write(Path file, String rates) throws Exception {
+        Files.write(file, rates.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,131 @@
+package ru.ptrofimov.demo.logic;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.journal.TransferJournal;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class H2LedgerEngineTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransferJournal openJournal() throws Exception {
+        return new TransferJournal(folder.getRoot().toPath(), 100, 1 << 20, 4096, 0);
+    }
+
+    @Test
+    public void testJournalFailureRejectsChanges() throws Exception {
+        TransferJournal journal = openJournal();
+        try (H2LedgerEngine engine = new H2LedgerEngine(journal)) {
+            long sender = engine.createAccount(Currency.EURO, BigDecimal.TEN, "sender").getId();
+            long recipient = engine.createAccount(Currency.EURO, BigDecimal.ZERO, "recipient").getId();
+            journal.close();
+            try {
+                engine.transferMoney(sender, recipient, BigDecimal.ONE);
+                fail();
+            } catch (RejectedExecutionException expected) {
+                // refused before the transaction
+            }
+            try {
+                engine.transferMoney(sender, recipient, BigDecimal.ONE, "key");
+                fail();
+            } catch (RejectedExecutionException expected) {
+                // refused before the key is claimed
+            }
+            try {
+                engine.transferMoney(Collections.singletonList(new TransferRequest(sender, recipient, BigDecimal.ONE)),
+                        BatchMode.ALL_OR_NOTHING);
+                fail();
+            } catch (RejectedExecutionException expected) {
+                // refused like a single transfer
+            }
+            try {
+                engine.createAccount(Currency.EURO, BigDecimal.ONE, "late");
+                fail();
+            } catch (RejectedExecutionException expected) {
+                // an account would be lost just the same
+            }
+            assertEquals(0, BigDecimal.TEN.compareTo(engine.getAccountDetails(sender).getBalance()));
+            assertEquals(0, BigDecimal.ZERO.compareTo(engine.getAccountDetails(recipient).getBalance()));
+        }
+    }
+
+    @Test
+    public void testTransfersToNewAccountsAreReplayedAfterThem() throws Exception {
+        int count = 200;
+        BigDecimal amount = new BigDecimal("0.01");
+        long source;
+        try (H2LedgerEngine engine = new H2LedgerEngine(openJournal())) {
+            source = engine.createAccount(Currency.EURO, BigDecimal.TEN, "source").getId();
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                // transfers to the next id as soon as it exists, racing with the journaling of its creation
+                Future<?> transfers = executor.submit(() -> {
+                    for (long next = source + 1; next <= source + count; ) {
+                        try {
+                            engine.transferMoney(source, next, amount);
+                            next++;
+                        } catch (AccountNotFoundException notYet) {
+                            Thread.yield();
+                        }
+                    }
+                    return null;
+                });
+                for (int i = 0; i < count; i++) {
+                    assertEquals(source + 1 + i, engine.createAccount(Currency.EURO, BigDecimal.ZERO, "new " + i)
+                            .getId());
+                }
+                transfers.get(30, TimeUnit.SECONDS);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        try (H2LedgerEngine engine = new H2LedgerEngine(openJournal())) {
+            assertEquals(0, BigDecimal.TEN.subtract(amount.multiply(BigDecimal.valueOf(count)))
+                    .compareTo(engine.getAccountDetails(source).getBalance()));
+            for (long id = source + 1; id <= source + count; id++) {
+                assertEquals(0, amount.compareTo(engine.getAccountDetails(id).getBalance()));
+            }
+        }
+    }
+
+    @Test
+    public void testHistoryIsRebuiltFromJournal() throws Exception {
+        long euros;
+        long dollars;
+        try (H2LedgerEngine engine = new H2LedgerEngine(openJournal())) {
+            euros = engine.createAccount(Currency.EURO, BigDecimal.TEN, "euros").getId();
+            dollars = engine.createAccount(Currency.AMERICAN_DOLLAR, BigDecimal.ZERO, "dollars").getId();
+            engine.transferMoney(euros, dollars, BigDecimal.ONE);
+            engine.transferMoney(euros, dollars, BigDecimal.ONE, "history");
+        }
+
+        try (H2LedgerEngine engine = new H2LedgerEngine(openJournal());
+             TransferHistory history = engine.getTransfers(euros, 0, 10)) {
+            for (int i = 0; i < 2; i++) {
+                assertTrue(history.next());
+                assertEquals(euros, history.getSenderId());
+                assertEquals(dollars, history.getRecipientId());
+                assertEquals(0, BigDecimal.ONE.compareTo(history.getAmount()));
+                assertEquals(Currency.AMERICAN_DOLLAR, history.getCreditedCurrency());
+                assertTrue(history.getCreatedAt() > 0);
+            }
+            assertFalse(history.next());
+        }
+    }
+}
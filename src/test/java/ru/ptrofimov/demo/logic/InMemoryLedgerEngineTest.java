@@ -0,0 +1,125 @@
+package ru.ptrofimov.demo.logic;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.journal.TransferJournal;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.Currency;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class InMemoryLedgerEngineTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentTransfersConserveMoney() throws Exception {
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, null)) {
+            long first = engine.createAccount(Currency.EURO, BigDecimal.valueOf(1000), "first").getId();
+            long second = engine.createAccount(Currency.EURO, BigDecimal.valueOf(1000), "second").getId();
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                boolean forward = i % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        try {
+                            engine.transferMoney(forward ? first : second, forward ? second : first,
+                                    new BigDecimal("0.01"));
+                        } catch (InsufficientFundsException ignored) {
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            BigDecimal total = engine.getAccountDetails(first).getBalance()
+                    .add(engine.getAccountDetails(second).getBalance());
+            assertEquals(0, BigDecimal.valueOf(2000).compareTo(total));
+        }
+    }
+
+    @Test(expected = InsufficientFundsException.class)
+    public void testOverdraftIsRejected() throws Exception {
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, null)) {
+            long sender = engine.createAccount(Currency.EURO, BigDecimal.TEN, "sender").getId();
+            long recipient = engine.createAccount(Currency.EURO, BigDecimal.ZERO, "recipient").getId();
+            engine.transferMoney(sender, recipient, new BigDecimal("10.01"));
+        }
+    }
+
+    @Test
+    public void testStateIsRestoredFromJournal() throws Exception {
+        Path journalDir = folder.getRoot().toPath();
+        long sender;
+        long recipient;
+        long dollars;
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, new TransferJournal(journalDir, 100, 1 << 20, 4096, 0))) {
+            sender = engine.createAccount(Currency.JAPANESE_YEN, BigDecimal.valueOf(100), "sender").getId();
+            recipient = engine.createAccount(Currency.JAPANESE_YEN, BigDecimal.ZERO, "recipient").getId();
+            engine.transferMoney(sender, recipient, new BigDecimal("12.34"));
+            dollars = engine.createAccount(Currency.AMERICAN_DOLLAR, BigDecimal.TEN, "dollars").getId();
+            // 1 / 0.0067 yen at the bundled rates
+            engine.transferMoney(dollars, recipient, BigDecimal.ONE);
+        }
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, new TransferJournal(journalDir, 100, 1 << 20, 4096, 0))) {
+            AccountDetails senderDetails = engine.getAccountDetails(sender);
+            assertEquals(0, new BigDecimal("87.66").compareTo(senderDetails.getBalance()));
+            assertEquals("sender", senderDetails.getOwner());
+            assertEquals(0, new BigDecimal("161.59").compareTo(engine.getAccountDetails(recipient).getBalance()));
+            assertEquals(0, new BigDecimal("9.00").compareTo(engine.getAccountDetails(dollars).getBalance()));
+            assertTrue(engine.createAccount(Currency.EURO, BigDecimal.ZERO, "next").getId() > dollars);
+        }
+    }
+
+    @Test
+    public void testIdempotencyKeyMakesTransferOnce() throws Exception {
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, null)) {
+            long sender = engine.createAccount(Currency.EURO, BigDecimal.valueOf(100), "sender").getId();
+            long recipient = engine.createAccount(Currency.EURO, BigDecimal.ZERO, "recipient").getId();
+            String key = "memory-" + sender;
+
+            assertTrue(engine.transferMoney(sender, recipient, BigDecimal.TEN, key));
+            assertFalse(engine.transferMoney(sender, recipient, new BigDecimal("10.00"), key));
+            try {
+                engine.transferMoney(sender, recipient, BigDecimal.ONE, key);
+                fail();
+            } catch (IdempotencyKeyReusedException expected) {
+                assertEquals(key, expected.getKey());
+            }
+            assertEquals(0, BigDecimal.valueOf(90).compareTo(engine.getAccountDetails(sender).getBalance()));
+        }
+    }
+
+    @Test
+    public void testIdempotencyKeyIsRestoredFromJournal() throws Exception {
+        Path journalDir = folder.getRoot().toPath();
+        long sender;
+        long recipient;
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, new TransferJournal(journalDir, 100, 1 << 20, 4096, 0))) {
+            sender = engine.createAccount(Currency.EURO, BigDecimal.valueOf(100), "sender").getId();
+            recipient = engine.createAccount(Currency.EURO, BigDecimal.ZERO, "recipient").getId();
+            assertTrue(engine.transferMoney(sender, recipient, BigDecimal.TEN, "journaled"));
+        }
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, new TransferJournal(journalDir, 100, 1 << 20, 4096, 0))) {
+            assertFalse(engine.transferMoney(sender, recipient, BigDecimal.TEN, "journaled"));
+            assertEquals(0, BigDecimal.valueOf(90).compareTo(engine.getAccountDetails(sender).getBalance()));
+        }
+    }
+}
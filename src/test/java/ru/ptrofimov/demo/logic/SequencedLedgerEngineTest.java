@@ -0,0 +1,157 @@
+package ru.ptrofimov.demo.logic;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ptrofimov.demo.exceptions.AccountNotFoundException;
+import ru.ptrofimov.demo.exceptions.IdempotencyKeyReusedException;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.journal.TransferJournal;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SequencedLedgerEngineTest extends Assert {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPipelinedTransfersAreWrittenToH2() throws Exception {
+        try (SequencedLedgerEngine engine = new SequencedLedgerEngine(new H2LedgerEngine(), 2048, 16)) {
+            long first = engine.createAccount(Currency.EURO, BigDecimal.valueOf(10), "first").getId();
+            long second = engine.createAccount(Currency.EURO, BigDecimal.valueOf(10), "second").getId();
+
+            // more transfers than fit a run, published without waiting, and more than the sender has in total
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 1100; i++) {
+                futures.add(engine.submitTransfer(first, second, new BigDecimal("0.01"), null));
+            }
+            int executed = 0;
+            for (CompletableFuture<Boolean> future : futures) {
+                try {
+                    assertTrue(future.get(5, TimeUnit.SECONDS));
+                    executed++;
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof InsufficientFundsException);
+                }
+            }
+            assertEquals(1000, executed);
+
+            try (AccountHelper helper = new AccountHelper()) {
+                assertEquals(0, BigDecimal.ZERO.compareTo(helper.loadAccountDetails(first).getBalance()));
+                assertEquals(0, BigDecimal.valueOf(20).compareTo(helper.loadAccountDetails(second).getBalance()));
+            }
+            int recorded = 0;
+            try (TransferHistory history = engine.getTransfers(first, 0, 10_000)) {
+                while (history.next()) {
+                    recorded++;
+                }
+            }
+            assertEquals(1000, recorded);
+        }
+    }
+
+    @Test
+    public void testTransferOutcomes() throws Exception {
+        try (SequencedLedgerEngine engine = new SequencedLedgerEngine(new H2LedgerEngine(), 64, 8)) {
+            long sender = engine.createAccount(Currency.AMERICAN_DOLLAR, BigDecimal.TEN, "sender").getId();
+            long recipient = engine.createAccount(Currency.EURO, BigDecimal.ZERO, "recipient").getId();
+            try {
+                engine.transferMoney(sender, recipient, new BigDecimal("10.01"));
+                fail();
+            } catch (InsufficientFundsException expected) {
+                // nothing was moved
+            }
+            try {
+                engine.transferMoney(sender, Long.MAX_VALUE, BigDecimal.ONE);
+                fail();
+            } catch (AccountNotFoundException expected) {
+                assertEquals(Long.MAX_VALUE, expected.getAccountId());
+            }
+
+            String key = "sequenced-" + sender;
+            assertTrue(engine.transferMoney(sender, recipient, BigDecimal.TEN, key));
+            IdempotencyKeys.clear();
+            assertFalse("the key is found in H2", engine.transferMoney(sender, recipient, BigDecimal.TEN, key));
+            try {
+                engine.transferMoney(sender, recipient, BigDecimal.ONE, key);
+                fail();
+            } catch (IdempotencyKeyReusedException expected) {
+                // the key belongs to the first transfer
+            }
+            // 10.00 / 1.08 at the bundled rates
+            assertEquals(0, new BigDecimal("9.26").compareTo(engine.getAccountDetails(recipient).getBalance()));
+            assertEquals(0, BigDecimal.ZERO.compareTo(engine.getAccountDetails(sender).getBalance()));
+            // credits never contend with a single writer, so sharding leaves the account alone
+            engine.shardAccount(sender, 4);
+            assertEquals(0, new BigDecimal("9.26").compareTo(engine.getAccountDetails(recipient).getBalance()));
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        try (SequencedLedgerEngine engine = new SequencedLedgerEngine(new H2LedgerEngine(), 64, 8)) {
+            long first = engine.createAccount(Currency.RUSSIAN_RUBLE, BigDecimal.TEN, "first").getId();
+            long second = engine.createAccount(Currency.RUSSIAN_RUBLE, BigDecimal.ZERO, "second").getId();
+            List<TransferRequest> transfers = Arrays.asList(
+                    new TransferRequest(first, second, BigDecimal.ONE),
+                    new TransferRequest(second, first, BigDecimal.TEN));
+
+            assertArrayEquals(new MoneyTransferStatus[]{MoneyTransferStatus.ROLLED_BACK,
+                    MoneyTransferStatus.INSUFFICIENT_FUNDS}, engine.transferMoney(transfers, BatchMode.ALL_OR_NOTHING));
+            assertArrayEquals(new MoneyTransferStatus[]{MoneyTransferStatus.SUCCESS,
+                    MoneyTransferStatus.INSUFFICIENT_FUNDS}, engine.transferMoney(transfers, BatchMode.PER_ITEM));
+            engine.transferMoney(second, first, new BigDecimal("0.50"));
+
+            assertEquals(0, new BigDecimal("9.50").compareTo(engine.getAccountDetails(first).getBalance()));
+            assertEquals(0, new BigDecimal("0.50").compareTo(engine.getAccountDetails(second).getBalance()));
+        }
+    }
+
+    @Test
+    public void testEvictedAccountsAreReloaded() throws Exception {
+        try (SequencedLedgerEngine engine = new SequencedLedgerEngine(new H2LedgerEngine(), 64, 8, 1)) {
+            long[] accounts = new long[3];
+            for (int i = 0; i < accounts.length; i++) {
+                accounts[i] = engine.createAccount(Currency.EURO, BigDecimal.TEN, "evicted " + i).getId();
+            }
+            // every transfer loads at least one account the previous one pushed out
+            for (int i = 0; i < 30; i++) {
+                engine.transferMoney(accounts[i % 3], accounts[(i + 1) % 3], BigDecimal.ONE);
+            }
+            for (long account : accounts) {
+                assertEquals(0, BigDecimal.TEN.compareTo(engine.getAccountDetails(account).getBalance()));
+            }
+        }
+    }
+
+    @Test
+    public void testJournalFailureRejectsTransfers() throws Exception {
+        TransferJournal journal = new TransferJournal(folder.getRoot().toPath(), 100, 1 << 20, 4096, 0);
+        try (SequencedLedgerEngine engine = new SequencedLedgerEngine(new H2LedgerEngine(journal), 64, 8)) {
+            long sender = engine.createAccount(Currency.EURO, BigDecimal.TEN, "sender").getId();
+            long recipient = engine.createAccount(Currency.EURO, BigDecimal.ZERO, "recipient").getId();
+            journal.close();
+            for (int i = 0; i < 2; i++) {
+                try {
+                    engine.transferMoney(sender, recipient, BigDecimal.ONE);
+                    fail();
+                } catch (RejectedExecutionException expected) {
+                    // the first run is not durable, the second is not even tried
+                }
+            }
+        }
+    }
+}
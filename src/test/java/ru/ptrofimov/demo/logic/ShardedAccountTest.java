@@ -0,0 +1,76 @@
+package ru.ptrofimov.demo.logic;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ptrofimov.demo.exceptions.InsufficientFundsException;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ShardedAccountTest extends Assert {
+
+    @Test
+    public void testShardedAccountOnH2() throws Exception {
+        try (H2LedgerEngine engine = new H2LedgerEngine()) {
+            checkShardedAccount(engine);
+        }
+    }
+
+    @Test
+    public void testShardedAccountInMemory() throws Exception {
+        try (InMemoryLedgerEngine engine = new InMemoryLedgerEngine(4, null)) {
+            checkShardedAccount(engine);
+        }
+    }
+
+    private static void checkShardedAccount(LedgerEngine engine) throws Exception {
+        long hot = engine.createAccount(Currency.EURO, BigDecimal.TEN, "hot").getId();
+        engine.shardAccount(hot, 4);
+        List<Long> senders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            senders.add(engine.createAccount(Currency.EURO, BigDecimal.valueOf(100), "sender").getId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (long sender : senders) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 100; j++) {
+                    engine.transferMoney(sender, hot, BigDecimal.ONE);
+                    if (j % 10 == 0) {
+                        engine.transferMoney(hot, sender, BigDecimal.ONE);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(0, BigDecimal.valueOf(370).compareTo(engine.getAccountDetails(hot).getBalance()));
+
+        try {
+            engine.transferMoney(hot, senders.get(0), BigDecimal.valueOf(371));
+            fail();
+        } catch (InsufficientFundsException expected) {
+        }
+        MoneyTransferStatus[] statuses = engine.transferMoney(Collections.singletonList(
+                new TransferRequest(hot, senders.get(0), BigDecimal.valueOf(300))), BatchMode.ALL_OR_NOTHING);
+        assertEquals(MoneyTransferStatus.SUCCESS, statuses[0]);
+
+        engine.shardAccount(hot, 2);
+        engine.transferMoney(hot, senders.get(1), BigDecimal.valueOf(70));
+        assertEquals(0, BigDecimal.ZERO.compareTo(engine.getAccountDetails(hot).getBalance()));
+        assertEquals(0, BigDecimal.valueOf(310).compareTo(engine.getAccountDetails(senders.get(0)).getBalance()));
+    }
+}
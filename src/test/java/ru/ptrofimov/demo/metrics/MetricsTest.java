@@ -0,0 +1,61 @@
+package ru.ptrofimov.demo.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsTest extends Assert {
+
+    @Test
+    public void testBucketsCoverValues() {
+        for (long value : new long[]{0, 1023, 1024, 1535, 1536, 2047, 2048, 123_456_789L, 1L << 35}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value + " above its bucket", value <= LatencyHistogram.upperBound(index));
+            if (index > 0) {
+                assertTrue(value + " below its bucket", value > LatencyHistogram.upperBound(index - 1));
+            }
+        }
+        assertEquals(LatencyHistogram.BUCKETS, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPrometheusFormat() throws IOException {
+        LatencyHistogram histogram = Metrics.histogram("test_duration_seconds", "Test", "op", "a");
+        histogram.record(1_000);
+        histogram.record(2_000_000_000L);
+        LongAdder counter = Metrics.counter("test_events_total", "Test events", "kind", "x\"y");
+        counter.add(3);
+        assertSame(counter, Metrics.counter("test_events_total", "Test events", "kind", "x\"y"));
+
+        StringWriter out = new StringWriter();
+        Metrics.write(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE test_duration_seconds histogram\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{op=\"a\",le=\"1.535E-6\"} 1\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{op=\"a\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("test_duration_seconds_count{op=\"a\"} 2\n"));
+        assertTrue(text.contains("test_events_total{kind=\"x\\\"y\"} 3\n"));
+        assertTrue(text.contains("# TYPE jvm_memory_used_bytes gauge\n"));
+    }
+
+    @Test
+    public void testResetZeroesCountersAndHistograms() throws IOException {
+        LatencyHistogram histogram = Metrics.histogram("test_reset_seconds", "Test");
+        histogram.record(1_000);
+        LongAdder counter = Metrics.counter("test_reset_total", "Test");
+        counter.add(5);
+        Metrics.gauge("test_reset_gauge", "Test", () -> 7);
+
+        Metrics.reset();
+        StringWriter out = new StringWriter();
+        Metrics.write(out);
+        String text = out.toString();
+        assertTrue(text.contains("test_reset_seconds_count 0\n"));
+        assertTrue(text.contains("test_reset_seconds_sum 0\n"));
+        assertTrue(text.contains("test_reset_total 0\n"));
+        assertTrue(text.contains("test_reset_gauge 7\n"));
+    }
+}
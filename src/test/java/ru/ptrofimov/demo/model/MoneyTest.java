@@ -0,0 +1,54 @@
+package ru.ptrofimov.demo.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+public class MoneyTest extends Assert {
+
+    @Test
+    public void testConversion() {
+        assertEquals(70000, Money.of(new BigDecimal("700")));
+        assertEquals(150, Money.of(new BigDecimal("1.5")));
+        assertEquals(1, Money.of(new BigDecimal("0.01")));
+        assertEquals(-250, Money.of(new BigDecimal("-2.50")));
+        assertEquals(150, Money.of(new BigDecimal("1.500")));
+        assertEquals(10000, Money.of(new BigDecimal("1E+2")));
+        assertEquals(new BigDecimal("1.50"), Money.toBigDecimal(150));
+    }
+
+    @Test
+    public void testFractionsOfCentsAreRejected() {
+        for (String amount : new String[]{"0.015", "0.001", "1E-3"}) {
+            assertFalse(amount, Money.isWholeCents(new BigDecimal(amount)));
+            try {
+                Money.of(new BigDecimal(amount));
+                fail(amount);
+            } catch (ArithmeticException expected) {
+                // never rounded
+            }
+        }
+        assertTrue(Money.isWholeCents(new BigDecimal("1.500")));
+        assertTrue(Money.isWholeCents(new BigDecimal("1E+2")));
+    }
+
+    @Test
+    public void testOverflow() {
+        assertEquals(Long.MAX_VALUE, Money.of(Money.toBigDecimal(Long.MAX_VALUE)));
+        for (String amount : new String[]{"92233720368547758.08", "92233720368547759", "1E+18"}) {
+            try {
+                Money.of(new BigDecimal(amount));
+                fail(amount);
+            } catch (ArithmeticException expected) {
+                // does not fit in minor units
+            }
+        }
+        try {
+            Money.add(Long.MAX_VALUE, 1);
+            fail();
+        } catch (ArithmeticException expected) {
+            // sum overflows
+        }
+    }
+}
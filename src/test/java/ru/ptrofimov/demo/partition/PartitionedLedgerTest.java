@@ -0,0 +1,309 @@
+package ru.ptrofimov.demo.partition;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.ptrofimov.demo.App;
+import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
+import ru.ptrofimov.demo.model.Currency;
+import ru.ptrofimov.demo.model.MoneyTransferResponse;
+import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static ru.ptrofimov.demo.rest.PathConstants.*;
+
+/**
+ * Runs two partitions as separate {@link App} processes on free localhost ports.
+ */
+public class PartitionedLedgerTest extends Assert {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int PARTITIONS = 2;
+    private static final String SECRET = "partition-test-secret";
+    private static final Process[] processes = new Process[PARTITIONS];
+    private static final String[] urls = new String[PARTITIONS];
+    private static Client client;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        for (int i = 0; i < PARTITIONS; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                urls[i] = "http://localhost:" + socket.getLocalPort();
+            }
+        }
+        for (int i = 0; i < PARTITIONS; i++) {
+            processes[i] = start(i, folder.getRoot().toPath());
+        }
+        client = ClientBuilder.newClient();
+        for (int i = 0; i < PARTITIONS; i++) {
+            awaitStarted(i);
+        }
+    }
+
+    private static Process start(int index, Path dir) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+        return new ProcessBuilder(java, "-cp", classPath,
+                "-Ddemo.partition.peers=" + String.join(",", urls),
+                "-Ddemo.partition.index=" + index,
+                "-Ddemo.partition.dir=" + dir,
+                "-Ddemo.partition.secret=" + SECRET,
+                "-Ddemo.partition.inDoubtMillis=500",
+                "-Ddemo.partition.retryIntervalMillis=200",
+                "-Ddemo.jetty.port=" + urls[index].substring(urls[index].lastIndexOf(':') + 1),
+                App.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dir.resolve("partition-" + index + ".out").toFile()))
+                .start();
+    }
+
+    private static void awaitStarted(int index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (true) {
+            try {
+                if (api(index).path(MONEY_TRANSFER_ENTRY_POINT + "/greeting").request().get().getStatus() == 200) {
+                    return;
+                }
+            } catch (ProcessingException e) {
+                if (System.currentTimeMillis() > deadline || !processes[index].isAlive()) {
+                    throw e;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        client.close();
+        for (Process process : processes) {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    @Test
+    public void testCrossPartitionTransfers() throws Exception {
+        long sender = createAccount(0, Currency.EURO, BigDecimal.valueOf(100));
+        long recipient = createAccount(1, Currency.EURO, BigDecimal.ZERO);
+        long dollars = createAccount(1, Currency.AMERICAN_DOLLAR, BigDecimal.ZERO);
+
+        // sent to the recipient's partition, which hands it to the sender's
+        assertEquals(MoneyTransferStatus.SUCCESS, transfer(1, sender, recipient, "30", null));
+        assertEquals(MoneyTransferStatus.INSUFFICIENT_FUNDS, transfer(0, sender, recipient, "1000", null));
+        assertEquals(MoneyTransferStatus.CURRENCY_MISMATCH, transfer(0, sender, dollars, "1", null));
+        assertEquals(404, transferResponse(0, sender, recipient + 2 * 1000, "1", null).getStatus());
+
+        String key = UUID.randomUUID().toString();
+        assertEquals(MoneyTransferStatus.SUCCESS, transfer(0, sender, recipient, "5", key));
+        Response retry = transferResponse(1, sender, recipient, "5", key);
+        assertEquals("true", retry.getHeaderString(IDEMPOTENT_REPLAYED));
+
+        assertBalance(65, sender);
+        assertBalance(35, recipient);
+    }
+
+    @Test
+    public void testConcurrentTransfersConserveMoney() throws Exception {
+        long[] accounts = {
+                createAccount(0, Currency.JAPANESE_YEN, BigDecimal.valueOf(100)),
+                createAccount(1, Currency.JAPANESE_YEN, BigDecimal.valueOf(100)),
+                createAccount(0, Currency.JAPANESE_YEN, BigDecimal.valueOf(100)),
+                createAccount(1, Currency.JAPANESE_YEN, BigDecimal.valueOf(100))};
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int thread = i;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 25; j++) {
+                    transfer(j % PARTITIONS, accounts[thread], accounts[(thread + 1 + j % 3) % accounts.length], "7", null);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        BigDecimal total = BigDecimal.ZERO;
+        for (long account : accounts) {
+            total = total.add(getBalance(0, account));
+        }
+        assertEquals(0, BigDecimal.valueOf(400).compareTo(total));
+    }
+
+    @Test
+    public void testUnavailableParticipantRefundsSender() throws Exception {
+        long sender = createAccount(0, Currency.RUSSIAN_RUBLE, BigDecimal.valueOf(100));
+        long recipient = createAccount(1, Currency.RUSSIAN_RUBLE, BigDecimal.ZERO);
+        processes[1].destroy();
+        processes[1].waitFor();
+        try {
+            Response response = transferResponse(0, sender, recipient, "10", null);
+            assertEquals(503, response.getStatus());
+            assertNotNull(response.getHeaderString("Retry-After"));
+            assertEquals(0, BigDecimal.valueOf(100).compareTo(getBalance(0, sender)));
+
+            long local = createAccount(0, Currency.RUSSIAN_RUBLE, BigDecimal.ZERO);
+            assertEquals(Arrays.asList(MoneyTransferStatus.UNAVAILABLE, MoneyTransferStatus.SUCCESS,
+                    MoneyTransferStatus.UNAVAILABLE),
+                    batch(0, BatchMode.PER_ITEM, new TransferRequest(sender, recipient, BigDecimal.ONE),
+                            new TransferRequest(sender, local, BigDecimal.ONE),
+                            new TransferRequest(sender, recipient, BigDecimal.ONE)));
+            assertEquals(0, BigDecimal.valueOf(99).compareTo(getBalance(0, sender)));
+        } finally {
+            processes[1] = start(1, folder.getRoot().toPath());
+            awaitStarted(1);
+        }
+    }
+
+    @Test
+    public void testCrossPartitionBatches() throws Exception {
+        long sender = createAccount(0, Currency.EURO, BigDecimal.valueOf(100));
+        long local = createAccount(0, Currency.EURO, BigDecimal.ZERO);
+        long remote = createAccount(1, Currency.EURO, BigDecimal.ZERO);
+        TransferRequest[] transfers = {
+                new TransferRequest(sender, local, BigDecimal.TEN),
+                new TransferRequest(sender, remote, BigDecimal.TEN)};
+
+        assertEquals(400, batchResponse(0, BatchMode.ALL_OR_NOTHING, transfers).getStatus());
+        assertBalance(100, sender);
+
+        assertEquals(Arrays.asList(MoneyTransferStatus.SUCCESS, MoneyTransferStatus.SUCCESS),
+                batch(0, BatchMode.PER_ITEM, transfers));
+        assertBalance(80, sender);
+        assertBalance(10, remote);
+    }
+
+    @Test
+    public void testInternalApiRequiresSecret() {
+        Form form = new Form();
+        form.param("tx", "0-" + UUID.randomUUID());
+        assertEquals(403, client.target(urls[1]).path(API + "/" + PARTITION + "/" + COMMIT)
+                .request()
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE))
+                .getStatus());
+        assertEquals(403, client.target(urls[1]).path(API + "/" + PARTITION + "/" + COMMIT)
+                .request()
+                .header(PARTITION_SECRET, "wrong")
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE))
+                .getStatus());
+        // the coordinator has never heard of this transfer, so the commit is refused
+        assertEquals(409, client.target(urls[1]).path(API + "/" + PARTITION + "/" + COMMIT)
+                .request()
+                .header(PARTITION_SECRET, SECRET)
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE))
+                .getStatus());
+    }
+
+    @Test
+    public void testCoordinatorLogRecovery() throws Exception {
+        Path file = folder.newFolder().toPath().resolve("coordinator.log");
+        try (CoordinatorLog log = new CoordinatorLog(file)) {
+            for (String txId : Arrays.asList("0-a", "0-b", "0-c")) {
+                log.prepared(new CoordinatorLog.Transfer(txId, 2, 3, new BigDecimal("1.50"), Currency.EURO, 1));
+            }
+            log.decided("0-a", true);
+            log.decided("0-c", false);
+            log.done("0-c");
+        }
+        try (CoordinatorLog log = new CoordinatorLog(file)) {
+            assertEquals(Arrays.asList("0-a", "0-b"), new ArrayList<>(log.getRecovered().keySet()));
+            assertTrue(log.getRecovered().get("0-a").outcome);
+            assertNull(log.getRecovered().get("0-b").outcome);
+            assertEquals(0, new BigDecimal("1.50").compareTo(log.getRecovered().get("0-b").amount));
+        }
+    }
+
+    private static WebTarget api(int partition) {
+        return client.target(urls[partition]).path(API);
+    }
+
+    private static long createAccount(int partition, Currency currency, BigDecimal balance) {
+        long id = api(partition).path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(new AccountDetails(currency, balance, "owner"), MediaType.APPLICATION_JSON_TYPE),
+                        AccountDetails.class)
+                .getId();
+        assertEquals(partition, id % PARTITIONS);
+        return id;
+    }
+
+    private static Response transferResponse(int partition, long sender, long recipient, String amount, String key) {
+        Form form = new Form();
+        form.param("from", Long.toString(sender));
+        form.param("amount", amount);
+        return api(partition).path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + recipient + "/balance")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .header(IDEMPOTENCY_KEY, key)
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+    }
+
+    private static Response batchResponse(int partition, BatchMode mode, TransferRequest... transfers) {
+        return api(partition).path(MONEY_TRANSFER_ENTRY_POINT + "/" + TRANSFERS)
+                .queryParam("mode", mode)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(new GenericEntity<List<TransferRequest>>(Arrays.asList(transfers)) {
+                }, MediaType.APPLICATION_JSON_TYPE));
+    }
+
+    private static List<MoneyTransferStatus> batch(int partition, BatchMode mode, TransferRequest... transfers) {
+        Response response = batchResponse(partition, mode, transfers);
+        assertEquals(200, response.getStatus());
+        List<MoneyTransferStatus> statuses = new ArrayList<>();
+        for (MoneyTransferResponse item : response.readEntity(new GenericType<List<MoneyTransferResponse>>() {
+        })) {
+            statuses.add(item.getStatus());
+        }
+        return statuses;
+    }
+
+    private static MoneyTransferStatus transfer(int partition, long sender, long recipient, String amount, String key) {
+        Response response = transferResponse(partition, sender, recipient, amount, key);
+        assertEquals(200, response.getStatus());
+        return response.readEntity(MoneyTransferResponse.class).getStatus();
+    }
+
+    private static BigDecimal getBalance(int partition, long accountId) {
+        return api(partition).path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + accountId)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get(AccountDetails.class)
+                .getBalance();
+    }
+
+    private static void assertBalance(long expected, long accountId) {
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            assertEquals(0, BigDecimal.valueOf(expected).compareTo(getBalance(partition, accountId)));
+        }
+    }
+}
@@ -5,22 +5,33 @@ import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import ru.ptrofimov.demo.logic.IdempotencyKeys;
 import ru.ptrofimov.demo.model.AccountDetails;
+import ru.ptrofimov.demo.model.BatchMode;
 import ru.ptrofimov.demo.model.Currency;
 import ru.ptrofimov.demo.model.MoneyTransferResponse;
 import ru.ptrofimov.demo.model.MoneyTransferStatus;
+import ru.ptrofimov.demo.model.TransferRequest;
 import ru.ptrofimov.demo.utils.JettyUtils;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Form;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
+import static ru.ptrofimov.demo.rest.BinaryFormat.APPLICATION_MONEY_TRANSFER_TYPE;
 import static ru.ptrofimov.demo.rest.MoneyTransferEntryPoint.*;
 import static ru.ptrofimov.demo.rest.PathConstants.*;
 
@@ -67,29 +78,106 @@ public class ApiTest extends Assert {
                 .post(Entity.entity(accountDetails, MediaType.APPLICATION_JSON_TYPE), AccountDetails.class);
         long accountId = accountDetails.getId();
 
-        accountDetails = client.target("http://localhost:8080/" + API)
+        Response response = client.target("http://localhost:8080/" + API)
                 .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + accountId)
                 .request(MediaType.APPLICATION_JSON_TYPE)
-                .get(AccountDetails.class);
+                .get();
+        assertEquals("0", response.getHeaderString(SNAPSHOT_AGE));
+        accountDetails = response.readEntity(AccountDetails.class);
         assertEquals(currency, accountDetails.getCurrency());
         //noinspection SimplifiableJUnitAssertion
         assertTrue(balance.compareTo(accountDetails.getBalance()) == 0); // equals won't work because of trailing zeros
         assertEquals(owner, accountDetails.getOwner());
     }
 
+    @Test
+    public void testAdminApiIsClosedWithoutSecret() {
+        Client client = ClientBuilder.newClient();
+        for (String secret : new String[]{null, "", "guess"}) {
+            Response response = client.target("http://localhost:8080/" + API)
+                    .path(ADMIN + "/" + CONSERVATION)
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .header(ADMIN_SECRET, secret)
+                    .get();
+            assertEquals(403, response.getStatus());
+            response = client.target("http://localhost:8080/" + API)
+                    .path(ADMIN + "/" + CONSERVATION)
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .header(ADMIN_SECRET, secret)
+                    .post(Entity.form(new Form()));
+            assertEquals(403, response.getStatus());
+        }
+    }
+
     @Test
     public void testTransferDifferentCurrencies() {
         Client client = ClientBuilder.newClient();
+        long dollars = createAccount(client, Currency.AMERICAN_DOLLAR, BigDecimal.valueOf(100));
+        long euros = createAccount(client, Currency.EURO, BigDecimal.ZERO);
 
         Form form = new Form();
-        form.param("from", Long.toString(2));
-        form.param("amount", BigDecimal.ONE.toString());
+        form.param("from", Long.toString(dollars));
+        form.param("amount", BigDecimal.TEN.toString());
 
         MoneyTransferResponse response = client.target("http://localhost:8080/" + API)
-                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + 3 + "/balance")
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + euros + "/balance")
                 .request(MediaType.APPLICATION_JSON_TYPE)
                 .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE), MoneyTransferResponse.class);
-        assertEquals(MoneyTransferStatus.CURRENCY_MISMATCH, response.getStatus());
+        assertEquals(MoneyTransferStatus.SUCCESS, response.getStatus());
+        // at the bundled rates a euro is worth 1.08 dollars
+        assertEquals(0, new BigDecimal("90").compareTo(getBalance(client, dollars)));
+        assertEquals(0, new BigDecimal("9.26").compareTo(getBalance(client, euros)));
+
+        Map<String, Object> transfer = getTransfers(client, euros, 0, 10).get(0);
+        assertEquals(0, BigDecimal.TEN.compareTo(new BigDecimal(transfer.get("amount").toString())));
+        assertEquals(Currency.AMERICAN_DOLLAR.name(), transfer.get("currency"));
+        assertEquals(0, new BigDecimal("9.26").compareTo(new BigDecimal(transfer.get("creditedAmount").toString())));
+        assertEquals(Currency.EURO.name(), transfer.get("creditedCurrency"));
+        assertEquals(1, ((Number) transfer.get("rateVersion")).longValue());
+    }
+
+    @Test
+    public void testFractionsOfCentsAreRejected() {
+        Client client = ClientBuilder.newClient();
+        long sender = createAccount(client, Currency.AMERICAN_DOLLAR, BigDecimal.TEN);
+        long recipient = createAccount(client, Currency.AMERICAN_DOLLAR, BigDecimal.ZERO);
+
+        Form form = new Form();
+        form.param("from", Long.toString(sender));
+        form.param("amount", "0.005");
+        Response response = client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + recipient + "/balance")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+        response = client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(new AccountDetails(Currency.EURO, new BigDecimal("1.001"), "sub-cent"),
+                        MediaType.APPLICATION_JSON_TYPE));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        assertEquals(0, BigDecimal.TEN.compareTo(getBalance(client, sender)));
+    }
+
+    @Test
+    public void testInvalidAccountIsRejected() {
+        Client client = ClientBuilder.newClient();
+        char[] owner = new char[AccountDetails.MAX_OWNER_LENGTH + 1];
+        Arrays.fill(owner, 'x');
+        AccountDetails[] invalid = {
+                new AccountDetails(Currency.EURO, BigDecimal.ONE, new String(owner)),
+                new AccountDetails(Currency.EURO, BigDecimal.ONE, null),
+                new AccountDetails(null, BigDecimal.ONE, "no currency"),
+                new AccountDetails(Currency.EURO, null, "no balance")
+        };
+        for (AccountDetails account : invalid) {
+            Response response = client.target("http://localhost:8080/" + API)
+                    .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS)
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .post(Entity.entity(account, MediaType.APPLICATION_JSON_TYPE));
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        }
     }
 
     @Test
@@ -107,6 +195,31 @@ public class ApiTest extends Assert {
         assertEquals(MoneyTransferStatus.INSUFFICIENT_FUNDS, response.getStatus());
     }
 
+    @Test
+    public void testMetrics() {
+        Client client = ClientBuilder.newClient();
+
+        Form form = new Form();
+        form.param("from", Long.toString(4));
+        form.param("amount", String.valueOf(700));
+        client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + 1 + "/balance")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE), MoneyTransferResponse.class);
+
+        Response response = client.target("http://localhost:8080/" + API)
+                .path(METRICS)
+                .request()
+                .get();
+        assertEquals(200, response.getStatus());
+        assertTrue(response.getMediaType().toString().startsWith("text/plain"));
+        String metrics = response.readEntity(String.class);
+        assertTrue(metrics.contains("http_request_duration_seconds_count{endpoint=\"transferMoney\"}"));
+        assertFalse(metrics.contains("transfer_outcomes_total{status=\"INSUFFICIENT_FUNDS\"} 0\n"));
+        assertTrue(metrics.contains("db_phase_seconds_bucket{phase=\"commit\",le=\"+Inf\"}"));
+        assertTrue(metrics.contains("jetty_threads_busy "));
+    }
+
     @Test
     public void testTransferNegativeFunds() {
         Client client = ClientBuilder.newClient();
@@ -154,4 +267,244 @@ public class ApiTest extends Assert {
         //noinspection SimplifiableJUnitAssertion
         assertTrue(BigDecimal.valueOf(1000).compareTo(recipientDetails.getBalance()) == 0);
     }
+
+    @Test
+    public void testBatchTransferPerItem() {
+        Client client = ClientBuilder.newClient();
+        long first = createAccount(client, Currency.EURO, BigDecimal.valueOf(100));
+        long second = createAccount(client, Currency.EURO, BigDecimal.ZERO);
+        long dollars = createAccount(client, Currency.AMERICAN_DOLLAR, BigDecimal.valueOf(100));
+
+        List<TransferRequest> transfers = Arrays.asList(
+                new TransferRequest(first, second, BigDecimal.valueOf(60)),
+                new TransferRequest(first, second, BigDecimal.valueOf(60)),
+                new TransferRequest(second, first, BigDecimal.valueOf(10)),
+                new TransferRequest(dollars, first, BigDecimal.ONE),
+                new TransferRequest(Long.MAX_VALUE, first, BigDecimal.ONE));
+        List<MoneyTransferResponse> responses = client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + TRANSFERS)
+                .queryParam("mode", BatchMode.PER_ITEM)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(transfers, MediaType.APPLICATION_JSON_TYPE),
+                        new GenericType<List<MoneyTransferResponse>>() {
+                        });
+        assertEquals(MoneyTransferStatus.SUCCESS, responses.get(0).getStatus());
+        assertEquals(MoneyTransferStatus.INSUFFICIENT_FUNDS, responses.get(1).getStatus());
+        assertEquals(MoneyTransferStatus.SUCCESS, responses.get(2).getStatus());
+        assertEquals(MoneyTransferStatus.SUCCESS, responses.get(3).getStatus());
+        assertEquals(MoneyTransferStatus.ACCOUNT_NOT_FOUND, responses.get(4).getStatus());
+
+        // the dollar was converted to 0.93 euros
+        //noinspection SimplifiableJUnitAssertion
+        assertTrue(new BigDecimal("50.93").compareTo(getBalance(client, first)) == 0);
+        //noinspection SimplifiableJUnitAssertion
+        assertTrue(BigDecimal.valueOf(50).compareTo(getBalance(client, second)) == 0);
+    }
+
+    @Test
+    public void testBatchTransferAllOrNothing() {
+        Client client = ClientBuilder.newClient();
+        long first = createAccount(client, Currency.EURO, BigDecimal.valueOf(100));
+        long second = createAccount(client, Currency.EURO, BigDecimal.ZERO);
+
+        List<TransferRequest> transfers = Arrays.asList(
+                new TransferRequest(first, second, BigDecimal.valueOf(60)),
+                new TransferRequest(first, second, BigDecimal.valueOf(60)));
+        List<MoneyTransferResponse> responses = client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + TRANSFERS)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(transfers, MediaType.APPLICATION_JSON_TYPE),
+                        new GenericType<List<MoneyTransferResponse>>() {
+                        });
+        assertEquals(MoneyTransferStatus.ROLLED_BACK, responses.get(0).getStatus());
+        assertEquals(MoneyTransferStatus.INSUFFICIENT_FUNDS, responses.get(1).getStatus());
+
+        //noinspection SimplifiableJUnitAssertion
+        assertTrue(BigDecimal.valueOf(100).compareTo(getBalance(client, first)) == 0);
+        //noinspection SimplifiableJUnitAssertion
+        assertTrue(BigDecimal.ZERO.compareTo(getBalance(client, second)) == 0);
+    }
+
+    @Test
+    public void testIdempotentTransfer() throws SQLException {
+        Client client = ClientBuilder.newClient();
+        long sender = createAccount(client, Currency.EURO, BigDecimal.valueOf(100));
+        long recipient = createAccount(client, Currency.EURO, BigDecimal.ZERO);
+        String key = UUID.randomUUID().toString();
+
+        Response first = transferWithKey(client, sender, recipient, "30", key);
+        assertEquals(200, first.getStatus());
+        assertNull(first.getHeaderString(IDEMPOTENT_REPLAYED));
+        // the retry has to be recognised by the stored key, not just by the in-memory cache
+        IdempotencyKeys.clear();
+        Response retry = transferWithKey(client, sender, recipient, "30.00", key);
+        assertEquals(200, retry.getStatus());
+        assertEquals("true", retry.getHeaderString(IDEMPOTENT_REPLAYED));
+        assertEquals(MoneyTransferStatus.SUCCESS, retry.readEntity(MoneyTransferResponse.class).getStatus());
+
+        assertEquals(422, transferWithKey(client, sender, recipient, "31", key).getStatus());
+        assertEquals(0, IdempotencyKeys.purgeExpired());
+
+        //noinspection SimplifiableJUnitAssertion
+        assertTrue(BigDecimal.valueOf(70).compareTo(getBalance(client, sender)) == 0);
+        //noinspection SimplifiableJUnitAssertion
+        assertTrue(BigDecimal.valueOf(30).compareTo(getBalance(client, recipient)) == 0);
+    }
+
+    @Test
+    public void testTransferHistory() {
+        Client client = ClientBuilder.newClient();
+        long first = createAccount(client, Currency.EURO, BigDecimal.valueOf(100));
+        long second = createAccount(client, Currency.EURO, BigDecimal.ZERO);
+        long third = createAccount(client, Currency.EURO, BigDecimal.ZERO);
+
+        assertEquals(200, transferWithKey(client, first, second, "10", UUID.randomUUID().toString()).getStatus());
+        assertEquals(200, transferWithKey(client, second, third, "4", UUID.randomUUID().toString()).getStatus());
+        client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + TRANSFERS)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(Arrays.asList(
+                        new TransferRequest(second, first, BigDecimal.ONE),
+                        new TransferRequest(third, first, new BigDecimal("0.50"))),
+                        MediaType.APPLICATION_JSON_TYPE));
+
+        List<Map<String, Object>> history = getTransfers(client, first, 0, 10);
+        assertEquals(3, history.size());
+        assertEquals(first, ((Number) history.get(0).get("from")).longValue());
+        assertEquals(second, ((Number) history.get(0).get("to")).longValue());
+        assertEquals(0, BigDecimal.TEN.compareTo(new BigDecimal(history.get(0).get("amount").toString())));
+        assertEquals(Currency.EURO.name(), history.get(0).get("currency"));
+        assertEquals(third, ((Number) history.get(2).get("from")).longValue());
+
+        long after = ((Number) history.get(0).get("id")).longValue();
+        List<Map<String, Object>> page = getTransfers(client, first, after, 1);
+        assertEquals(1, page.size());
+        assertEquals(history.get(1), page.get(0));
+
+        assertEquals(404, client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + Long.MAX_VALUE + "/" + TRANSFERS)
+                .request(MediaType.APPLICATION_JSON_TYPE).get().getStatus());
+    }
+
+    @Test
+    public void testImportAccounts() {
+        Client client = ClientBuilder.newClient();
+        String ndjson = "{\"currency\":\"EURO\",\"balance\":12.5,\"owner\":\"first\"}\n"
+                + "{\"currency\":\"XXX\",\"balance\":1,\"owner\":\"rejected\"}\n"
+                + "{\"currency\":\"USD\",\"balance\":\"7\",\"owner\":\"second\",\"id\":42}\n";
+        List<Long> ids = importAccounts(client, ndjson, AccountImportReader.NDJSON);
+        assertEquals(3, ids.size());
+        assertNull(ids.get(1));
+        assertEquals(0, new BigDecimal("12.5").compareTo(getBalance(client, ids.get(0))));
+        AccountDetails second = client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + ids.get(2))
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get(AccountDetails.class);
+        assertEquals(Currency.AMERICAN_DOLLAR, second.getCurrency());
+        assertEquals("second", second.getOwner());
+
+        StringBuilder csv = new StringBuilder("currency,balance,owner\n");
+        for (int i = 0; i < 2500; i++) {
+            csv.append("RUR,").append(i).append(",\"owner, ").append(i).append("\"\n");
+        }
+        csv.append("RUR,-1,negative\n");
+        ids = importAccounts(client, csv.toString(), AccountImportReader.CSV);
+        assertEquals(2501, ids.size());
+        assertNull(ids.get(2500));
+        for (int i = 1; i < 2500; i++) {
+            assertTrue(ids.get(i) > ids.get(i - 1));
+        }
+        assertEquals(0, BigDecimal.valueOf(2499).compareTo(getBalance(client, ids.get(2499))));
+    }
+
+    @Test
+    public void testBinaryFormat() {
+        Client client = ClientBuilder.newClient().register(BinaryFormat.class);
+        WebTarget accounts = client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS);
+
+        long sender = accounts.request(APPLICATION_MONEY_TRANSFER_TYPE)
+                .post(Entity.entity(new AccountDetails(Currency.EURO, new BigDecimal("100.50"), "binary sender"),
+                        APPLICATION_MONEY_TRANSFER_TYPE), AccountDetails.class)
+                .getId();
+        long recipient = createAccount(client, Currency.EURO, BigDecimal.ZERO);
+
+        Response response = accounts.path(recipient + "/balance").request(APPLICATION_MONEY_TRANSFER_TYPE)
+                .post(Entity.entity(new TransferRequest(sender, 0, new BigDecimal("0.50")),
+                        APPLICATION_MONEY_TRANSFER_TYPE));
+        assertEquals(APPLICATION_MONEY_TRANSFER_TYPE, response.getMediaType());
+        assertEquals(MoneyTransferStatus.SUCCESS, response.readEntity(MoneyTransferResponse.class).getStatus());
+
+        List<MoneyTransferResponse> responses = client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + TRANSFERS)
+                .queryParam("mode", BatchMode.PER_ITEM)
+                .request(APPLICATION_MONEY_TRANSFER_TYPE)
+                .post(Entity.entity(new GenericEntity<List<TransferRequest>>(Arrays.asList(
+                        new TransferRequest(sender, recipient, BigDecimal.TEN),
+                        new TransferRequest(recipient, sender, BigDecimal.valueOf(1000)))) {
+                        }, APPLICATION_MONEY_TRANSFER_TYPE),
+                        new GenericType<List<MoneyTransferResponse>>() {
+                        });
+        assertEquals(MoneyTransferStatus.SUCCESS, responses.get(0).getStatus());
+        assertEquals(MoneyTransferStatus.INSUFFICIENT_FUNDS, responses.get(1).getStatus());
+
+        AccountDetails details = accounts.path(Long.toString(sender)).request(APPLICATION_MONEY_TRANSFER_TYPE)
+                .get(AccountDetails.class);
+        assertEquals(Currency.EURO, details.getCurrency());
+        assertEquals(new BigDecimal("90.00"), details.getBalance());
+        assertEquals("binary sender", details.getOwner());
+        assertEquals(sender, details.getId());
+
+        // without the binary media type in Accept the answer is still JSON
+        response = accounts.path(Long.toString(sender)).request().get();
+        assertEquals(MediaType.APPLICATION_JSON_TYPE, response.getMediaType());
+        assertEquals(400, accounts.path(recipient + "/balance").request(APPLICATION_MONEY_TRANSFER_TYPE)
+                .post(Entity.entity(new byte[]{0, 1}, APPLICATION_MONEY_TRANSFER_TYPE)).getStatus());
+    }
+
+    private static List<Long> importAccounts(Client client, String body, String mediaType) {
+        return client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + IMPORT)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(body, mediaType), new GenericType<List<Long>>() {
+                });
+    }
+
+    private static List<Map<String, Object>> getTransfers(Client client, long accountId, long after, int limit) {
+        return client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + accountId + "/" + TRANSFERS)
+                .queryParam("after", after)
+                .queryParam("limit", limit)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get(new GenericType<List<Map<String, Object>>>() {
+                });
+    }
+
+    private static Response transferWithKey(Client client, long sender, long recipient, String amount, String key) {
+        Form form = new Form();
+        form.param("from", Long.toString(sender));
+        form.param("amount", amount);
+        return client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + recipient + "/balance")
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .header(IDEMPOTENCY_KEY, key)
+                .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
+    }
+
+    private static long createAccount(Client client, Currency currency, BigDecimal balance) {
+        AccountDetails accountDetails = new AccountDetails(currency, balance, UUID.randomUUID().toString());
+        return client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(accountDetails, MediaType.APPLICATION_JSON_TYPE), AccountDetails.class)
+                .getId();
+    }
+
+    private static BigDecimal getBalance(Client client, long accountId) {
+        return client.target("http://localhost:8080/" + API)
+                .path(MONEY_TRANSFER_ENTRY_POINT + "/" + ACCOUNTS + "/" + accountId)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get(AccountDetails.class)
+                .getBalance();
+    }
 }
@@ -0,0 +1,59 @@
+package ru.ptrofimov.demo.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedCacheTest extends Assert {
+
+    @Test
+    public void testSizeBound() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(4, 0, 1);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, Integer.toString(i));
+        }
+        assertEquals(4, cache.size());
+        assertEquals(6, cache.getEvictionCount());
+        assertNull(cache.get(0));
+        assertEquals("9", cache.get(9));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testEntriesExpire() throws InterruptedException {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(16, 20, 2);
+        cache.put(1, "one");
+        assertEquals("one", cache.get(1));
+        Thread.sleep(40);
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void testInvalidationWinsOverStaleLoad() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(16, 0, 2);
+        long version = cache.version(1);
+        // a writer commits and invalidates while the value is being loaded
+        cache.invalidate(1);
+        cache.putIfUnchanged(1, "stale", version);
+        assertNull(cache.get(1));
+
+        cache.putIfUnchanged(1, "fresh", cache.version(1));
+        assertEquals("fresh", cache.get(1));
+    }
+
+    @Test
+    public void testNothingLoadedDuringWriteIsCached() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(16, 0, 2);
+        cache.put(1, "before");
+        cache.beginWrite(1);
+        assertNull(cache.get(1));
+        // loaded after the write started but before it committed
+        cache.putIfUnchanged(1, "uncommitted", cache.version(1));
+        assertNull(cache.get(1));
+
+        cache.endWrite(1);
+        assertNull(cache.get(1));
+        cache.putIfUnchanged(1, "committed", cache.version(1));
+        assertEquals("committed", cache.get(1));
+    }
+}
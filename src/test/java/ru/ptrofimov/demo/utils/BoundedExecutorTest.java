@@ -0,0 +1,50 @@
+package ru.ptrofimov.demo.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class BoundedExecutorTest extends Assert {
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (BoundedExecutor executor = new BoundedExecutor("test", 1, 1, false)) {
+            CompletableFuture<Boolean> running = executor.submit(() -> release.await(5, TimeUnit.SECONDS));
+            CompletableFuture<Boolean> queued = executor.submit(() -> true);
+            try {
+                executor.submit(() -> true);
+                fail();
+            } catch (RejectedExecutionException expected) {
+                assertEquals(1, executor.getRejectedCount());
+            }
+            assertEquals(2, executor.getPendingCount());
+
+            release.countDown();
+            assertTrue(running.get(5, TimeUnit.SECONDS));
+            assertTrue(queued.get(5, TimeUnit.SECONDS));
+            assertEquals("accepted again once drained", 42, (int) executor.submit(() -> 42).get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testFailurePropagates() throws Exception {
+        try (BoundedExecutor executor = new BoundedExecutor("test", 1, 0, true)) {
+            CompletableFuture<Object> future = executor.submit(() -> {
+                throw new IllegalStateException("boom");
+            });
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            assertEquals(0, executor.getPendingCount());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package ru.ptrofimov.demo.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyLimiterTest extends Assert {
+
+    /**
+     * Fills the limit and completes every request with the given latency.
+     */
+    private static void saturate(ConcurrencyLimiter limiter, int rounds, long latencyMillis, boolean failed) {
+        for (int round = 0; round < rounds; round++) {
+            int acquired = 0;
+            while (limiter.tryAcquire(true)) {
+                acquired++;
+            }
+            for (int i = 0; i < Math.max(acquired, ConcurrencyLimiter.MIN_SAMPLES); i++) {
+                if (i >= acquired) {
+                    assertTrue(limiter.tryAcquire(true));
+                }
+                limiter.release(TimeUnit.MILLISECONDS.toNanos(latencyMillis), failed);
+            }
+        }
+    }
+
+    @Test
+    public void testLimitFollowsLatency() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 100, 0.25, 0);
+        saturate(limiter, 20, 1, false);
+        int grown = limiter.getLimit();
+        assertTrue("limit grows while latency is steady: " + grown, grown > 15);
+
+        saturate(limiter, 20, 10, false);
+        int shrunk = limiter.getLimit();
+        assertTrue("limit shrinks as requests slow down: " + shrunk, shrunk < grown / 2);
+
+        saturate(limiter, 20, 1, true);
+        assertEquals("failures push the limit to the minimum", 2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testIdleLimitDoesNotGrow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 2, 100, 0.25, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(true));
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(1), false);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void testPriorityRequestsKeepReservedShare() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 2, 100, 0.25, 1000);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(limiter.tryAcquire(false));
+        }
+        assertFalse(limiter.tryAcquire(false));
+        assertTrue(limiter.tryAcquire(true));
+        assertTrue(limiter.tryAcquire(true));
+        assertFalse(limiter.tryAcquire(true));
+        assertEquals(8, limiter.getInFlight());
+        assertEquals(1, limiter.getRejectedCount(false));
+        assertEquals(1, limiter.getRejectedCount(true));
+    }
+}
@@ -0,0 +1,147 @@
+package ru.ptrofimov.demo.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPoolTest extends Assert {
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ConnectionPool("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1", 2, 200, 0, 0);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            assertFalse(connection.isClosed());
+        }
+        try (Connection connection = pool.getConnection()) {
+            assertFalse(connection.isClosed());
+        }
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(2, pool.getAcquireCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testAcquireTimesOutWhenExhausted() throws SQLException {
+        try (Connection ignored1 = pool.getConnection(); Connection ignored2 = pool.getConnection()) {
+            assertEquals(2, pool.getActiveCount());
+            try {
+                pool.getConnection();
+                fail();
+            } catch (SQLTransientConnectionException expected) {
+                assertEquals(1, pool.getTimeoutCount());
+            }
+        }
+        assertEquals(0, pool.getActiveCount());
+    }
+
+    @Test
+    public void testWaiterIsWokenWhenBorrowedConnectionIsDestroyed() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ConnectionPool waiting = new ConnectionPool("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1", 1, 10_000, 0, 0)) {
+            Connection broken = waiting.getConnection();
+            Future<Connection> waiter = executor.submit(waiting::getConnection);
+            Thread.sleep(100);
+            broken.setAutoCommit(false);
+            broken.unwrap(Connection.class).close();
+            broken.close();
+            try (Connection connection = waiter.get(2, TimeUnit.SECONDS)) {
+                assertFalse(connection.isClosed());
+            }
+            assertEquals(1, waiting.getDestroyedCount());
+            assertEquals(0, waiting.getTimeoutCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReturnedConnectionIsReset() throws SQLException {
+        Connection connection = pool.getConnection();
+        connection.setAutoCommit(false);
+        connection.close();
+        connection.close();
+        try {
+            connection.createStatement();
+            fail();
+        } catch (SQLException expected) {
+            // closed handle must not reach the physical connection
+        }
+        try (Connection reused = pool.getConnection()) {
+            assertTrue(reused.getAutoCommit());
+        }
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testStatementsAreReusedPerConnection() throws SQLException {
+        try (ConnectionPool cachingPool = new ConnectionPool("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1", 1, 200, 0, 0, 2)) {
+            for (int i = 0; i < 3; i++) {
+                try (Connection connection = cachingPool.getConnection();
+                     PreparedStatement statement = connection.prepareStatement("SELECT ?")) {
+                    statement.setInt(1, i);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        assertTrue(resultSet.next());
+                        assertEquals(i, resultSet.getInt(1));
+                    }
+                    assertSame(connection, statement.getConnection());
+                }
+            }
+            assertEquals(1, cachingPool.getStatementMissCount());
+            assertEquals(2, cachingPool.getStatementHitCount());
+
+            try (Connection connection = cachingPool.getConnection();
+                 PreparedStatement first = connection.prepareStatement("SELECT ?");
+                 PreparedStatement second = connection.prepareStatement("SELECT ?")) {
+                // an open statement is never handed out twice
+                assertNotSame(first, second);
+                second.setInt(1, 7);
+                first.setInt(1, 5);
+                try (ResultSet resultSet = second.executeQuery()) {
+                    assertTrue(resultSet.next());
+                    assertEquals(7, resultSet.getInt(1));
+                }
+            }
+            assertEquals(2, cachingPool.getStatementMissCount());
+        }
+    }
+
+    @Test
+    public void testPrimeOpensAllConnectionsWithStatements() throws SQLException {
+        try (ConnectionPool cachingPool = new ConnectionPool("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1", 2, 200, 0, 0, 4)) {
+            cachingPool.prime(Arrays.asList("SELECT 1", "SELECT ?"));
+            assertEquals(2, cachingPool.getOpenCount());
+            assertEquals(2, cachingPool.getIdleCount());
+            assertEquals(4, cachingPool.getStatementMissCount());
+
+            try (Connection first = cachingPool.getConnection(); Connection second = cachingPool.getConnection()) {
+                first.prepareStatement("SELECT ?").close();
+                second.prepareStatement("SELECT ?").close();
+            }
+            assertEquals(2, cachingPool.getStatementHitCount());
+            assertEquals(4, cachingPool.getStatementMissCount());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.ptrofimov.demo.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RingBufferTest extends Assert {
+
+    @Test
+    public void testRejectsWhenFull() {
+        RingBuffer<long[]> ring = new RingBuffer<>(4, () -> new long[1]);
+        for (int i = 0; i < 4; i++) {
+            long sequence = ring.claim();
+            ring.get(sequence)[0] = sequence * 10;
+            ring.publish(sequence);
+        }
+        try {
+            ring.claim();
+            fail();
+        } catch (RejectedExecutionException expected) {
+            assertEquals(4, ring.getPendingCount());
+        }
+        assertEquals(3, ring.await(0, 0));
+        assertEquals(20, ring.get(2)[0]);
+        ring.release(1);
+        assertEquals("released slots are reused", 4, ring.claim());
+        assertSame(ring.get(0), ring.get(4));
+        assertEquals("not published yet", 3, ring.await(4, TimeUnit.MILLISECONDS.toNanos(10)));
+    }
+
+    @Test
+    public void testProducersAndConsumer() throws Exception {
+        RingBuffer<long[]> ring = new RingBuffer<>(64, () -> new long[1]);
+        int producers = 4;
+        int perProducer = 10_000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                for (int i = 1; i <= perProducer; ) {
+                    long sequence;
+                    try {
+                        sequence = ring.claim();
+                    } catch (RejectedExecutionException e) {
+                        Thread.yield();
+                        continue;
+                    }
+                    ring.get(sequence)[0] = i++;
+                    ring.publish(sequence);
+                }
+            });
+            threads[p].start();
+        }
+        AtomicLong sum = new AtomicLong();
+        long next = 0;
+        long total = (long) producers * perProducer;
+        while (next < total) {
+            long last = ring.await(next, TimeUnit.SECONDS.toNanos(5));
+            assertTrue("timed out at " + next, last >= next);
+            for (long sequence = next; sequence <= last; sequence++) {
+                sum.addAndGet(ring.get(sequence)[0]);
+            }
+            ring.release(last);
+            next = last + 1;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals((long) producers * perProducer * (perProducer + 1) / 2, sum.get());
+        assertEquals(0, ring.getPendingCount());
+    }
+}